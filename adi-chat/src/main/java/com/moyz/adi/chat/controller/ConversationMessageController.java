@@ -23,6 +23,12 @@ public class ConversationMessageController {
         return conversationMessageService.sseAsk(askReq);
     }
 
+    @Operation(summary = "停止当前用户正在进行的回复")
+    @PostMapping("/stop")
+    public void stop() {
+        conversationMessageService.stop();
+    }
+
     @PostMapping("/del/{uuid}")
     public boolean softDelete(@PathVariable String uuid) {
         return conversationMessageService.softDelete(uuid);
@@ -4,19 +4,20 @@ import com.moyz.adi.common.dto.*;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.service.DrawService;
 import com.moyz.adi.common.service.FileService;
+import com.moyz.adi.common.util.FileResponseUtil;
 import io.swagger.v3.oas.annotations.Operation;
 import jakarta.annotation.Resource;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.NotBlank;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.BooleanUtils;
 import org.hibernate.validator.constraints.Length;
-import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
+import java.io.File;
 import java.util.Map;
 
 import static com.moyz.adi.common.enums.ErrorEnum.*;
@@ -148,35 +149,28 @@ public class DrawController {
     }
 
     @Operation(summary = "公开的图片,可能带水印（根据水印设置决定）")
-    @GetMapping(value = "/public/image/{drawUuid}/{imageUuid}", produces = MediaType.IMAGE_PNG_VALUE)
-    public void publicImage(@Length(min = 32, max = 32) @PathVariable String drawUuid, @Length(min = 32, max = 32) @PathVariable String imageUuid, HttpServletResponse response) {
+    @GetMapping(value = "/public/image/{drawUuid}/{imageUuid}")
+    public void publicImage(@Length(min = 32, max = 32) @PathVariable String drawUuid, @Length(min = 32, max = 32) @PathVariable String imageUuid, HttpServletRequest request, HttpServletResponse response) {
         DrawDto drawDto = drawService.getPublicOrMine(drawUuid);
         if (null == drawDto) {
             throw new BaseException(A_AI_IMAGE_NO_AUTH);
         }
-        BufferedImage bufferedImage = fileService.readImage(imageUuid, false);
-        //把图片写给浏览器
-        try {
-            ImageIO.write(bufferedImage, "png", response.getOutputStream());
-        } catch (IOException e) {
-            log.error("publicImage error", e);
-            throw new BaseException(B_IMAGE_LOAD_ERROR);
-        }
+        File file = BooleanUtils.isTrue(drawDto.getWithWatermark())
+                ? fileService.getWatermarkImageFile(imageUuid, false, drawService.getWatermarkText(drawDto.getUserName()))
+                : fileService.getImageFile(imageUuid, false);
+        FileResponseUtil.write(file, FileResponseUtil.contentType(FilenameUtils.getExtension(file.getName())), null, null, request, response);
     }
 
     @Operation(summary = "公开的缩略图,可能带水印（根据水印设置决定）")
-    @GetMapping(value = "/public/thumbnail/{drawUuid}/{imageUuid}", produces = MediaType.IMAGE_PNG_VALUE)
-    public void publicThumbnail(@Length(min = 32, max = 32) @PathVariable String drawUuid, @Length(min = 32, max = 32) @PathVariable String imageUuid, HttpServletResponse response) {
+    @GetMapping(value = "/public/thumbnail/{drawUuid}/{imageUuid}")
+    public void publicThumbnail(@Length(min = 32, max = 32) @PathVariable String drawUuid, @Length(min = 32, max = 32) @PathVariable String imageUuid, HttpServletRequest request, HttpServletResponse response) {
         DrawDto drawDto = drawService.getPublicOrMine(drawUuid);
         if (null == drawDto) {
             throw new BaseException(A_AI_IMAGE_NO_AUTH);
         }
-        BufferedImage bufferedImage = fileService.readImage(imageUuid, true);
-        try {
-            ImageIO.write(bufferedImage, "png", response.getOutputStream());
-        } catch (IOException e) {
-            log.error("publicThumbnail error", e);
-            throw new BaseException(B_IMAGE_LOAD_ERROR);
-        }
+        File file = BooleanUtils.isTrue(drawDto.getWithWatermark())
+                ? fileService.getWatermarkImageFile(imageUuid, true, drawService.getWatermarkText(drawDto.getUserName()))
+                : fileService.getImageFile(imageUuid, true);
+        FileResponseUtil.write(file, FileResponseUtil.contentType(FilenameUtils.getExtension(file.getName())), null, null, request, response);
     }
 }
@@ -4,30 +4,25 @@ import com.moyz.adi.common.entity.AdiFile;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.helper.AdiFileHelper;
 import com.moyz.adi.common.service.FileService;
-import com.moyz.adi.common.util.LocalFileUtil;
+import com.moyz.adi.common.util.FileResponseUtil;
 import io.swagger.v3.oas.annotations.Operation;
 import jakarta.annotation.Resource;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.validator.constraints.Length;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.*;
+import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
 import static com.moyz.adi.common.cosntant.AdiConstant.IMAGE_EXTENSIONS;
 import static com.moyz.adi.common.enums.ErrorEnum.A_FILE_NOT_EXIST;
-import static com.moyz.adi.common.enums.ErrorEnum.B_IMAGE_LOAD_ERROR;
-import static org.springframework.http.HttpHeaders.CACHE_CONTROL;
 
 @Slf4j
 @RestController
@@ -53,13 +48,14 @@ public class FileController {
 //        responseImage(uuid, adiFile.getExt(), false, response);
 //    }
 
-    @GetMapping(value = "/my-thumbnail/{uuid}", produces = MediaType.IMAGE_PNG_VALUE)
-    public void thumbnail(@Length(min = 32, max = 32) @PathVariable String uuid, HttpServletResponse response) {
+    @GetMapping(value = "/my-thumbnail/{uuid}")
+    public void thumbnail(@Length(min = 32, max = 32) @PathVariable String uuid, HttpServletRequest request, HttpServletResponse response) {
         AdiFile adiFile = fileService.getByUuid(uuid);
         if (null == adiFile) {
             throw new BaseException(A_FILE_NOT_EXIST);
         }
-        responseImage(uuid, adiFile.getExt(), true, response);
+        File file = fileService.getMyImageFile(uuid, true);
+        FileResponseUtil.write(file, FileResponseUtil.contentType(adiFile.getExt()), CACHE_TIME, null, request, response);
     }
 
 //    /**
@@ -77,40 +73,26 @@ public class FileController {
 //        responseImage(uuid, adiFile.getExt(), false, response);
 //    }
 
+    /**
+     * 获取文件，图片直接在浏览器中显示，其他文件以附件形式下载
+     * <br/>原样输出文件内容，支持Range及ETag
+     */
     @GetMapping(value = "/file/{uuid}")
-    public ResponseEntity<org.springframework.core.io.Resource> file(@Length(min = 32, max = 32) @PathVariable String uuid, HttpServletResponse response) {
+    public void file(@Length(min = 32, max = 32) @PathVariable String uuid, HttpServletRequest request, HttpServletResponse response) {
         AdiFile adiFile = fileService.getByUuid(uuid);
         if (null == adiFile) {
             throw new BaseException(A_FILE_NOT_EXIST);
         }
+        String contentType = FileResponseUtil.contentType(adiFile.getExt());
         if (IMAGE_EXTENSIONS.contains(adiFile.getExt().toLowerCase())) {
-            responseImage(uuid, adiFile.getExt(), false, response);
-            return null;
+            FileResponseUtil.write(fileService.getMyImageFile(uuid, false), contentType, CACHE_TIME, null, request, response);
+            return;
         }
-        response.setHeader(CACHE_CONTROL, CACHE_TIME);
-        byte[] bytes = LocalFileUtil.readBytes(adiFile.getPath());
-        InputStreamResource inputStreamResource = new InputStreamResource(new ByteArrayInputStream(bytes));
-
         String fileName = adiFile.getName();
         if (StringUtils.isBlank(fileName)) {
             fileName = adiFile.getUuid() + "." + adiFile.getExt();
         }
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentDisposition(ContentDisposition.attachment().filename(fileName).build());
-        return new ResponseEntity<>(inputStreamResource, headers, HttpStatus.OK);
-    }
-
-    private void responseImage(String uuid, String ext, boolean thumbnail, HttpServletResponse response) {
-        BufferedImage bufferedImage = fileService.readMyImage(uuid, thumbnail);
-        //把图片写给浏览器
-        try {
-            // 缓存30天
-            response.setHeader(CACHE_CONTROL, CACHE_TIME);
-            ImageIO.write(bufferedImage, ext, response.getOutputStream());
-        } catch (IOException e) {
-            log.error("image error", e);
-            throw new BaseException(B_IMAGE_LOAD_ERROR);
-        }
+        FileResponseUtil.write(new File(adiFile.getPath()), contentType, CACHE_TIME, fileName, request, response);
     }
 
     @PostMapping(path = "/file/upload", headers = "content-type=multipart/form-data", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -3,11 +3,14 @@ package com.moyz.adi.chat.controller;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.moyz.adi.common.base.ThreadContext;
 import com.moyz.adi.common.dto.KbEditReq;
+import com.moyz.adi.common.dto.KbImportJobDto;
+import com.moyz.adi.common.dto.KbImportJobItemDto;
 import com.moyz.adi.common.dto.KbInfoResp;
 import com.moyz.adi.common.dto.KbItemIndexBatchReq;
 import com.moyz.adi.common.dto.KbSearchReq;
 import com.moyz.adi.common.entity.AdiFile;
 import com.moyz.adi.common.entity.KnowledgeBase;
+import com.moyz.adi.common.service.KnowledgeBaseImportService;
 import com.moyz.adi.common.service.KnowledgeBaseService;
 import jakarta.annotation.Resource;
 import jakarta.validation.constraints.Min;
@@ -28,6 +31,9 @@ public class KnowledgeBaseController {
     @Resource
     private KnowledgeBaseService knowledgeBaseService;
 
+    @Resource
+    private KnowledgeBaseImportService knowledgeBaseImportService;
+
     @PostMapping("/saveOrUpdate")
     public KnowledgeBase saveOrUpdate(@RequestBody KbEditReq kbEditReq) {
         return knowledgeBaseService.saveOrUpdate(kbEditReq);
@@ -42,6 +48,62 @@ public class KnowledgeBaseController {
         return true;
     }
 
+    /**
+     * 批量导入文档，文件保存后立即返回导入任务，解析及索引在后台并行处理
+     *
+     * @param uuid       知识库uuid
+     * @param indexTypes 索引类型，如embedding,graphical，为空时只解析不索引
+     * @param docs       文件
+     * @return 导入任务
+     */
+    @PostMapping(path = "/import/{uuid}", headers = "content-type=multipart/form-data", produces = MediaType.APPLICATION_JSON_VALUE)
+    public KbImportJobDto importDocs(@PathVariable String uuid,
+                                     @RequestParam(defaultValue = "") String indexTypes,
+                                     @RequestParam("files") MultipartFile[] docs) {
+        return knowledgeBaseService.importDocs(uuid, docs, List.of(indexTypes.split(",")));
+    }
+
+    /**
+     * 导入任务的进度及吞吐量
+     *
+     * @param jobUuid 导入任务uuid
+     * @return 导入任务
+     */
+    @GetMapping("/import/job/{jobUuid}")
+    public KbImportJobDto importJob(@PathVariable String jobUuid) {
+        return knowledgeBaseImportService.getJob(jobUuid);
+    }
+
+    /**
+     * 导入任务中各文档的处理结果
+     *
+     * @param jobUuid     导入任务uuid
+     * @param currentPage 当前页数
+     * @param pageSize    每页数量
+     * @return 文档列表
+     */
+    @GetMapping("/import/job/{jobUuid}/items")
+    public Page<KbImportJobItemDto> importJobItems(@PathVariable String jobUuid,
+                                                   @NotNull @Min(1) Integer currentPage,
+                                                   @NotNull @Min(10) Integer pageSize) {
+        return knowledgeBaseImportService.listItems(jobUuid, currentPage, pageSize);
+    }
+
+    /**
+     * 我的导入任务
+     *
+     * @param kbUuid      知识库uuid，为空时查询所有知识库
+     * @param currentPage 当前页数
+     * @param pageSize    每页数量
+     * @return 导入任务列表
+     */
+    @GetMapping("/import/job/mine")
+    public Page<KbImportJobDto> myImportJobs(@RequestParam(defaultValue = "") String kbUuid,
+                                             @NotNull @Min(1) Integer currentPage,
+                                             @NotNull @Min(10) Integer pageSize) {
+        return knowledgeBaseImportService.listMine(kbUuid, currentPage, pageSize);
+    }
+
     /**
      * 上传、解析并索引文档
      *
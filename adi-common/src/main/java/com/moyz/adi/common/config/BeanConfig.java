@@ -13,22 +13,39 @@ import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.moyz.adi.common.base.SearchEngineRespTypeHandler;
 import com.moyz.adi.common.base.UUIDTypeHandler;
 import com.moyz.adi.common.dto.SearchEngineResp;
+import com.moyz.adi.common.helper.LLMConcurrencyLimiter;
 import com.moyz.adi.common.rag.ApacheAgeGraphStore;
+import com.moyz.adi.common.rag.BatchingEmbeddingModel;
+import com.moyz.adi.common.rag.CachedEmbeddingModel;
+import com.moyz.adi.common.rag.EmbeddingCache;
 import com.moyz.adi.common.rag.EmbeddingRAG;
+import com.moyz.adi.common.rag.GraphQueryEntityExtractor;
 import com.moyz.adi.common.rag.GraphRAG;
+import com.moyz.adi.common.rag.OnnxBatchEmbeddingModel;
+import com.moyz.adi.common.util.ChatMemoryBackend;
 import com.moyz.adi.common.util.LocalDateTimeUtil;
+import com.moyz.adi.common.util.MapDBChatMemoryStore;
+import com.moyz.adi.common.util.RedisChatMemoryStore;
+import com.moyz.adi.common.util.ShardedChatMemoryStore;
 import com.pgvector.PGvector;
 import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.http.client.BufferingClientHttpRequestFactory;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
@@ -36,7 +53,12 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.client.RestTemplate;
 
 import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,6 +75,99 @@ public class BeanConfig {
     @Value("${spring.datasource.password}")
     private String dataBasePassword;
 
+    @Value("${adi.graph.extract-concurrency:8}")
+    private int graphExtractConcurrency;
+
+    @Value("${adi.graph.extract-concurrency-per-model:4}")
+    private int graphExtractConcurrencyPerModel;
+
+    @Value("${adi.graph.query-entities-cache-ttl-seconds:86400}")
+    private long graphQueryEntitiesCacheTtlSeconds;
+
+    @Value("${adi.graph.query-local-match.enable:true}")
+    private boolean graphQueryLocalMatchEnable;
+
+    @Value("${adi.graph.query-local-match.max-vertex-names:50000}")
+    private int graphQueryLocalMatchMaxVertexNames;
+
+    @Value("${adi.graph.query-local-match.vertex-names-ttl-seconds:600}")
+    private long graphQueryVertexNamesTtlSeconds;
+
+    @Value("${adi.embedding-cache.heap-max-entries:50000}")
+    private long embeddingCacheHeapMaxEntries;
+
+    @Value("${adi.embedding-cache.mmap-enable:false}")
+    private boolean embeddingCacheMmapEnable;
+
+    @Value("${adi.embedding-cache.mmap-max-entries:1000000}")
+    private long embeddingCacheMmapMaxEntries;
+
+    @Value("${local.embedding-cache:}")
+    private String embeddingCachePath;
+
+    /**
+     * 本地向量模型的工作线程数，小于1时取CPU核数
+     */
+    @Value("${adi.embedding.worker-threads:0}")
+    private int embeddingWorkerThreads;
+
+    @Value("${adi.embedding.batch-size:32}")
+    private int embeddingBatchSize;
+
+    @Value("${adi.embedding.queue-capacity:1024}")
+    private int embeddingQueueCapacity;
+
+    /**
+     * 图片衍生文件（缩略图、水印图片）生成任务的等待队列长度，队列满时放弃预生成，请求时再生成
+     */
+    @Value("${adi.image.queue-capacity:512}")
+    private int imagesQueueCapacity;
+
+    @Value("${adi.kb-import.concurrency:4}")
+    private int kbImportConcurrency;
+
+    @Value("${adi.rag.retrieve-pool-size:32}")
+    private int retrievalPoolSize;
+
+    @Value("${adi.rag.retrieve-queue-capacity:256}")
+    private int retrievalQueueCapacity;
+
+    /**
+     * 会话记忆的存储方式：mapdb（本地文件）、redis（多节点共享）
+     */
+    @Value("${adi.chat-memory.store:mapdb}")
+    private String chatMemoryStore;
+
+    @Value("${adi.chat-memory.shards:4}")
+    private int chatMemoryShards;
+
+    @Value("${adi.chat-memory.hot-max-entries:10000}")
+    private long chatMemoryHotMaxEntries;
+
+    @Value("${adi.chat-memory.hot-ttl-seconds:600}")
+    private long chatMemoryHotTtlSeconds;
+
+    @Value("${adi.chat-memory.flush-interval-millis:1000}")
+    private long chatMemoryFlushIntervalMillis;
+
+    @Value("${adi.chat-memory.redis-ttl-seconds:604800}")
+    private long chatMemoryRedisTtlSeconds;
+
+    @Value("${local.chat-memory:}")
+    private String chatMemoryPath;
+
+    /**
+     * mainExecutor的模式：pool（固定线程数，任务排队）、elastic（每个任务一个线程）、virtual（每个任务一个虚拟线程）
+     */
+    @Value("${adi.async.mode:pool}")
+    private String asyncMode;
+
+    @Value("${adi.async.elastic-max-threads:1000}")
+    private int asyncElasticMaxThreads;
+
+    @Value("${adi.async.shutdown-await-seconds:30}")
+    private int asyncShutdownAwaitSeconds;
+
     @Bean
     public RestTemplate restTemplate() {
         log.info("Configuration:create restTemplate");
@@ -80,17 +195,82 @@ public class BeanConfig {
         return objectMapper;
     }
 
+    /**
+     * 对话、知识库问答、搜索、工作流等异步任务的线程池
+     * <br/>这些任务在等待LLM响应期间一直占用线程，elastic及virtual模式下每个任务一个线程，并发由{@link LLMConcurrencyLimiter}按平台限制
+     */
     @Bean(name = "mainExecutor")
     @Primary
     public AsyncTaskExecutor mainExecutor() {
         int processorsNum = Runtime.getRuntime().availableProcessors();
-        log.info("mainExecutor,processorsNum:{}", processorsNum);
+        log.info("mainExecutor,processorsNum:{},mode:{}", processorsNum, asyncMode);
+        if ("virtual".equalsIgnoreCase(asyncMode)) {
+            AsyncTaskExecutor virtualExecutor = virtualThreadExecutor();
+            if (null != virtualExecutor) {
+                return virtualExecutor;
+            }
+            log.warn("Virtual threads are not supported by current jvm,use elastic mode instead");
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(processorsNum * 2);
-        executor.setMaxPoolSize(100);
+        if ("pool".equalsIgnoreCase(asyncMode)) {
+            executor.setMaxPoolSize(100);
+        } else {
+            //不排队，线程不够时直接新建，空闲后回收
+            executor.setMaxPoolSize(asyncElasticMaxThreads);
+            executor.setQueueCapacity(0);
+            executor.setKeepAliveSeconds(60);
+            executor.setAllowCoreThreadTimeOut(true);
+            executor.setThreadNamePrefix("main-");
+        }
         return executor;
     }
 
+    /**
+     * 每个任务一个虚拟线程（jvm版本不低于21时可用）
+     *
+     * @return 不支持虚拟线程时返回null
+     */
+    private AsyncTaskExecutor virtualThreadExecutor() {
+        try {
+            //编译目标为java 17，通过反射调用
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new VirtualThreadTaskExecutor((ExecutorService) method.invoke(null), asyncShutdownAwaitSeconds);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 虚拟线程执行器，应用关闭时停止接收新任务，并等待执行中的任务结束
+     */
+    private static class VirtualThreadTaskExecutor extends TaskExecutorAdapter implements DisposableBean {
+
+        private final ExecutorService executorService;
+
+        private final int awaitSeconds;
+
+        VirtualThreadTaskExecutor(ExecutorService executorService, int awaitSeconds) {
+            super(executorService);
+            this.executorService = executorService;
+            this.awaitSeconds = awaitSeconds;
+        }
+
+        @Override
+        public void destroy() {
+            executorService.shutdown();
+            try {
+                if (!executorService.awaitTermination(awaitSeconds, TimeUnit.SECONDS)) {
+                    log.warn("Virtual thread executor did not terminate in {} seconds,interrupt remaining tasks", awaitSeconds);
+                    executorService.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executorService.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Bean(name = "imagesExecutor")
     public AsyncTaskExecutor imagesExecutor() {
         int processorsNum = Runtime.getRuntime().availableProcessors();
@@ -98,6 +278,63 @@ public class BeanConfig {
         log.info("imagesExecutor corePoolSize:{},maxPoolSize:{}", processorsNum, processorsNum * 2);
         executor.setCorePoolSize(processorsNum);
         executor.setMaxPoolSize(processorsNum * 2);
+        executor.setThreadNamePrefix("images-");
+        return executor;
+    }
+
+    /**
+     * 图片衍生文件（缩略图、水印图片）生成的线程池，与绘图任务（imagesExecutor）分开，队列有上限，队列满时拒绝任务
+     */
+    @Bean(name = "imageDerivativeExecutor")
+    public AsyncTaskExecutor imageDerivativeExecutor() {
+        int processorsNum = Runtime.getRuntime().availableProcessors();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        log.info("imageDerivativeExecutor corePoolSize:{},maxPoolSize:{},queueCapacity:{}", processorsNum, processorsNum * 2, imagesQueueCapacity);
+        executor.setCorePoolSize(processorsNum);
+        executor.setMaxPoolSize(processorsNum * 2);
+        executor.setQueueCapacity(imagesQueueCapacity);
+        executor.setThreadNamePrefix("image-derivative-");
+        return executor;
+    }
+
+    /**
+     * 知识图谱抽取时并行请求LLM的线程池
+     */
+    @Bean(name = "graphExtractExecutor")
+    public AsyncTaskExecutor graphExtractExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        log.info("graphExtractExecutor poolSize:{},concurrencyPerModel:{}", graphExtractConcurrency, graphExtractConcurrencyPerModel);
+        executor.setCorePoolSize(graphExtractConcurrency);
+        executor.setMaxPoolSize(graphExtractConcurrency);
+        executor.setThreadNamePrefix("graph-extract-");
+        return executor;
+    }
+
+    /**
+     * 知识库召回时多个召回器并行执行的共享线程池，线程数及队列均有上限
+     */
+    @Bean(name = "retrievalExecutor")
+    public AsyncTaskExecutor retrievalExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        log.info("retrievalExecutor poolSize:{},queueCapacity:{}", retrievalPoolSize, retrievalQueueCapacity);
+        executor.setCorePoolSize(retrievalPoolSize);
+        executor.setMaxPoolSize(retrievalPoolSize);
+        executor.setQueueCapacity(retrievalQueueCapacity);
+        executor.setThreadNamePrefix("kb-retrieve-");
+        return executor;
+    }
+
+    /**
+     * 知识库批量导入时解析、索引文档的线程池，同时执行的文档数由FairTaskDispatcher控制，与线程数一致
+     */
+    @Bean(name = "kbImportExecutor")
+    public AsyncTaskExecutor kbImportExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        log.info("kbImportExecutor poolSize:{}", kbImportConcurrency);
+        executor.setCorePoolSize(kbImportConcurrency);
+        executor.setMaxPoolSize(kbImportConcurrency);
+        executor.setQueueCapacity(kbImportConcurrency);
+        executor.setThreadNamePrefix("kb-import-");
         return executor;
     }
 
@@ -161,12 +398,66 @@ public class BeanConfig {
                 .build();
     }
 
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory redisConnectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        return container;
+    }
+
+    @Bean(destroyMethod = "close")
+    public ShardedChatMemoryStore chatMemoryStore(StringRedisTemplate stringRedisTemplate) {
+        if ("redis".equalsIgnoreCase(chatMemoryStore)) {
+            //redis自身可以集群部署，无需再分片；多节点共享，不使用本地缓存及批量写入
+            return new ShardedChatMemoryStore(List.of(new RedisChatMemoryStore(stringRedisTemplate, chatMemoryRedisTtlSeconds)));
+        }
+        List<ChatMemoryBackend> shards = MapDBChatMemoryStore.createShards(chatMemoryPath, Math.max(1, chatMemoryShards));
+        return new ShardedChatMemoryStore(shards, chatMemoryHotMaxEntries, chatMemoryHotTtlSeconds, chatMemoryFlushIntervalMillis);
+    }
+
+    @Bean(destroyMethod = "close")
+    public EmbeddingCache embeddingCache() {
+        return new EmbeddingCache(embeddingCacheHeapMaxEntries, embeddingCacheMmapEnable, embeddingCachePath, embeddingCacheMmapMaxEntries);
+    }
+
+    /**
+     * 本地向量模型(AllMiniLmL6V2)，每批文本段执行一次推理，索引及检索共用同一个OrtSession
+     */
+    @Bean(name = "onnxEmbeddingModel", destroyMethod = "close")
+    public OnnxBatchEmbeddingModel onnxEmbeddingModel() {
+        return new OnnxBatchEmbeddingModel("all-minilm-l6-v2.onnx", "all-minilm-l6-v2-tokenizer.json");
+    }
+
+    /**
+     * 索引使用的本地向量模型，多个工作线程对各索引任务的文本段进行微批处理
+     */
+    @Bean(name = "batchingEmbeddingModel", destroyMethod = "close")
+    public BatchingEmbeddingModel batchingEmbeddingModel(OnnxBatchEmbeddingModel onnxEmbeddingModel) {
+        int workerThreads = embeddingWorkerThreads > 0 ? embeddingWorkerThreads : Runtime.getRuntime().availableProcessors();
+        //工作线程内同步执行，并行度由工作线程数控制
+        return new BatchingEmbeddingModel(onnxEmbeddingModel, workerThreads, embeddingBatchSize, embeddingQueueCapacity);
+    }
+
+    @Bean(name = "localEmbeddingModel")
+    public EmbeddingModel localEmbeddingModel(BatchingEmbeddingModel batchingEmbeddingModel, EmbeddingCache embeddingCache) {
+        log.info("initEmbeddingModel");
+        //索引及检索共用同一个向量缓存，相同的文本段不会重复向量化
+        return new CachedEmbeddingModel(batchingEmbeddingModel, "all-minilm-l6-v2", embeddingCache);
+    }
+
+    /**
+     * 检索使用的本地向量模型，在请求线程中直接推理，不在索引任务的队列后排队
+     */
+    @Bean(name = "queryEmbeddingModel")
+    public EmbeddingModel queryEmbeddingModel(OnnxBatchEmbeddingModel onnxEmbeddingModel, EmbeddingCache embeddingCache) {
+        return new CachedEmbeddingModel(onnxEmbeddingModel, "all-minilm-l6-v2", embeddingCache);
+    }
+
     @Bean
     @Primary
-    public EmbeddingRAG initKnowledgeBaseRAGService(EmbeddingStore<TextSegment> kbEmbeddingStore) {
-        EmbeddingRAG ragService = new EmbeddingRAG(kbEmbeddingStore);
-        ragService.init();
-        return ragService;
+    public EmbeddingRAG initKnowledgeBaseRAGService(EmbeddingStore<TextSegment> kbEmbeddingStore, @Qualifier("localEmbeddingModel") EmbeddingModel localEmbeddingModel,
+                                                    @Qualifier("queryEmbeddingModel") EmbeddingModel queryEmbeddingModel) {
+        return new EmbeddingRAG(kbEmbeddingStore, localEmbeddingModel, queryEmbeddingModel);
     }
 
     @Bean(name = "searchEmbeddingStore")
@@ -204,10 +495,9 @@ public class BeanConfig {
     }
 
     @Bean(name = "searchRagService")
-    public EmbeddingRAG initSearchRAG(EmbeddingStore<TextSegment> searchEmbeddingStore) {
-        EmbeddingRAG ragService = new EmbeddingRAG(searchEmbeddingStore);
-        ragService.init();
-        return ragService;
+    public EmbeddingRAG initSearchRAG(EmbeddingStore<TextSegment> searchEmbeddingStore, @Qualifier("localEmbeddingModel") EmbeddingModel localEmbeddingModel,
+                                      @Qualifier("queryEmbeddingModel") EmbeddingModel queryEmbeddingModel) {
+        return new EmbeddingRAG(searchEmbeddingStore, localEmbeddingModel, queryEmbeddingModel);
     }
 
     @Bean(name = "kbGraphStore")
@@ -245,8 +535,10 @@ public class BeanConfig {
 
     @Bean(name = "graphRag")
     @Primary
-    public GraphRAG initGraphRAG(ApacheAgeGraphStore kbGraphStore) {
-        return new GraphRAG(kbGraphStore);
+    public GraphRAG initGraphRAG(ApacheAgeGraphStore kbGraphStore, @Qualifier("graphExtractExecutor") AsyncTaskExecutor graphExtractExecutor) {
+        GraphQueryEntityExtractor queryEntityExtractor = new GraphQueryEntityExtractor(kbGraphStore, graphQueryLocalMatchEnable,
+                graphQueryEntitiesCacheTtlSeconds, graphQueryLocalMatchMaxVertexNames, graphQueryVertexNamesTtlSeconds);
+        return new GraphRAG(kbGraphStore, graphExtractExecutor, graphExtractConcurrencyPerModel, queryEntityExtractor);
     }
 
 //    @Bean(name = "queryRouterRagService")
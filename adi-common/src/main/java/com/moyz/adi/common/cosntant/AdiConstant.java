@@ -97,6 +97,7 @@ public class AdiConstant {
         public static final String KB_ITEM_UUID = "kb_item_uuid";
         public static final String ENGINE_NAME = "engine_name";
         public static final String SEARCH_UUID = "search_uuid";
+        public static final String TOKEN_COUNT = "token_count";
     }
 
     public static class SysConfigKey {
@@ -39,6 +39,19 @@ public class RedisKeyConstant {
      */
     public static final String USER_TOKEN = "user:token:{0}";
 
+    /**
+     * 用户当前有效的登录token，修改或冻结用户时据此更新或删除登录token
+     * {0}:用户id
+     * 值：set(token)
+     */
+    public static final String USER_TOKENS = "user:tokens:{0}";
+
+    /**
+     * 登录用户本地缓存失效通知（pub/sub频道）
+     * 消息：token:{token} 或 user:{userId}
+     */
+    public static final String USER_SESSION_INVALIDATE_CHANNEL = "user:session:invalidate";
+
     /**
      * 参数：游客的uuid
      * 值：json.format(guest)
@@ -59,6 +72,12 @@ public class RedisKeyConstant {
      */
     public static final String USER_ASKING = "user:asking:{0}";
 
+    /**
+     * 停止用户正在进行的流式请求（pub/sub频道）
+     * 消息：用户id
+     */
+    public static final String USER_STREAM_STOP_CHANNEL = "user:stream:stop";
+
     /**
      * 用户是否画画中
      * 参数：用户id
@@ -67,13 +86,13 @@ public class RedisKeyConstant {
     public static final String USER_DRAWING = "user:drawing:{0}";
 
     /**
-     * 用户提问限流计数
+     * 用户提问限流（滑动窗口）
      * 参数：用户id
-     * 值: 当前时间窗口访问量
+     * 值: zset，成员为每次请求，分值为请求时间（毫秒）
      */
-    public static final String USER_REQUEST_TEXT_TIMES = "user:request-text:times:{0}";
+    public static final String USER_REQUEST_TEXT_TIMES = "user:request-text:window:{0}";
 
-    public static final String USER_REQUEST_IMAGE_TIMES = "user:request-image:times:{0}";
+    public static final String USER_REQUEST_IMAGE_TIMES = "user:request-image:window:{0}";
 
     /**
      * 用户信息缓存
@@ -123,6 +142,35 @@ public class RedisKeyConstant {
      */
     public static final String USER_INDEXING = "user:indexing:{0}";
 
+    /**
+     * 恢复中断的索引任务（分布式锁）
+     */
+    public static final String KB_ITEM_INDEX_RESUME_LOCK = "kb:item:index:resume:lock";
+
+    /**
+     * 恢复中断的知识库批量导入任务（分布式锁）
+     */
+    public static final String KB_IMPORT_JOB_RESUME_LOCK = "kb:import:job:resume:lock";
+
+    /**
+     * 图谱召回时从用户问题中抽取出来的实体
+     * 值：问题（归一化后）的哈希
+     */
+    public static final String GRAPH_QUERY_ENTITIES = "graph:query:entities:{0}";
+
+    /**
+     * 会话记忆（存储方式为redis时）
+     * 值：memoryId
+     */
+    public static final String CHAT_MEMORY = "chat:memory:{0}";
+
+    /**
+     * 用户当月消耗统计（额度检查使用）
+     * 参数：用户id、月份yyyyMM、是否免费额度
+     * 值：hash，当月及每天的token数、请求次数、绘图次数
+     */
+    public static final String USER_COST_STAT = "user:cost:stat:{0}:{1}:{2}";
+
     /**
      * 用户评论并发限制
      * 值：用户id
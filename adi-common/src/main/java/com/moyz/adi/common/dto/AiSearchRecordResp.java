@@ -34,4 +34,6 @@ public class AiSearchRecordResp {
     private Long aiModelId;
 
     private String aiModelPlatform;
+
+    private Boolean isCancelled;
 }
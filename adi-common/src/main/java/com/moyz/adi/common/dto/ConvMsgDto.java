@@ -42,6 +42,9 @@ public class ConvMsgDto {
     @Schema(title = "附件地址")
     private List<String> attachmentUrls;
 
+    @Schema(title = "回答是否被中途取消")
+    private Boolean isCancelled;
+
     @Schema(title = "子级消息（一般指的是AI的响应）")
     private List<ConvMsgDto> children;
 }
@@ -15,6 +15,7 @@ public class DrawDto {
     private String aiModelName;
     private Integer interactingMethod;
     private Boolean isPublic;
+    private Boolean withWatermark;
     private Integer starCount;
     private Integer processStatus;
     private String processStatusRemark;
@@ -0,0 +1,29 @@
+package com.moyz.adi.common.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 全文检索命中的文本段
+ */
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Data
+public class KbEmbeddingKeywordHit {
+    private String embeddingId;
+
+    private String text;
+
+    /**
+     * 元数据(json)
+     */
+    private String metadata;
+
+    /**
+     * 全文检索的相关度评分
+     */
+    private Double score;
+}
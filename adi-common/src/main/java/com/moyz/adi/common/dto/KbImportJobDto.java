@@ -0,0 +1,35 @@
+package com.moyz.adi.common.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 知识库批量导入任务的进度及吞吐量
+ */
+@Data
+public class KbImportJobDto {
+    private String uuid;
+    private String kbUuid;
+    private String indexTypes;
+    private Integer status;
+    private Integer totalCount;
+    private Integer successCount;
+    private Integer failCount;
+    private Integer skipCount;
+    private Integer pendingCount;
+    private LocalDateTime createTime;
+    private LocalDateTime endTime;
+    /**
+     * 从创建到完成（未完成时到当前）的秒数
+     */
+    private Long elapsedSeconds;
+    /**
+     * 每分钟处理的文档数
+     */
+    private Double docsPerMinute;
+    /**
+     * 单个文档的平均耗时（毫秒）
+     */
+    private Long avgCostMillis;
+}
@@ -0,0 +1,12 @@
+package com.moyz.adi.common.dto;
+
+import lombok.Data;
+
+@Data
+public class KbImportJobItemDto {
+    private String fileName;
+    private String kbItemUuid;
+    private Integer status;
+    private String errorMsg;
+    private Long costMillis;
+}
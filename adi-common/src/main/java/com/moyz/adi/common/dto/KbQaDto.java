@@ -36,4 +36,7 @@ public class KbQaDto {
 
     @Schema(title = "ai model platform")
     private String aiModelPlatform;
+
+    @Schema(title = "回答是否被中途取消")
+    private Boolean isCancelled;
 }
@@ -61,4 +61,8 @@ public class ConversationMessage extends BaseEntity {
     @Schema(name = "附件列表")
     @TableField("attachments")
     private String attachments;
+
+    @Schema(name = "回答是否被中途取消")
+    @TableField("is_cancelled")
+    private Boolean isCancelled;
 }
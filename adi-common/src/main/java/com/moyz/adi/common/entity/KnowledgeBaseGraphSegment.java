@@ -26,4 +26,8 @@ public class KnowledgeBaseGraphSegment extends BaseEntity {
     @Schema(title = "创建用户id")
     @TableField("user_id")
     private Long userId;
+
+    @Schema(title = "在知识点中的文本段序号，抽取结果写入图数据库后记录，-1表示未记录")
+    @TableField("segment_index")
+    private Integer segmentIndex;
 }
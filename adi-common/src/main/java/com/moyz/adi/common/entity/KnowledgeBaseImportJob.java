@@ -0,0 +1,63 @@
+package com.moyz.adi.common.entity;
+
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.moyz.adi.common.enums.KbImportStatusEnum;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+@TableName("adi_knowledge_base_import_job")
+@Schema(title = "知识库批量导入任务实体", description = "知识库批量导入任务表")
+public class KnowledgeBaseImportJob extends BaseEntity {
+
+    @Schema(title = "uuid")
+    @TableField("uuid")
+    private String uuid;
+
+    @Schema(title = "Knowledge base id")
+    @TableField("kb_id")
+    private Long kbId;
+
+    @Schema(title = "Knowledge base uuid")
+    @TableField("kb_uuid")
+    private String kbUuid;
+
+    @Schema(title = "User id")
+    @TableField("user_id")
+    private Long userId;
+
+    @Schema(title = "索引类型，如embedding,graphical")
+    @TableField("index_types")
+    private String indexTypes;
+
+    @Schema(title = "状态")
+    @TableField("status")
+    private KbImportStatusEnum status;
+
+    @Schema(title = "文档总数")
+    @TableField("total_count")
+    private Integer totalCount;
+
+    @Schema(title = "成功的文档数")
+    @TableField("success_count")
+    private Integer successCount;
+
+    @Schema(title = "失败的文档数")
+    @TableField("fail_count")
+    private Integer failCount;
+
+    @Schema(title = "跳过的文档数")
+    @TableField("skip_count")
+    private Integer skipCount;
+
+    @Schema(title = "已处理文档的耗时之和（毫秒）")
+    @TableField("total_cost_millis")
+    private Long totalCostMillis;
+
+    @Schema(title = "完成时间")
+    @TableField("end_time")
+    private LocalDateTime endTime;
+}
@@ -0,0 +1,41 @@
+package com.moyz.adi.common.entity;
+
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.moyz.adi.common.enums.KbImportStatusEnum;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+
+@Data
+@TableName("adi_knowledge_base_import_job_item")
+@Schema(title = "知识库批量导入任务中的文档实体", description = "知识库批量导入任务中的文档表")
+public class KnowledgeBaseImportJobItem extends BaseEntity {
+
+    @Schema(title = "导入任务id")
+    @TableField("job_id")
+    private Long jobId;
+
+    @Schema(title = "文件id")
+    @TableField("file_id")
+    private Long fileId;
+
+    @Schema(title = "原始文件名")
+    @TableField("file_name")
+    private String fileName;
+
+    @Schema(title = "知识点uuid")
+    @TableField("kb_item_uuid")
+    private String kbItemUuid;
+
+    @Schema(title = "状态")
+    @TableField("status")
+    private KbImportStatusEnum status;
+
+    @Schema(title = "失败原因")
+    @TableField("error_msg")
+    private String errorMsg;
+
+    @Schema(title = "解析及索引耗时（毫秒）")
+    @TableField("cost_millis")
+    private Long costMillis;
+}
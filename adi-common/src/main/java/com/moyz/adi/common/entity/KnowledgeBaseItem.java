@@ -50,6 +50,10 @@ public class KnowledgeBaseItem extends BaseEntity {
     @TableField("embedding_status_change_time")
     private LocalDateTime embeddingStatusChangeTime;
 
+    @Schema(title = "向量化进度（已完成的文本段数量）")
+    @TableField("embedding_checkpoint")
+    private Integer embeddingCheckpoint;
+
     @Schema(title = "图谱化状态")
     @TableField("graphical_status")
     private GraphicalStatusEnum graphicalStatus;
@@ -57,4 +61,8 @@ public class KnowledgeBaseItem extends BaseEntity {
     @Schema(title = "图谱化状态变更时间点")
     @TableField("graphical_status_change_time")
     private LocalDateTime graphicalStatusChangeTime;
+
+    @Schema(title = "图谱化进度（已完成的文本段数量）")
+    @TableField("graphical_checkpoint")
+    private Integer graphicalCheckpoint;
 }
@@ -54,4 +54,8 @@ public class KnowledgeBaseQa extends BaseEntity {
     @Schema(title = "adi_ai_model id")
     @TableField("ai_model_id")
     private Long aiModelId;
+
+    @Schema(title = "回答是否被中途取消")
+    @TableField("is_cancelled")
+    private Boolean isCancelled;
 }
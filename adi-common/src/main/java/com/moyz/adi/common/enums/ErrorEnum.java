@@ -76,6 +76,10 @@ public enum ErrorEnum {
     B_DELETE_FILE_ERROR("B0021", "删除文件异常"),
     B_WF_RUN_ERROR("B0022", "工作流运行异常"),
     B_WF_NODE_DEFINITION_NOT_FOUND("B0023", "工作流节点定义找不到"),
+    B_STREAM_CANCELLED("B0024", "请求已取消"),
+    B_LLM_BUSY("B0025", "模型服务繁忙，请稍后再试"),
+    B_PARSE_DOCUMENT_ERROR("B0026", "解析文档异常"),
+    B_GRAPH_EXTRACT_ERROR("B0027", "抽取知识图谱失败"),
     C_DRAW_FAIL("C0001", "大模型生成图片失败,原因:{0}"),
     C_ALI_OSS_CONFIG_ERROR("C0002", "阿里云OSS初始化失败,原因:{0}"),
     C_LLM_RESPONSE_INVALID("C0003", "大模型生成结果内容无效");
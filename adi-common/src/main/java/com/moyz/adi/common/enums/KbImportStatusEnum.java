@@ -0,0 +1,26 @@
+package com.moyz.adi.common.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * 知识库批量导入任务及其中文档的状态
+ */
+@Getter
+@AllArgsConstructor
+public enum KbImportStatusEnum implements BaseEnum {
+    PENDING(1, "等待处理"),
+    DOING(2, "处理中"),
+    DONE(3, "已完成"),
+    FAIL(4, "失败"),
+    SKIPPED(5, "文件类型不支持，已跳过");
+
+    private final Integer value;
+    private final String desc;
+
+    public static KbImportStatusEnum getByValue(Integer val) {
+        return Arrays.stream(KbImportStatusEnum.values()).filter(item -> item.value.equals(val)).findFirst().orElse(null);
+    }
+}
@@ -7,6 +7,8 @@ import com.moyz.adi.common.service.FileService;
 import com.moyz.adi.common.service.SysConfigService;
 import com.moyz.adi.common.util.LocalFileUtil;
 import com.moyz.adi.common.util.SpringUtil;
+import com.moyz.adi.common.util.StreamingDocumentParser;
+import com.moyz.adi.common.vo.SaveLocalFileResult;
 import com.moyz.adi.common.vo.SaveRemoteImageResult;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
@@ -19,8 +21,6 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
@@ -31,10 +31,12 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.function.Consumer;
 
 import static com.moyz.adi.common.cosntant.AdiConstant.POI_DOC_TYPES;
 import static com.moyz.adi.common.cosntant.AdiConstant.URL_PREFIX_FILE;
 import static com.moyz.adi.common.enums.ErrorEnum.B_DELETE_FILE_ERROR;
+import static com.moyz.adi.common.enums.ErrorEnum.B_PARSE_DOCUMENT_ERROR;
 import static com.moyz.adi.common.enums.ErrorEnum.B_SAVE_IMAGE_ERROR;
 import static dev.langchain4j.data.document.loader.FileSystemDocumentLoader.loadDocument;
 
@@ -62,21 +64,45 @@ public class AdiFileHelper {
         }
     }
 
-    public Pair<String, String> save(MultipartFile file, boolean image, String uuid) {
-        Pair<String, String> pathAndExt = LocalFileUtil.saveToLocal(file, image ? imagePath : filePath, uuid);
+    /**
+     * 保存上传的文件到本地，同时计算sha256
+     *
+     * @param file  上传的文件
+     * @param image 是否图片
+     * @param uuid  文件uuid
+     * @return 本地路径、扩展名及sha256
+     */
+    public SaveLocalFileResult saveToLocal(MultipartFile file, boolean image, String uuid) {
+        return LocalFileUtil.saveToLocal(file, image ? imagePath : filePath, uuid);
+    }
+
+    /**
+     * 把已保存到本地的文件转存到当前的存储位置，存储位置为OSS时上传后删除本地文件
+     *
+     * @param localFile 已保存到本地的文件
+     * @param uuid      文件uuid
+     * @return 本地路径或OSS的访问路径
+     */
+    public String store(SaveLocalFileResult localFile, String uuid) {
         if (AdiConstant.STORAGE_LOCATION_LOCAL == getStorageLocation()) {
-            return pathAndExt;
-        } else {
-            String objectName = uuid + "." + pathAndExt.getRight();
-            byte[] bytes = LocalFileUtil.readBytes(pathAndExt.getLeft());
-            aliyunOssHelper.saveObj(bytes, objectName);
-            try {
-                //传到oss后把本地临时文件删除
-                Files.deleteIfExists(Paths.get(pathAndExt.getLeft()));
-            } catch (IOException e) {
-                throw new BaseException(B_DELETE_FILE_ERROR);
-            }
-            return new ImmutablePair<>(aliyunOssHelper.getUrl(objectName), pathAndExt.getRight());
+            return localFile.getPath();
+        }
+        String objectName = uuid + "." + localFile.getExt();
+        aliyunOssHelper.saveObj(new File(localFile.getPath()), objectName);
+        deleteLocal(localFile.getPath());
+        return aliyunOssHelper.getUrl(objectName);
+    }
+
+    /**
+     * 删除本地文件，如上传到OSS后的本地文件或与已有文件重复的文件
+     *
+     * @param path 本地路径
+     */
+    public void deleteLocal(String path) {
+        try {
+            Files.deleteIfExists(Paths.get(path));
+        } catch (IOException e) {
+            throw new BaseException(B_DELETE_FILE_ERROR);
         }
     }
 
@@ -95,15 +121,10 @@ public class AdiFileHelper {
             throw new BaseException(B_SAVE_IMAGE_ERROR);
         }
         if (AdiConstant.STORAGE_LOCATION_ALI_OSS == getStorageLocation()) {
-            byte[] bytes = LocalFileUtil.readBytes(filePath);
             String objName = uuid + "." + ext;
-            aliyunOssHelper.saveObj(bytes, objName);
-            try {
-                //传到oss后把本地临时文件删除
-                Files.deleteIfExists(Paths.get(filePath));
-            } catch (IOException e) {
-                throw new BaseException(B_DELETE_FILE_ERROR);
-            }
+            aliyunOssHelper.saveObj(target, objName);
+            //传到oss后把本地临时文件删除
+            deleteLocal(filePath);
             //对于OSS，存储的是对象名称，而不是完整URL
             filePath = objName;
         }
@@ -178,4 +199,34 @@ public class AdiFileHelper {
         }
         return result;
     }
+
+    /**
+     * 按页/段解析文档，解析出的文本分多次交给调用方，适用于大文件
+     * <br/>存储在OSS的文件先下载到本地临时文件再解析
+     *
+     * @param adiFile       文件
+     * @param chunkConsumer 依次接收解析出来的文本块
+     * @return 文件类型不支持解析时返回false
+     */
+    public static boolean parseDocument(AdiFile adiFile, Consumer<String> chunkConsumer) {
+        if (!StreamingDocumentParser.isSupported(adiFile.getExt())) {
+            return false;
+        }
+        if (adiFile.getStorageLocation() == AdiConstant.STORAGE_LOCATION_LOCAL) {
+            StreamingDocumentParser.parse(new File(adiFile.getPath()), adiFile.getExt(), chunkConsumer);
+            return true;
+        }
+        File tmpFile = null;
+        try {
+            tmpFile = Files.createTempFile("adi-doc-", "." + adiFile.getExt()).toFile();
+            FileUtils.copyURLToFile(new URL(adiFile.getPath()), tmpFile);
+            StreamingDocumentParser.parse(tmpFile, adiFile.getExt(), chunkConsumer);
+        } catch (IOException e) {
+            log.error("Download document error,uuid:{}", adiFile.getUuid(), e);
+            throw new BaseException(B_PARSE_DOCUMENT_ERROR);
+        } finally {
+            FileUtils.deleteQuietly(tmpFile);
+        }
+        return true;
+    }
 }
@@ -17,6 +17,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Service;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.util.List;
 
@@ -71,6 +72,19 @@ public class AliyunOssHelper {
         }
     }
 
+    /**
+     * 从本地文件上传，由SDK按块读取文件，不把整个文件加载到内存中
+     *
+     * @param file 本地文件
+     * @param name 对象名称
+     */
+    public void saveObj(File file, String name) {
+        PutObjectResult putObjectResult = client.putObject(configObj.getBucketName(), name, file);
+        if (null != putObjectResult) {
+            log.info("Ali oss put object:{}", putObjectResult.getETag());
+        }
+    }
+
     public void deleteObjs(List<String> objectNames) {
         DeleteObjectsResult deleteObjectsResult = client.deleteObjects(new DeleteObjectsRequest(configObj.getBucketName()).withKeys(objectNames));
         List<String> deletedObjects = deleteObjectsResult.getDeletedObjects();
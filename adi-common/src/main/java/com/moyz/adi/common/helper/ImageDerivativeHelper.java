@@ -0,0 +1,237 @@
+package com.moyz.adi.common.helper;
+
+import cn.hutool.core.img.Img;
+import cn.hutool.core.img.ImgUtil;
+import com.moyz.adi.common.cosntant.AdiConstant;
+import com.moyz.adi.common.entity.AdiFile;
+import com.moyz.adi.common.exception.BaseException;
+import com.moyz.adi.common.util.MD5Utils;
+import com.moyz.adi.common.util.UuidUtil;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import static com.moyz.adi.common.enums.ErrorEnum.B_SAVE_IMAGE_ERROR;
+
+/**
+ * 图片衍生文件（缩略图、带水印的图片及带水印的缩略图）的生成
+ * <br/>1. 图片保存后在imageDerivativeExecutor中预先生成缩略图，设置绘图公开（带水印）时预先生成带水印的图片，队列满时放弃预生成，请求时再生成
+ * <br/>2. 请求时衍生文件不存在（预生成任务未完成或失败）则立即生成，同一个衍生文件同时只有一个生成任务，其他请求等待该任务完成
+ * <br/>3. 先写入同目录下的临时文件再重命名，读取方不会读到未写完的文件
+ * <br/>4. 带水印的文件名包含水印文字的摘要，水印文字（用户名或站点地址）变更后生成新的文件，不会返回旧水印的图片
+ * <br/>5. 只处理保存在本地的图片
+ */
+@Slf4j
+@Service
+public class ImageDerivativeHelper {
+
+    @Value("${local.thumbnails}")
+    private String thumbnailsPath;
+
+    @Value("${local.watermark-images}")
+    private String watermarkImagesPath;
+
+    @Value("${local.watermark-thumbnails}")
+    private String watermarkThumbnailsPath;
+
+    @Value("${adi.image.thumbnail-scale:0.2}")
+    private float thumbnailScale;
+
+    /**
+     * 图片保存后是否预先生成缩略图
+     */
+    @Value("${adi.image.pregenerate:true}")
+    private boolean pregenerate;
+
+    /**
+     * 请求时等待衍生文件生成的最长时间
+     */
+    @Value("${adi.image.generate-timeout-millis:30000}")
+    private long generateTimeoutMillis;
+
+    @Resource(name = "imageDerivativeExecutor")
+    private AsyncTaskExecutor imageDerivativeExecutor;
+
+    /**
+     * 生成中的衍生文件：目标文件路径 => 生成任务
+     */
+    private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 图片保存后预先生成缩略图
+     *
+     * @param adiFile 图片
+     */
+    public void pregenerate(AdiFile adiFile) {
+        if (!pregenerate || !isLocal(adiFile)) {
+            return;
+        }
+        File source = new File(adiFile.getPath());
+        File target = new File(getThumbnailPath(adiFile));
+        if (!target.exists()) {
+            submit(target.getPath(), () -> writeThumbnail(source, target));
+        }
+    }
+
+    /**
+     * 预先生成带水印的图片及其缩略图
+     *
+     * @param adiFile       图片
+     * @param watermarkText 水印文字
+     */
+    public void pregenerateWatermark(AdiFile adiFile, String watermarkText) {
+        if (!isLocal(adiFile)) {
+            return;
+        }
+        File image = new File(getWatermarkImagePath(adiFile, watermarkText));
+        File thumbnail = new File(getWatermarkThumbnailPath(adiFile, watermarkText));
+        if (!image.exists() || !thumbnail.exists()) {
+            submit(image.getPath(), () -> writeWatermark(new File(adiFile.getPath()), watermarkText, image, thumbnail));
+        }
+    }
+
+    /**
+     * 获取缩略图，不存在时生成（或等待正在进行的生成任务），生成失败时返回原图
+     *
+     * @param adiFile 图片
+     * @return 本地文件
+     */
+    public File getThumbnail(AdiFile adiFile) {
+        File source = new File(adiFile.getPath());
+        File target = new File(getThumbnailPath(adiFile));
+        if (target.exists() || !isLocal(adiFile) || !source.exists()) {
+            return target;
+        }
+        await(submit(target.getPath(), () -> writeThumbnail(source, target)), target);
+        return target.exists() ? target : source;
+    }
+
+    /**
+     * 获取带水印的图片或其缩略图，不存在时生成（或等待正在进行的生成任务）
+     *
+     * @param adiFile       图片
+     * @param thumbnail     获取的是缩略图
+     * @param watermarkText 水印文字
+     * @return 本地文件
+     */
+    public File getWatermarkImage(AdiFile adiFile, boolean thumbnail, String watermarkText) {
+        File source = new File(adiFile.getPath());
+        File image = new File(getWatermarkImagePath(adiFile, watermarkText));
+        File thumbnailFile = new File(getWatermarkThumbnailPath(adiFile, watermarkText));
+        File target = thumbnail ? thumbnailFile : image;
+        if (target.exists() || !isLocal(adiFile) || !source.exists()) {
+            return target;
+        }
+        await(submit(image.getPath(), () -> writeWatermark(source, watermarkText, image, thumbnailFile)), target);
+        return target;
+    }
+
+    public String getThumbnailPath(AdiFile adiFile) {
+        return thumbnailsPath + adiFile.getUuid() + "." + adiFile.getExt();
+    }
+
+    public String getWatermarkImagePath(AdiFile adiFile, String watermarkText) {
+        return watermarkImagesPath + getWatermarkFileName(adiFile, watermarkText);
+    }
+
+    public String getWatermarkThumbnailPath(AdiFile adiFile, String watermarkText) {
+        return watermarkThumbnailsPath + getWatermarkFileName(adiFile, watermarkText);
+    }
+
+    /**
+     * 带水印的文件名：图片uuid_水印文字摘要.扩展名
+     */
+    private static String getWatermarkFileName(AdiFile adiFile, String watermarkText) {
+        return adiFile.getUuid() + "_" + MD5Utils.generateMD5(watermarkText).substring(0, 12) + "." + adiFile.getExt();
+    }
+
+    /**
+     * 提交生成任务，同一个key已有任务在进行时直接返回该任务
+     */
+    private CompletableFuture<Void> submit(String key, Runnable generator) {
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        CompletableFuture<Void> existing = inFlight.putIfAbsent(key, created);
+        if (null != existing) {
+            return existing;
+        }
+        try {
+            imageDerivativeExecutor.execute(() -> {
+                try {
+                    generator.run();
+                    created.complete(null);
+                } catch (Exception e) {
+                    log.error("Generate image derivative error,target:{}", key, e);
+                    created.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, created);
+                }
+            });
+        } catch (TaskRejectedException e) {
+            log.warn("Image derivative task rejected,target:{}", key);
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private void await(CompletableFuture<Void> future, File target) {
+        try {
+            future.get(generateTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Wait for image derivative fail,target:{},error:{}", target.getName(), e.getMessage());
+        }
+    }
+
+    private void writeThumbnail(File source, File target) {
+        writeAtomically(target, tmp -> ImgUtil.scale(source, tmp, thumbnailScale));
+    }
+
+    private void writeWatermark(File source, String watermarkText, File image, File thumbnail) {
+        Image marked = Img.from(source)
+                .setPositionBaseCentre(false)
+                .pressText(watermarkText, Color.WHITE, null, 0, 0, 0.4f)
+                .getImg();
+        if (!image.exists()) {
+            writeAtomically(image, tmp -> ImgUtil.write(marked, tmp));
+        }
+        if (!thumbnail.exists()) {
+            writeAtomically(thumbnail, tmp -> ImgUtil.scale(marked, tmp, thumbnailScale));
+        }
+    }
+
+    /**
+     * 写入临时文件后重命名为目标文件
+     */
+    private static void writeAtomically(File target, Consumer<File> writer) {
+        File tmp = new File(target.getParentFile(), "tmp_" + UuidUtil.createShort() + "_" + target.getName());
+        try {
+            FileUtils.createParentDirectories(target);
+            writer.accept(tmp);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Write image derivative error,target:{}", target.getName(), e);
+            throw new BaseException(B_SAVE_IMAGE_ERROR);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    private static boolean isLocal(AdiFile adiFile) {
+        return null != adiFile.getStorageLocation() && adiFile.getStorageLocation() == AdiConstant.STORAGE_LOCATION_LOCAL;
+    }
+}
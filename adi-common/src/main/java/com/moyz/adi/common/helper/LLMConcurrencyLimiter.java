@@ -0,0 +1,80 @@
+package com.moyz.adi.common.helper;
+
+import com.moyz.adi.common.enums.ErrorEnum;
+import com.moyz.adi.common.exception.BaseException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按模型平台限制同时进行的LLM请求数
+ * <br/>异步任务的并发由此处的信号量控制，而不是由线程池的大小控制，线程池可以使用较大的线程数（或虚拟线程）
+ * <br/>只在elastic及virtual模式下起作用：pool模式下调用方是mainExecutor中数量固定的线程，等待名额会占住线程使排队的任务无法执行，
+ * 因此pool模式下不等待，名额不足时直接抛出繁忙异常
+ */
+@Slf4j
+@Service
+public class LLMConcurrencyLimiter {
+
+    @Value("${adi.async.llm-concurrency-per-platform:64}")
+    private int concurrencyPerPlatform;
+
+    @Value("${adi.async.llm-acquire-timeout-millis:60000}")
+    private long acquireTimeoutMillis;
+
+    @Value("${adi.async.mode:pool}")
+    private String asyncMode;
+
+    private final Map<String, Semaphore> platformToSemaphore = new ConcurrentHashMap<>();
+
+    /**
+     * 获取平台的一个请求名额，超时未获取到时抛出异常（pool模式下不等待）
+     *
+     * @param platform 模型所属的平台
+     * @return 请求名额，请求结束后必须关闭
+     */
+    public Permit acquire(String platform) {
+        Semaphore semaphore = platformToSemaphore.computeIfAbsent(StringUtils.lowerCase(StringUtils.defaultString(platform)), key -> new Semaphore(concurrencyPerPlatform));
+        boolean acquired;
+        try {
+            long timeoutMillis = "pool".equalsIgnoreCase(asyncMode) ? 0 : acquireTimeoutMillis;
+            acquired = semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            log.warn("Acquire llm permit timeout,platform:{},concurrency:{}", platform, concurrencyPerPlatform);
+            throw new BaseException(ErrorEnum.B_LLM_BUSY);
+        }
+        return new Permit(semaphore);
+    }
+
+    /**
+     * 请求名额，多次关闭只释放一次
+     */
+    public static class Permit implements AutoCloseable {
+
+        private final Semaphore semaphore;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release();
+            }
+        }
+    }
+}
@@ -22,7 +22,10 @@ public class LLMContext {
     }
 
     public static void addLLMService(AbstractLLMService<?> llmService) {
-        NAME_TO_LLM_SERVICE.put(llmService.getAiModel().getName(), llmService);
+        AbstractLLMService<?> replaced = NAME_TO_LLM_SERVICE.put(llmService.getAiModel().getName(), llmService);
+        if (null != replaced && replaced != llmService) {
+            replaced.clearCache();
+        }
     }
 
     /**
@@ -38,12 +41,15 @@ public class LLMContext {
                 .toList();
         for (String key : needDeleted) {
             log.info("delete llm model service,modelName:{}", key);
-            NAME_TO_LLM_SERVICE.remove(key);
+            remove(key);
         }
     }
 
     public static void remove(String modelName) {
-        NAME_TO_LLM_SERVICE.remove(modelName);
+        AbstractLLMService<?> removed = NAME_TO_LLM_SERVICE.remove(modelName);
+        if (null != removed) {
+            removed.clearCache();
+        }
     }
 
     public static AiModel getAiModel(String modelName) {
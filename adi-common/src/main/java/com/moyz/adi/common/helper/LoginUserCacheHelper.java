@@ -0,0 +1,165 @@
+package com.moyz.adi.common.helper;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.moyz.adi.common.cosntant.AdiConstant;
+import com.moyz.adi.common.entity.User;
+import com.moyz.adi.common.util.JsonUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.moyz.adi.common.cosntant.RedisKeyConstant.USER_SESSION_INVALIDATE_CHANNEL;
+import static com.moyz.adi.common.cosntant.RedisKeyConstant.USER_TOKEN;
+import static com.moyz.adi.common.cosntant.RedisKeyConstant.USER_TOKENS;
+
+/**
+ * 已登录用户的本地缓存（token => 用户），避免每个请求都访问redis并反序列化用户信息
+ * <br/>注销或修改用户时通过redis pub/sub通知所有节点删除本地缓存
+ * <br/>redis中按用户记录其有效的登录token，修改用户时更新这些token中的用户信息，冻结用户或修改密码时删除这些token
+ */
+@Slf4j
+@Service
+public class LoginUserCacheHelper {
+
+    private static final String INVALIDATE_TOKEN_PREFIX = "token:";
+
+    private static final String INVALIDATE_USER_PREFIX = "user:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${adi.login-user-cache.ttl-seconds:30}")
+    private long ttlSeconds;
+
+    @Value("${adi.login-user-cache.max-entries:10000}")
+    private long maxEntries;
+
+    private Cache<String, User> tokenToUser;
+
+    @PostConstruct
+    public void init() {
+        tokenToUser = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .maximumSize(maxEntries)
+                .build();
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> onInvalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(USER_SESSION_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 根据token获取已登录用户
+     *
+     * @param token 登录token
+     * @return 用户，未登录时返回null
+     */
+    public User getByToken(String token) {
+        User user = tokenToUser.getIfPresent(token);
+        if (null != user) {
+            return user;
+        }
+        String userJson = stringRedisTemplate.opsForValue().get(MessageFormat.format(USER_TOKEN, token));
+        if (StringUtils.isBlank(userJson)) {
+            return null;
+        }
+        user = JsonUtil.fromJson(userJson, User.class);
+        if (null != user) {
+            tokenToUser.put(token, user);
+        }
+        return user;
+    }
+
+    /**
+     * 通知所有节点删除token对应的本地缓存（注销时调用）
+     */
+    public void invalidateToken(String token) {
+        tokenToUser.invalidate(token);
+        stringRedisTemplate.convertAndSend(USER_SESSION_INVALIDATE_CHANNEL, INVALIDATE_TOKEN_PREFIX + token);
+    }
+
+    /**
+     * 记录用户新的登录token
+     *
+     * @param userId 用户id
+     * @param token  登录token
+     */
+    public void addToken(long userId, String token) {
+        String tokensKey = MessageFormat.format(USER_TOKENS, String.valueOf(userId));
+        stringRedisTemplate.opsForSet().add(tokensKey, token);
+        stringRedisTemplate.expire(tokensKey, AdiConstant.USER_TOKEN_EXPIRE, TimeUnit.HOURS);
+    }
+
+    /**
+     * 更新用户所有登录token中的用户信息（保留token剩余的有效期），并通知所有节点删除本地缓存（修改用户时调用）
+     *
+     * @param userId   用户id
+     * @param userJson 最新的用户信息
+     */
+    public void refreshUser(long userId, String userJson) {
+        String tokensKey = MessageFormat.format(USER_TOKENS, String.valueOf(userId));
+        Set<String> tokens = stringRedisTemplate.opsForSet().members(tokensKey);
+        if (CollectionUtils.isNotEmpty(tokens)) {
+            for (String token : tokens) {
+                String tokenKey = MessageFormat.format(USER_TOKEN, token);
+                Long ttl = stringRedisTemplate.getExpire(tokenKey, TimeUnit.SECONDS);
+                if (null == ttl || ttl <= 0) {
+                    stringRedisTemplate.opsForSet().remove(tokensKey, token);
+                    continue;
+                }
+                stringRedisTemplate.opsForValue().set(tokenKey, userJson, ttl, TimeUnit.SECONDS);
+            }
+        }
+        invalidateUser(userId);
+    }
+
+    /**
+     * 删除用户所有的登录token，并通知所有节点删除本地缓存（冻结用户或修改密码时调用）
+     *
+     * @param userId 用户id
+     */
+    public void removeUser(long userId) {
+        String tokensKey = MessageFormat.format(USER_TOKENS, String.valueOf(userId));
+        Set<String> tokens = stringRedisTemplate.opsForSet().members(tokensKey);
+        if (CollectionUtils.isNotEmpty(tokens)) {
+            stringRedisTemplate.delete(tokens.stream().map(token -> MessageFormat.format(USER_TOKEN, token)).toList());
+        }
+        stringRedisTemplate.delete(tokensKey);
+        invalidateUser(userId);
+    }
+
+    /**
+     * 通知所有节点删除用户的本地缓存
+     */
+    private void invalidateUser(long userId) {
+        removeByUserId(userId);
+        stringRedisTemplate.convertAndSend(USER_SESSION_INVALIDATE_CHANNEL, INVALIDATE_USER_PREFIX + userId);
+    }
+
+    private void onInvalidate(String message) {
+        log.info("Invalidate login user cache:{}", message);
+        if (message.startsWith(INVALIDATE_TOKEN_PREFIX)) {
+            tokenToUser.invalidate(message.substring(INVALIDATE_TOKEN_PREFIX.length()));
+        } else if (message.startsWith(INVALIDATE_USER_PREFIX)) {
+            removeByUserId(Long.parseLong(message.substring(INVALIDATE_USER_PREFIX.length())));
+        }
+    }
+
+    private void removeByUserId(long userId) {
+        tokenToUser.asMap().values().removeIf(user -> user.getId() == userId);
+    }
+}
@@ -20,7 +20,7 @@ public class QuotaHelper {
         int userQuotaByTokenMonth = user.getQuotaByTokenMonthly();
         int userQuotaByRequestDay = user.getQuotaByRequestDaily();
         int userQuotaByRequestMonth = user.getQuotaByRequestMonthly();
-        CostStat costStat = userDayCostService.costStatByUser(user.getId(), false);
+        CostStat costStat = userDayCostService.getCachedCostStat(user.getId(), false);
         if (costStat.getTextTokenCostByDay() >= userQuotaByTokenDay || costStat.getTextRequestTimesByDay() >= userQuotaByRequestDay) {
             log.warn("Reach limit of a day,userId:{},token:{},request:{},used token:{}, used request:{}", user.getId(), userQuotaByRequestDay, userQuotaByRequestDay, userQuotaByTokenMonth, userQuotaByRequestMonth);
             return ErrorEnum.B_DAILY_QUOTA_USED;
@@ -41,7 +41,7 @@ public class QuotaHelper {
     public ErrorEnum checkImageQuota(User user, boolean isFree) {
         int userDailyQuota = user.getQuotaByImageDaily();
         int userMonthlyQuota = user.getQuotaByImageMonthly();
-        CostStat costStat = userDayCostService.costStatByUser(user.getId(), isFree);
+        CostStat costStat = userDayCostService.getCachedCostStat(user.getId(), isFree);
         if (costStat.getDrawTimesByDay() >= userDailyQuota) {
             log.warn("Generate image reach limit of a day,userId:{},request quota:{},used request times:{}", user.getId(), userDailyQuota, costStat.getDrawTimesByDay());
             return ErrorEnum.B_DAILY_QUOTA_USED;
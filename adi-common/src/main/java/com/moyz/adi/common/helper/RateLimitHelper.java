@@ -1,44 +1,119 @@
 package com.moyz.adi.common.helper;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.moyz.adi.common.util.UuidUtil;
 import com.moyz.adi.common.vo.RequestRateLimit;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
-import org.apache.commons.lang3.StringUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * 请求频率限制（滑动窗口）
+ * <br/>限流维度由调用方通过 bucket key 区分，如按用户、模型、接口
+ * <br/>检查及计数在一个lua脚本中原子完成，只需一次请求redis；
+ * 远未达到上限时一次预占多个名额保存在本地，后续请求直接使用本地名额而无需请求redis
+ */
+@Slf4j
 @Service
 public class RateLimitHelper {
 
+    /**
+     * KEYS[1]: bucket key
+     * <br/>ARGV[1]: 时间窗口（毫秒）, ARGV[2]: 窗口内允许的请求数, ARGV[3]: 远未达到上限时预占的名额数, ARGV[4]: 本次请求的唯一标识
+     * <br/>返回获得的名额数，0表示已达到上限
+     */
+    private static final RedisScript<Long> SLIDING_WINDOW_SCRIPT = new DefaultRedisScript<>("""
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+            local window = tonumber(ARGV[1])
+            local limit = tonumber(ARGV[2])
+            redis.call('ZREMRANGEBYSCORE', KEYS[1], 0, now - window)
+            local count = redis.call('ZCARD', KEYS[1])
+            if count >= limit then
+                return 0
+            end
+            local permits = tonumber(ARGV[3])
+            if permits < 1 or (count + permits) * 4 > limit then
+                permits = 1
+            end
+            for i = 1, permits do
+                redis.call('ZADD', KEYS[1], now, ARGV[4] .. ':' .. i)
+            end
+            redis.call('PEXPIRE', KEYS[1], window)
+            return permits
+            """, Long.class);
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     /**
-     * 按固定时间窗口计算请求次数
+     * 远未达到上限（预占后不超过上限的1/4）时一次预占的名额数，小于2表示不使用本地名额
+     */
+    @Value("${adi.rate-limit.local-permits:3}")
+    private int localPermits;
+
+    /**
+     * 本地名额的有效时间，过期未用完的名额作废（在redis中仍计入所在时间窗口）
+     */
+    @Value("${adi.rate-limit.local-permits-ttl-millis:10000}")
+    private long localPermitsTtlMillis;
+
+    /**
+     * bucket key => 本地剩余名额
+     */
+    private Cache<String, AtomicInteger> localPermitsCache;
+
+    @PostConstruct
+    public void init() {
+        localPermitsCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(localPermitsTtlMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(100000)
+                .build();
+    }
+
+    /**
+     * 尝试获取一次请求的名额，获取成功即计入请求次数
      *
-     * @param requestTimesKey redis key
+     * @param bucketKey       限流维度，如按用户：user:request-text:window:{userId}
      * @param rateLimitConfig 请求频率限制配置
-     * @return
+     * @return 是否允许请求
      */
-    public boolean checkRequestTimes(String requestTimesKey, RequestRateLimit rateLimitConfig) {
-        int requestCountInTimeWindow = 0;
-        String rateLimitVal = stringRedisTemplate.opsForValue().get(requestTimesKey);
-        if (StringUtils.isNotBlank(rateLimitVal)) {
-            requestCountInTimeWindow = Integer.parseInt(rateLimitVal);
-        }
-        return requestCountInTimeWindow < rateLimitConfig.getTimes();
+    public boolean tryAcquire(String bucketKey, RequestRateLimit rateLimitConfig) {
+        return tryAcquire(bucketKey, rateLimitConfig.getTimes(), TimeUnit.MINUTES.toMillis(rateLimitConfig.getMinutes()));
     }
 
-    public void increaseRequestTimes(String requestTimesKey, RequestRateLimit rateLimitConfig) {
-        long expireTime = stringRedisTemplate.getExpire(requestTimesKey).longValue();
-        if (expireTime == -1) {
-            stringRedisTemplate.opsForValue().increment(requestTimesKey);
-            stringRedisTemplate.opsForValue().set(requestTimesKey, String.valueOf(1), rateLimitConfig.getMinutes(), TimeUnit.MINUTES);
-        } else if (expireTime > 3) {
-            //If expireTime <= 3, too short to cache
-            stringRedisTemplate.opsForValue().increment(requestTimesKey);
+    /**
+     * 尝试获取一次请求的名额，获取成功即计入请求次数
+     *
+     * @param bucketKey    限流维度
+     * @param limit        时间窗口内允许的请求数
+     * @param windowMillis 时间窗口（毫秒）
+     * @return 是否允许请求
+     */
+    public boolean tryAcquire(String bucketKey, int limit, long windowMillis) {
+        AtomicInteger remaining = localPermitsCache.getIfPresent(bucketKey);
+        if (null != remaining && remaining.decrementAndGet() >= 0) {
+            return true;
+        }
+        Long permits = stringRedisTemplate.execute(SLIDING_WINDOW_SCRIPT, List.of(bucketKey),
+                String.valueOf(windowMillis), String.valueOf(limit), String.valueOf(localPermits), UuidUtil.createShort());
+        if (null == permits || permits < 1) {
+            log.info("Request rate limited,bucketKey:{}", bucketKey);
+            return false;
         }
+        if (permits > 1) {
+            localPermitsCache.put(bucketKey, new AtomicInteger(permits.intValue() - 1));
+        }
+        return true;
     }
-
 }
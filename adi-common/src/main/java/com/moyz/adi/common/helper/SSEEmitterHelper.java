@@ -12,16 +12,22 @@ import com.moyz.adi.common.vo.SseAskParams;
 import com.theokanning.openai.OpenAiError;
 import dev.ai4j.openai4j.OpenAiHttpException;
 import dev.langchain4j.model.chat.response.ChatResponse;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
@@ -34,10 +40,24 @@ public class SSEEmitterHelper {
     @Resource
     private RateLimitHelper rateLimitHelper;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 用户id => 本节点上正在进行的流式请求（同一用户同时只能有一个请求）
+     */
+    private final Map<Long, StreamCancellation> userToCancellation = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> cancelLocal(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisKeyConstant.USER_STREAM_STOP_CHANNEL));
+    }
+
     public boolean checkOrComplete(User user, SseEmitter sseEmitter) {
-        //Check: rate limit
+        //Check: rate limit，检查通过即计入请求次数
         String requestTimesKey = MessageFormat.format(RedisKeyConstant.USER_REQUEST_TEXT_TIMES, user.getId());
-        if (!rateLimitHelper.checkRequestTimes(requestTimesKey, LocalCache.TEXT_RATE_LIMIT_CONFIG)) {
+        if (!rateLimitHelper.tryAcquire(requestTimesKey, LocalCache.TEXT_RATE_LIMIT_CONFIG)) {
             sendErrorAndComplete(user.getId(), sseEmitter, "访问太过频繁");
             return false;
         }
@@ -61,8 +81,6 @@ public class SSEEmitterHelper {
         String askingKey = MessageFormat.format(RedisKeyConstant.USER_ASKING, user.getId());
         stringRedisTemplate.opsForValue().set(askingKey, "1", 15, TimeUnit.SECONDS);
 
-        String requestTimesKey = MessageFormat.format(RedisKeyConstant.USER_REQUEST_TEXT_TIMES, user.getId());
-        rateLimitHelper.increaseRequestTimes(requestTimesKey, LocalCache.TEXT_RATE_LIMIT_CONFIG);
         try {
             SseEmitter.SseEventBuilder builder = SseEmitter.event().name(AdiConstant.SSEEventName.START);
             if (StringUtils.isNotBlank(data)) {
@@ -103,11 +121,32 @@ public class SSEEmitterHelper {
      * @return 用户请求标识
      */
     public String registerEventStreamListener(SseAskParams sseAskParams) {
-        User user = sseAskParams.getUser();
+        return registerEventStreamListener(sseAskParams.getUser(), sseAskParams.getSseEmitter(), sseAskParams.getCancellation());
+    }
+
+    /**
+     * 注册event stream的事件，sse结束、超时或出错时取消上游正在进行的请求
+     *
+     * @param user         用户
+     * @param sseEmitter   sse emitter
+     * @param cancellation 请求的取消信号
+     * @return 用户请求标识
+     */
+    public String registerEventStreamListener(User user, SseEmitter sseEmitter, StreamCancellation cancellation) {
         String askingKey = MessageFormat.format(RedisKeyConstant.USER_ASKING, user.getId());
-        SseEmitter sseEmitter = sseAskParams.getSseEmitter();
-        sseEmitter.onCompletion(() -> log.info("response complete,uid:{}", user.getId()));
-        sseEmitter.onTimeout(() -> log.warn("sseEmitter timeout,uid:{},on timeout:{}", user.getId(), sseEmitter.getTimeout()));
+        userToCancellation.put(user.getId(), cancellation);
+        cancellation.onCancel(() -> {
+            userToCancellation.remove(user.getId(), cancellation);
+            stringRedisTemplate.delete(askingKey);
+        });
+        sseEmitter.onCompletion(() -> {
+            log.info("response complete,uid:{}", user.getId());
+            cancellation.cancel("completion");
+        });
+        sseEmitter.onTimeout(() -> {
+            log.warn("sseEmitter timeout,uid:{},on timeout:{}", user.getId(), sseEmitter.getTimeout());
+            cancellation.cancel("timeout");
+        });
         sseEmitter.onError(
                 throwable -> {
                     try {
@@ -117,12 +156,45 @@ public class SSEEmitterHelper {
                         log.error("error", e);
                     } finally {
                         stringRedisTemplate.delete(askingKey);
+                        cancellation.cancel("error");
                     }
                 }
         );
         return askingKey;
     }
 
+    /**
+     * 停止用户正在进行的流式请求，通知所有节点
+     *
+     * @param userId 用户id
+     */
+    public void stop(long userId) {
+        cancelLocal(userId);
+        stringRedisTemplate.convertAndSend(RedisKeyConstant.USER_STREAM_STOP_CHANNEL, String.valueOf(userId));
+    }
+
+    private void cancelLocal(long userId) {
+        StreamCancellation cancellation = userToCancellation.get(userId);
+        if (null != cancellation && cancellation.cancel("stop")) {
+            log.info("Stream stopped by user,uid:{}", userId);
+        }
+    }
+
+    /**
+     * 请求被取消后关闭sse，客户端已断开时忽略异常
+     *
+     * @param cancellation 请求的取消信号
+     * @param sseEmitter   sse emitter
+     */
+    public static void cancelAndShutdown(StreamCancellation cancellation, SseEmitter sseEmitter) {
+        log.info("stream cancelled,reason:{}", cancellation.getReason());
+        try {
+            sseEmitter.complete();
+        } catch (Exception e) {
+            log.warn("Complete cancelled sse error:{}", e.getMessage());
+        }
+    }
+
     public void sendComplete(long userId, SseEmitter sseEmitter, String msg) {
         try {
             sseEmitter.send(SseEmitter.event().name(AdiConstant.SSEEventName.DONE).data(msg));
@@ -183,7 +255,7 @@ public class SSEEmitterHelper {
 //            } else {
 //                sendPartial(sseEmitter, name, prefix, " " + content);
 //            }
-            content = content.replaceAll("[\\r\\n]", "\ndata:");
+            content = SseStreamWriter.escapeLineBreaks(content);
             sendPartial(sseEmitter, name, content);
         } catch (IOException e) {
             log.error("stream onNext error", e);
@@ -0,0 +1,170 @@
+package com.moyz.adi.common.helper;
+
+import com.moyz.adi.common.util.SpringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 流式输出LLM的响应内容，把多个token合并成一帧再发送，减少写入及flush的次数
+ * <br/>1. 缓存的内容达到{maxFrameChars}个字符，或新token到达时距离第一个缓存的token超过{maxDelayMillis}毫秒时发送
+ * <br/>2. 发送只在上游token的回调线程及结束前的{@link #flush()}中同步进行，客户端接收慢时会阻塞上游token的回调（背压）；
+ * 上游暂停输出时，缓存中的内容在下一个token到达或结束时发送
+ * <br/>3. 发送失败（客户端断开）或单次发送超过{slowClientMillis}毫秒仍未返回时不再发送，并执行{onDisconnect}回调，
+ * 超时由{@link SseWatchdog}检测，发送一直阻塞时也能及时中止上游请求
+ */
+@Slf4j
+public class SseStreamWriter {
+
+    public static final int DEFAULT_MAX_FRAME_CHARS = 48;
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 40;
+
+    public static final long DEFAULT_SLOW_CLIENT_MILLIS = 10_000;
+
+    private final SseEmitter sseEmitter;
+
+    private final String eventName;
+
+    private final int maxFrameChars;
+
+    private final long maxDelayMillis;
+
+    private final long slowClientMillis;
+
+    private final SseWatchdog watchdog;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    /**
+     * 缓存中第一个token的到达时间
+     */
+    private long firstBufferedAt;
+
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
+
+    private volatile Runnable onDisconnect;
+
+    public SseStreamWriter(SseEmitter sseEmitter) {
+        this(sseEmitter, "");
+    }
+
+    public SseStreamWriter(SseEmitter sseEmitter, String eventName) {
+        this(sseEmitter, eventName, DEFAULT_MAX_FRAME_CHARS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_SLOW_CLIENT_MILLIS);
+    }
+
+    /**
+     * @param sseEmitter       sse emitter
+     * @param eventName        事件名称，为空时发送不带名称的事件
+     * @param maxFrameChars    每帧最多缓存的字符数
+     * @param maxDelayMillis   内容在缓存中的最长停留时间
+     * @param slowClientMillis 单次发送超过此时间认为客户端已无法正常接收
+     */
+    public SseStreamWriter(SseEmitter sseEmitter, String eventName, int maxFrameChars, long maxDelayMillis, long slowClientMillis) {
+        this.sseEmitter = sseEmitter;
+        this.eventName = eventName;
+        this.maxFrameChars = maxFrameChars;
+        this.maxDelayMillis = maxDelayMillis;
+        this.slowClientMillis = slowClientMillis;
+        this.watchdog = SpringUtil.getBean(SseWatchdog.class);
+    }
+
+    /**
+     * 客户端断开或接收过慢时的回调，如取消上游LLM的请求
+     */
+    public SseStreamWriter onDisconnect(Runnable onDisconnect) {
+        this.onDisconnect = onDisconnect;
+        return this;
+    }
+
+    public boolean isDisconnected() {
+        return disconnected.get();
+    }
+
+    public synchronized void append(String token) {
+        if (disconnected.get() || StringUtils.isEmpty(token)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (buffer.isEmpty()) {
+            firstBufferedAt = now;
+        }
+        buffer.append(token);
+        if (buffer.length() >= maxFrameChars || now - firstBufferedAt >= maxDelayMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * 发送缓存中的内容，结束（发送DONE、ERROR事件）前必须调用
+     */
+    public synchronized void flush() {
+        if (disconnected.get() || buffer.isEmpty()) {
+            return;
+        }
+        String frame = escapeLineBreaks(buffer);
+        buffer.setLength(0);
+        ScheduledFuture<?> stallCheck = watchdog.watch(() -> {
+            log.warn("Sse client too slow,send not returned in {}ms", slowClientMillis);
+            disconnect();
+        }, slowClientMillis);
+        try {
+            if (StringUtils.isNotBlank(eventName)) {
+                sseEmitter.send(SseEmitter.event().name(eventName).data(frame));
+            } else {
+                sseEmitter.send(frame);
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.warn("Sse client disconnected,error:{}", e.getMessage());
+            disconnect();
+        } finally {
+            stallCheck.cancel(false);
+        }
+    }
+
+    /**
+     * 只执行一次，可能在{@link SseWatchdog}的线程中执行（此时发送线程仍阻塞并持有锁），因此不加锁
+     */
+    private void disconnect() {
+        if (!disconnected.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable callback = onDisconnect;
+        if (null != callback) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                log.error("Sse onDisconnect callback error", e);
+            }
+        }
+    }
+
+    /**
+     * 把换行符替换成"\ndata:"，以便多行内容在一个事件中发送（与前端的fetchEventSource配合）
+     * <br/>没有换行符时不会产生新的字符串
+     *
+     * @param content 内容
+     * @return 替换后的内容
+     */
+    public static String escapeLineBreaks(CharSequence content) {
+        StringBuilder result = null;
+        int length = content.length();
+        for (int i = 0; i < length; i++) {
+            char c = content.charAt(i);
+            if (c == '\r' || c == '\n') {
+                if (null == result) {
+                    result = new StringBuilder(length + 16);
+                    result.append(content, 0, i);
+                }
+                result.append("\ndata:");
+            } else if (null != result) {
+                result.append(c);
+            }
+        }
+        return null == result ? content.toString() : result.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package com.moyz.adi.common.helper;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * sse发送超时检测：发送前登记一个检查任务，发送在限定时间内没有返回时执行超时回调（如中止上游请求）
+ * <br/>定时器只有一个线程，不执行阻塞的发送；超时回调在单独的线程中执行（结束sse时会等待仍阻塞的发送释放SseEmitter的锁），
+ * 某个客户端卡住不会影响其他流的超时检测
+ */
+@Slf4j
+@Component
+public class SseWatchdog {
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * 执行超时回调，只有客户端卡住时才会用到，线程空闲后回收
+     */
+    private final ExecutorService callbackExecutor;
+
+    public SseWatchdog() {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "sse-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        AtomicInteger threadNum = new AtomicInteger();
+        callbackExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "sse-watchdog-callback-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 登记超时检查，发送返回后须取消返回的任务
+     *
+     * @param onTimeout     超时回调
+     * @param timeoutMillis 超时时间
+     * @return 检查任务
+     */
+    public ScheduledFuture<?> watch(Runnable onTimeout, long timeoutMillis) {
+        return executor.schedule(() -> callbackExecutor.execute(() -> {
+            try {
+                onTimeout.run();
+            } catch (Exception e) {
+                log.error("Sse watchdog callback error", e);
+            }
+        }), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+        callbackExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,138 @@
+package com.moyz.adi.common.helper;
+
+import com.moyz.adi.common.enums.ErrorEnum;
+import com.moyz.adi.common.exception.BaseException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 流式请求（LLM流式响应、工作流运行）的取消信号
+ * <br/>客户端断开、sse超时或用户主动停止时调用{@link #cancel(String)}
+ * <br/>向模型发起的每个流式请求对应一个{@link Upstream}，由发起方显式传给模型（见AdiStreamingChatLanguageModelImpl#withUpstream），
+ * 支持取消的模型客户端在发起请求时登记取消句柄，取消时直接关闭与模型服务之间的连接
+ */
+@Slf4j
+public class StreamCancellation {
+
+    private String reason;
+
+    private final List<Runnable> callbacks = new ArrayList<>();
+
+    /**
+     * 取消请求，只有第一次调用生效
+     *
+     * @param reason 取消原因
+     * @return 本次调用是否生效
+     */
+    public boolean cancel(String reason) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (null != this.reason) {
+                return false;
+            }
+            this.reason = reason;
+            toRun = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        toRun.forEach(StreamCancellation::runQuietly);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return null != reason;
+    }
+
+    public synchronized String getReason() {
+        return reason;
+    }
+
+    /**
+     * 注册取消时的回调，已取消时立即执行
+     */
+    public void onCancel(Runnable callback) {
+        synchronized (this) {
+            if (null == reason) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        runQuietly(callback);
+    }
+
+    /**
+     * 已取消时抛出异常，用于在执行下一步（如工作流的下一个节点）前中止
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new BaseException(ErrorEnum.B_STREAM_CANCELLED);
+        }
+    }
+
+    /**
+     * 创建一个上游请求
+     *
+     * @param onAborted 上游请求被取消句柄中止后的回调，参数为该上游请求（中止后模型客户端不会再回调完成或出错）
+     * @return 上游请求
+     */
+    public Upstream newUpstream(Consumer<Upstream> onAborted) {
+        return new Upstream(this, onAborted);
+    }
+
+    private static void runQuietly(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Exception e) {
+            log.error("Stream cancel callback error", e);
+        }
+    }
+
+    /**
+     * 向模型发起的一个流式请求，模型在发起时登记取消句柄及prompt的token数
+     */
+    public static class Upstream {
+
+        private final StreamCancellation cancellation;
+
+        private final Consumer<Upstream> onAborted;
+
+        private volatile boolean abortable;
+
+        private volatile int promptTokens;
+
+        private Upstream(StreamCancellation cancellation, Consumer<Upstream> onAborted) {
+            this.cancellation = cancellation;
+            this.onAborted = onAborted;
+        }
+
+        /**
+         * 登记取消句柄，取消时调用句柄中止请求，然后回调onAborted；已取消时立即中止
+         *
+         * @param abort 中止请求
+         */
+        public void attachAbort(Runnable abort) {
+            abortable = true;
+            cancellation.onCancel(() -> {
+                abort.run();
+                onAborted.accept(this);
+            });
+        }
+
+        /**
+         * 模型客户端是否登记了取消句柄，未登记的请求在取消后会继续运行到结束
+         */
+        public boolean isAbortable() {
+            return abortable;
+        }
+
+        public int getPromptTokens() {
+            return promptTokens;
+        }
+
+        public void setPromptTokens(int promptTokens) {
+            this.promptTokens = promptTokens;
+        }
+    }
+}
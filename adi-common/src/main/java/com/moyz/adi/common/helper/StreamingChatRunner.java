@@ -0,0 +1,162 @@
+package com.moyz.adi.common.helper;
+
+import com.moyz.adi.common.interfaces.TriConsumer;
+import com.moyz.adi.common.rag.AdiTokenStream;
+import com.moyz.adi.common.util.InputAdaptor;
+import com.moyz.adi.common.util.LLMTokenUtil;
+import com.moyz.adi.common.util.SpringUtil;
+import com.moyz.adi.common.util.UuidUtil;
+import com.moyz.adi.common.vo.AnswerMeta;
+import com.moyz.adi.common.vo.PromptMeta;
+import com.moyz.adi.common.vo.SseAskParams;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.output.TokenUsage;
+import dev.langchain4j.service.TokenStream;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 执行一次流式对话，把LLM的响应写入sse，结束时执行回调
+ * <br/>1. 请求被取消后不再向客户端输出token；模型客户端登记了取消句柄时（见{@link StreamCancellation.Upstream}）直接中止上游请求并释放名额，
+ * 否则关闭sse，上游请求继续运行到结束后再释放名额
+ * <br/>2. 回调只执行一次：正常结束时传入完整回答；被取消时传入已输出的部分回答，{@link AnswerMeta#isCancelled()}为true，
+ * token数使用模型返回的用量，上游已中止没有用量时按已发送的prompt及已输出的内容估算
+ */
+@Slf4j
+public class StreamingChatRunner {
+
+    private final SseAskParams params;
+
+    private final LLMConcurrencyLimiter.Permit permit;
+
+    private final boolean shutdownSse;
+
+    private final TriConsumer<String, PromptMeta, AnswerMeta> consumer;
+
+    private final StreamCancellation cancellation;
+
+    private SseStreamWriter writer;
+
+    private StreamCancellation.Upstream upstream;
+
+    /**
+     * 已输出给客户端的内容
+     */
+    private final StringBuilder partial = new StringBuilder();
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * @param params      请求参数
+     * @param permit      已获取的请求名额，请求结束后释放
+     * @param shutdownSse 正常结束后是否关闭sse
+     * @param consumer    请求结束后的回调
+     */
+    public StreamingChatRunner(SseAskParams params, LLMConcurrencyLimiter.Permit permit, boolean shutdownSse, TriConsumer<String, PromptMeta, AnswerMeta> consumer) {
+        this.params = params;
+        this.permit = permit;
+        this.shutdownSse = shutdownSse;
+        this.consumer = consumer;
+        this.cancellation = params.getCancellation();
+    }
+
+    /**
+     * 在当前线程中发起请求，发起过程中出错（此时模型客户端不会回调）时释放名额并结束sse
+     *
+     * @param tokenStream 未开始的TokenStream
+     */
+    public void start(TokenStream tokenStream) {
+        try {
+            doStart(tokenStream);
+        } catch (RuntimeException e) {
+            permit.close();
+            if (finished.compareAndSet(false, true)) {
+                SSEEmitterHelper.errorAndShutdown(e, params.getSseEmitter());
+            }
+        }
+    }
+
+    private void doStart(TokenStream tokenStream) {
+        writer = new SseStreamWriter(params.getSseEmitter()).onDisconnect(() -> cancellation.cancel("disconnect"));
+        upstream = cancellation.newUpstream(aborted -> {
+            permit.close();
+            finishCancelled(null);
+        });
+        if (cancellation.isCancelled()) {
+            permit.close();
+            finishCancelled(null);
+            return;
+        }
+        cancellation.onCancel(() -> {
+            //上游请求无法中止，先结束sse，名额在上游请求结束后释放
+            if (!upstream.isAbortable() && !finished.get()) {
+                SSEEmitterHelper.cancelAndShutdown(cancellation, params.getSseEmitter());
+            }
+        });
+        tokenStream
+                .onPartialResponse(content -> {
+                    if (cancellation.isCancelled()) {
+                        return;
+                    }
+                    synchronized (partial) {
+                        partial.append(content);
+                    }
+                    writer.append(content);
+                })
+                .onCompleteResponse(response -> {
+                    permit.close();
+                    if (cancellation.isCancelled()) {
+                        finishCancelled(response);
+                        return;
+                    }
+                    if (!finished.compareAndSet(false, true)) {
+                        return;
+                    }
+                    writer.flush();
+                    Pair<PromptMeta, AnswerMeta> pair = SSEEmitterHelper.calculateTokenAndShutdown(response, params.getSseEmitter(), params.getUuid(), shutdownSse);
+                    consumer.accept(response.aiMessage().text(), pair.getLeft(), pair.getRight());
+                })
+                .onError(error -> {
+                    permit.close();
+                    if (cancellation.isCancelled()) {
+                        finishCancelled(null);
+                        return;
+                    }
+                    if (!finished.compareAndSet(false, true)) {
+                        return;
+                    }
+                    writer.flush();
+                    SSEEmitterHelper.errorAndShutdown(error, params.getSseEmitter());
+                });
+        //上游请求显式绑定到本次使用的模型，模型客户端在发起时登记取消句柄及prompt的token数
+        if (tokenStream instanceof AdiTokenStream adiTokenStream) {
+            adiTokenStream.upstream(upstream);
+        }
+        tokenStream.start();
+    }
+
+    /**
+     * 请求被取消后结束sse并执行回调，保存已输出的部分回答并计费
+     *
+     * @param response 上游请求结束时的响应，上游已中止时为null
+     */
+    private void finishCancelled(ChatResponse response) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        String answer;
+        synchronized (partial) {
+            answer = partial.toString();
+        }
+        TokenUsage tokenUsage = null == response ? null : response.metadata().tokenUsage();
+        int inputTokenCount = null != tokenUsage && null != tokenUsage.inputTokenCount() ? tokenUsage.inputTokenCount() : null == upstream ? 0 : upstream.getPromptTokens();
+        int outputTokenCount = null != tokenUsage && null != tokenUsage.outputTokenCount() ? tokenUsage.outputTokenCount() : InputAdaptor.countTokens(answer);
+        log.info("Streaming chat cancelled,uuid:{},reason:{},inputTokenCount:{},outputTokenCount:{}", params.getUuid(), cancellation.getReason(), inputTokenCount, outputTokenCount);
+        LLMTokenUtil.cacheTokenUsage(SpringUtil.getBean(StringRedisTemplate.class), params.getUuid(), new TokenUsage(inputTokenCount, outputTokenCount));
+        SSEEmitterHelper.cancelAndShutdown(cancellation, params.getSseEmitter());
+        consumer.accept(answer, new PromptMeta(inputTokenCount, params.getUuid()), new AnswerMeta(outputTokenCount, UuidUtil.createShort(), true));
+    }
+}
@@ -2,9 +2,12 @@ package com.moyz.adi.common.interfaces;
 
 import com.moyz.adi.common.entity.AiModel;
 import com.moyz.adi.common.exception.BaseException;
+import com.moyz.adi.common.helper.LLMConcurrencyLimiter;
 import com.moyz.adi.common.helper.SSEEmitterHelper;
+import com.moyz.adi.common.helper.StreamingChatRunner;
 import com.moyz.adi.common.rag.AdiAiServices;
 import com.moyz.adi.common.rag.AdiChatLanguageModelImpl;
+import com.moyz.adi.common.rag.AdiStreamingChatLanguageModelImpl;
 import com.moyz.adi.common.util.*;
 import com.moyz.adi.common.vo.*;
 import dev.langchain4j.data.message.ImageContent;
@@ -16,11 +19,13 @@ import dev.langchain4j.service.TokenStream;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
 import java.net.Proxy;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import static com.moyz.adi.common.cosntant.AdiConstant.LLM_MAX_INPUT_TOKENS_DEFAULT;
 import static com.moyz.adi.common.enums.ErrorEnum.A_PARAMS_ERROR;
@@ -36,6 +41,19 @@ public abstract class AbstractLLMService<T> {
 
     protected StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 参数（温度） => 已创建的模型客户端，复用其中的http连接池
+     * <br/>平台配置变更时LLMContext会移除旧的service并调用{@link #clearCache()}
+     */
+    private final Map<String, ChatLanguageModel> chatModels = new ConcurrentHashMap<>();
+
+    private final Map<String, AdiStreamingChatLanguageModelImpl> streamingChatModels = new ConcurrentHashMap<>();
+
+    /**
+     * 接口类型及参数 => AiService代理，只缓存与请求无关的（不含按请求的回调、召回器等）
+     */
+    private final Map<String, Object> assistants = new ConcurrentHashMap<>();
+
     protected AbstractLLMService(AiModel aiModel, String settingName, Class<T> clazz) {
         this.aiModel = aiModel;
         String st = LocalCache.CONFIGS.get(settingName);
@@ -59,9 +77,30 @@ public abstract class AbstractLLMService<T> {
 
     public AbstractLLMService<T> setProxy(Proxy proxy) {
         this.proxy = proxy;
+        clearCache();
         return this;
     }
 
+    /**
+     * 清除已创建的模型客户端及AiService代理
+     */
+    public void clearCache() {
+        chatModels.clear();
+        streamingChatModels.clear();
+        assistants.clear();
+    }
+
+    private static String cacheKey(LLMBuilderProperties properties) {
+        return null == properties || null == properties.getTemperature() ? "" : String.valueOf(properties.getTemperature());
+    }
+
+    /**
+     * 未指定温度时按默认参数创建
+     */
+    private static LLMBuilderProperties normalize(LLMBuilderProperties properties) {
+        return null == properties || null == properties.getTemperature() ? null : properties;
+    }
+
     /**
      * 检测该service是否可用（不可用的情况通常是没有配置key）
      *
@@ -74,7 +113,8 @@ public abstract class AbstractLLMService<T> {
     }
 
     public ChatLanguageModel buildChatLLM(LLMBuilderProperties properties, String uuid) {
-        return new AdiChatLanguageModelImpl(doBuildChatLLM(properties), response -> {
+        ChatLanguageModel chatModel = chatModels.computeIfAbsent(cacheKey(properties), key -> doBuildChatLLM(normalize(properties)));
+        return new AdiChatLanguageModelImpl(chatModel, response -> {
             int inputTokenCount = response.metadata().tokenUsage().inputTokenCount();
             int outputTokenCount = response.metadata().tokenUsage().outputTokenCount();
             log.info("ChatLanguageModel token cost,uuid:{},inputTokenCount:{},outputTokenCount:{}", uuid, inputTokenCount, outputTokenCount);
@@ -84,7 +124,14 @@ public abstract class AbstractLLMService<T> {
 
     protected abstract ChatLanguageModel doBuildChatLLM(LLMBuilderProperties properties);
 
-    public abstract StreamingChatLanguageModel buildStreamingChatLLM(LLMBuilderProperties properties);
+    protected abstract StreamingChatLanguageModel doBuildStreamingChatLLM(LLMBuilderProperties properties);
+
+    /**
+     * 共享的流式模型，发起可取消的请求前通过{@link AdiStreamingChatLanguageModelImpl#withUpstream}绑定上游请求
+     */
+    public AdiStreamingChatLanguageModelImpl buildStreamingChatLLM(LLMBuilderProperties properties) {
+        return streamingChatModels.computeIfAbsent(cacheKey(properties), key -> new AdiStreamingChatLanguageModelImpl(doBuildStreamingChatLLM(normalize(properties))));
+    }
 
     protected abstract LLMException parseError(Object error);
 
@@ -96,14 +143,15 @@ public abstract class AbstractLLMService<T> {
      */
     public void streamingChat(SseAskParams params, boolean shutdownSse, TriConsumer<String, PromptMeta, AnswerMeta> consumer) {
         TokenStream tokenStream = createTokenStream(params);
-        tokenStream
-                .onPartialResponse(content -> SSEEmitterHelper.parseAndSendPartialMsg(params.getSseEmitter(), content))
-                .onCompleteResponse(response -> {
-                    Pair<PromptMeta, AnswerMeta> pair = SSEEmitterHelper.calculateTokenAndShutdown(response, params.getSseEmitter(), params.getUuid(), shutdownSse);
-                    consumer.accept(response.aiMessage().text(), pair.getLeft(), pair.getRight());
-                })
-                .onError(error -> SSEEmitterHelper.errorAndShutdown(error, params.getSseEmitter()))
-                .start();
+        //按平台限制同时进行的LLM请求数，名额在响应结束、出错或发起失败时释放（见StreamingChatRunner）
+        LLMConcurrencyLimiter.Permit permit;
+        try {
+            permit = SpringUtil.getBean(LLMConcurrencyLimiter.class).acquire(aiModel.getPlatform());
+        } catch (BaseException e) {
+            SSEEmitterHelper.errorAndShutdown(e, params.getSseEmitter());
+            return;
+        }
+        new StreamingChatRunner(params, permit, shutdownSse, consumer).start(tokenStream);
     }
 
     public String chat(SseAskParams params) {
@@ -120,32 +168,34 @@ public abstract class AbstractLLMService<T> {
         log.info("sseChat,messageId:{}", assistantChatParams.getMessageId());
 
         String response;
-        //chat with memory
-        if (StringUtils.isNotBlank(assistantChatParams.getMessageId())) {
-            ChatMemoryProvider chatMemoryProvider = memoryId -> MessageWindowChatMemory.builder()
-                    .id(memoryId)
-                    .maxMessages(6)
-                    .chatMemoryStore(MapDBChatMemoryStore.getSingleton())
-                    .build();
-            IChatAssistant assistant = AdiAiServices.builder(IChatAssistant.class, aiModel.getMaxInputTokens())
-                    .chatLanguageModel(buildChatLLM(params.getLlmBuilderProperties(), params.getUuid()))
-                    .chatMemoryProvider(chatMemoryProvider)
-                    .build();
-            if (StringUtils.isNotBlank(assistantChatParams.getSystemMessage())) {
-                response = assistant.chatWithSystem(assistantChatParams.getMessageId(), assistantChatParams.getSystemMessage(), assistantChatParams.getUserMessage(), imageContents);
-            } else {
-                response = assistant.chat(assistantChatParams.getMessageId(), assistantChatParams.getUserMessage(), imageContents);
+        try (LLMConcurrencyLimiter.Permit ignored = SpringUtil.getBean(LLMConcurrencyLimiter.class).acquire(aiModel.getPlatform())) {
+            //chat with memory
+            if (StringUtils.isNotBlank(assistantChatParams.getMessageId())) {
+                ChatMemoryProvider chatMemoryProvider = memoryId -> MessageWindowChatMemory.builder()
+                        .id(memoryId)
+                        .maxMessages(6)
+                        .chatMemoryStore(SpringUtil.getBean(ShardedChatMemoryStore.class))
+                        .build();
+                IChatAssistant assistant = AdiAiServices.builder(IChatAssistant.class, aiModel.getMaxInputTokens())
+                        .chatLanguageModel(buildChatLLM(params.getLlmBuilderProperties(), params.getUuid()))
+                        .chatMemoryProvider(chatMemoryProvider)
+                        .build();
+                if (StringUtils.isNotBlank(assistantChatParams.getSystemMessage())) {
+                    response = assistant.chatWithSystem(assistantChatParams.getMessageId(), assistantChatParams.getSystemMessage(), assistantChatParams.getUserMessage(), imageContents);
+                } else {
+                    response = assistant.chat(assistantChatParams.getMessageId(), assistantChatParams.getUserMessage(), imageContents);
+                }
             }
-        }
-        //chat without memory
-        else {
-            ITempChatAssistant assistant = AdiAiServices.builder(ITempChatAssistant.class, aiModel.getMaxInputTokens())
-                    .chatLanguageModel(buildChatLLM(params.getLlmBuilderProperties(), params.getUuid()))
-                    .build();
-            if (StringUtils.isNotBlank(assistantChatParams.getSystemMessage())) {
-                response = assistant.chatWithSystem(assistantChatParams.getSystemMessage(), assistantChatParams.getUserMessage(), imageContents);
-            } else {
-                response = assistant.chatSimple(assistantChatParams.getUserMessage(), imageContents);
+            //chat without memory
+            else {
+                ITempChatAssistant assistant = AdiAiServices.builder(ITempChatAssistant.class, aiModel.getMaxInputTokens())
+                        .chatLanguageModel(buildChatLLM(params.getLlmBuilderProperties(), params.getUuid()))
+                        .build();
+                if (StringUtils.isNotBlank(assistantChatParams.getSystemMessage())) {
+                    response = assistant.chatWithSystem(assistantChatParams.getSystemMessage(), assistantChatParams.getUserMessage(), imageContents);
+                } else {
+                    response = assistant.chatSimple(assistantChatParams.getUserMessage(), imageContents);
+                }
             }
         }
         return response;
@@ -165,17 +215,20 @@ public abstract class AbstractLLMService<T> {
         log.info("sseChat,messageId:{}", assistantChatParams.getMessageId());
 
         TokenStream tokenStream;
+        LLMBuilderProperties properties = params.getLlmBuilderProperties();
         //chat with memory
         if (StringUtils.isNotBlank(assistantChatParams.getMessageId())) {
-            ChatMemoryProvider chatMemoryProvider = memoryId -> MessageWindowChatMemory.builder()
-                    .id(memoryId)
-                    .maxMessages(6)
-                    .chatMemoryStore(MapDBChatMemoryStore.getSingleton())
-                    .build();
-            IStreamingChatAssistant assistant = AdiAiServices.builder(IStreamingChatAssistant.class, aiModel.getMaxInputTokens())
-                    .streamingChatLanguageModel(buildStreamingChatLLM(params.getLlmBuilderProperties()))
-                    .chatMemoryProvider(chatMemoryProvider)
-                    .build();
+            IStreamingChatAssistant assistant = getOrBuildAssistant(IStreamingChatAssistant.class, properties, () -> {
+                ChatMemoryProvider chatMemoryProvider = memoryId -> MessageWindowChatMemory.builder()
+                        .id(memoryId)
+                        .maxMessages(6)
+                        .chatMemoryStore(SpringUtil.getBean(ShardedChatMemoryStore.class))
+                        .build();
+                return AdiAiServices.builder(IStreamingChatAssistant.class, aiModel.getMaxInputTokens())
+                        .streamingChatLanguageModel(buildStreamingChatLLM(properties))
+                        .chatMemoryProvider(chatMemoryProvider)
+                        .build();
+            });
             if (StringUtils.isNotBlank(assistantChatParams.getSystemMessage())) {
                 tokenStream = assistant.chatWithSystem(assistantChatParams.getMessageId(), assistantChatParams.getSystemMessage(), assistantChatParams.getUserMessage(), imageContents);
             } else {
@@ -184,9 +237,11 @@ public abstract class AbstractLLMService<T> {
         }
         //chat without memory
         else {
-            ITempStreamingChatAssistant assistant = AdiAiServices.builder(ITempStreamingChatAssistant.class, aiModel.getMaxInputTokens())
-                    .streamingChatLanguageModel(buildStreamingChatLLM(params.getLlmBuilderProperties()))
-                    .build();
+            ITempStreamingChatAssistant assistant = getOrBuildAssistant(ITempStreamingChatAssistant.class, properties, () ->
+                    AdiAiServices.builder(ITempStreamingChatAssistant.class, aiModel.getMaxInputTokens())
+                            .streamingChatLanguageModel(buildStreamingChatLLM(properties))
+                            .build()
+            );
             if (StringUtils.isNotBlank(assistantChatParams.getSystemMessage())) {
                 tokenStream = assistant.chatWithSystem(assistantChatParams.getSystemMessage(), assistantChatParams.getUserMessage(), imageContents);
             } else {
@@ -195,4 +250,9 @@ public abstract class AbstractLLMService<T> {
         }
         return tokenStream;
     }
+
+    @SuppressWarnings("unchecked")
+    private <A> A getOrBuildAssistant(Class<A> assistantClass, LLMBuilderProperties properties, Supplier<A> builder) {
+        return (A) assistants.computeIfAbsent(assistantClass.getName() + ":" + cacheKey(properties), key -> builder.get());
+    }
 }
@@ -6,6 +6,7 @@ import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * <p>
@@ -20,4 +21,11 @@ public interface ConversationMapper extends BaseMapper<Conversation> {
     Integer countCreatedByTimePeriod(@Param("beginTime") LocalDateTime beginTime, @Param("endTime") LocalDateTime endTime);
 
     Integer countAllCreated();
+
+    /**
+     * 批量累加会话消耗的token数
+     *
+     * @param conversations id及需要累加的token数
+     */
+    int batchAppendTokens(@Param("conversations") List<Conversation> conversations);
 }
@@ -2,11 +2,13 @@ package com.moyz.adi.common.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.moyz.adi.common.dto.KbEmbeddingKeywordHit;
 import com.moyz.adi.common.entity.KnowledgeBaseEmbedding;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
 import java.util.List;
+import java.util.Map;
 
 @Mapper
 public interface KnowledgeBaseEmbeddingMapper extends BaseMapper<KnowledgeBaseEmbedding> {
@@ -16,4 +18,25 @@ public interface KnowledgeBaseEmbeddingMapper extends BaseMapper<KnowledgeBaseEm
     boolean deleteByItemUuid(@Param("kbItemUuid") String uuid);
 
     Integer countByKbUuid(@Param("kbUuid") String kbUuid);
+
+    /**
+     * 全文检索
+     *
+     * @param tsQuery         to_tsquery语法的查询条件，见FullTextQueryUtil
+     * @param terms           查询条件中的各个关键词
+     * @param minMatchedTerms 文本段至少命中的关键词数量
+     * @param metadataCond    元数据过滤条件
+     * @param limit           最大返回数量
+     * @return 按相关度倒序的文本段
+     */
+    List<KbEmbeddingKeywordHit> searchByKeyword(@Param("tsQuery") String tsQuery, @Param("terms") List<String> terms, @Param("minMatchedTerms") int minMatchedTerms,
+                                                @Param("metadataCond") Map<String, String> metadataCond, @Param("limit") int limit);
+
+    void createCjkBigramsFunction();
+
+    void createFtsVectorFunction();
+
+    void dropLegacyFullTextIndex();
+
+    void createFullTextIndex();
 }
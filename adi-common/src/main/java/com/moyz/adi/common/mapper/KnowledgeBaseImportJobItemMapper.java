@@ -0,0 +1,9 @@
+package com.moyz.adi.common.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.moyz.adi.common.entity.KnowledgeBaseImportJobItem;
+import org.apache.ibatis.annotations.Mapper;
+
+@Mapper
+public interface KnowledgeBaseImportJobItemMapper extends BaseMapper<KnowledgeBaseImportJobItem> {
+}
@@ -0,0 +1,17 @@
+package com.moyz.adi.common.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.moyz.adi.common.entity.KnowledgeBaseImportJob;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+@Mapper
+public interface KnowledgeBaseImportJobMapper extends BaseMapper<KnowledgeBaseImportJob> {
+
+    /**
+     * 根据任务明细重新统计成功、失败、跳过的数量及总耗时
+     *
+     * @param id 任务id
+     */
+    void updateCountsById(@Param("id") Long id);
+}
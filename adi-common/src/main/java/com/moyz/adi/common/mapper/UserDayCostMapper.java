@@ -5,9 +5,18 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.List;
+
 @Mapper
 public interface UserDayCostMapper extends BaseMapper<UserDayCost> {
     Long sumCostByDay(@Param("day") Integer day);
 
     Long sumCostByDayPeriod(@Param("beginDate") Integer beginDate, @Param("endDate") Integer endDate);
+
+    /**
+     * 批量累加消耗，记录不存在时新增
+     *
+     * @param costs 消耗增量（同一批次中 用户+日期+是否免费 不能重复）
+     */
+    int batchAppendCost(@Param("costs") List<UserDayCost> costs);
 }
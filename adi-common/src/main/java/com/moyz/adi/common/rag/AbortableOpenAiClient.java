@@ -0,0 +1,104 @@
+package com.moyz.adi.common.rag;
+
+import dev.ai4j.openai4j.*;
+import dev.ai4j.openai4j.chat.ChatCompletionRequest;
+import dev.ai4j.openai4j.chat.ChatCompletionResponse;
+
+import java.util.function.Consumer;
+
+/**
+ * 包装OpenAiClient，在发起流式请求时取得openai4j的ResponseHandle
+ * <br/>只用于替换OpenAiStreamingChatModel内部的client，该模型只调用{@link #chatCompletion(ChatCompletionRequest)}
+ * <br/>OpenAiStreamingChatModel在发起请求的调用中同步执行到execute()，所以在{@link #capture(Consumer, Runnable)}的调用范围内
+ * 发出的请求就是本次调用的请求，与调用发生在哪个线程无关
+ */
+class AbortableOpenAiClient extends OpenAiClient {
+
+    private final OpenAiClient delegate;
+
+    private final ThreadLocal<Consumer<ResponseHandle>> handleConsumer = new ThreadLocal<>();
+
+    AbortableOpenAiClient(OpenAiClient delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 执行call，其中发出的流式请求的ResponseHandle交给consumer
+     *
+     * @param consumer 接收ResponseHandle
+     * @param call     发起请求（同步执行到请求发出）
+     */
+    void capture(Consumer<ResponseHandle> consumer, Runnable call) {
+        handleConsumer.set(consumer);
+        try {
+            call.run();
+        } finally {
+            handleConsumer.remove();
+        }
+    }
+
+    @Override
+    public SyncOrAsyncOrStreaming<ChatCompletionResponse> chatCompletion(OpenAiClientContext context, ChatCompletionRequest request) {
+        SyncOrAsyncOrStreaming<ChatCompletionResponse> target = delegate.chatCompletion(context, request);
+        Consumer<ResponseHandle> consumer = handleConsumer.get();
+        if (null == consumer) {
+            return target;
+        }
+        return new SyncOrAsyncOrStreaming<>() {
+            @Override
+            public StreamingResponseHandling onPartialResponse(Consumer<ChatCompletionResponse> partialResponseHandler) {
+                StreamingResponseHandling handling = target.onPartialResponse(partialResponseHandler);
+                return new StreamingResponseHandling() {
+                    @Override
+                    public StreamingCompletionHandling onComplete(Runnable streamingCompletionCallback) {
+                        StreamingCompletionHandling completionHandling = handling.onComplete(streamingCompletionCallback);
+                        return new StreamingCompletionHandling() {
+                            @Override
+                            public ErrorHandling onError(Consumer<Throwable> errorHandler) {
+                                return captured(completionHandling.onError(errorHandler), consumer);
+                            }
+
+                            @Override
+                            public ErrorHandling ignoreErrors() {
+                                return captured(completionHandling.ignoreErrors(), consumer);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public ErrorHandling onError(Consumer<Throwable> errorHandler) {
+                        return captured(handling.onError(errorHandler), consumer);
+                    }
+
+                    @Override
+                    public ErrorHandling ignoreErrors() {
+                        return captured(handling.ignoreErrors(), consumer);
+                    }
+                };
+            }
+
+            @Override
+            public ChatCompletionResponse execute() {
+                return target.execute();
+            }
+
+            @Override
+            public AsyncResponseHandling onResponse(Consumer<ChatCompletionResponse> responseHandler) {
+                return target.onResponse(responseHandler);
+            }
+        };
+    }
+
+    private static ErrorHandling captured(ErrorHandling errorHandling, Consumer<ResponseHandle> consumer) {
+        return () -> {
+            ResponseHandle responseHandle = errorHandling.execute();
+            consumer.accept(responseHandle);
+            return responseHandle;
+        };
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+}
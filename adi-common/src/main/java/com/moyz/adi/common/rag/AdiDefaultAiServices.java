@@ -1,5 +1,7 @@
 package com.moyz.adi.common.rag;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.moyz.adi.common.util.InputAdaptor;
 import com.moyz.adi.common.util.PromptUtil;
 import dev.langchain4j.data.message.SystemMessage;
@@ -33,6 +35,7 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static dev.langchain4j.internal.Exceptions.illegalArgument;
 import static dev.langchain4j.internal.Utils.isNotNullOrBlank;
@@ -48,6 +51,8 @@ class AdiDefaultAiServices<T> extends AiServices<T> {
     private final ServiceOutputParser serviceOutputParser = new ServiceOutputParser();
     private final Collection<TokenStreamAdapter> tokenStreamAdapters = loadFactories(TokenStreamAdapter.class);
 
+    private static final int CHAT_MEMORIES_MAX_ENTRIES = 10000;
+
     private final int maxInputTokens;
 
     AdiDefaultAiServices(AiServiceContext context, int maxInputTokens) {
@@ -80,6 +85,15 @@ class AdiDefaultAiServices<T> extends AiServices<T> {
 
         performBasicValidation();
 
+        //AiService代理会被缓存复用，按memoryId保存的ChatMemory需要有上限（消息本身保存在ChatMemoryStore中）
+        if (null != context.chatMemories) {
+            Cache<Object, ChatMemory> chatMemories = CacheBuilder.newBuilder()
+                    .maximumSize(CHAT_MEMORIES_MAX_ENTRIES)
+                    .expireAfterAccess(1, TimeUnit.HOURS)
+                    .build();
+            context.chatMemories = chatMemories.asMap();
+        }
+
         for (Method method : context.aiServiceClass.getMethods()) {
             if (method.isAnnotationPresent(Moderate.class) && context.moderationModel == null) {
                 throw illegalConfiguration(
@@ -177,13 +191,16 @@ class AdiDefaultAiServices<T> extends AiServices<T> {
                         //===== aideepin end
 
                         if (streaming) {
-                            TokenStream tokenStream = new AiServiceTokenStream(
+                            //===== aideepin begin
+                            //start()前可绑定上游请求，见AdiTokenStream
+                            TokenStream tokenStream = new AdiTokenStream(
                                     messages,
                                     toolExecutionContext.toolSpecifications(),
                                     toolExecutionContext.toolExecutors(),
                                     augmentationResult != null ? augmentationResult.contents() : null,
                                     context,
                                     memoryId);
+                            //===== aideepin end
                             // TODO moderation
                             if (returnType == TokenStream.class) {
                                 return tokenStream;
@@ -17,6 +17,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 
 import java.util.*;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import static com.moyz.adi.common.enums.ErrorEnum.B_BREAK_SEARCH;
@@ -28,6 +29,7 @@ import static java.util.stream.Collectors.toList;
 /**
  * 复制dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever并做了少许改动；
  * 增加支持：缓存命中的向量以便后续记录到数据库中
+ * <br/>增加支持：设置了全文检索时进行混合检索，向量检索及全文检索的结果使用RRF(Reciprocal Rank Fusion)融合排序
  */
 @Slf4j
 public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
@@ -38,6 +40,16 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
 
     public static final String DEFAULT_DISPLAY_NAME = "Default";
 
+    /**
+     * RRF融合排序的平滑常数，score = sum(1 / (RRF_K + rank))
+     */
+    private static final int RRF_K = 60;
+
+    /**
+     * 混合检索时每一路检索召回的候选数量相对于最终返回数量的倍数
+     */
+    private static final int HYBRID_CANDIDATE_MULTIPLIER = 2;
+
     private final EmbeddingStore<TextSegment> embeddingStore;
     private final EmbeddingModel embeddingModel;
 
@@ -47,6 +59,11 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
 
     private final String displayName;
 
+    /**
+     * 全文检索，参数：查询、最大返回数量；为null时只进行向量检索
+     */
+    private final BiFunction<Query, Integer, List<EmbeddingMatch<TextSegment>>> keywordSearcher;
+
     /**
      * 新增的特性: 命中的向量及对应的分数
      */
@@ -63,7 +80,8 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
                 DEFAULT_MAX_RESULTS,
                 DEFAULT_MIN_SCORE,
                 DEFAULT_FILTER,
-                false
+                false,
+                null
         );
     }
 
@@ -77,7 +95,8 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
                 (query) -> maxResults,
                 DEFAULT_MIN_SCORE,
                 DEFAULT_FILTER,
-                false
+                false,
+                null
         );
     }
 
@@ -92,7 +111,8 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
                 (query) -> maxResults,
                 (query) -> minScore,
                 DEFAULT_FILTER,
-                false
+                false,
+                null
         );
     }
 
@@ -102,7 +122,8 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
                                               Function<Query, Integer> dynamicMaxResults,
                                               Function<Query, Double> dynamicMinScore,
                                               Function<Query, Filter> dynamicFilter,
-                                              Boolean breakIfSearchMissed) {
+                                              Boolean breakIfSearchMissed,
+                                              BiFunction<Query, Integer, List<EmbeddingMatch<TextSegment>>> keywordSearcher) {
         this.displayName = getOrDefault(displayName, DEFAULT_DISPLAY_NAME);
         this.embeddingStore = ensureNotNull(embeddingStore, "embeddingStore");
         this.embeddingModel = ensureNotNull(
@@ -113,6 +134,7 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
         this.minScoreProvider = getOrDefault(dynamicMinScore, DEFAULT_MIN_SCORE);
         this.filterProvider = getOrDefault(dynamicFilter, DEFAULT_FILTER);
         this.breakIfSearchMissed = breakIfSearchMissed;
+        this.keywordSearcher = keywordSearcher;
     }
 
     private static EmbeddingModel loadEmbeddingModel() {
@@ -144,6 +166,8 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
 
         private Boolean breakIfSearchMissed;
 
+        private BiFunction<Query, Integer, List<EmbeddingMatch<TextSegment>>> keywordSearcher;
+
         AdiEmbeddingStoreContentRetrieverBuilder() {
         }
 
@@ -203,8 +227,13 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
             return this;
         }
 
+        public AdiEmbeddingStoreContentRetrieverBuilder keywordSearcher(BiFunction<Query, Integer, List<EmbeddingMatch<TextSegment>>> keywordSearcher) {
+            this.keywordSearcher = keywordSearcher;
+            return this;
+        }
+
         public AdiEmbeddingStoreContentRetriever build() {
-            return new AdiEmbeddingStoreContentRetriever(this.displayName, this.embeddingStore, this.embeddingModel, this.dynamicMaxResults, this.dynamicMinScore, this.dynamicFilter, this.breakIfSearchMissed);
+            return new AdiEmbeddingStoreContentRetriever(this.displayName, this.embeddingStore, this.embeddingModel, this.dynamicMaxResults, this.dynamicMinScore, this.dynamicFilter, this.breakIfSearchMissed, this.keywordSearcher);
         }
 
 
@@ -226,16 +255,27 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
 
         Embedding embeddedQuery = embeddingModel.embed(query.text()).content();
 
+        int maxResults = maxResultsProvider.apply(query);
+        int candidateNum = null == keywordSearcher ? maxResults : maxResults * HYBRID_CANDIDATE_MULTIPLIER;
         EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
                 .queryEmbedding(embeddedQuery)
-                .maxResults(maxResultsProvider.apply(query))
+                .maxResults(candidateNum)
                 .minScore(minScoreProvider.apply(query))
                 .filter(filterProvider.apply(query))
                 .build();
 
         EmbeddingSearchResult<TextSegment> searchResult = embeddingStore.search(searchRequest);
+        List<EmbeddingMatch<TextSegment>> matches = searchResult.matches();
+        //判断是否要强行中断查询：以向量检索（已按minScore过滤）是否命中为准，全文检索的结果只参与排序，
+        //没有命中则不再进行下一步操作（比如说请求LLM），直接抛出异常中断流程
+        if (breakIfSearchMissed && CollectionUtils.isEmpty(matches)) {
+            throw new BaseException(B_BREAK_SEARCH);
+        }
+        if (null != keywordSearcher) {
+            matches = fuse(matches, keywordSearcher.apply(query, candidateNum), maxResults);
+        }
 
-        List<Content> result = searchResult.matches().stream()
+        List<Content> result = matches.stream()
                 .peek(item -> {
                     embeddingToScore.put(item.embeddingId(), item.score());
                     log.info("embeddingToScore,embeddingId:{},score:{}", item.embeddingId(), item.score());
@@ -243,12 +283,35 @@ public class AdiEmbeddingStoreContentRetriever implements ContentRetriever {
                 .map(EmbeddingMatch::embedded)
                 .map(Content::from)
                 .collect(toList());
+        return result;
+    }
 
-        //判断是否要强行中断查询，没有命中则不再进行下一步操作（比如说请求LLM），直接抛出异常中断流程
-        if (breakIfSearchMissed && CollectionUtils.isEmpty(result)) {
-            throw new BaseException(B_BREAK_SEARCH);
+    /**
+     * 使用RRF融合向量检索及全文检索的结果
+     * <br/>两路结果的原始评分（向量相似度、ts_rank）不可比较，返回的结果按排名计算评分：RRF评分除以两路都排第一时的评分，取值范围(0,1]
+     *
+     * @param vectorMatches  向量检索结果（按相似度倒序）
+     * @param keywordMatches 全文检索结果（按相关度倒序）
+     * @param maxResults     最大返回数量
+     * @return 按RRF评分倒序的结果
+     */
+    private List<EmbeddingMatch<TextSegment>> fuse(List<EmbeddingMatch<TextSegment>> vectorMatches, List<EmbeddingMatch<TextSegment>> keywordMatches, int maxResults) {
+        Map<String, Double> idToRrfScore = new HashMap<>();
+        Map<String, EmbeddingMatch<TextSegment>> idToMatch = new LinkedHashMap<>();
+        for (List<EmbeddingMatch<TextSegment>> matches : List.of(vectorMatches, keywordMatches)) {
+            for (int rank = 0; rank < matches.size(); rank++) {
+                EmbeddingMatch<TextSegment> match = matches.get(rank);
+                idToRrfScore.merge(match.embeddingId(), 1.0 / (RRF_K + rank + 1), Double::sum);
+                idToMatch.putIfAbsent(match.embeddingId(), match);
+            }
         }
-        return result;
+        log.info("hybrid search,vector matches:{},keyword matches:{},fused:{}", vectorMatches.size(), keywordMatches.size(), idToMatch.size());
+        double maxRrfScore = 2.0 / (RRF_K + 1);
+        return idToMatch.values().stream()
+                .sorted(Comparator.comparing((EmbeddingMatch<TextSegment> match) -> idToRrfScore.get(match.embeddingId())).reversed())
+                .limit(maxResults)
+                .map(match -> new EmbeddingMatch<>(idToRrfScore.get(match.embeddingId()) / maxRrfScore, match.embeddingId(), match.embedding(), match.embedded()))
+                .collect(toList());
     }
 
     /**
@@ -1,5 +1,6 @@
 package com.moyz.adi.common.rag;
 
+import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.util.InputAdaptor;
 import com.moyz.adi.common.vo.InputAdaptorMsg;
 import dev.langchain4j.data.message.ChatMessage;
@@ -33,6 +34,7 @@ import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static dev.langchain4j.internal.Utils.getOrDefault;
 import static dev.langchain4j.internal.ValidationUtils.ensureNotNull;
@@ -46,12 +48,20 @@ import static java.util.stream.Collectors.toMap;
 
 /**
  * 知识库召回增强器<br/>
- * 复制dev.langchain4j.rag.DefaultRetrievalAugmentor并进行少许改造
+ * 复制dev.langchain4j.rag.DefaultRetrievalAugmentor并进行少许改造<br/>
+ * 多个召回器并行召回时，每个召回器有独立的超时时间，超时或出错的召回器返回空结果，不影响其他召回器的结果
  */
 public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
 
     private static final Logger log = LoggerFactory.getLogger(AdiKnowledgeBaseRetrievalAugmentor.class);
 
+    private static final long DEFAULT_RETRIEVE_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * 未指定线程池时共用的有界线程池
+     */
+    private static volatile ExecutorService defaultExecutor;
+
     private final QueryTransformer queryTransformer;
     private final QueryRouter queryRouter;
     private final ContentAggregator contentAggregator;
@@ -61,6 +71,11 @@ public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
     private Consumer<InputAdaptorMsg> inputAdaptorMsgConsumer;
     private int maxInputTokens;
 
+    /**
+     * 单个召回器的超时时间（毫秒）
+     */
+    private final long retrieveTimeoutMillis;
+
     @Builder
     public AdiKnowledgeBaseRetrievalAugmentor(QueryTransformer queryTransformer,
                                               QueryRouter queryRouter,
@@ -69,23 +84,41 @@ public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
                                               Executor executor,
 
                                               Consumer<InputAdaptorMsg> inputAdaptorMsgConsumer,
-                                              int maxInputTokens) {
+                                              int maxInputTokens,
+                                              long retrieveTimeoutMillis) {
         this.queryTransformer = getOrDefault(queryTransformer, DefaultQueryTransformer::new);
         this.queryRouter = ensureNotNull(queryRouter, "queryRouter");
         this.contentAggregator = getOrDefault(contentAggregator, DefaultContentAggregator::new);
         this.contentInjector = getOrDefault(contentInjector, DefaultContentInjector::new);
-        this.executor = getOrDefault(executor, AdiKnowledgeBaseRetrievalAugmentor::createDefaultExecutor);
+        this.executor = getOrDefault(executor, AdiKnowledgeBaseRetrievalAugmentor::getDefaultExecutor);
 
         this.inputAdaptorMsgConsumer = inputAdaptorMsgConsumer;
         this.maxInputTokens = maxInputTokens;
+        this.retrieveTimeoutMillis = retrieveTimeoutMillis > 0 ? retrieveTimeoutMillis : DEFAULT_RETRIEVE_TIMEOUT_MILLIS;
     }
 
-    private static ExecutorService createDefaultExecutor() {
-        return new ThreadPoolExecutor(
-                0, Integer.MAX_VALUE,
-                1, SECONDS,
-                new SynchronousQueue<>()
-        );
+    private static ExecutorService getDefaultExecutor() {
+        if (null == defaultExecutor) {
+            synchronized (AdiKnowledgeBaseRetrievalAugmentor.class) {
+                if (null == defaultExecutor) {
+                    int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+                    AtomicInteger threadNum = new AtomicInteger();
+                    ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                            poolSize, poolSize,
+                            60, SECONDS,
+                            new LinkedBlockingQueue<>(256),
+                            runnable -> {
+                                Thread thread = new Thread(runnable, "kb-retrieve-default-" + threadNum.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                    );
+                    threadPoolExecutor.allowCoreThreadTimeOut(true);
+                    defaultExecutor = threadPoolExecutor;
+                }
+            }
+        }
+        return defaultExecutor;
     }
 
     /**
@@ -152,14 +185,19 @@ public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
         } else if (queries.size() > 1) {
             Map<Query, CompletableFuture<Collection<List<Content>>>> queryToFutureContents = new ConcurrentHashMap<>();
             queries.forEach(query -> {
-                CompletableFuture<Collection<List<Content>>> futureContents =
-                        supplyAsync(() -> {
-                                    Collection<ContentRetriever> retrievers = queryRouter.route(query);
-                                    log(query, retrievers);
-                                    return retrievers;
-                                },
-                                executor
-                        ).thenCompose(retrievers -> retrieveFromAll(retrievers, query));
+                CompletableFuture<Collection<List<Content>>> futureContents;
+                try {
+                    futureContents = supplyAsync(() -> {
+                                Collection<ContentRetriever> retrievers = queryRouter.route(query);
+                                log(query, retrievers);
+                                return retrievers;
+                            },
+                            executor
+                    ).thenCompose(retrievers -> retrieveFromAll(retrievers, query));
+                } catch (RejectedExecutionException e) {
+                    log.warn("Retrieval executor is busy,skip query:{}", query.text());
+                    futureContents = CompletableFuture.completedFuture(emptyList());
+                }
                 queryToFutureContents.put(query, futureContents);
             });
             return join(queryToFutureContents);
@@ -171,7 +209,7 @@ public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
     private CompletableFuture<Collection<List<Content>>> retrieveFromAll(Collection<ContentRetriever> retrievers,
                                                                          Query query) {
         List<CompletableFuture<List<Content>>> futureContents = retrievers.stream()
-                .map(retriever -> supplyAsync(() -> retrieve(retriever, query), executor))
+                .map(retriever -> retrieveWithDeadline(retriever, query))
                 .toList();
 
         return allOf(futureContents.toArray(new CompletableFuture[0]))
@@ -181,6 +219,72 @@ public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
                                 .toList());
     }
 
+    /**
+     * 异步召回，超时或出错时返回空结果（部分召回）
+     * <br/>超时后取消召回任务：尚未开始的不再执行，正在执行的中断其线程，不再继续占用线程池
+     * <br/>BaseException(如知识库严格模式下没有命中时的中断信号)需要继续往上抛
+     */
+    private CompletableFuture<List<Content>> retrieveWithDeadline(ContentRetriever retriever, Query query) {
+        InterruptibleTask task = new InterruptibleTask();
+        CompletableFuture<List<Content>> future;
+        try {
+            future = supplyAsync(() -> task.run(() -> retrieve(retriever, query)), executor);
+        } catch (RejectedExecutionException e) {
+            log.warn("Retrieval executor is busy,skip retriever:{}", retriever);
+            return CompletableFuture.completedFuture(emptyList());
+        }
+        return future
+                .orTimeout(retrieveTimeoutMillis, TimeUnit.MILLISECONDS)
+                .exceptionally(throwable -> {
+                    Throwable cause = throwable instanceof CompletionException && null != throwable.getCause() ? throwable.getCause() : throwable;
+                    if (cause instanceof BaseException baseException) {
+                        throw baseException;
+                    }
+                    if (cause instanceof TimeoutException) {
+                        task.cancel();
+                        log.warn("Retrieve timeout after {}ms,retriever:{}", retrieveTimeoutMillis, retriever);
+                    } else {
+                        log.error("Retrieve error,retriever:{}", retriever, cause);
+                    }
+                    return emptyList();
+                });
+    }
+
+    /**
+     * 可取消的召回任务，取消后未开始的任务直接返回空结果，正在执行的任务中断其所在线程
+     */
+    private static class InterruptibleTask {
+
+        private Thread worker;
+
+        private boolean cancelled;
+
+        List<Content> run(Supplier<List<Content>> supplier) {
+            synchronized (this) {
+                if (cancelled) {
+                    return emptyList();
+                }
+                worker = Thread.currentThread();
+            }
+            try {
+                return supplier.get();
+            } finally {
+                synchronized (this) {
+                    worker = null;
+                    //清除取消时设置的中断标记，避免影响该线程执行的下一个任务
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (null != worker) {
+                worker.interrupt();
+            }
+        }
+    }
+
     private static List<Content> retrieve(ContentRetriever retriever, Query query) {
         List<Content> contents = retriever.retrieve(query);
         log(query, retriever, contents);
@@ -304,6 +408,7 @@ public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
 
         private Consumer<InputAdaptorMsg> inputAdaptorMsgConsumer;
         private int maxInputTokens;
+        private long retrieveTimeoutMillis;
 
         AdiKnowledgeBaseRetrievalAugmentorBuilder() {
         }
@@ -348,12 +453,17 @@ public class AdiKnowledgeBaseRetrievalAugmentor implements RetrievalAugmentor {
             return this;
         }
 
+        public AdiKnowledgeBaseRetrievalAugmentor.AdiKnowledgeBaseRetrievalAugmentorBuilder retrieveTimeoutMillis(long retrieveTimeoutMillis) {
+            this.retrieveTimeoutMillis = retrieveTimeoutMillis;
+            return this;
+        }
+
         public AdiKnowledgeBaseRetrievalAugmentor build() {
-            return new AdiKnowledgeBaseRetrievalAugmentor(this.queryTransformer, this.queryRouter, this.contentAggregator, this.contentInjector, this.executor, this.inputAdaptorMsgConsumer, this.maxInputTokens);
+            return new AdiKnowledgeBaseRetrievalAugmentor(this.queryTransformer, this.queryRouter, this.contentAggregator, this.contentInjector, this.executor, this.inputAdaptorMsgConsumer, this.maxInputTokens, this.retrieveTimeoutMillis);
         }
 
         public String toString() {
-            return "AdiKnowledgeBaseRetrievalAugmentor.AdiKnowledgeBaseRetrievalAugmentorBuilder(queryTransformer=" + this.queryTransformer + ", queryRouter=" + this.queryRouter + ", contentAggregator=" + this.contentAggregator + ", contentInjector=" + this.contentInjector + ", executor=" + this.executor + ", inputAdaptorMsgConsumer=" + this.inputAdaptorMsgConsumer + ", maxInputTokens=" + this.maxInputTokens + ")";
+            return "AdiKnowledgeBaseRetrievalAugmentor.AdiKnowledgeBaseRetrievalAugmentorBuilder(queryTransformer=" + this.queryTransformer + ", queryRouter=" + this.queryRouter + ", contentAggregator=" + this.contentAggregator + ", contentInjector=" + this.contentInjector + ", executor=" + this.executor + ", inputAdaptorMsgConsumer=" + this.inputAdaptorMsgConsumer + ", maxInputTokens=" + this.maxInputTokens + ", retrieveTimeoutMillis=" + this.retrieveTimeoutMillis + ")";
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.moyz.adi.common.rag;
+
+import com.moyz.adi.common.helper.StreamCancellation;
+import dev.ai4j.openai4j.OpenAiClient;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.chat.listener.ChatModelListener;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 兼容OpenAi接口的流式模型，在OpenAiStreamingChatModel的基础上支持中止请求
+ * <br/>请求参数、日志、自定义请求头等仍由OpenAiStreamingChatModel处理；其内部的OpenAiClient被替换为{@link AbortableOpenAiClient}，
+ * 发起请求时取得ResponseHandle并登记到调用方传入的上游请求（{@link StreamCancellation.Upstream}）中，
+ * 请求被取消时调用ResponseHandle.cancel()，openai4j在收到下一个事件时关闭与模型服务之间的连接，之后不再回调完成或出错
+ * <br/>替换失败（如依赖升级后字段变化）时退化为不可中止的请求
+ */
+@Slf4j
+public class AdiOpenAiStreamingChatModel implements StreamingChatLanguageModel {
+
+    private final OpenAiStreamingChatModel delegate;
+
+    private final AbortableOpenAiClient client;
+
+    public AdiOpenAiStreamingChatModel(OpenAiStreamingChatModel delegate) {
+        this.delegate = delegate;
+        this.client = replaceClient(delegate);
+    }
+
+    @Override
+    public void chat(ChatRequest chatRequest, StreamingChatResponseHandler handler) {
+        delegate.chat(chatRequest, handler);
+    }
+
+    /**
+     * 发起请求并把取消句柄登记到上游请求中
+     *
+     * @param chatRequest 请求
+     * @param handler     响应回调
+     * @param upstream    上游请求
+     */
+    public void chat(ChatRequest chatRequest, StreamingChatResponseHandler handler, StreamCancellation.Upstream upstream) {
+        if (null == client) {
+            delegate.chat(chatRequest, handler);
+            return;
+        }
+        client.capture(responseHandle -> upstream.attachAbort(responseHandle::cancel), () -> delegate.chat(chatRequest, handler));
+    }
+
+    @Override
+    public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+        delegate.generate(messages, handler);
+    }
+
+    @Override
+    public ChatRequestParameters defaultRequestParameters() {
+        return delegate.defaultRequestParameters();
+    }
+
+    @Override
+    public List<ChatModelListener> listeners() {
+        return delegate.listeners();
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return delegate.supportedCapabilities();
+    }
+
+    private static AbortableOpenAiClient replaceClient(OpenAiStreamingChatModel model) {
+        try {
+            Field field = OpenAiStreamingChatModel.class.getDeclaredField("client");
+            field.setAccessible(true);
+            AbortableOpenAiClient client = new AbortableOpenAiClient((OpenAiClient) field.get(model));
+            field.set(model, client);
+            return client;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Can not replace the client of OpenAiStreamingChatModel,streaming requests can not be aborted", e);
+            return null;
+        }
+    }
+}
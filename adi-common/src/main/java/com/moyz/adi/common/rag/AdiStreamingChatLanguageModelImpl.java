@@ -0,0 +1,103 @@
+package com.moyz.adi.common.rag;
+
+import com.moyz.adi.common.helper.StreamCancellation;
+import com.moyz.adi.common.util.InputAdaptor;
+import dev.langchain4j.data.message.*;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.chat.listener.ChatModelListener;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 组合StreamingChatLanguageModel以提供更多功能
+ * <br/>共享的实例只转发请求；通过{@link #withUpstream(StreamCancellation.Upstream)}得到绑定了一次上游请求的实例，
+ * 发起请求时记录prompt的token数（请求被取消、模型没有返回用量时据此计费），支持中止的模型登记取消句柄
+ */
+public class AdiStreamingChatLanguageModelImpl implements StreamingChatLanguageModel {
+
+    private final StreamingChatLanguageModel streamingChatLanguageModel;
+
+    private final StreamCancellation.Upstream upstream;
+
+    public AdiStreamingChatLanguageModelImpl(StreamingChatLanguageModel streamingChatLanguageModel) {
+        this(streamingChatLanguageModel, null);
+    }
+
+    private AdiStreamingChatLanguageModelImpl(StreamingChatLanguageModel streamingChatLanguageModel, StreamCancellation.Upstream upstream) {
+        this.streamingChatLanguageModel = streamingChatLanguageModel;
+        this.upstream = upstream;
+    }
+
+    /**
+     * 绑定一次上游请求，返回新的实例，通过该实例发起的请求（包括工具调用后在模型客户端线程中发起的后续请求）都登记到该上游请求
+     *
+     * @param upstream 上游请求
+     * @return 绑定了上游请求的实例
+     */
+    public AdiStreamingChatLanguageModelImpl withUpstream(StreamCancellation.Upstream upstream) {
+        return new AdiStreamingChatLanguageModelImpl(streamingChatLanguageModel, upstream);
+    }
+
+    @Override
+    public void chat(ChatRequest chatRequest, StreamingChatResponseHandler handler) {
+        if (null == upstream) {
+            streamingChatLanguageModel.chat(chatRequest, handler);
+            return;
+        }
+        recordPromptTokens(chatRequest.messages());
+        if (streamingChatLanguageModel instanceof AdiOpenAiStreamingChatModel abortableModel) {
+            abortableModel.chat(chatRequest, handler, upstream);
+        } else {
+            streamingChatLanguageModel.chat(chatRequest, handler);
+        }
+    }
+
+    @Override
+    public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+        if (null != upstream) {
+            recordPromptTokens(messages);
+        }
+        streamingChatLanguageModel.generate(messages, handler);
+    }
+
+    @Override
+    public ChatRequestParameters defaultRequestParameters() {
+        return streamingChatLanguageModel.defaultRequestParameters();
+    }
+
+    @Override
+    public List<ChatModelListener> listeners() {
+        return streamingChatLanguageModel.listeners();
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return streamingChatLanguageModel.supportedCapabilities();
+    }
+
+    private void recordPromptTokens(List<ChatMessage> messages) {
+        int tokens = 0;
+        for (ChatMessage message : messages) {
+            if (message instanceof UserMessage userMessage) {
+                for (Content content : userMessage.contents()) {
+                    if (content instanceof TextContent textContent) {
+                        tokens += InputAdaptor.countTokens(textContent.text());
+                    }
+                }
+            } else if (message instanceof SystemMessage systemMessage) {
+                tokens += InputAdaptor.countTokens(systemMessage.text());
+            } else if (message instanceof AiMessage aiMessage) {
+                tokens += InputAdaptor.countTokens(aiMessage.text());
+            } else if (message instanceof ToolExecutionResultMessage resultMessage) {
+                tokens += InputAdaptor.countTokens(resultMessage.text());
+            }
+        }
+        upstream.setPromptTokens(tokens);
+    }
+}
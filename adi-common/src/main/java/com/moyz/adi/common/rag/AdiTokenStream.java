@@ -0,0 +1,181 @@
+package com.moyz.adi.common.rag;
+
+import com.moyz.adi.common.helper.StreamCancellation;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.service.AiServiceContext;
+import dev.langchain4j.service.AiServiceTokenStream;
+import dev.langchain4j.service.TokenStream;
+import dev.langchain4j.service.tool.ToolExecution;
+import dev.langchain4j.service.tool.ToolExecutor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 可绑定上游请求的TokenStream
+ * <br/>AiService代理是共享的，模型实例也是共享的；调用{@link #upstream(StreamCancellation.Upstream)}后，
+ * start()时把模型替换为绑定了该上游请求的实例（见{@link AdiStreamingChatLanguageModelImpl#withUpstream(StreamCancellation.Upstream)}），
+ * 再交给AiServiceTokenStream执行，工具调用后在模型客户端线程中发起的后续请求同样使用该实例
+ */
+public class AdiTokenStream implements TokenStream {
+
+    private final List<ChatMessage> messages;
+
+    private final List<ToolSpecification> toolSpecifications;
+
+    private final Map<String, ToolExecutor> toolExecutors;
+
+    private final List<Content> retrievedContents;
+
+    private final AiServiceContext context;
+
+    private final Object memoryId;
+
+    private StreamCancellation.Upstream upstream;
+
+    private Consumer<String> partialResponseHandler;
+
+    private Consumer<String> nextHandler;
+
+    private Consumer<List<Content>> contentsHandler;
+
+    private Consumer<ToolExecution> toolExecutionHandler;
+
+    private Consumer<ChatResponse> completeResponseHandler;
+
+    private Consumer<Response<AiMessage>> completionHandler;
+
+    private Consumer<Throwable> errorHandler;
+
+    private boolean ignoreErrors;
+
+    public AdiTokenStream(List<ChatMessage> messages,
+                          List<ToolSpecification> toolSpecifications,
+                          Map<String, ToolExecutor> toolExecutors,
+                          List<Content> retrievedContents,
+                          AiServiceContext context,
+                          Object memoryId) {
+        this.messages = messages;
+        this.toolSpecifications = toolSpecifications;
+        this.toolExecutors = toolExecutors;
+        this.retrievedContents = retrievedContents;
+        this.context = context;
+        this.memoryId = memoryId;
+    }
+
+    /**
+     * 绑定上游请求，需在start()之前调用
+     *
+     * @param upstream 上游请求
+     * @return this
+     */
+    public AdiTokenStream upstream(StreamCancellation.Upstream upstream) {
+        this.upstream = upstream;
+        return this;
+    }
+
+    @Override
+    public TokenStream onPartialResponse(Consumer<String> partialResponseHandler) {
+        this.partialResponseHandler = partialResponseHandler;
+        return this;
+    }
+
+    @Override
+    public TokenStream onNext(Consumer<String> tokenHandler) {
+        this.nextHandler = tokenHandler;
+        return this;
+    }
+
+    @Override
+    public TokenStream onRetrieved(Consumer<List<Content>> contentsHandler) {
+        this.contentsHandler = contentsHandler;
+        return this;
+    }
+
+    @Override
+    public TokenStream onToolExecuted(Consumer<ToolExecution> toolExecutionHandler) {
+        this.toolExecutionHandler = toolExecutionHandler;
+        return this;
+    }
+
+    @Override
+    public TokenStream onCompleteResponse(Consumer<ChatResponse> completeResponseHandler) {
+        this.completeResponseHandler = completeResponseHandler;
+        return this;
+    }
+
+    @Override
+    public TokenStream onComplete(Consumer<Response<AiMessage>> completionHandler) {
+        this.completionHandler = completionHandler;
+        return this;
+    }
+
+    @Override
+    public TokenStream onError(Consumer<Throwable> errorHandler) {
+        this.errorHandler = errorHandler;
+        return this;
+    }
+
+    @Override
+    public TokenStream ignoreErrors() {
+        this.ignoreErrors = true;
+        return this;
+    }
+
+    @Override
+    public void start() {
+        AiServiceContext streamContext = context;
+        if (null != upstream && context.streamingChatModel instanceof AdiStreamingChatLanguageModelImpl model) {
+            streamContext = copyContext(context);
+            streamContext.streamingChatModel = model.withUpstream(upstream);
+        }
+        TokenStream tokenStream = new AiServiceTokenStream(messages, toolSpecifications, toolExecutors, retrievedContents, streamContext, memoryId);
+        if (null != partialResponseHandler) {
+            tokenStream.onPartialResponse(partialResponseHandler);
+        }
+        if (null != nextHandler) {
+            tokenStream.onNext(nextHandler);
+        }
+        if (null != contentsHandler) {
+            tokenStream.onRetrieved(contentsHandler);
+        }
+        if (null != toolExecutionHandler) {
+            tokenStream.onToolExecuted(toolExecutionHandler);
+        }
+        if (null != completeResponseHandler) {
+            tokenStream.onCompleteResponse(completeResponseHandler);
+        }
+        if (null != completionHandler) {
+            tokenStream.onComplete(completionHandler);
+        }
+        if (null != errorHandler) {
+            tokenStream.onError(errorHandler);
+        }
+        if (ignoreErrors) {
+            tokenStream.ignoreErrors();
+        }
+        tokenStream.start();
+    }
+
+    /**
+     * 复制AiService的上下文，对话记忆等与原上下文共用
+     */
+    private static AiServiceContext copyContext(AiServiceContext context) {
+        AiServiceContext copy = new AiServiceContext(context.aiServiceClass);
+        copy.chatModel = context.chatModel;
+        copy.streamingChatModel = context.streamingChatModel;
+        copy.chatMemories = context.chatMemories;
+        copy.chatMemoryProvider = context.chatMemoryProvider;
+        copy.toolService = context.toolService;
+        copy.moderationModel = context.moderationModel;
+        copy.retrievalAugmentor = context.retrievalAugmentor;
+        copy.systemMessageProvider = context.systemMessageProvider;
+        return copy;
+    }
+}
@@ -4,21 +4,27 @@ import com.google.common.base.Joiner;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.util.GraphStoreUtil;
 import com.moyz.adi.common.util.JsonUtil;
+import com.moyz.adi.common.util.MD5Utils;
 import com.moyz.adi.common.vo.*;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import dev.langchain4j.store.embedding.filter.Filter;
 import lombok.Builder;
 import org.apache.age.jdbc.base.Agtype;
 import org.apache.age.jdbc.base.type.AgtypeMap;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.postgresql.jdbc.PgConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.moyz.adi.common.enums.ErrorEnum.B_DB_ERROR;
 import static dev.langchain4j.internal.Utils.getOrDefault;
@@ -32,13 +38,38 @@ public class ApacheAgeGraphStore {
     private static final String VAR_PREFIX_1 = "filter1";
     private static final String VAR_PREFIX_2 = "filter2";
     private static final String VAR_PREFIX_3 = "filter3";
-    private final String host;
-    private final Integer port;
-    private final String user;
-    private final String password;
-    private final String database;
+    private static final int DEFAULT_BATCH_SIZE = 200;
+    private static final int DEFAULT_MAX_POOL_SIZE = 10;
+    /**
+     * 边的标签，与顶点标签同名时顶点无法写入
+     */
+    private static final String EDGE_LABEL = "RELTYPE";
+    /**
+     * 未指定标签的顶点在Apache AGE中的默认标签
+     */
+    private static final String DEFAULT_VERTEX_LABEL = "_ag_label_vertex";
+    /**
+     * 标签即PostgreSQL的表名，超过63个字节会被截断
+     */
+    private static final int MAX_LABEL_BYTES = 63;
     private final String graph;
 
+    /**
+     * 图数据库专用连接池，连接创建时执行一次Apache AGE的会话初始化（LOAD 'age'及search_path），
+     * 不与业务数据源共用，避免修改后的search_path影响其他查询
+     */
+    private final HikariDataSource dataSource;
+
+    /**
+     * 批量写入时每条Cypher语句处理的最大记录数
+     */
+    private final int batchSize;
+
+    /**
+     * 已建立properties索引的标签
+     */
+    private final Set<String> indexedLabels = ConcurrentHashMap.newKeySet();
+
     @Builder
     public ApacheAgeGraphStore(String host,
                                Integer port,
@@ -47,13 +78,23 @@ public class ApacheAgeGraphStore {
                                String database,
                                String graphName,
                                Boolean createGraph,
-                               Boolean dropGraphFirst) {
-        this.host = ensureNotBlank(host, "host");
-        this.port = ensureGreaterThanZero(port, "port");
-        this.user = ensureNotBlank(user, "user");
-        this.password = ensureNotBlank(password, "password");
-        this.database = ensureNotBlank(database, "database");
+                               Boolean dropGraphFirst,
+                               Integer batchSize,
+                               Integer maxPoolSize) {
         this.graph = ensureNotBlank(graphName, "graph");
+        this.batchSize = ensureGreaterThanZero(getOrDefault(batchSize, DEFAULT_BATCH_SIZE), "batchSize");
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("ApacheAgePool-" + graph);
+        config.setJdbcUrl(String.format("jdbc:postgresql://%s:%s/%s", ensureNotBlank(host, "host"), ensureGreaterThanZero(port, "port"), ensureNotBlank(database, "database")));
+        config.setUsername(ensureNotBlank(user, "user"));
+        config.setPassword(ensureNotBlank(password, "password"));
+        config.setMaximumPoolSize(ensureGreaterThanZero(getOrDefault(maxPoolSize, DEFAULT_MAX_POOL_SIZE), "maxPoolSize"));
+        config.setConnectionInitSql("LOAD 'age'; SET search_path = ag_catalog, \"$user\", public;");
+        //重复出现的Cypher语句在同一物理连接上直接复用服务端的prepared statement
+        config.addDataSourceProperty("prepareThreshold", 1);
+        config.addDataSourceProperty("preparedStatementCacheQueries", 256);
+        this.dataSource = new HikariDataSource(config);
 
         createGraph = getOrDefault(createGraph, true);
         dropGraphFirst = getOrDefault(dropGraphFirst, false);
@@ -69,8 +110,19 @@ public class ApacheAgeGraphStore {
                     stmt.execute(String.format("SELECT * FROM ag_catalog.create_graph('%s')", graph));
                 }
             }
+            //已存在的标签（含默认标签）补建索引
+            List<String> labels = new ArrayList<>();
+            try (ResultSet resultSet = stmt.executeQuery(String.format("SELECT l.name FROM ag_catalog.ag_label l JOIN ag_catalog.ag_graph g ON l.graph = g.graphid WHERE g.name = '%s'", graph))) {
+                while (resultSet.next()) {
+                    labels.add(resultSet.getString(1));
+                }
+            }
+            for (String label : labels) {
+                ensurePropertiesIndex(connection, label);
+            }
         } catch (SQLException e) {
             log.error("ApacheAgeGraphStore init error", e);
+            dataSource.close();
             throw new BaseException(B_DB_ERROR);
         }
     }
@@ -359,6 +411,356 @@ public class ApacheAgeGraphStore {
         }
     }
 
+    /**
+     * 根据名称批量查询顶点，一次查询返回所有命中的顶点
+     *
+     * @param names          顶点名称
+     * @param metadataFilter metadata过滤条件
+     * @return 命中的顶点
+     */
+    public List<GraphVertex> searchVerticesByNames(Collection<String> names, Filter metadataFilter) {
+        if (CollectionUtils.isEmpty(names)) {
+            return Collections.emptyList();
+        }
+        try (Connection connection = setupConnection()) {
+            String metadataClause = GraphStoreUtil.buildWhereClause(GraphSearchCondition.builder().metadataFilter(metadataFilter).build(), "v", VAR_PREFIX_DEFAULT);
+            //以属性的形式匹配名称，可以使用properties上的gin索引
+            String query = """
+                    select * from cypher('%s', $$
+                        unwind $names as n
+                        match (v {name:n})
+                        %s
+                        return v
+                    $$,?) as (v agtype);
+                    """.formatted(graph, StringUtils.isNotBlank(metadataClause) ? "where " + metadataClause : "");
+            log.info("searchVerticesByNames prepareSql:{}", query);
+            List<GraphVertex> result = new ArrayList<>();
+            try (PreparedStatement selectStmt = connection.prepareStatement(query)) {
+                for (List<String> partition : ListUtils.partition(new ArrayList<>(names), batchSize)) {
+                    Agtype agtype = new Agtype();
+                    agtype.setValue(JsonUtil.toJson(Map.of("names", partition)));
+                    selectStmt.setObject(1, agtype);
+                    try (ResultSet resultSet = selectStmt.executeQuery()) {
+                        result.addAll(getVerticesFromResultSet(resultSet));
+                    }
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            log.error("searchVerticesByNames error", e);
+            throw new BaseException(B_DB_ERROR);
+        }
+    }
+
+    /**
+     * 查询顶点名称（去重）
+     *
+     * @param metadataFilter metadata过滤条件
+     * @param limit          最大返回数量
+     * @return 顶点名称
+     */
+    public List<String> listVertexNames(Filter metadataFilter, int limit) {
+        try (Connection connection = setupConnection()) {
+            String metadataClause = GraphStoreUtil.buildWhereClause(GraphSearchCondition.builder().metadataFilter(metadataFilter).build(), "v", VAR_PREFIX_DEFAULT);
+            String query = """
+                    select * from cypher('%s', $$
+                        match (v)
+                        %s
+                        return distinct v.name
+                        limit %d
+                    $$) as (name agtype);
+                    """.formatted(graph, StringUtils.isNotBlank(metadataClause) ? "where " + metadataClause : "", limit);
+            log.info("listVertexNames prepareSql:{}", query);
+            List<String> result = new ArrayList<>();
+            try (PreparedStatement selectStmt = connection.prepareStatement(query);
+                 ResultSet resultSet = selectStmt.executeQuery()) {
+                while (resultSet.next()) {
+                    Agtype name = resultSet.getObject(1, Agtype.class);
+                    if (null != name) {
+                        result.add(name.getString());
+                    }
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            log.error("listVertexNames error", e);
+            throw new BaseException(B_DB_ERROR);
+        }
+    }
+
+    /**
+     * 批量新增顶点，同一标签的顶点通过 UNWIND 一次写入
+     * <br/>标签先经过{@link #toLabel(String)}规范化，某个标签的顶点写入失败时（如标签与AGE的保留名称冲突）改为不带标签写入，不影响其他顶点
+     *
+     * @param vertices 新顶点
+     */
+    public void addVerticesInBatch(List<GraphVertex> vertices) {
+        if (CollectionUtils.isEmpty(vertices)) {
+            return;
+        }
+        //Apache AGE的标签不能作为参数传入，只能按标签分组后拼接到语句中
+        Map<String, List<GraphVertex>> labelToVertices = new LinkedHashMap<>();
+        for (GraphVertex vertex : vertices) {
+            ensureNotEmpty(vertex.getMetadata(), "Metadata");
+            labelToVertices.computeIfAbsent(toLabel(vertex.getLabel()), k -> new ArrayList<>()).add(vertex);
+        }
+        try (Connection connection = setupConnection()) {
+            for (Map.Entry<String, List<GraphVertex>> entry : labelToVertices.entrySet()) {
+                String label = entry.getKey();
+                try {
+                    executeInBatch(connection, buildAddVerticesSql(label), entry.getValue());
+                } catch (SQLException e) {
+                    if (StringUtils.isBlank(label)) {
+                        throw e;
+                    }
+                    log.warn("Add vertices with label fail,fall back to no label,label:{},size:{},error:{}", label, entry.getValue().size(), e.getMessage());
+                    label = "";
+                    executeInBatch(connection, buildAddVerticesSql(label), entry.getValue());
+                }
+                ensurePropertiesIndex(connection, StringUtils.defaultIfBlank(label, DEFAULT_VERTEX_LABEL));
+            }
+        } catch (SQLException e) {
+            log.error("addVerticesInBatch error", e);
+            throw new BaseException(B_DB_ERROR);
+        }
+    }
+
+    private String buildAddVerticesSql(String label) {
+        String prepareSql = """
+                select * from cypher('%s', $$
+                    unwind $rows as x
+                    create (%s {name:x.name,textSegmentId:x.textSegmentId,description:x.description,metadata:x.metadata})
+                $$, ?) as (a agtype);
+                """.formatted(graph, labelPattern(label));
+        log.info("addVerticesInBatch prepareSql:{}", prepareSql);
+        return prepareSql;
+    }
+
+    /**
+     * 根据顶点id批量更新textSegmentId、description及metadata
+     * <br/>按标签分组，通过标签及名称（properties上有gin索引）定位顶点后再比较id，避免每一行都扫描所有顶点
+     *
+     * @param vertices 需要更新的顶点，id、name不能为空，label为顶点当前的标签
+     */
+    public void updateVerticesInBatch(List<GraphVertex> vertices) {
+        if (CollectionUtils.isEmpty(vertices)) {
+            return;
+        }
+        Map<String, List<GraphVertex>> labelToVertices = new LinkedHashMap<>();
+        for (GraphVertex vertex : vertices) {
+            ensureNotNull(vertex.getId(), "Vertex id");
+            ensureNotBlank(vertex.getName(), "Vertex name");
+            labelToVertices.computeIfAbsent(toLabel(vertex.getLabel()), k -> new ArrayList<>()).add(vertex);
+        }
+        try (Connection connection = setupConnection()) {
+            for (Map.Entry<String, List<GraphVertex>> entry : labelToVertices.entrySet()) {
+                String prepareSql = """
+                        select * from cypher('%s', $$
+                            unwind $rows as x
+                            match (v%s {name:x.name})
+                            where id(v) = x.id
+                            set v.textSegmentId=x.textSegmentId,v.description=x.description,v.metadata=x.metadata
+                        $$, ?) as (a agtype);
+                        """.formatted(graph, labelPattern(entry.getKey()));
+                log.info("updateVerticesInBatch prepareSql:{},size:{}", prepareSql, entry.getValue().size());
+                executeInBatch(connection, prepareSql, entry.getValue());
+            }
+        } catch (SQLException e) {
+            log.error("updateVerticesInBatch error", e);
+            throw new BaseException(B_DB_ERROR);
+        }
+    }
+
+    /**
+     * 根据起点及终点id批量查询边
+     *
+     * @param vertexIdPairs 起点id及终点id
+     * @return 命中的边
+     */
+    public List<GraphEdge> searchEdgesByVertexIds(Collection<Pair<Long, Long>> vertexIdPairs) {
+        if (CollectionUtils.isEmpty(vertexIdPairs)) {
+            return Collections.emptyList();
+        }
+        try (Connection connection = setupConnection()) {
+            String query = """
+                    select * from cypher('%s', $$
+                        match (v1)-[e]->(v2)
+                        where id(v1) in $start_ids and id(v2) in $end_ids
+                        return e
+                    $$,?) as (e agtype);
+                    """.formatted(graph);
+            log.info("searchEdgesByVertexIds prepareSql:{}", query);
+            List<GraphEdge> result = new ArrayList<>();
+            try (PreparedStatement selectStmt = connection.prepareStatement(query)) {
+                for (List<Pair<Long, Long>> partition : ListUtils.partition(new ArrayList<>(vertexIdPairs), batchSize)) {
+                    Agtype agtype = new Agtype();
+                    agtype.setValue(JsonUtil.toJson(Map.of(
+                            "start_ids", partition.stream().map(Pair::getLeft).distinct().toList(),
+                            "end_ids", partition.stream().map(Pair::getRight).distinct().toList()
+                    )));
+                    selectStmt.setObject(1, agtype);
+                    try (ResultSet resultSet = selectStmt.executeQuery()) {
+                        while (resultSet.next()) {
+                            GraphEdge edge = agTypeToEdge(resultSet.getObject(1, Agtype.class));
+                            //in查询得到的是笛卡尔积，只保留精确匹配的起点终点对
+                            if (vertexIdPairs.contains(Pair.of(edge.getStartId(), edge.getEndId()))) {
+                                result.add(edge);
+                            }
+                        }
+                    }
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            log.error("searchEdgesByVertexIds error", e);
+            throw new BaseException(B_DB_ERROR);
+        }
+    }
+
+    /**
+     * 批量新增边，起点及终点通过startId、endId指定，并通过sourceName、targetName（properties上有gin索引）定位
+     *
+     * @param edges 新边
+     */
+    public void addEdgesInBatch(List<GraphEdge> edges) {
+        if (CollectionUtils.isEmpty(edges)) {
+            return;
+        }
+        edges.forEach(edge -> {
+            ensureNotNull(edge.getStartId(), "Edge start id");
+            ensureNotNull(edge.getEndId(), "Edge end id");
+            ensureNotBlank(edge.getSourceName(), "Edge source name");
+            ensureNotBlank(edge.getTargetName(), "Edge target name");
+        });
+        try (Connection connection = setupConnection()) {
+            String prepareSql = """
+                    select * from cypher('%s', $$
+                        unwind $rows as x
+                        match (v1 {name:x.sourceName}), (v2 {name:x.targetName})
+                        where id(v1) = x.startId and id(v2) = x.endId
+                        create (v1)-[e:%s {textSegmentId:x.textSegmentId,weight:x.weight,description:x.description,metadata:x.metadata}]->(v2)
+                    $$, ?) as (a agtype);
+                    """.formatted(graph, EDGE_LABEL);
+            log.info("addEdgesInBatch prepareSql:{},size:{}", prepareSql, edges.size());
+            executeInBatch(connection, prepareSql, edges);
+            ensurePropertiesIndex(connection, EDGE_LABEL);
+        } catch (SQLException e) {
+            log.error("addEdgesInBatch error", e);
+            throw new BaseException(B_DB_ERROR);
+        }
+    }
+
+    /**
+     * 根据边id批量更新weight、textSegmentId、description及metadata，通过起点终点的名称定位
+     *
+     * @param edges 需要更新的边，id、sourceName、targetName不能为空
+     */
+    public void updateEdgesInBatch(List<GraphEdge> edges) {
+        if (CollectionUtils.isEmpty(edges)) {
+            return;
+        }
+        edges.forEach(edge -> {
+            ensureNotNull(edge.getId(), "Edge id");
+            ensureNotBlank(edge.getSourceName(), "Edge source name");
+            ensureNotBlank(edge.getTargetName(), "Edge target name");
+        });
+        try (Connection connection = setupConnection()) {
+            String prepareSql = """
+                    select * from cypher('%s', $$
+                        unwind $rows as x
+                        match (v1 {name:x.sourceName})-[e:%s]->(v2 {name:x.targetName})
+                        where id(e) = x.id
+                        set e.weight=x.weight,e.textSegmentId=x.textSegmentId,e.description=x.description,e.metadata=x.metadata
+                    $$, ?) as (a agtype);
+                    """.formatted(graph, EDGE_LABEL);
+            log.info("updateEdgesInBatch prepareSql:{},size:{}", prepareSql, edges.size());
+            executeInBatch(connection, prepareSql, edges);
+        } catch (SQLException e) {
+            log.error("updateEdgesInBatch error", e);
+            throw new BaseException(B_DB_ERROR);
+        }
+    }
+
+    /**
+     * 将数据按batchSize分批，每批作为 $rows 参数执行一次语句，所有批次在同一个事务中提交
+     */
+    private void executeInBatch(Connection connection, String prepareSql, List<?> rows) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement stmt = connection.prepareStatement(prepareSql)) {
+            for (List<?> partition : ListUtils.partition(rows, batchSize)) {
+                Agtype agtype = new Agtype();
+                agtype.setValue(JsonUtil.toJson(Map.of("rows", partition)));
+                stmt.setObject(1, agtype);
+                stmt.execute();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * 顶点标签的规范形式：只保留字母、数字及下划线（空白替换为下划线），去掉开头的下划线，长度不超过63个字节
+     * <br/>无标签、AGE的默认标签或与边的标签同名时返回空字符串，表示不带标签
+     *
+     * @param entityType 实体类型或顶点标签
+     * @return 标签
+     */
+    public static String toLabel(String entityType) {
+        if (StringUtils.isBlank(entityType) || DEFAULT_VERTEX_LABEL.equals(entityType)) {
+            return "";
+        }
+        StringBuilder label = new StringBuilder();
+        int bytes = 0;
+        for (int codePoint : entityType.trim().replaceAll("\\s+", "_").codePoints().toArray()) {
+            if (!Character.isLetterOrDigit(codePoint) && codePoint != '_') {
+                continue;
+            }
+            if (label.isEmpty() && codePoint == '_') {
+                continue;
+            }
+            int length = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8).length;
+            if (bytes + length > MAX_LABEL_BYTES) {
+                break;
+            }
+            label.appendCodePoint(codePoint);
+            bytes += length;
+        }
+        if (EDGE_LABEL.equalsIgnoreCase(label.toString())) {
+            return "";
+        }
+        return label.toString();
+    }
+
+    /**
+     * 标签用反引号括起来，避免与Cypher关键字冲突（如ORDER、MATCH）
+     */
+    private static String labelPattern(String label) {
+        return StringUtils.isBlank(label) ? "" : ":`" + label + "`";
+    }
+
+    /**
+     * 在标签对应的表上建立properties的gin索引，按属性匹配顶点或边（如 {name:x.name}）时使用
+     * <br/>建立失败不影响写入，只记录日志
+     */
+    private void ensurePropertiesIndex(Connection connection, String label) {
+        if (indexedLabels.contains(label)) {
+            return;
+        }
+        String sql = String.format("CREATE INDEX IF NOT EXISTS \"idx_%s_properties\" ON \"%s\".\"%s\" USING gin (properties)",
+                MD5Utils.generateMD5(label).substring(0, 16), graph, label);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+            indexedLabels.add(label);
+        } catch (SQLException e) {
+            log.warn("Create properties index fail,label:{},error:{}", label, e.getMessage());
+        }
+    }
+
     /**
      * 删除顶点(以及边)
      *
@@ -508,18 +910,22 @@ public class ApacheAgeGraphStore {
                 .build();
     }
 
-    @SuppressWarnings("java:S2095")
+    /**
+     * 从连接池中获取连接，使用完毕后调用close归还
+     */
     private Connection setupConnection() throws SQLException {
-        PgConnection connection = DriverManager.getConnection(
-                String.format("jdbc:postgresql://%s:%s/%s", host, port, database),
-                user,
-                password
-        ).unwrap(PgConnection.class);
-        try (Statement stmt = connection.createStatement()) {
-            connection.addDataType("agtype", Agtype.class);
-            stmt.execute("LOAD 'age'");
-            stmt.execute("SET search_path = ag_catalog, \"$user\", public;");
+        Connection connection = dataSource.getConnection();
+        try {
+            //类型映射是驱动层的本地注册，不产生数据库交互
+            connection.unwrap(PgConnection.class).addDataType("agtype", Agtype.class);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
         }
         return connection;
     }
+
+    public void close() {
+        dataSource.close();
+    }
 }
@@ -0,0 +1,159 @@
+package com.moyz.adi.common.rag;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static dev.langchain4j.internal.ValidationUtils.ensureGreaterThanZero;
+import static dev.langchain4j.internal.ValidationUtils.ensureNotNull;
+
+/**
+ * 多线程、微批处理的本地向量模型
+ * <br/>各索引任务提交的文本段统一进入一个有界队列，由多个工作线程每次从队列中取出至多{batchSize}个文本段进行向量化，
+ * 不同任务的文本段可以合并到同一批次中；队列满时提交方阻塞等待（背压）
+ */
+@Slf4j
+public class BatchingEmbeddingModel implements EmbeddingModel {
+
+    private final EmbeddingModel delegate;
+
+    private final int batchSize;
+
+    private final BlockingQueue<PendingSegment> queue;
+
+    private final ExecutorService workers;
+
+    private volatile boolean running = true;
+
+    private final LongAdder embeddedSegments = new LongAdder();
+
+    private final LongAdder embeddedBatches = new LongAdder();
+
+    /**
+     * @param delegate      实际执行向量化的模型（在工作线程中同步调用）
+     * @param workerThreads 工作线程数
+     * @param batchSize     每批最多处理的文本段数量
+     * @param queueCapacity 等待向量化的文本段队列长度
+     */
+    public BatchingEmbeddingModel(EmbeddingModel delegate, int workerThreads, int batchSize, int queueCapacity) {
+        this.delegate = ensureNotNull(delegate, "delegate");
+        this.batchSize = ensureGreaterThanZero(batchSize, "batchSize");
+        this.queue = new ArrayBlockingQueue<>(ensureGreaterThanZero(queueCapacity, "queueCapacity"));
+        AtomicInteger threadNum = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(ensureGreaterThanZero(workerThreads, "workerThreads"), runnable -> {
+            Thread thread = new Thread(runnable, "embedding-worker-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workerThreads; i++) {
+            workers.execute(this::work);
+        }
+        log.info("BatchingEmbeddingModel started,workerThreads:{},batchSize:{},queueCapacity:{}", workerThreads, batchSize, queueCapacity);
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        List<CompletableFuture<Embedding>> futures = new ArrayList<>(textSegments.size());
+        try {
+            for (TextSegment segment : textSegments) {
+                CompletableFuture<Embedding> future = new CompletableFuture<>();
+                queue.put(new PendingSegment(segment, future));
+                futures.add(future);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            throw new RuntimeException("Embedding interrupted", e);
+        }
+        List<Embedding> embeddings = new ArrayList<>(futures.size());
+        for (CompletableFuture<Embedding> future : futures) {
+            try {
+                embeddings.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw e;
+            }
+        }
+        return Response.from(embeddings);
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+
+    /**
+     * 等待向量化的文本段数量
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    @Scheduled(initialDelay = 10 * 60 * 1000, fixedDelay = 10 * 60 * 1000)
+    public void logStats() {
+        long batches = embeddedBatches.sum();
+        long segments = embeddedSegments.sum();
+        log.info("embedding worker stats,queueDepth:{},batches:{},segments:{},avgBatchSize:{}",
+                queue.size(), batches, segments, batches == 0 ? 0 : segments / batches);
+    }
+
+    public void close() {
+        running = false;
+        workers.shutdownNow();
+    }
+
+    private void work() {
+        List<PendingSegment> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                PendingSegment first = queue.poll(1, TimeUnit.SECONDS);
+                if (null == first) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                embedBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void embedBatch(List<PendingSegment> batch) {
+        try {
+            List<Embedding> embeddings = delegate.embedAll(batch.stream().map(item -> item.segment).toList()).content();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(embeddings.get(i));
+            }
+            embeddedBatches.increment();
+            embeddedSegments.add(batch.size());
+        } catch (Exception e) {
+            log.error("Embedding batch error,size:{}", batch.size(), e);
+            batch.forEach(item -> item.future.completeExceptionally(e));
+        }
+    }
+
+    private static class PendingSegment {
+        private final TextSegment segment;
+        private final CompletableFuture<Embedding> future;
+
+        PendingSegment(TextSegment segment, CompletableFuture<Embedding> future) {
+            this.segment = segment;
+            this.future = future;
+        }
+    }
+}
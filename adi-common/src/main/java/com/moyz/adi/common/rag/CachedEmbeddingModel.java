@@ -0,0 +1,67 @@
+package com.moyz.adi.common.rag;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static dev.langchain4j.internal.ValidationUtils.ensureNotNull;
+
+/**
+ * 带缓存的向量模型，相同文本（同一模型下）只向量化一次
+ * <br/>批量向量化时只把未命中缓存的文本段交给实际的模型处理
+ */
+public class CachedEmbeddingModel implements EmbeddingModel {
+
+    private final EmbeddingModel delegate;
+
+    private final String modelName;
+
+    private final EmbeddingCache embeddingCache;
+
+    public CachedEmbeddingModel(EmbeddingModel delegate, String modelName, EmbeddingCache embeddingCache) {
+        this.delegate = ensureNotNull(delegate, "delegate");
+        this.modelName = ensureNotNull(modelName, "modelName");
+        this.embeddingCache = ensureNotNull(embeddingCache, "embeddingCache");
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        Embedding[] result = new Embedding[textSegments.size()];
+        String[] keys = new String[textSegments.size()];
+        List<Integer> missIndexes = new ArrayList<>();
+        List<TextSegment> missSegments = new ArrayList<>();
+        for (int i = 0; i < textSegments.size(); i++) {
+            keys[i] = EmbeddingCache.key(modelName, textSegments.get(i).text());
+            float[] vector = embeddingCache.get(keys[i]);
+            if (null != vector) {
+                result[i] = Embedding.from(vector);
+            } else {
+                missIndexes.add(i);
+                missSegments.add(textSegments.get(i));
+            }
+        }
+        TokenUsage tokenUsage = null;
+        if (!missSegments.isEmpty()) {
+            Response<List<Embedding>> response = delegate.embedAll(missSegments);
+            tokenUsage = response.tokenUsage();
+            List<Embedding> embeddings = response.content();
+            for (int i = 0; i < missIndexes.size(); i++) {
+                int index = missIndexes.get(i);
+                result[index] = embeddings.get(i);
+                embeddingCache.put(keys[index], embeddings.get(i).vector());
+            }
+        }
+        return Response.from(Arrays.asList(result), tokenUsage);
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+}
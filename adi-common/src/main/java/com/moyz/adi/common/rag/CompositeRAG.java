@@ -4,12 +4,15 @@ import com.moyz.adi.common.entity.AiModel;
 import com.moyz.adi.common.entity.User;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.helper.LLMContext;
+import com.moyz.adi.common.helper.LLMConcurrencyLimiter;
 import com.moyz.adi.common.helper.SSEEmitterHelper;
+import com.moyz.adi.common.helper.StreamingChatRunner;
 import com.moyz.adi.common.interfaces.AbstractLLMService;
 import com.moyz.adi.common.interfaces.IStreamingChatAssistant;
 import com.moyz.adi.common.interfaces.ITempStreamingChatAssistant;
 import com.moyz.adi.common.interfaces.TriConsumer;
-import com.moyz.adi.common.util.MapDBChatMemoryStore;
+import com.moyz.adi.common.service.KnowledgeBaseEmbeddingService;
+import com.moyz.adi.common.util.ShardedChatMemoryStore;
 import com.moyz.adi.common.vo.*;
 import dev.langchain4j.memory.chat.ChatMemoryProvider;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
@@ -20,12 +23,12 @@ import dev.langchain4j.rag.query.router.DefaultQueryRouter;
 import dev.langchain4j.rag.query.router.QueryRouter;
 import dev.langchain4j.rag.query.transformer.CompressingQueryTransformer;
 import dev.langchain4j.rag.query.transformer.QueryTransformer;
-import dev.langchain4j.service.AiServices;
 import dev.langchain4j.service.TokenStream;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
@@ -50,10 +53,36 @@ public class CompositeRAG {
     @Resource
     private SSEEmitterHelper sseEmitterHelper;
     @Resource
+    private LLMConcurrencyLimiter llmConcurrencyLimiter;
+    @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private KnowledgeBaseEmbeddingService knowledgeBaseEmbeddingService;
+
+    @Resource
+    private ShardedChatMemoryStore chatMemoryStore;
+
+    @Resource(name = "retrievalExecutor")
+    private AsyncTaskExecutor retrievalExecutor;
+
+    @Value("${adi.rag.hybrid-search:true}")
+    private boolean hybridSearchEnable;
+
+    /**
+     * 单个召回器的超时时间，超时后该召回器的结果为空，不再等待
+     */
+    @Value("${adi.rag.retrieve-timeout-millis:8000}")
+    private long retrieveTimeoutMillis;
 
     public List<ContentRetriever> createRetriever(ChatLanguageModel chatLanguageModel, Map<String, String> metadataCond, int maxResults, double minScore, boolean breakIfSearchMissed) {
-        ContentRetriever contentRetriever1 = embeddingRAGService.createRetriever(metadataCond, maxResults, minScore, breakIfSearchMissed);
+        ContentRetriever contentRetriever1;
+        if (hybridSearchEnable) {
+            //向量检索+全文检索，提高编号、型号等精确词的召回率
+            contentRetriever1 = embeddingRAGService.createHybridRetriever(metadataCond, maxResults, minScore, breakIfSearchMissed,
+                    (keyword, limit) -> knowledgeBaseEmbeddingService.searchByKeyword(keyword, metadataCond, limit));
+        } else {
+            contentRetriever1 = embeddingRAGService.createRetriever(metadataCond, maxResults, minScore, breakIfSearchMissed);
+        }
         ContentRetriever contentRetriever2 = graphRAGService.createRetriever(chatLanguageModel, metadataCond, maxResults, breakIfSearchMissed);
         return List.of(contentRetriever1, contentRetriever2);
     }
@@ -112,12 +141,14 @@ public class CompositeRAG {
             ChatMemoryProvider chatMemoryProvider = memoryId -> MessageWindowChatMemory.builder()
                     .id(memoryId)
                     .maxMessages(2)
-                    .chatMemoryStore(MapDBChatMemoryStore.getSingleton())
+                    .chatMemoryStore(chatMemoryStore)
                     .build();
             QueryTransformer queryTransformer = new CompressingQueryTransformer(llmService.buildChatLLM(params.getLlmBuilderProperties(), params.getUuid()));
             RetrievalAugmentor retrievalAugmentor = AdiKnowledgeBaseRetrievalAugmentor.builder()
                     .queryTransformer(queryTransformer)
                     .queryRouter(queryRouter)
+                    .executor(retrievalExecutor)
+                    .retrieveTimeoutMillis(retrieveTimeoutMillis)
                     .maxInputTokens(aiModel.getMaxInputTokens())
                     .inputAdaptorMsgConsumer(inputAdaptorMsg -> {
                         log.info(inputAdaptorMsg.toString());
@@ -137,9 +168,13 @@ public class CompositeRAG {
                 tokenStream = assistant.chat(assistantChatParams.getMessageId(), assistantChatParams.getUserMessage(), new ArrayList<>());
             }
         } else {
-            ITempStreamingChatAssistant assistant = AiServices.builder(ITempStreamingChatAssistant.class)
+            ITempStreamingChatAssistant assistant = AdiAiServices.builder(ITempStreamingChatAssistant.class, aiModel.getMaxInputTokens())
                     .streamingChatLanguageModel(llmService.buildStreamingChatLLM(params.getLlmBuilderProperties()))
-                    .retrievalAugmentor(AdiKnowledgeBaseRetrievalAugmentor.builder().queryRouter(queryRouter).build())
+                    .retrievalAugmentor(AdiKnowledgeBaseRetrievalAugmentor.builder()
+                            .queryRouter(queryRouter)
+                            .executor(retrievalExecutor)
+                            .retrieveTimeoutMillis(retrieveTimeoutMillis)
+                            .build())
                     .build();
             if (StringUtils.isNotBlank(assistantChatParams.getSystemMessage())) {
                 tokenStream = assistant.chatWithSystem(assistantChatParams.getSystemMessage(), assistantChatParams.getUserMessage(), new ArrayList<>());
@@ -147,14 +182,15 @@ public class CompositeRAG {
                 tokenStream = assistant.chatSimple(assistantChatParams.getUserMessage(), new ArrayList<>());
             }
         }
-        tokenStream
-                .onPartialResponse(content -> SSEEmitterHelper.parseAndSendPartialMsg(params.getSseEmitter(), content))
-                .onCompleteResponse(response -> {
-                    Pair<PromptMeta, AnswerMeta> pair = SSEEmitterHelper.calculateTokenAndShutdown(response, params.getSseEmitter(), params.getUuid(), true);
-                    consumer.accept(response.aiMessage().text(), pair.getLeft(), pair.getRight());
-                })
-                .onError(error -> SSEEmitterHelper.errorAndShutdown(error, params.getSseEmitter()))
-                .start();
+        //按平台限制同时进行的LLM请求数，名额在响应结束、出错或发起失败时释放（见StreamingChatRunner）
+        LLMConcurrencyLimiter.Permit permit;
+        try {
+            permit = llmConcurrencyLimiter.acquire(aiModel.getPlatform());
+        } catch (BaseException e) {
+            SSEEmitterHelper.errorAndShutdown(e, params.getSseEmitter());
+            return;
+        }
+        new StreamingChatRunner(params, permit, true, consumer).start(tokenStream);
     }
 
     public EmbeddingRAG getEmbeddingRAGService() {
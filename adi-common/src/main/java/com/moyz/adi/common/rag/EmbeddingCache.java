@@ -0,0 +1,117 @@
+package com.moyz.adi.common.rag;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 向量缓存，以 模型名称+文本哈希 为key，知识库索引及检索共用
+ * <br/>两级缓存：
+ * <br/>1. 堆内缓存（有界，按LRU淘汰）
+ * <br/>2. 可选的内存映射文件缓存（MapDB），容量更大且服务重启后依然有效
+ */
+@Slf4j
+public class EmbeddingCache {
+
+    private final Cache<String, float[]> heapCache;
+
+    private DB db;
+
+    private Map<String, float[]> mmapCache;
+
+    private final LongAdder heapHits = new LongAdder();
+    private final LongAdder mmapHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param heapMaxEntries 堆内缓存的最大条目数
+     * @param mmapEnable     是否启用内存映射文件缓存
+     * @param mmapPath       内存映射文件所在目录
+     * @param mmapMaxEntries 内存映射文件缓存的最大条目数
+     */
+    public EmbeddingCache(long heapMaxEntries, boolean mmapEnable, String mmapPath, long mmapMaxEntries) {
+        this.heapCache = CacheBuilder.newBuilder()
+                .maximumSize(heapMaxEntries)
+                .recordStats()
+                .build();
+        if (mmapEnable) {
+            log.info("embedding cache path:{}", mmapPath);
+            db = DBMaker.fileDB(mmapPath + "embedding-cache.db")
+                    .fileMmapEnableIfSupported()
+                    .closeOnJvmShutdown()
+                    .make();
+            mmapCache = db.hashMap("embeddings", Serializer.STRING, Serializer.FLOAT_ARRAY)
+                    .expireMaxSize(mmapMaxEntries)
+                    .expireAfterCreate()
+                    .createOrOpen();
+        }
+    }
+
+    public static String key(String modelName, String text) {
+        return modelName + ":" + Hashing.sha256().hashString(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 查找缓存的向量
+     *
+     * @param key 由{@link #key(String, String)}生成
+     * @return 向量，缓存中不存在时返回null
+     */
+    public float[] get(String key) {
+        float[] vector = heapCache.getIfPresent(key);
+        if (null != vector) {
+            heapHits.increment();
+            return vector;
+        }
+        if (null != mmapCache) {
+            vector = mmapCache.get(key);
+            if (null != vector) {
+                mmapHits.increment();
+                heapCache.put(key, vector);
+                return vector;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(String key, float[] vector) {
+        heapCache.put(key, vector);
+        if (null != mmapCache) {
+            mmapCache.put(key, vector);
+        }
+    }
+
+    /**
+     * 命中率，包括堆内缓存及内存映射文件缓存
+     */
+    public double hitRate() {
+        long hits = heapHits.sum() + mmapHits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    @Scheduled(initialDelay = 10 * 60 * 1000, fixedDelay = 10 * 60 * 1000)
+    public void logStats() {
+        CacheStats stats = heapCache.stats();
+        log.info("embedding cache stats,hitRate:{},heapHits:{},mmapHits:{},misses:{},heapSize:{},heapEvictions:{},mmapSize:{}",
+                String.format("%.4f", hitRate()), heapHits.sum(), mmapHits.sum(), misses.sum(),
+                heapCache.size(), stats.evictionCount(), null == mmapCache ? 0 : mmapCache.size());
+    }
+
+    public void close() {
+        if (null != db && !db.isClosed()) {
+            db.close();
+        }
+    }
+}
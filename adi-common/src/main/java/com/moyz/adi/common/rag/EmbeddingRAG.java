@@ -11,16 +11,20 @@ import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiChatModelName;
 import dev.langchain4j.model.openai.OpenAiTokenizer;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
 import dev.langchain4j.store.embedding.filter.Filter;
 import dev.langchain4j.store.embedding.filter.comparison.IsEqualTo;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.List;
 import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 
 import static com.moyz.adi.common.cosntant.AdiConstant.*;
@@ -31,15 +35,27 @@ public class EmbeddingRAG implements IRAGService {
 
     private EmbeddingModel embeddingModel;
 
+    private EmbeddingModel queryEmbeddingModel;
+
     private EmbeddingStore<TextSegment> embeddingStore;
 
-    public EmbeddingRAG(EmbeddingStore<TextSegment> embeddingStore) {
-        this.embeddingStore = embeddingStore;
+    /**
+     * @param embeddingStore 向量数据库
+     * @param embeddingModel 向量模型，索引及检索共用
+     */
+    public EmbeddingRAG(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel) {
+        this(embeddingStore, embeddingModel, embeddingModel);
     }
 
-    public void init() {
-        log.info("initEmbeddingModel");
-        embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+    /**
+     * @param embeddingStore      向量数据库
+     * @param embeddingModel      索引使用的向量模型，各EmbeddingRAG共用同一个本地模型（带缓存及多线程批处理）
+     * @param queryEmbeddingModel 检索使用的向量模型，直接推理，不受索引任务积压的影响
+     */
+    public EmbeddingRAG(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel, EmbeddingModel queryEmbeddingModel) {
+        this.embeddingStore = embeddingStore;
+        this.embeddingModel = embeddingModel;
+        this.queryEmbeddingModel = queryEmbeddingModel;
     }
 
     /**
@@ -54,12 +70,32 @@ public class EmbeddingRAG implements IRAGService {
         DocumentSplitter documentSplitter = DocumentSplitters.recursive(RAG_MAX_SEGMENT_SIZE_IN_TOKENS, overlap, new OpenAiTokenizer(OpenAiChatModelName.GPT_3_5_TURBO));
         EmbeddingStoreIngestor embeddingStoreIngestor = EmbeddingStoreIngestor.builder()
                 .documentSplitter(documentSplitter)
+                .textSegmentTransformer(InputAdaptor::withTokenCount)
                 .embeddingModel(embeddingModel)
                 .embeddingStore(embeddingStore)
                 .build();
         embeddingStoreIngestor.ingest(document);
     }
 
+    /**
+     * 分阶段对文档切块、向量化并存储到数据库，每批存储完成后回调进度，支持从断点继续
+     *
+     * @param document           知识库文档
+     * @param overlap            重叠token数
+     * @param fromSegmentIndex   从第几个文本段开始处理
+     * @param checkpointConsumer 已完成存储的文本段数量
+     */
+    public void ingest(Document document, int overlap, int fromSegmentIndex, IntConsumer checkpointConsumer) {
+        log.info("EmbeddingRAG staged ingest,fromSegmentIndex:{}", fromSegmentIndex);
+        DocumentSplitter documentSplitter = DocumentSplitters.recursive(RAG_MAX_SEGMENT_SIZE_IN_TOKENS, overlap, new OpenAiTokenizer(OpenAiChatModelName.GPT_3_5_TURBO));
+        StreamingEmbeddingIngestor ingestor = StreamingEmbeddingIngestor.builder()
+                .documentSplitter(documentSplitter)
+                .embeddingModel(embeddingModel)
+                .embeddingStore(embeddingStore)
+                .build();
+        ingestor.ingest(document, fromSegmentIndex, checkpointConsumer);
+    }
+
     /**
      * @param metadataCond
      * @param maxResults
@@ -69,6 +105,27 @@ public class EmbeddingRAG implements IRAGService {
      */
     @Override
     public AdiEmbeddingStoreContentRetriever createRetriever(Map<String, String> metadataCond, int maxResults, double minScore, boolean breakIfSearchMissed) {
+        return createRetriever(metadataCond, maxResults, minScore, breakIfSearchMissed, null);
+    }
+
+    /**
+     * 创建混合检索（向量检索+全文检索）的召回器
+     *
+     * @param metadataCond        元数据过滤条件
+     * @param maxResults          最大召回数量
+     * @param minScore            向量检索的最低相似度
+     * @param breakIfSearchMissed 如果搜索不到数据，是否强行中断该搜索
+     * @param keywordSearcher     全文检索，参数：检索内容、最大返回数量
+     * @return 召回器
+     */
+    public AdiEmbeddingStoreContentRetriever createHybridRetriever(Map<String, String> metadataCond, int maxResults, double minScore, boolean breakIfSearchMissed,
+                                                                   BiFunction<String, Integer, List<EmbeddingMatch<TextSegment>>> keywordSearcher) {
+        return createRetriever(metadataCond, maxResults, minScore, breakIfSearchMissed,
+                (query, limit) -> keywordSearcher.apply(query.text(), limit));
+    }
+
+    private AdiEmbeddingStoreContentRetriever createRetriever(Map<String, String> metadataCond, int maxResults, double minScore, boolean breakIfSearchMissed,
+                                                              BiFunction<Query, Integer, List<EmbeddingMatch<TextSegment>>> keywordSearcher) {
         Filter filter = null;
         for (Map.Entry<String, String> entry : metadataCond.entrySet()) {
             String key = entry.getKey();
@@ -81,11 +138,12 @@ public class EmbeddingRAG implements IRAGService {
         }
         return AdiEmbeddingStoreContentRetriever.builder()
                 .embeddingStore(embeddingStore)
-                .embeddingModel(embeddingModel)
+                .embeddingModel(queryEmbeddingModel)
                 .maxResults(maxResults)
                 .minScore(minScore <= 0 ? RAG_MIN_SCORE : minScore)
                 .filter(filter)
                 .breakIfSearchMissed(breakIfSearchMissed)
+                .keywordSearcher(keywordSearcher)
                 .build();
     }
 
@@ -0,0 +1,168 @@
+package com.moyz.adi.common.rag;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.moyz.adi.common.cosntant.AdiConstant;
+import com.moyz.adi.common.util.AdiStringUtil;
+import com.moyz.adi.common.util.JsonUtil;
+import com.moyz.adi.common.util.SpringUtil;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.moyz.adi.common.cosntant.RedisKeyConstant.GRAPH_QUERY_ENTITIES;
+
+/**
+ * 从用户问题中抽取实体（图谱召回使用）
+ * <br/>依次尝试：
+ * <br/>1. 缓存：相同问题（归一化后）抽取过的实体直接复用
+ * <br/>2. 本地匹配（可选）：用问题与知识库中已有的顶点名称做匹配
+ * <br/>3. 请求LLM抽取，结果写入缓存
+ */
+@Slf4j
+public class GraphQueryEntityExtractor {
+
+    /**
+     * 参与本地匹配的顶点名称最小长度，太短的名称容易误匹配
+     */
+    private static final int LOCAL_MATCH_MIN_NAME_LENGTH = 2;
+
+    private final ApacheAgeGraphStore graphStore;
+
+    private final boolean localMatchEnable;
+
+    private final long cacheTtlSeconds;
+
+    private final int localMatchMaxVertexNames;
+
+    /**
+     * 知识库（以过滤条件区分）下的顶点名称
+     */
+    private final Cache<String, List<String>> filterToVertexNames;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * @param graphStore               图数据库
+     * @param localMatchEnable         是否先用本地的顶点名称进行匹配
+     * @param cacheTtlSeconds          抽取结果的缓存时间
+     * @param localMatchMaxVertexNames 每个知识库最多加载的顶点名称数量
+     * @param vertexNamesTtlSeconds    顶点名称在本地的缓存时间
+     */
+    public GraphQueryEntityExtractor(ApacheAgeGraphStore graphStore, boolean localMatchEnable, long cacheTtlSeconds, int localMatchMaxVertexNames, long vertexNamesTtlSeconds) {
+        this.graphStore = graphStore;
+        this.localMatchEnable = localMatchEnable;
+        this.cacheTtlSeconds = cacheTtlSeconds;
+        this.localMatchMaxVertexNames = localMatchMaxVertexNames;
+        this.filterToVertexNames = CacheBuilder.newBuilder()
+                .maximumSize(1000)
+                .expireAfterWrite(vertexNamesTtlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public StringRedisTemplate getStringRedisTemplate() {
+        if (null == stringRedisTemplate) {
+            stringRedisTemplate = SpringUtil.getBean(StringRedisTemplate.class);
+        }
+        return stringRedisTemplate;
+    }
+
+    /**
+     * 抽取实体
+     *
+     * @param query             用户问题
+     * @param metadataFilter    知识库过滤条件
+     * @param chatLanguageModel 本地匹配不到时用于抽取实体的LLM
+     * @return 实体名称（大写）；请求LLM失败时返回null
+     */
+    public Set<String> extract(String query, Filter metadataFilter, ChatLanguageModel chatLanguageModel) {
+        String normalizedQuery = normalize(query);
+        if (StringUtils.isBlank(normalizedQuery)) {
+            return Collections.emptySet();
+        }
+        String cacheKey = MessageFormat.format(GRAPH_QUERY_ENTITIES, Hashing.sha256().hashString(normalizedQuery, StandardCharsets.UTF_8).toString());
+        String cached = getStringRedisTemplate().opsForValue().get(cacheKey);
+        if (null != cached) {
+            log.info("Graph query entities cache hit,query:{}", query);
+            return new HashSet<>(Arrays.asList(JsonUtil.fromJson(cached, String[].class)));
+        }
+
+        Set<String> entities = Collections.emptySet();
+        if (localMatchEnable) {
+            entities = matchVertexNames(normalizedQuery, metadataFilter);
+            if (!entities.isEmpty()) {
+                log.info("Graph query entities matched locally,query:{},entities:{}", query, entities);
+                //本地匹配的结果依赖知识库中的顶点，不写入缓存
+                return entities;
+            }
+        }
+
+        String response = "";
+        try {
+            response = chatLanguageModel.generate(GraphExtractPrompt.GRAPH_EXTRACTION_PROMPT_CN.replace("{input_text}", query));
+        } catch (Exception e) {
+            log.error("Graph retrieve. extract graph error", e);
+        }
+        if (StringUtils.isBlank(response)) {
+            return null;
+        }
+        entities = parseEntities(response);
+        getStringRedisTemplate().opsForValue().set(cacheKey, JsonUtil.toJson(entities), cacheTtlSeconds, TimeUnit.SECONDS);
+        return entities;
+    }
+
+    /**
+     * 用问题与知识库中的顶点名称做包含匹配
+     */
+    private Set<String> matchVertexNames(String normalizedQuery, Filter metadataFilter) {
+        String filterKey = null == metadataFilter ? "" : metadataFilter.toString();
+        List<String> vertexNames;
+        try {
+            vertexNames = filterToVertexNames.get(filterKey, () -> graphStore.listVertexNames(metadataFilter, localMatchMaxVertexNames));
+        } catch (Exception e) {
+            log.error("Load vertex names error", e);
+            return Collections.emptySet();
+        }
+        String upperQuery = normalizedQuery.toUpperCase();
+        Set<String> result = new HashSet<>();
+        for (String name : vertexNames) {
+            if (StringUtils.length(name) >= LOCAL_MATCH_MIN_NAME_LENGTH && upperQuery.contains(name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> parseEntities(String response) {
+        Set<String> entities = new HashSet<>();
+        String[] records = response.split(AdiConstant.GRAPH_RECORD_DELIMITER);
+        for (String record : records) {
+            String newRecord = record.replaceAll("^\\(|\\)$", "");
+            String[] recordAttributes = newRecord.split(AdiConstant.GRAPH_TUPLE_DELIMITER);
+            if (recordAttributes.length >= 4 && (recordAttributes[0].contains("\"entity\"") || recordAttributes[0].contains("\"实体\""))) {
+                entities.add(AdiStringUtil.clearStr(recordAttributes[1].toUpperCase()));
+            } else if (recordAttributes.length >= 4 && (recordAttributes[0].contains("\"relationship\"") || recordAttributes[0].contains("\"关系\""))) {
+                String sourceName = AdiStringUtil.clearStr(recordAttributes[1].toUpperCase());
+                String targetName = AdiStringUtil.clearStr(recordAttributes[2].toUpperCase());
+                entities.add(AdiStringUtil.clearStr(sourceName));
+                entities.add(AdiStringUtil.clearStr(targetName));
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * 归一化：去掉首尾空白、合并连续空白、转小写
+     */
+    private static String normalize(String query) {
+        return StringUtils.lowerCase(StringUtils.normalizeSpace(query));
+    }
+}
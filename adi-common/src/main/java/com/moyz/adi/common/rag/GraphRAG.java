@@ -1,6 +1,5 @@
 package com.moyz.adi.common.rag;
 
-import com.moyz.adi.common.base.ThreadContext;
 import com.moyz.adi.common.cosntant.AdiConstant;
 import com.moyz.adi.common.entity.KnowledgeBaseGraphSegment;
 import com.moyz.adi.common.entity.User;
@@ -11,12 +10,13 @@ import com.moyz.adi.common.service.UserDayCostService;
 import com.moyz.adi.common.util.SpringUtil;
 import com.moyz.adi.common.util.UuidUtil;
 import com.moyz.adi.common.vo.GraphIngestParams;
-import dev.langchain4j.data.document.Document;
+import dev.ai4j.openai4j.OpenAiHttpException;
 import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.exception.HttpException;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.model.openai.OpenAiTokenizer;
 import dev.langchain4j.model.output.Response;
@@ -26,9 +26,13 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Triple;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 import static com.moyz.adi.common.cosntant.AdiConstant.RAG_MAX_SEGMENT_SIZE_IN_TOKENS;
 import static dev.langchain4j.model.openai.OpenAiModelName.GPT_3_5_TURBO;
@@ -36,12 +40,39 @@ import static dev.langchain4j.model.openai.OpenAiModelName.GPT_3_5_TURBO;
 @Slf4j
 public class GraphRAG {
 
+    /**
+     * 单个文本段抽取失败时的最大重试次数，只重试超时、网络异常、限流（429）及服务端错误（5xx）
+     */
+    private static final int EXTRACT_MAX_RETRIES = 2;
+
+    private static final long EXTRACT_RETRY_INTERVAL_MILLIS = 2000;
+
     private ApacheAgeGraphStore apacheAgeGraphStore;
 
     private KnowledgeBaseGraphSegmentService knowledgeBaseGraphSegmentService;
 
-    public GraphRAG(ApacheAgeGraphStore kbGraphStore) {
+    /**
+     * 抽取实体及关系的共享线程池，线程数即全局并发上限
+     */
+    private final Executor extractExecutor;
+
+    /**
+     * 每个模型同时进行抽取的最大请求数
+     */
+    private final int maxConcurrencyPerModel;
+
+    private final Map<String, Semaphore> modelNameToSemaphore = new ConcurrentHashMap<>();
+
+    /**
+     * 图谱召回时从用户问题中抽取实体，各召回器共用
+     */
+    private final GraphQueryEntityExtractor queryEntityExtractor;
+
+    public GraphRAG(ApacheAgeGraphStore kbGraphStore, Executor extractExecutor, int maxConcurrencyPerModel, GraphQueryEntityExtractor queryEntityExtractor) {
         this.apacheAgeGraphStore = kbGraphStore;
+        this.extractExecutor = extractExecutor;
+        this.maxConcurrencyPerModel = maxConcurrencyPerModel;
+        this.queryEntityExtractor = queryEntityExtractor;
     }
 
     public KnowledgeBaseGraphSegmentService getKnowledgeBaseGraphSegmentService() {
@@ -53,48 +84,146 @@ public class GraphRAG {
 
     public void ingest(GraphIngestParams graphIngestParams) {
         log.info("GraphRAG ingest");
-        User user = graphIngestParams.getUser();
+        String kbItemUuid = graphIngestParams.getDocument().metadata().getString(AdiConstant.MetadataKey.KB_ITEM_UUID);
+        if (graphIngestParams.getFromSegmentIndex() == 0 && null != kbItemUuid) {
+            //重新索引时，之前记录的已写入的文本段序号不再有效
+            getKnowledgeBaseGraphSegmentService().lambdaUpdate()
+                    .eq(KnowledgeBaseGraphSegment::getKbItemUuid, kbItemUuid)
+                    .ge(KnowledgeBaseGraphSegment::getSegmentIndex, 0)
+                    .set(KnowledgeBaseGraphSegment::getSegmentIndex, -1)
+                    .update();
+        }
         DocumentSplitter documentSplitter = DocumentSplitters.recursive(RAG_MAX_SEGMENT_SIZE_IN_TOKENS, graphIngestParams.getOverlap(), new OpenAiTokenizer(GPT_3_5_TURBO));
         GraphStoreIngestor ingestor = GraphStoreIngestor.builder()
                 .documentSplitter(documentSplitter)
                 .segmentsFunction(segments -> {
-                    List<Triple<TextSegment, String, String>> segmentIdToExtractContent = new ArrayList<>();
-                    for (TextSegment segment : segments) {
-
-                        String segmentId = UuidUtil.createShort();
-                        log.info("Save segment to graph_segment,segmentId:{}", segmentId);
-                        KnowledgeBaseGraphSegment graphSegment = new KnowledgeBaseGraphSegment();
-                        graphSegment.setUuid(segmentId);
-                        graphSegment.setRemark(segment.text());
-                        graphSegment.setKbUuid(segment.metadata().getString(AdiConstant.MetadataKey.KB_UUID));
-                        graphSegment.setKbItemUuid(segment.metadata().getString(AdiConstant.MetadataKey.KB_ITEM_UUID));
-                        graphSegment.setUserId(user.getId());
-                        getKnowledgeBaseGraphSegmentService().save(graphSegment);
-
-                        String response = "";
-                        if (StringUtils.isNotBlank(segment.text())) {
-                            if (!graphIngestParams.isFreeToken()) {
-                                ErrorEnum errorMsg = SpringUtil.getBean(QuotaHelper.class).checkTextQuota(user);
-                                if (null != errorMsg) {
-                                    log.warn("抽取知识图谱时发现额度已超过限制,user:{},errorInfo:{}", user.getName(), errorMsg.getInfo());
-                                    continue;
-                                }
-                            }
-                            log.info("请求LLM从文本中抽取实体及关系,segmentId:{}", segmentId);
-                            Response<AiMessage> aiMessageResponse = graphIngestParams.getChatLanguageModel().generate(UserMessage.from(GraphExtractPrompt.GRAPH_EXTRACTION_PROMPT_CN.replace("{input_text}", segment.text())));
-                            response = aiMessageResponse.content().text();
-
-                            SpringUtil.getBean(UserDayCostService.class).appendCostToUser(user, aiMessageResponse.tokenUsage().totalTokenCount(), graphIngestParams.isFreeToken());
+                    //各文本段并行抽取，同一模型的并发数受信号量限制；抽取成功的文本段都会写入图数据库
+                    List<CompletableFuture<Triple<TextSegment, String, String>>> futures = segments.stream()
+                            .map(segment -> CompletableFuture.supplyAsync(() -> extract(graphIngestParams, segment), extractExecutor))
+                            .toList();
+                    List<Triple<TextSegment, String, String>> result = new ArrayList<>();
+                    for (CompletableFuture<Triple<TextSegment, String, String>> future : futures) {
+                        Triple<TextSegment, String, String> triple = future.join();
+                        if (null != triple) {
+                            result.add(triple);
                         }
-                        segmentIdToExtractContent.add(Triple.of(segment, segmentId, response));
                     }
-                    return segmentIdToExtractContent;
+                    return result;
                 })
+                .storedSegmentsFunction(fromSegmentIndex -> null == kbItemUuid ? Set.of() : getKnowledgeBaseGraphSegmentService().lambdaQuery()
+                        .select(KnowledgeBaseGraphSegment::getSegmentIndex)
+                        .eq(KnowledgeBaseGraphSegment::getKbItemUuid, kbItemUuid)
+                        .ge(KnowledgeBaseGraphSegment::getSegmentIndex, fromSegmentIndex)
+                        .list()
+                        .stream()
+                        .map(KnowledgeBaseGraphSegment::getSegmentIndex)
+                        .collect(Collectors.toSet()))
+                .storedSegmentsConsumer(segmentIdToIndex -> segmentIdToIndex.forEach((segmentId, index) -> getKnowledgeBaseGraphSegmentService().lambdaUpdate()
+                        .eq(KnowledgeBaseGraphSegment::getUuid, segmentId)
+                        .set(KnowledgeBaseGraphSegment::getSegmentIndex, index)
+                        .update()))
                 .identifyColumns(graphIngestParams.getIdentifyColumns())
                 .appendColumns(graphIngestParams.getAppendColumns())
                 .graphStore(apacheAgeGraphStore)
                 .build();
-        ingestor.ingest(graphIngestParams.getDocument());
+        ingestor.ingest(List.of(graphIngestParams.getDocument()), graphIngestParams.getFromSegmentIndex(), graphIngestParams.getCheckpointConsumer());
+    }
+
+    /**
+     * 保存文本段并请求LLM从中抽取实体及关系
+     *
+     * @param graphIngestParams 抽取参数
+     * @param segment           文本段
+     * @return 文本段、文本段id及LLM的响应内容；额度不足时返回null；重试后仍失败或被中断时响应内容为null
+     */
+    private Triple<TextSegment, String, String> extract(GraphIngestParams graphIngestParams, TextSegment segment) {
+        User user = graphIngestParams.getUser();
+        String segmentId = UuidUtil.createShort();
+        log.info("Save segment to graph_segment,segmentId:{}", segmentId);
+        KnowledgeBaseGraphSegment graphSegment = new KnowledgeBaseGraphSegment();
+        graphSegment.setUuid(segmentId);
+        graphSegment.setRemark(segment.text());
+        graphSegment.setKbUuid(segment.metadata().getString(AdiConstant.MetadataKey.KB_UUID));
+        graphSegment.setKbItemUuid(segment.metadata().getString(AdiConstant.MetadataKey.KB_ITEM_UUID));
+        graphSegment.setUserId(user.getId());
+        getKnowledgeBaseGraphSegmentService().save(graphSegment);
+
+        String response = "";
+        if (StringUtils.isNotBlank(segment.text())) {
+            if (!graphIngestParams.isFreeToken()) {
+                ErrorEnum errorMsg = SpringUtil.getBean(QuotaHelper.class).checkTextQuota(user);
+                if (null != errorMsg) {
+                    log.warn("抽取知识图谱时发现额度已超过限制,user:{},errorInfo:{}", user.getName(), errorMsg.getInfo());
+                    return null;
+                }
+            }
+            Semaphore semaphore = modelNameToSemaphore.computeIfAbsent(StringUtils.defaultString(graphIngestParams.getModelName()), key -> new Semaphore(maxConcurrencyPerModel));
+            Response<AiMessage> aiMessageResponse = null;
+            for (int attempt = 0; attempt <= EXTRACT_MAX_RETRIES && null == aiMessageResponse; attempt++) {
+                try {
+                    if (attempt > 0) {
+                        TimeUnit.MILLISECONDS.sleep(EXTRACT_RETRY_INTERVAL_MILLIS * attempt);
+                    }
+                    semaphore.acquire();
+                    try {
+                        log.info("请求LLM从文本中抽取实体及关系,segmentId:{},attempt:{}", segmentId, attempt);
+                        aiMessageResponse = graphIngestParams.getChatLanguageModel().generate(UserMessage.from(GraphExtractPrompt.GRAPH_EXTRACTION_PROMPT_CN.replace("{input_text}", segment.text())));
+                    } finally {
+                        semaphore.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Graph extraction interrupted,segmentId:{}", segmentId);
+                    deleteGraphSegment(segmentId);
+                    return Triple.of(segment, segmentId, null);
+                } catch (Exception e) {
+                    log.error("Graph extraction error,segmentId:{},attempt:{}", segmentId, attempt, e);
+                    //鉴权失败、请求参数错误、内容审核、额度不足等错误重试无效
+                    if (!isTransientError(e)) {
+                        break;
+                    }
+                }
+            }
+            if (null == aiMessageResponse) {
+                log.warn("Graph extraction failed after retries,segmentId:{}", segmentId);
+                deleteGraphSegment(segmentId);
+                return Triple.of(segment, segmentId, null);
+            }
+            response = aiMessageResponse.content().text();
+
+            SpringUtil.getBean(UserDayCostService.class).appendCostToUser(user, aiMessageResponse.tokenUsage().totalTokenCount(), graphIngestParams.isFreeToken());
+        }
+        return Triple.of(segment, segmentId, response);
+    }
+
+    /**
+     * 是否为可重试的错误：超时、网络异常、限流（429）及服务端错误（5xx）
+     */
+    private static boolean isTransientError(Throwable error) {
+        for (Throwable cause = error; null != cause; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof TimeoutException) {
+                return true;
+            }
+            int statusCode = 0;
+            if (cause instanceof OpenAiHttpException openAiHttpException) {
+                statusCode = openAiHttpException.code();
+            } else if (cause instanceof HttpException httpException) {
+                statusCode = httpException.statusCode();
+            }
+            if (statusCode > 0) {
+                return statusCode == 429 || statusCode >= 500;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 删除抽取失败的文本段，下次继续索引时会重新保存
+     */
+    private void deleteGraphSegment(String segmentId) {
+        getKnowledgeBaseGraphSegmentService().lambdaUpdate()
+                .eq(KnowledgeBaseGraphSegment::getUuid, segmentId)
+                .remove();
     }
 
     public GraphStoreContentRetriever createRetriever(ChatLanguageModel chatLanguageModel, Map<String, String> metadataCond, int maxResults, boolean breakIfSearchMissed) {
@@ -111,6 +240,7 @@ public class GraphRAG {
         return GraphStoreContentRetriever.builder()
                 .graphStore(apacheAgeGraphStore)
                 .chatLanguageModel(chatLanguageModel)
+                .entityExtractor(queryEntityExtractor)
                 .maxResults(maxResults)
                 .filter(filter)
                 .breakIfSearchMissed(breakIfSearchMissed)
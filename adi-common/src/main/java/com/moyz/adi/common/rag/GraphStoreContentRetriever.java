@@ -1,9 +1,7 @@
 package com.moyz.adi.common.rag;
 
-import com.moyz.adi.common.cosntant.AdiConstant;
 import com.moyz.adi.common.dto.KbQaRefGraphDto;
 import com.moyz.adi.common.exception.BaseException;
-import com.moyz.adi.common.util.AdiStringUtil;
 import com.moyz.adi.common.vo.*;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.rag.content.Content;
@@ -12,7 +10,6 @@ import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.store.embedding.filter.Filter;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Triple;
 
 import java.util.*;
@@ -34,6 +31,7 @@ public class GraphStoreContentRetriever implements ContentRetriever {
 
     private final ApacheAgeGraphStore graphStore;
     private final ChatLanguageModel chatLanguageModel;
+    private final GraphQueryEntityExtractor entityExtractor;
 
     private final Function<Query, Integer> maxResultsProvider;
     private final Function<Query, Filter> filterProvider;
@@ -48,12 +46,14 @@ public class GraphStoreContentRetriever implements ContentRetriever {
     private GraphStoreContentRetriever(String displayName,
                                        ApacheAgeGraphStore graphStore,
                                        ChatLanguageModel chatLanguageModel,
+                                       GraphQueryEntityExtractor entityExtractor,
                                        Function<Query, Integer> dynamicMaxResults,
                                        Function<Query, Filter> dynamicFilter,
                                        Boolean breakIfSearchMissed) {
         this.displayName = getOrDefault(displayName, DEFAULT_DISPLAY_NAME);
         this.graphStore = ensureNotNull(graphStore, "graphStore");
         this.chatLanguageModel = ensureNotNull(chatLanguageModel, "chatLanguageModel");
+        this.entityExtractor = ensureNotNull(entityExtractor, "entityExtractor");
         this.maxResultsProvider = getOrDefault(dynamicMaxResults, DEFAULT_MAX_RESULTS);
         this.filterProvider = getOrDefault(dynamicFilter, DEFAULT_FILTER);
         this.breakIfSearchMissed = breakIfSearchMissed;
@@ -66,29 +66,10 @@ public class GraphStoreContentRetriever implements ContentRetriever {
     @Override
     public List<Content> retrieve(Query query) {
         log.info("Graph retrieve,query:{}", query);
-        String response = "";
-        try {
-            response = chatLanguageModel.generate(GraphExtractPrompt.GRAPH_EXTRACTION_PROMPT_CN.replace("{input_text}", query.text()));
-        } catch (Exception e) {
-            log.error("Graph retrieve. extract graph error", e);
-        }
-        if (StringUtils.isBlank(response)) {
+        Set<String> entities = entityExtractor.extract(query.text(), filterProvider.apply(query), chatLanguageModel);
+        if (null == entities) {
             return Collections.emptyList();
         }
-        Set<String> entities = new HashSet<>();
-        String[] records = response.split(AdiConstant.GRAPH_RECORD_DELIMITER);
-        for (String record : records) {
-            String newRecord = record.replaceAll("^\\(|\\)$", "");
-            String[] recordAttributes = newRecord.split(AdiConstant.GRAPH_TUPLE_DELIMITER);
-            if (recordAttributes.length >= 4 && (recordAttributes[0].contains("\"entity\"") || recordAttributes[0].contains("\"实体\""))) {
-                entities.add(AdiStringUtil.clearStr(recordAttributes[1].toUpperCase()));
-            } else if (recordAttributes.length >= 4 && (recordAttributes[0].contains("\"relationship\"") || recordAttributes[0].contains("\"关系\""))) {
-                String sourceName = AdiStringUtil.clearStr(recordAttributes[1].toUpperCase());
-                String targetName = AdiStringUtil.clearStr(recordAttributes[2].toUpperCase());
-                entities.add(AdiStringUtil.clearStr(sourceName));
-                entities.add(AdiStringUtil.clearStr(targetName));
-            }
-        }
         //判断是否要强行中断查询，没有命中则不再进行下一步操作（比如说请求LLM），直接抛出异常中断流程
         if (breakIfSearchMissed && entities.isEmpty()) {
             throw new BaseException(B_BREAK_SEARCH);
@@ -16,16 +16,17 @@ import dev.langchain4j.store.embedding.filter.comparison.IsEqualTo;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 
 import static dev.langchain4j.internal.Utils.getOrDefault;
 import static dev.langchain4j.internal.ValidationUtils.ensureNotNull;
@@ -38,12 +39,28 @@ import static java.util.stream.Collectors.toList;
 @Slf4j
 public class GraphStoreIngestor {
 
+    private static final int DEFAULT_SEGMENTS_PER_BATCH = 32;
+
     private final DocumentTransformer documentTransformer;
     private final TextSegmentTransformer textSegmentTransformer;
     private final ApacheAgeGraphStore graphStore;
     private final DocumentSplitter documentSplitter;
+    /**
+     * 抽取一批文本段的实体及关系，返回文本段、文本段id及LLM的响应内容
+     * <br/>抽取失败的文本段响应内容为null
+     */
     private final Function<List<TextSegment>, List<Triple<TextSegment, String, String>>> segmentsFunction;
 
+    /**
+     * 查询序号不小于{fromSegmentIndex}且抽取结果已写入图数据库的文本段序号（上次索引时排在失败的文本段之后、已抽取成功的文本段），可为空
+     */
+    private final IntFunction<Set<Integer>> storedSegmentsFunction;
+
+    /**
+     * 文本段的抽取结果写入图数据库后回调：文本段id -> 文本段序号，可为空
+     */
+    private final Consumer<Map<String, Integer>> storedSegmentsConsumer;
+
     /**
      * 查询时 where 语句的条件字段名
      */
@@ -55,6 +72,11 @@ public class GraphStoreIngestor {
      */
     private final List<String> appendColumns;
 
+    /**
+     * 每批抽取并写入图数据库的文本段数量，每批写入完成后回调一次进度
+     */
+    private final Integer segmentsPerBatch;
+
     public GraphStoreIngestor(DocumentTransformer documentTransformer,
                               DocumentSplitter documentSplitter,
                               ApacheAgeGraphStore graphStore,
@@ -67,8 +89,11 @@ public class GraphStoreIngestor {
         this.documentSplitter = getOrDefault(documentSplitter, GraphStoreIngestor::loadDocumentSplitter);
         this.textSegmentTransformer = textSegmentTransformer;
         this.segmentsFunction = segmentsFunction;
+        this.storedSegmentsFunction = null;
+        this.storedSegmentsConsumer = null;
         this.identifyColumns = Arrays.asList(identifyColumns.split(","));
         this.appendColumns = Arrays.asList(appendColumns.split(","));
+        this.segmentsPerBatch = DEFAULT_SEGMENTS_PER_BATCH;
     }
 
     private static DocumentSplitter loadDocumentSplitter() {
@@ -92,6 +117,17 @@ public class GraphStoreIngestor {
     }
 
     public void ingest(List<Document> documents) {
+        ingest(documents, 0, null);
+    }
+
+    /**
+     * 从第{fromSegmentIndex}个文本段开始分批抽取并写入图数据库
+     *
+     * @param documents          文档
+     * @param fromSegmentIndex   从第几个文本段开始处理（之前的文本段已在上次索引中完成）
+     * @param checkpointConsumer 已完成写入的文本段数量，可为空
+     */
+    public void ingest(List<Document> documents, int fromSegmentIndex, IntConsumer checkpointConsumer) {
 
         log.info("Starting to ingest {} documents", documents.size());
 
@@ -113,25 +149,94 @@ public class GraphStoreIngestor {
             log.info("Text segments were transformed into {} text segments", documents.size());
         }
 
-        // TODO handle failures, parallelize
-        log.info("Starting to extract {} text segments", segments.size());
-        List<Triple<TextSegment, String, String>> segmentIdToAiResponse = segmentsFunction.apply(segments);
-        for (int i = 0; i < segmentIdToAiResponse.size(); i++) {
-            Triple<TextSegment, String, String> triple = segmentIdToAiResponse.get(i);
+        int progress = fromSegmentIndex;
+        int batchSize = getOrDefault(segmentsPerBatch, DEFAULT_SEGMENTS_PER_BATCH);
+        List<TextSegment> remainSegments = segments.subList(Math.min(fromSegmentIndex, segments.size()), segments.size());
+        Set<Integer> storedIndexes = null == storedSegmentsFunction || remainSegments.isEmpty() ? Set.of() : storedSegmentsFunction.apply(fromSegmentIndex);
+        long extractMillis = 0;
+        long storeMillis = 0;
+        for (List<TextSegment> batchSegments : ListUtils.partition(remainSegments, batchSize)) {
+            //跳过上次索引时已写入图数据库的文本段
+            List<TextSegment> toExtract = new ArrayList<>();
+            List<Integer> toExtractIndexes = new ArrayList<>();
+            for (int i = 0; i < batchSegments.size(); i++) {
+                if (!storedIndexes.contains(progress + i)) {
+                    toExtract.add(batchSegments.get(i));
+                    toExtractIndexes.add(progress + i);
+                }
+            }
+            log.info("Starting to extract {} text segments,skipped:{},progress:{}/{}", toExtract.size(), batchSegments.size() - toExtract.size(), progress, segments.size());
+            long begin = System.currentTimeMillis();
+            List<Triple<TextSegment, String, String>> segmentIdToAiResponse = toExtract.isEmpty() ? List.of() : segmentsFunction.apply(toExtract);
+            extractMillis += System.currentTimeMillis() - begin;
+            log.info("Finished extract {} text segments", toExtract.size());
+
+            //先在内存中对这批文本段抽取出来的实体及关系进行合并去重，再按批写入图数据库；抽取失败的文本段不影响其他文本段的写入
+            List<Triple<TextSegment, String, String>> succeeded = new ArrayList<>();
+            int failedIndex = -1;
+            for (Triple<TextSegment, String, String> triple : segmentIdToAiResponse) {
+                int index = toExtractIndexes.get(indexOf(toExtract, triple.getLeft()));
+                if (null != triple.getRight()) {
+                    succeeded.add(triple);
+                } else if (failedIndex < 0 || index < failedIndex) {
+                    failedIndex = index;
+                }
+            }
+            begin = System.currentTimeMillis();
+            Map<Filter, GraphBatch> filterToBatch = toGraphBatches(succeeded);
+            log.info("Starting to store {} text segments into the graph store", succeeded.size());
+            for (GraphBatch batch : filterToBatch.values()) {
+                flush(batch);
+            }
+            storeMillis += System.currentTimeMillis() - begin;
+
+            //有文本段抽取失败时，进度停在第一个失败的文本段上，下次从该文本段继续，其后已写入的文本段会被跳过
+            if (failedIndex >= 0) {
+                if (null != storedSegmentsConsumer) {
+                    Map<String, Integer> segmentIdToIndex = new HashMap<>();
+                    for (Triple<TextSegment, String, String> triple : succeeded) {
+                        int index = toExtractIndexes.get(indexOf(toExtract, triple.getLeft()));
+                        if (index > failedIndex) {
+                            segmentIdToIndex.put(triple.getMiddle(), index);
+                        }
+                    }
+                    storedSegmentsConsumer.accept(segmentIdToIndex);
+                }
+                if (null != checkpointConsumer) {
+                    checkpointConsumer.accept(failedIndex);
+                }
+                log.warn("Graph extraction failed,stop at segment:{}", failedIndex);
+                throw new BaseException(ErrorEnum.B_GRAPH_EXTRACT_ERROR);
+            }
+            progress += batchSegments.size();
+            if (null != checkpointConsumer) {
+                checkpointConsumer.accept(progress);
+            }
+        }
+        log.info("Finished storing {} text segments into the graph store,extract stage:{}ms,store stage:{}ms", remainSegments.size(), extractMillis, storeMillis);
+    }
+
+    private static int indexOf(List<TextSegment> segments, TextSegment segment) {
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i) == segment) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private Map<Filter, GraphBatch> toGraphBatches(List<Triple<TextSegment, String, String>> segmentIdToAiResponse) {
+        Map<Filter, GraphBatch> filterToBatch = new LinkedHashMap<>();
+        for (Triple<TextSegment, String, String> triple : segmentIdToAiResponse) {
             TextSegment segment = triple.getLeft();
             String textSegmentId = triple.getMiddle();
             String response = triple.getRight();
-            Map<String, Object> metadata = segment.metadata().toMap();
-            log.info("Finished extract {} text segments", segments.size());
             log.info("graph response:{}", response);
-            // TODO handle failures, parallelize
-            log.info("Starting to store {} text segments into the graph store", segments.size());
             if (StringUtils.isBlank(response)) {
-                log.warn("Response is empty");
-                log.info("Finished storing {} text segments into the graph store", segments.size());
-                return;
+                log.warn("Response is empty,textSegmentId:{}", textSegmentId);
+                continue;
             }
-
+            Map<String, Object> metadata = segment.metadata().toMap();
             Filter filter = null;
             for (Map.Entry<String, Object> entry : metadata.entrySet()) {
                 boolean contain = identifyColumns.contains(entry.getKey());
@@ -146,6 +251,7 @@ public class GraphStoreIngestor {
             if (null == filter) {
                 throw new BaseException(ErrorEnum.B_GRAPH_FILTER_NOT_FOUND);
             }
+            GraphBatch batch = filterToBatch.computeIfAbsent(filter, GraphBatch::new);
 
             String[] rows = StringUtils.split(response, AdiConstant.GRAPH_RECORD_DELIMITER);
             for (String row : rows) {
@@ -157,39 +263,7 @@ public class GraphStoreIngestor {
                     String entityType = AdiStringUtil.clearStr(recordAttributes[2].toUpperCase()).replaceAll("[^a-zA-Z0-9\\s\\u4E00-\\u9FA5]+", "");
                     String entityDescription = AdiStringUtil.clearStr(recordAttributes[3]);
                     log.info("entityName:{},entityType:{},entityDescription:{}", entityName, entityType, entityDescription);
-                    //实体如果不存在图数据库中，插入一个新的实体，否则追加textSegmentId、description以及metadata中指定的内容
-                    List<GraphVertex> existVertices = graphStore.searchVertices(
-                            GraphVertexSearch.builder()
-                                    .label(entityType)
-                                    .limit(1)
-                                    .names(List.of(entityName))
-                                    .metadataFilter(filter)
-                                    .build()
-                    );
-                    if (CollectionUtils.isNotEmpty(existVertices)) {
-                        GraphVertex existVertex = existVertices.get(0);
-                        String newTextSegmentId = existVertex.getTextSegmentId() + "," + textSegmentId;
-                        String newDesc = existVertex.getDescription() + "\n" + entityDescription;
-
-                        appendExistsToNewOne(existVertex.getMetadata(), metadata);
-                        GraphVertex newData = GraphVertex.builder().textSegmentId(newTextSegmentId).description(newDesc).metadata(metadata).build();
-                        graphStore.updateVertex(
-                                GraphVertexUpdateInfo.builder()
-                                        .name(entityName)
-                                        .metadataFilter(filter)
-                                        .newData(newData)
-                                        .build()
-                        );
-                    } else {
-                        graphStore.addVertex(
-                                GraphVertex.builder()
-                                        .label(entityType)
-                                        .name(entityName)
-                                        .description(entityDescription)
-                                        .metadata(metadata)
-                                        .build()
-                        );
-                    }
+                    batch.putEntity(entityName, entityType, entityDescription, textSegmentId, metadata);
                 } else if (recordAttributes.length >= 4 && (recordAttributes[0].contains("\"relationship\"") || recordAttributes[0].contains("\"关系\""))) {
                     String sourceName = AdiStringUtil.clearStr(recordAttributes[1].toUpperCase());
                     String targetName = AdiStringUtil.clearStr(recordAttributes[2].toUpperCase());
@@ -202,93 +276,118 @@ public class GraphStoreIngestor {
                         String tailRecord = recordAttributes[recordAttributes.length - 1];
                         weight = NumberUtils.toDouble(tailRecord, 1.0);
                     }
-
-                    //Source vertex
-                    GraphVertex source = graphStore.getVertex(
-                            GraphVertexSearch.builder()
-                                    .names(List.of(sourceName))
-                                    .metadataFilter(filter)
-                                    .build()
-                    );
-                    if (null == source) {
-                        graphStore.addVertex(
-                                GraphVertex.builder()
-                                        .name(sourceName)
-                                        .metadata(metadata)
-                                        .build()
-                        );
-                    }
-                    //Target vertex
-                    GraphVertex target = graphStore.getVertex(
-                            GraphVertexSearch.builder()
-                                    .names(List.of(targetName))
-                                    .metadataFilter(filter)
-                                    .build()
-                    );
-                    if (null == target) {
-                        graphStore.addVertex(
-                                GraphVertex.builder()
-                                        .name(targetName)
-                                        .metadata(metadata)
-                                        .build()
-                        );
-                    }
-                    //Edge
-                    GraphEdgeSearch search = new GraphEdgeSearch();
-                    search.setSource(GraphSearchCondition.builder()
-                            .names(List.of(sourceName))
-                            .metadataFilter(filter)
-                            .build());
-                    search.setTarget(GraphSearchCondition.builder()
-                            .names(List.of(targetName))
-                            .metadataFilter(filter)
-                            .build());
-                    Triple<GraphVertex, GraphEdge, GraphVertex> graphEdgeWithVertices = graphStore.getEdge(search);
-                    if (null != graphEdgeWithVertices) {
-                        GraphEdge existGraphEdge = graphEdgeWithVertices.getMiddle();
-                        weight += existGraphEdge.getWeight();
-                        GraphEdgeEditInfo graphEdgeEditInfo = new GraphEdgeEditInfo();
-                        graphEdgeEditInfo.setSourceFilter(GraphSearchCondition.builder()
-                                .names(List.of(sourceName))
-                                .metadataFilter(filter)
-                                .build());
-                        graphEdgeEditInfo.setTargetFilter(GraphSearchCondition.builder()
-                                .names(List.of(targetName))
-                                .metadataFilter(filter)
-                                .build());
-                        graphEdgeEditInfo.setEdge(GraphEdge.builder()
-                                .textSegmentId(existGraphEdge.getTextSegmentId() + "," + chunkId)
-                                .description(existGraphEdge.getDescription() + "\n" + edgeDescription)
-                                .weight(weight)
-                                .build());
-                        graphStore.updateEdge(graphEdgeEditInfo);
-
-                        appendExistsToNewOne(existGraphEdge.getMetadata(), metadata);
-                    } else {
-                        GraphEdgeAddInfo addInfo = new GraphEdgeAddInfo();
-                        addInfo.setEdge(GraphEdge.builder()
-                                .sourceName(sourceName)
-                                .targetName(targetName)
-                                .weight(weight)
-                                .metadata(metadata)
-                                .textSegmentId(chunkId)
-                                .description(edgeDescription)
-                                .build());
-                        addInfo.setSourceFilter(GraphSearchCondition.builder()
-                                .names(List.of(sourceName))
-                                .metadataFilter(filter)
-                                .build());
-                        addInfo.setTargetFilter(GraphSearchCondition.builder()
-                                .names(List.of(targetName))
-                                .metadataFilter(filter)
-                                .build());
-                        graphStore.addEdge(addInfo);
-                    }
+                    batch.putRelationship(sourceName, targetName, edgeDescription, weight, chunkId, metadata);
                 }
             }
         }
+        return filterToBatch;
+    }
 
-        log.info("Finished storing {} text segments into the graph store", segments.size());
+    /**
+     * 将合并后的实体及关系与图数据库中已存在的数据进行合并，然后批量写入
+     *
+     * @param batch 同一过滤条件（如同一知识库）下的实体及关系
+     */
+    private void flush(GraphBatch batch) {
+        log.info("Flush graph batch,vertices:{},edges:{}", batch.vertices.size(), batch.edges.size());
+        //实体如果不存在图数据库中，插入一个新的实体，否则追加textSegmentId、description以及metadata中指定的内容
+        ExistVertices existVertices = searchVertices(batch.nameToKey.keySet(), batch.filter);
+        List<GraphVertex> newVertices = new ArrayList<>();
+        List<GraphVertex> updateVertices = new ArrayList<>();
+        for (Map.Entry<Pair<String, String>, GraphVertex> entry : batch.vertices.entrySet()) {
+            GraphVertex vertex = entry.getValue();
+            GraphVertex existVertex = existVertices.get(entry.getKey());
+            if (null == existVertex) {
+                newVertices.add(vertex);
+            } else if (StringUtils.isNotBlank(vertex.getTextSegmentId())) {
+                //仅作为关系端点出现的实体无需更新已存在的顶点
+                appendExistsToNewOne(existVertex.getMetadata(), vertex.getMetadata());
+                updateVertices.add(GraphVertex.builder()
+                        .id(existVertex.getId())
+                        .label(existVertex.getLabel())
+                        .name(existVertex.getName())
+                        .textSegmentId(appendTextSegmentId(existVertex.getTextSegmentId(), vertex.getTextSegmentId()))
+                        .description(appendDescription(existVertex.getDescription(), vertex.getDescription()))
+                        .metadata(vertex.getMetadata())
+                        .build());
+            }
+        }
+        graphStore.addVerticesInBatch(newVertices);
+        graphStore.updateVerticesInBatch(updateVertices);
+
+        if (batch.edges.isEmpty()) {
+            return;
+        }
+        if (!newVertices.isEmpty()) {
+            existVertices = searchVertices(batch.nameToKey.keySet(), batch.filter);
+        }
+        Map<Pair<Long, Long>, GraphEdge> vertexIdsToEdge = new LinkedHashMap<>();
+        for (GraphEdge edge : batch.edges.values()) {
+            GraphVertex source = existVertices.get(batch.nameToKey.get(edge.getSourceName()));
+            GraphVertex target = existVertices.get(batch.nameToKey.get(edge.getTargetName()));
+            if (null == source || null == target) {
+                log.warn("Vertex of edge not found,sourceName:{},targetName:{}", edge.getSourceName(), edge.getTargetName());
+                continue;
+            }
+            edge.setStartId(source.getId());
+            edge.setEndId(target.getId());
+            vertexIdsToEdge.put(Pair.of(source.getId(), target.getId()), edge);
+        }
+        Map<Pair<Long, Long>, GraphEdge> existEdges = new HashMap<>();
+        for (GraphEdge existEdge : graphStore.searchEdgesByVertexIds(vertexIdsToEdge.keySet())) {
+            existEdges.putIfAbsent(Pair.of(existEdge.getStartId(), existEdge.getEndId()), existEdge);
+        }
+        List<GraphEdge> newEdges = new ArrayList<>();
+        List<GraphEdge> updateEdges = new ArrayList<>();
+        for (Map.Entry<Pair<Long, Long>, GraphEdge> entry : vertexIdsToEdge.entrySet()) {
+            GraphEdge edge = entry.getValue();
+            GraphEdge existEdge = existEdges.get(entry.getKey());
+            if (null == existEdge) {
+                newEdges.add(edge);
+            } else {
+                appendExistsToNewOne(existEdge.getMetadata(), edge.getMetadata());
+                updateEdges.add(GraphEdge.builder()
+                        .id(existEdge.getId())
+                        .sourceName(edge.getSourceName())
+                        .targetName(edge.getTargetName())
+                        .weight(existEdge.getWeight() + edge.getWeight())
+                        .textSegmentId(appendTextSegmentId(existEdge.getTextSegmentId(), edge.getTextSegmentId()))
+                        .description(appendDescription(existEdge.getDescription(), edge.getDescription()))
+                        .metadata(edge.getMetadata())
+                        .build());
+            }
+        }
+        graphStore.addEdgesInBatch(newEdges);
+        graphStore.updateEdgesInBatch(updateEdges);
+    }
+
+    /**
+     * 按名称查询顶点
+     */
+    private ExistVertices searchVertices(Collection<String> names, Filter filter) {
+        ExistVertices result = new ExistVertices();
+        graphStore.searchVerticesByNames(names, filter).forEach(result::add);
+        return result;
+    }
+
+    private static String appendTextSegmentId(String exist, String textSegmentId) {
+        if (StringUtils.isBlank(exist)) {
+            return textSegmentId;
+        }
+        if (StringUtils.isBlank(textSegmentId) || Arrays.asList(exist.split(",")).contains(textSegmentId)) {
+            return exist;
+        }
+        return exist + "," + textSegmentId;
+    }
+
+    private static String appendDescription(String exist, String description) {
+        if (StringUtils.isBlank(exist)) {
+            return description;
+        }
+        if (StringUtils.isBlank(description)) {
+            return exist;
+        }
+        return exist + "\n" + description;
     }
 
     private void appendExistsToNewOne(Map<String, Object> existMetadata, Map<String, Object> newMetadata) {
@@ -299,4 +398,118 @@ public class GraphStoreIngestor {
             }
         }
     }
+
+    /**
+     * 图数据库中已存在的顶点，同一名称及标签的顶点取id最大的一个
+     */
+    private static class ExistVertices {
+        private final Map<Pair<String, String>, GraphVertex> keyToVertex = new HashMap<>();
+        private final Map<String, GraphVertex> nameToVertex = new HashMap<>();
+
+        void add(GraphVertex vertex) {
+            keyToVertex.merge(Pair.of(vertex.getName(), ApacheAgeGraphStore.toLabel(vertex.getLabel())), vertex, ExistVertices::newer);
+            nameToVertex.merge(vertex.getName(), vertex, ExistVertices::newer);
+        }
+
+        /**
+         * 有标签时按名称及标签精确匹配，无标签（如仅作为关系端点出现的实体）时匹配任一同名顶点
+         *
+         * @param key 名称及标签
+         * @return 已存在的顶点，不存在时返回null
+         */
+        GraphVertex get(Pair<String, String> key) {
+            if (null == key) {
+                return null;
+            }
+            return StringUtils.isBlank(key.getRight()) ? nameToVertex.get(key.getLeft()) : keyToVertex.get(key);
+        }
+
+        private static GraphVertex newer(GraphVertex v1, GraphVertex v2) {
+            return v1.getId() > v2.getId() ? v1 : v2;
+        }
+    }
+
+    /**
+     * 同一过滤条件下待写入的实体及关系，实体按名称及类型（标签）去重合并，关系按起点终点名称去重合并
+     * <br/>同名不同类型的实体是不同的顶点；关系的端点只有名称，取该名称第一次出现时对应的实体，该名称没有作为实体出现过时为无标签的顶点
+     */
+    private class GraphBatch {
+        private final Filter filter;
+        /**
+         * (名称,标签) => 顶点
+         */
+        private final Map<Pair<String, String>, GraphVertex> vertices = new LinkedHashMap<>();
+        /**
+         * 名称 => 关系端点对应的(名称,标签)
+         */
+        private final Map<String, Pair<String, String>> nameToKey = new LinkedHashMap<>();
+        private final Map<Pair<String, String>, GraphEdge> edges = new LinkedHashMap<>();
+
+        GraphBatch(Filter filter) {
+            this.filter = filter;
+        }
+
+        void putEntity(String name, String entityType, String description, String textSegmentId, Map<String, Object> metadata) {
+            String label = ApacheAgeGraphStore.toLabel(entityType);
+            Pair<String, String> key = Pair.of(name, label);
+            Pair<String, String> placeholderKey = Pair.of(name, "");
+            //之前只作为关系端点出现过，转为当前类型的实体
+            if (StringUtils.isNotBlank(label) && !vertices.containsKey(key) && vertices.containsKey(placeholderKey)
+                    && StringUtils.isBlank(vertices.get(placeholderKey).getTextSegmentId())) {
+                GraphVertex placeholder = vertices.remove(placeholderKey);
+                placeholder.setLabel(label);
+                vertices.put(key, placeholder);
+                nameToKey.put(name, key);
+            }
+            nameToKey.putIfAbsent(name, key);
+            GraphVertex vertex = vertices.get(key);
+            if (null == vertex) {
+                vertices.put(key, GraphVertex.builder()
+                        .label(label)
+                        .name(name)
+                        .description(description)
+                        .textSegmentId(textSegmentId)
+                        .metadata(new HashMap<>(metadata))
+                        .build());
+                return;
+            }
+            vertex.setDescription(appendDescription(vertex.getDescription(), description));
+            vertex.setTextSegmentId(appendTextSegmentId(vertex.getTextSegmentId(), textSegmentId));
+            Map<String, Object> newMetadata = new HashMap<>(metadata);
+            appendExistsToNewOne(vertex.getMetadata(), newMetadata);
+            vertex.setMetadata(newMetadata);
+        }
+
+        void putRelationship(String sourceName, String targetName, String description, double weight, String textSegmentId, Map<String, Object> metadata) {
+            putEndpoint(sourceName, metadata);
+            putEndpoint(targetName, metadata);
+            GraphEdge edge = edges.get(Pair.of(sourceName, targetName));
+            if (null == edge) {
+                edges.put(Pair.of(sourceName, targetName), GraphEdge.builder()
+                        .sourceName(sourceName)
+                        .targetName(targetName)
+                        .weight(weight)
+                        .metadata(new HashMap<>(metadata))
+                        .textSegmentId(textSegmentId)
+                        .description(description)
+                        .build());
+                return;
+            }
+            edge.setWeight(edge.getWeight() + weight);
+            edge.setDescription(appendDescription(edge.getDescription(), description));
+            edge.setTextSegmentId(appendTextSegmentId(edge.getTextSegmentId(), textSegmentId));
+            Map<String, Object> newMetadata = new HashMap<>(metadata);
+            appendExistsToNewOne(edge.getMetadata(), newMetadata);
+            edge.setMetadata(newMetadata);
+        }
+
+        private void putEndpoint(String name, Map<String, Object> metadata) {
+            if (nameToKey.containsKey(name)) {
+                return;
+            }
+            Pair<String, String> key = Pair.of(name, "");
+            nameToKey.put(name, key);
+            vertices.put(key, GraphVertex.builder().label("").name(name).metadata(new HashMap<>(metadata)).build());
+        }
+    }
 }
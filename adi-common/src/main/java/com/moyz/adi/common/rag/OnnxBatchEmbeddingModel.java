@@ -0,0 +1,206 @@
+package com.moyz.adi.common.rag;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.AbstractInProcessEmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.OnnxBertBiEncoder;
+import dev.langchain4j.model.embedding.onnx.PoolingMode;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * 本地ONNX向量模型（BERT类，mean pooling），一批文本段只执行一次推理
+ * <br/>langchain4j的AbstractInProcessEmbeddingModel对每个文本段单独执行一次推理，此处把一批文本段补齐到相同长度后合并为一个输入，
+ * 按attention mask求平均并归一化，结果与langchain4j一致
+ * <br/>超过模型最大长度（{@value #MAX_SEQUENCE_LENGTH}个token）的文本段仍交给langchain4j处理（分段推理后加权平均），两者共用同一个OrtSession
+ */
+@Slf4j
+public class OnnxBatchEmbeddingModel implements EmbeddingModel {
+
+    /**
+     * 与langchain4j的OnnxBertBiEncoder一致
+     */
+    private static final int MAX_SEQUENCE_LENGTH = 510;
+
+    private final OrtEnvironment environment;
+
+    private final OrtSession session;
+
+    private final HuggingFaceTokenizer tokenizer;
+
+    private final boolean withTokenTypeIds;
+
+    /**
+     * 处理超长文本段
+     */
+    private final EmbeddingModel longTextModel;
+
+    /**
+     * @param modelResource     classpath中的onnx模型文件
+     * @param tokenizerResource classpath中的tokenizer文件
+     */
+    public OnnxBatchEmbeddingModel(String modelResource, String tokenizerResource) {
+        try {
+            this.environment = OrtEnvironment.getEnvironment();
+            this.session = environment.createSession(readResource(modelResource));
+            this.withTokenTypeIds = session.getInputNames().contains("token_type_ids");
+            try (InputStream tokenizerStream = openResource(tokenizerResource)) {
+                this.tokenizer = HuggingFaceTokenizer.newInstance(tokenizerStream, Map.of("padding", "false"));
+            }
+            OnnxBertBiEncoder encoder;
+            try (InputStream tokenizerStream = openResource(tokenizerResource)) {
+                encoder = new OnnxBertBiEncoder(environment, session, tokenizerStream, PoolingMode.MEAN);
+            }
+            this.longTextModel = new AbstractInProcessEmbeddingModel(Runnable::run) {
+                @Override
+                protected OnnxBertBiEncoder model() {
+                    return encoder;
+                }
+            };
+        } catch (OrtException | IOException e) {
+            throw new RuntimeException("Load onnx embedding model error,model:" + modelResource, e);
+        }
+        log.info("OnnxBatchEmbeddingModel loaded,model:{},inputs:{}", modelResource, withTokenTypeIds ? "input_ids,attention_mask,token_type_ids" : "input_ids,attention_mask");
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        Embedding[] result = new Embedding[textSegments.size()];
+        List<Integer> batchIndexes = new ArrayList<>();
+        List<Encoding> batchEncodings = new ArrayList<>();
+        int tokenCount = 0;
+        for (int i = 0; i < textSegments.size(); i++) {
+            TextSegment segment = textSegments.get(i);
+            Encoding encoding = tokenizer.encode(segment.text(), true, false);
+            if (encoding.getIds().length > MAX_SEQUENCE_LENGTH) {
+                Response<Embedding> response = longTextModel.embed(segment);
+                result[i] = response.content();
+                tokenCount += null == response.tokenUsage() || null == response.tokenUsage().inputTokenCount() ? 0 : response.tokenUsage().inputTokenCount();
+            } else {
+                batchIndexes.add(i);
+                batchEncodings.add(encoding);
+                tokenCount += encoding.getIds().length;
+            }
+        }
+        if (!batchEncodings.isEmpty()) {
+            float[][] vectors = embedBatch(batchEncodings);
+            for (int i = 0; i < batchIndexes.size(); i++) {
+                result[batchIndexes.get(i)] = Embedding.from(vectors[i]);
+            }
+        }
+        return Response.from(Arrays.asList(result), new TokenUsage(tokenCount));
+    }
+
+    @Override
+    public int dimension() {
+        return longTextModel.dimension();
+    }
+
+    public void close() {
+        tokenizer.close();
+        try {
+            session.close();
+        } catch (OrtException e) {
+            log.warn("Close onnx session error", e);
+        }
+    }
+
+    /**
+     * 把一批编码补齐到相同长度，执行一次推理
+     */
+    private float[][] embedBatch(List<Encoding> encodings) {
+        int batchSize = encodings.size();
+        int maxLength = encodings.stream().mapToInt(item -> item.getIds().length).max().orElse(0);
+        long[][] inputIds = new long[batchSize][maxLength];
+        long[][] attentionMask = new long[batchSize][maxLength];
+        long[][] tokenTypeIds = new long[batchSize][maxLength];
+        for (int i = 0; i < batchSize; i++) {
+            Encoding encoding = encodings.get(i);
+            int length = encoding.getIds().length;
+            System.arraycopy(encoding.getIds(), 0, inputIds[i], 0, length);
+            System.arraycopy(encoding.getAttentionMask(), 0, attentionMask[i], 0, length);
+            System.arraycopy(encoding.getTypeIds(), 0, tokenTypeIds[i], 0, length);
+        }
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input_ids", OnnxTensor.createTensor(environment, inputIds));
+            inputs.put("attention_mask", OnnxTensor.createTensor(environment, attentionMask));
+            if (withTokenTypeIds) {
+                inputs.put("token_type_ids", OnnxTensor.createTensor(environment, tokenTypeIds));
+            }
+            try (OrtSession.Result result = session.run(inputs)) {
+                float[][][] hiddenStates = (float[][][]) result.get(0).getValue();
+                float[][] vectors = new float[batchSize][];
+                for (int i = 0; i < batchSize; i++) {
+                    vectors[i] = normalize(meanPool(hiddenStates[i], attentionMask[i]));
+                }
+                return vectors;
+            }
+        } catch (OrtException e) {
+            throw new RuntimeException("Onnx embedding error,batchSize:" + batchSize, e);
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+
+    private static float[] meanPool(float[][] tokenVectors, long[] attentionMask) {
+        int dimension = tokenVectors[0].length;
+        float[] result = new float[dimension];
+        int count = 0;
+        for (int i = 0; i < tokenVectors.length; i++) {
+            if (attentionMask[i] == 0) {
+                continue;
+            }
+            count++;
+            for (int j = 0; j < dimension; j++) {
+                result[j] += tokenVectors[i][j];
+            }
+        }
+        for (int j = 0; j < dimension; j++) {
+            result[j] /= Math.max(1, count);
+        }
+        return result;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double sumSquare = 0;
+        for (float value : vector) {
+            sumSquare += value * value;
+        }
+        float norm = (float) Math.sqrt(sumSquare);
+        if (norm == 0) {
+            return vector;
+        }
+        float[] result = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = vector[i] / norm;
+        }
+        return result;
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        try (InputStream inputStream = openResource(name)) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private static InputStream openResource(String name) throws IOException {
+        InputStream inputStream = OnnxBatchEmbeddingModel.class.getClassLoader().getResourceAsStream(name);
+        if (null == inputStream) {
+            throw new IOException("Resource not found:" + name);
+        }
+        return inputStream;
+    }
+}
@@ -0,0 +1,186 @@
+package com.moyz.adi.common.rag;
+
+import com.moyz.adi.common.util.InputAdaptor;
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Triple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+
+import static dev.langchain4j.internal.Utils.getOrDefault;
+import static dev.langchain4j.internal.ValidationUtils.ensureGreaterThanZero;
+import static dev.langchain4j.internal.ValidationUtils.ensureNotNull;
+
+/**
+ * 分阶段的向量化索引：切分 -> 向量化 -> 存储
+ * <br/>文档按段落边界分成若干窗口（每个窗口至多{windowSize}个字符）逐个切分，切分结果随即进入向量化阶段，内存中不保留整个文档的文本段
+ * <br/>向量化与存储两个阶段通过有界队列衔接，存储阶段跟不上时向量化阶段会阻塞等待（背压），
+ * 同一时间内存中只保留有限批次的向量；每批存储成功后回调进度，用于中断后从断点继续索引
+ */
+@Slf4j
+public class StreamingEmbeddingIngestor {
+
+    private static final int DEFAULT_BATCH_SIZE = 16;
+    private static final int DEFAULT_QUEUE_CAPACITY = 4;
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    /**
+     * 存储阶段的结束标记
+     */
+    private static final Triple<Integer, List<TextSegment>, List<Embedding>> END_OF_DOCUMENT = Triple.of(-1, List.of(), List.of());
+
+    private final DocumentSplitter documentSplitter;
+    private final EmbeddingModel embeddingModel;
+    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final int windowSize;
+
+    @Builder
+    public StreamingEmbeddingIngestor(DocumentSplitter documentSplitter,
+                                      EmbeddingModel embeddingModel,
+                                      EmbeddingStore<TextSegment> embeddingStore,
+                                      Integer batchSize,
+                                      Integer queueCapacity,
+                                      Integer windowSize) {
+        this.documentSplitter = ensureNotNull(documentSplitter, "documentSplitter");
+        this.embeddingModel = ensureNotNull(embeddingModel, "embeddingModel");
+        this.embeddingStore = ensureNotNull(embeddingStore, "embeddingStore");
+        this.batchSize = ensureGreaterThanZero(getOrDefault(batchSize, DEFAULT_BATCH_SIZE), "batchSize");
+        this.queueCapacity = ensureGreaterThanZero(getOrDefault(queueCapacity, DEFAULT_QUEUE_CAPACITY), "queueCapacity");
+        this.windowSize = ensureGreaterThanZero(getOrDefault(windowSize, DEFAULT_WINDOW_SIZE), "windowSize");
+    }
+
+    /**
+     * 索引文档
+     * <br/>窗口的划分只取决于文档内容，同一文档每次切分得到的文本段序号一致，可以按序号从断点继续
+     *
+     * @param document           文档
+     * @param fromSegmentIndex   从第几个文本段开始处理（之前的文本段已在上次索引中完成）
+     * @param checkpointConsumer 已完成存储的文本段数量
+     */
+    public void ingest(Document document, int fromSegmentIndex, IntConsumer checkpointConsumer) {
+        //Triple: 该批次处理完成后的进度,文本段,向量
+        BlockingQueue<Triple<Integer, List<TextSegment>, List<Embedding>>> storeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        ExecutorService storeStage = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "embedding-store-stage"));
+        Future<Long> storeFuture = storeStage.submit(() -> {
+            long storeNanos = 0;
+            while (true) {
+                Triple<Integer, List<TextSegment>, List<Embedding>> task = storeQueue.take();
+                if (task == END_OF_DOCUMENT) {
+                    return storeNanos;
+                }
+                long begin = System.nanoTime();
+                embeddingStore.addAll(task.getRight(), task.getMiddle());
+                storeNanos += System.nanoTime() - begin;
+                checkpointConsumer.accept(task.getLeft());
+            }
+        });
+        long embedNanos = 0;
+        try {
+            String text = document.text();
+            int segmentIndex = 0;
+            List<TextSegment> batch = new ArrayList<>(batchSize);
+            for (int windowStart = 0; windowStart < text.length(); ) {
+                int windowEnd = windowEnd(text, windowStart);
+                String windowText = text.substring(windowStart, windowEnd);
+                windowStart = windowEnd;
+                if (StringUtils.isBlank(windowText)) {
+                    continue;
+                }
+                List<TextSegment> windowSegments = documentSplitter.split(Document.from(windowText, document.metadata()));
+                for (TextSegment segment : windowSegments) {
+                    int index = segmentIndex++;
+                    if (index < fromSegmentIndex) {
+                        continue;
+                    }
+                    //文本段序号按整个文档编号；token数写入元数据，召回后调整上下文长度时无需重新计算
+                    segment.metadata().put("index", String.valueOf(index));
+                    batch.add(InputAdaptor.withTokenCount(segment));
+                    if (batch.size() == batchSize) {
+                        embedNanos += embedAndOffer(batch, index + 1, storeQueue, storeFuture);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                embedNanos += embedAndOffer(batch, segmentIndex, storeQueue, storeFuture);
+            }
+            offer(END_OF_DOCUMENT, storeQueue, storeFuture);
+            long storeNanos = storeFuture.get();
+            int total = Math.max(0, segmentIndex - fromSegmentIndex);
+            log.info("Embedding ingest finished,segments:{},start from:{},embed stage:{} segments/s,store stage:{} segments/s",
+                    total, fromSegmentIndex, throughput(total, embedNanos), throughput(total, storeNanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Embedding ingest interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Embedding ingest store stage error", e.getCause());
+        } finally {
+            storeStage.shutdownNow();
+        }
+    }
+
+    /**
+     * 向量化一批文本段并交给存储阶段
+     *
+     * @param progress 该批次存储完成后的进度
+     * @return 向量化耗时（纳秒）
+     */
+    private long embedAndOffer(List<TextSegment> batch, int progress,
+                               BlockingQueue<Triple<Integer, List<TextSegment>, List<Embedding>>> storeQueue,
+                               Future<Long> storeFuture) throws InterruptedException, ExecutionException {
+        long begin = System.nanoTime();
+        List<Embedding> embeddings = embeddingModel.embedAll(batch).content();
+        long embedNanos = System.nanoTime() - begin;
+        offer(Triple.of(progress, batch, embeddings), storeQueue, storeFuture);
+        return embedNanos;
+    }
+
+    private static void offer(Triple<Integer, List<TextSegment>, List<Embedding>> task,
+                              BlockingQueue<Triple<Integer, List<TextSegment>, List<Embedding>>> storeQueue,
+                              Future<Long> storeFuture) throws InterruptedException, ExecutionException {
+        //队列已满时等待存储阶段消费，存储阶段异常退出时不再继续等待
+        while (!storeQueue.offer(task, 1, TimeUnit.SECONDS)) {
+            if (storeFuture.isDone()) {
+                storeFuture.get();
+            }
+        }
+    }
+
+    /**
+     * 窗口结束位置：优先在段落边界（空行）处截断，其次在换行处，都没有时按窗口大小截断
+     */
+    private int windowEnd(String text, int windowStart) {
+        int limit = windowStart + windowSize;
+        if (limit >= text.length()) {
+            return text.length();
+        }
+        int paragraphEnd = text.lastIndexOf("\n\n", limit);
+        if (paragraphEnd > windowStart) {
+            return paragraphEnd + 2;
+        }
+        int lineEnd = text.lastIndexOf('\n', limit);
+        if (lineEnd > windowStart) {
+            return lineEnd + 1;
+        }
+        return limit;
+    }
+
+    private static long throughput(int segments, long nanos) {
+        if (nanos <= 0) {
+            return segments;
+        }
+        return segments * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+}
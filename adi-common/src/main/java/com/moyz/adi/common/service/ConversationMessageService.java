@@ -66,6 +66,13 @@ public class ConversationMessageService extends ServiceImpl<ConversationMessageM
         return sseEmitter;
     }
 
+    /**
+     * 停止当前用户正在进行的流式请求（对话、知识库问答、搜索、工作流）
+     */
+    public void stop() {
+        sseEmitterHelper.stop(ThreadContext.getCurrentUserId());
+    }
+
     private boolean checkConversation(SseEmitter sseEmitter, User user, AskReq askReq) {
         try {
 
@@ -212,6 +219,7 @@ public class ConversationMessageService extends ServiceImpl<ConversationMessageM
         aiAnswer.setMessageRole(ChatMessageRoleEnum.ASSISTANT.getValue());
         aiAnswer.setRemark(response);
         aiAnswer.setTokens(answerMeta.getTokens());
+        aiAnswer.setIsCancelled(answerMeta.isCancelled());
         aiAnswer.setParentMessageId(promptMsg.getId());
         aiAnswer.setAiModelId(aiModel.getId());
         baseMapper.insert(aiAnswer);
@@ -225,10 +233,7 @@ public class ConversationMessageService extends ServiceImpl<ConversationMessageM
         int todayTokenCost = questionMeta.getTokens() + answerMeta.getTokens();
         try {
             //calculate conversation tokens
-            conversationService.lambdaUpdate()
-                    .eq(Conversation::getId, conversation.getId())
-                    .set(Conversation::getTokens, conversation.getTokens() + todayTokenCost)
-                    .update();
+            conversationService.appendTokens(conversation.getId(), todayTokenCost);
 
             userDayCostService.appendCostToUser(user, todayTokenCost, isFreeToken);
         } catch (Exception e) {
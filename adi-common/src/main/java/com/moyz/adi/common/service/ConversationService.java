@@ -10,16 +10,20 @@ import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.mapper.ConversationMapper;
 import com.moyz.adi.common.util.MPPageUtil;
 import com.moyz.adi.common.util.UuidUtil;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static com.moyz.adi.common.enums.ErrorEnum.*;
@@ -48,6 +52,59 @@ public class ConversationService extends ServiceImpl<ConversationMapper, Convers
     @Resource
     private FileService fileService;
 
+    /**
+     * 每次批量写入数据库的会话数
+     */
+    private static final int FLUSH_BATCH_SIZE = 500;
+
+    /**
+     * 会话id => 待累加到数据库的token数
+     */
+    private final Map<Long, Integer> pendingTokens = new ConcurrentHashMap<>();
+
+    /**
+     * 累加会话消耗的token数，由{@link #flushPendingTokens()}定时批量写入数据库
+     *
+     * @param conversationId 会话id
+     * @param tokens         token数
+     */
+    public void appendTokens(long conversationId, int tokens) {
+        if (tokens <= 0) {
+            return;
+        }
+        pendingTokens.merge(conversationId, tokens, Integer::sum);
+    }
+
+    @Scheduled(fixedDelayString = "${adi.usage.flush-interval-millis:5000}")
+    public void flushPendingTokens() {
+        if (pendingTokens.isEmpty()) {
+            return;
+        }
+        List<Conversation> conversations = new ArrayList<>();
+        for (Long conversationId : pendingTokens.keySet()) {
+            Integer tokens = pendingTokens.remove(conversationId);
+            if (null != tokens) {
+                Conversation conversation = new Conversation();
+                conversation.setId(conversationId);
+                conversation.setTokens(tokens);
+                conversations.add(conversation);
+            }
+        }
+        for (List<Conversation> batch : ListUtils.partition(conversations, FLUSH_BATCH_SIZE)) {
+            try {
+                baseMapper.batchAppendTokens(batch);
+            } catch (Exception e) {
+                log.error("Flush conversation tokens error,size:{}", batch.size(), e);
+                batch.forEach(item -> pendingTokens.merge(item.getId(), item.getTokens(), Integer::sum));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flushPendingTokens();
+    }
+
     public Page<ConvDto> search(ConvSearchReq convSearchReq, int currentPage, int pageSize) {
         Page<Conversation> page = this.lambdaQuery()
                 .eq(Conversation::getIsDeleted, false)
@@ -60,7 +60,7 @@ public class DashScopeLLMService extends AbstractLLMService<DashScopeSetting> {
     }
 
     @Override
-    public StreamingChatLanguageModel buildStreamingChatLLM(LLMBuilderProperties properties) {
+    protected StreamingChatLanguageModel doBuildStreamingChatLLM(LLMBuilderProperties properties) {
         if (StringUtils.isBlank(modelPlatformSetting.getApiKey())) {
             throw new BaseException(B_LLM_SECRET_KEY_NOT_SET);
         }
@@ -1,7 +1,5 @@
 package com.moyz.adi.common.service;
 
-import cn.hutool.core.img.Img;
-import cn.hutool.core.io.FileUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.moyz.adi.common.base.ThreadContext;
@@ -10,13 +8,13 @@ import com.moyz.adi.common.dto.*;
 import com.moyz.adi.common.entity.*;
 import com.moyz.adi.common.enums.ErrorEnum;
 import com.moyz.adi.common.exception.BaseException;
+import com.moyz.adi.common.helper.ImageDerivativeHelper;
 import com.moyz.adi.common.helper.ImageModelContext;
 import com.moyz.adi.common.helper.QuotaHelper;
 import com.moyz.adi.common.helper.RateLimitHelper;
 import com.moyz.adi.common.interfaces.AbstractImageModelService;
 import com.moyz.adi.common.mapper.DrawMapper;
 import com.moyz.adi.common.util.LocalCache;
-import com.moyz.adi.common.util.LocalDateTimeUtil;
 import com.moyz.adi.common.util.PrivilegeUtil;
 import com.moyz.adi.common.util.UuidUtil;
 import jakarta.annotation.Resource;
@@ -32,7 +30,6 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
-import java.awt.*;
 import java.text.MessageFormat;
 import java.time.LocalDateTime;
 import java.util.List;
@@ -71,6 +68,9 @@ public class DrawService extends ServiceImpl<DrawMapper, Draw> {
     @Resource
     private QuotaHelper quotaHelper;
 
+    @Resource
+    private ImageDerivativeHelper imageDerivativeHelper;
+
     @Resource
     private RateLimitHelper rateLimitHelper;
 
@@ -104,8 +104,8 @@ public class DrawService extends ServiceImpl<DrawMapper, Draw> {
             throw new BaseException(A_DRAWING);
         }
 
-        String requestTimesKey = MessageFormat.format(RedisKeyConstant.USER_REQUEST_TEXT_TIMES, user.getId());
-        if (!rateLimitHelper.checkRequestTimes(requestTimesKey, LocalCache.TEXT_RATE_LIMIT_CONFIG)) {
+        String requestTimesKey = MessageFormat.format(RedisKeyConstant.USER_REQUEST_IMAGE_TIMES, user.getId());
+        if (!rateLimitHelper.tryAcquire(requestTimesKey, LocalCache.IMAGE_RATE_LIMIT_CONFIG)) {
             throw new BaseException(A_REQUEST_TOO_MUCH);
         }
         ErrorEnum errorEnum = quotaHelper.checkImageQuota(user, false);
@@ -210,10 +210,6 @@ public class DrawService extends ServiceImpl<DrawMapper, Draw> {
         stringRedisTemplate.opsForValue().set(drawingKey, "1", 30, TimeUnit.SECONDS);
 
         try {
-            //Increase the number of the request
-            String requestTimesKey = MessageFormat.format(RedisKeyConstant.USER_REQUEST_TEXT_TIMES, user.getId());
-            rateLimitHelper.increaseRequestTimes(requestTimesKey, LocalCache.IMAGE_RATE_LIMIT_CONFIG);
-
             AbstractImageModelService<?> imageModelService = ImageModelContext.getModelService(draw.getAiModelName());
             List<String> images;
             if (draw.getInteractingMethod() == INTERACTING_METHOD_EDIT_IMAGE) {
@@ -237,19 +233,7 @@ public class DrawService extends ServiceImpl<DrawMapper, Draw> {
             updateDrawSuccess(draw.getId(), respImagesPath, imageUuidsJoin);
 
             //Update the cost of current user
-            boolean modelIsFree = imageModelService.getAiModel().getIsFree();
-            UserDayCost userDayCost = userDayCostService.getTodayCost(user, modelIsFree);
-            UserDayCost saveOrUpdateInst = new UserDayCost();
-            if (null == userDayCost) {
-                saveOrUpdateInst.setUserId(user.getId());
-                saveOrUpdateInst.setDay(LocalDateTimeUtil.getToday());
-                saveOrUpdateInst.setDrawTimes(1);
-            } else {
-                saveOrUpdateInst.setId(userDayCost.getId());
-                saveOrUpdateInst.setDrawTimes(userDayCost.getDrawTimes() + 1);
-            }
-            saveOrUpdateInst.setIsFree(modelIsFree);
-            userDayCostService.saveOrUpdate(saveOrUpdateInst);
+            userDayCostService.appendDrawToUser(user, imageModelService.getAiModel().getIsFree());
         } catch (BaseException e) {
             log.error("createFromRemote error", e);
             updateDrawFail(draw.getId(), e.getMessage());
@@ -643,17 +627,11 @@ public class DrawService extends ServiceImpl<DrawMapper, Draw> {
 
     public DrawDto setDrawPublic(String uuid, Boolean isPublic, Boolean withWatermark) {
         Draw draw = PrivilegeUtil.checkAndGetByUuid(uuid, this.query(), A_AI_IMAGE_NOT_FOUND);
-        //生成水印
-        if (BooleanUtils.isTrue(withWatermark)) {
-            AdiFile adiFile = fileService.getFile(uuid);
-            String markImagePath = fileService.getWatermarkImagesPath(adiFile);
-            if (!FileUtil.exist(markImagePath)) {
-                Img.from(FileUtil.file(adiFile.getPath())).setPositionBaseCentre(false).pressText(
-                        ThreadContext.getCurrentUser().getName() + "|" + adiHost, Color.WHITE,
-                        null,
-                        0,
-                        0,
-                        0.4f);
+        //预先生成水印图片，公开的图片被访问时直接读取
+        if (BooleanUtils.isTrue(withWatermark) && StringUtils.isNotBlank(draw.getGeneratedImages())) {
+            String watermarkText = getWatermarkText(ThreadContext.getCurrentUser().getName());
+            for (String imageUuid : draw.getGeneratedImages().split(",")) {
+                imageDerivativeHelper.pregenerateWatermark(fileService.getFile(imageUuid), watermarkText);
             }
         }
         this.lambdaUpdate()
@@ -664,6 +642,16 @@ public class DrawService extends ServiceImpl<DrawMapper, Draw> {
         return getOrThrow(uuid);
     }
 
+    /**
+     * 图片的水印文字
+     *
+     * @param userName 绘图任务所属用户的名称
+     * @return 水印文字
+     */
+    public String getWatermarkText(String userName) {
+        return userName + "|" + adiHost;
+    }
+
     public DrawDto toggleStar(String uuid) {
         DrawDto draw = getOrThrow(uuid);
         drawStarService.toggle(draw.getId(), ThreadContext.getCurrentUserId());
@@ -7,21 +7,21 @@ import com.moyz.adi.common.entity.User;
 import com.moyz.adi.common.enums.ErrorEnum;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.helper.AdiFileHelper;
+import com.moyz.adi.common.helper.ImageDerivativeHelper;
 import com.moyz.adi.common.mapper.FileMapper;
 import com.moyz.adi.common.util.HashUtil;
-import com.moyz.adi.common.util.LocalFileUtil;
 import com.moyz.adi.common.util.UuidUtil;
+import com.moyz.adi.common.vo.SaveLocalFileResult;
 import com.moyz.adi.common.vo.SaveRemoteImageResult;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.awt.image.BufferedImage;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -55,8 +55,21 @@ public class FileService extends ServiceImpl<FileMapper, AdiFile> {
     @Resource
     private AdiFileHelper adiFileHelper;
 
+    @Resource
+    private ImageDerivativeHelper imageDerivativeHelper;
+
+    /**
+     * 保存上传的文件
+     * <br/>文件以流的方式写入磁盘并同时计算sha256，之后再按sha256去重，与已有文件重复时删除刚保存的文件
+     *
+     * @param file  上传的文件
+     * @param image 是否图片
+     * @return 文件记录
+     */
     public AdiFile saveFile(MultipartFile file, boolean image) {
-        String sha256 = HashUtil.sha256(file);
+        String uuid = UuidUtil.createShort();
+        SaveLocalFileResult localFile = adiFileHelper.saveToLocal(file, image, uuid);
+        String sha256 = localFile.getSha256();
         Optional<AdiFile> existFile = this.lambdaQuery()
                 .eq(AdiFile::getSha256, sha256)
                 .eq(AdiFile::getIsDeleted, false)
@@ -66,23 +79,25 @@ public class FileService extends ServiceImpl<FileMapper, AdiFile> {
             AdiFile adiFile = existFile.get();
             boolean exist = adiFileHelper.checkIfExist(adiFile);
             if (exist) {
+                adiFileHelper.deleteLocal(localFile.getPath());
                 return adiFile;
             } else {
                 log.warn("文件不存在,删除记录以便后续重新生成,fileId:{},uuid:{},sha256:{}", adiFile.getId(), adiFile.getUuid(), adiFile.getSha256());
                 this.lambdaUpdate().eq(AdiFile::getId, adiFile.getId()).set(AdiFile::getIsDeleted, true).update();
             }
         }
-        String uuid = UuidUtil.createShort();
-        Pair<String, String> originalFile = adiFileHelper.save(file, image, uuid);
         AdiFile adiFile = new AdiFile();
         adiFile.setName(file.getOriginalFilename());
         adiFile.setUuid(uuid);
         adiFile.setSha256(sha256);
-        adiFile.setPath(originalFile.getLeft());
-        adiFile.setExt(originalFile.getRight());
+        adiFile.setPath(adiFileHelper.store(localFile, uuid));
+        adiFile.setExt(localFile.getExt());
         adiFile.setUserId(ThreadContext.getCurrentUserId());
         adiFile.setStorageLocation(AdiFileHelper.getStorageLocation());
         this.getBaseMapper().insert(adiFile);
+        if (image) {
+            imageDerivativeHelper.pregenerate(adiFile);
+        }
         return adiFile;
     }
 
@@ -99,6 +114,7 @@ public class FileService extends ServiceImpl<FileMapper, AdiFile> {
         adiFile.setExt(saveResult.getExt());
         adiFile.setStorageLocation(AdiFileHelper.getStorageLocation());
         this.getBaseMapper().insert(adiFile);
+        imageDerivativeHelper.pregenerate(adiFile);
         return uuid;
     }
 
@@ -131,13 +147,13 @@ public class FileService extends ServiceImpl<FileMapper, AdiFile> {
     }
 
     /**
-     * 读取图片到BufferedImage，管理员或图片拥有者才有权限查看
+     * 获取本地图片文件，管理员或图片拥有者才有权限查看
      *
      * @param uuid      图片uuid
-     * @param thumbnail 读取的是缩略图
-     * @return 图片内容
+     * @param thumbnail 获取的是缩略图
+     * @return 本地文件
      */
-    public BufferedImage readMyImage(String uuid, boolean thumbnail) {
+    public File getMyImageFile(String uuid, boolean thumbnail) {
         if (StringUtils.isBlank(ThreadContext.getToken())) {
             throw new BaseException(A_AI_IMAGE_NO_AUTH);
         }
@@ -148,17 +164,45 @@ public class FileService extends ServiceImpl<FileMapper, AdiFile> {
         if (null == adiFile) {
             throw new BaseException(A_FILE_NOT_EXIST);
         }
-        return LocalFileUtil.readLocalImage(adiFile, thumbnail, thumbnailsPath);
+        return getLocalImageFile(adiFile, thumbnail);
+    }
+
+    public File getImageFile(String uuid, boolean thumbnail) {
+        AdiFile adiFile = this.lambdaQuery()
+                .eq(AdiFile::getUuid, uuid)
+                .oneOpt().orElse(null);
+        if (null == adiFile) {
+            throw new BaseException(A_FILE_NOT_EXIST);
+        }
+        return getLocalImageFile(adiFile, thumbnail);
     }
 
-    public BufferedImage readImage(String uuid, boolean thumbnail) {
+    /**
+     * 获取带水印的本地图片文件
+     *
+     * @param uuid          图片uuid
+     * @param thumbnail     获取的是缩略图
+     * @param watermarkText 水印文字
+     * @return 本地文件
+     */
+    public File getWatermarkImageFile(String uuid, boolean thumbnail, String watermarkText) {
         AdiFile adiFile = this.lambdaQuery()
                 .eq(AdiFile::getUuid, uuid)
                 .oneOpt().orElse(null);
         if (null == adiFile) {
             throw new BaseException(A_FILE_NOT_EXIST);
         }
-        return LocalFileUtil.readLocalImage(adiFile, thumbnail, thumbnailsPath);
+        return imageDerivativeHelper.getWatermarkImage(adiFile, thumbnail, watermarkText);
+    }
+
+    /**
+     * 获取本地图片文件，缩略图一般在图片保存时已预先生成
+     */
+    private File getLocalImageFile(AdiFile adiFile, boolean thumbnail) {
+        if (thumbnail) {
+            return imageDerivativeHelper.getThumbnail(adiFile);
+        }
+        return new File(adiFile.getPath());
     }
 
     public String getImagePath(String uuid) {
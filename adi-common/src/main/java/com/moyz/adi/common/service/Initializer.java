@@ -30,6 +30,9 @@ public class Initializer {
     @Resource
     private AliyunOssHelper aliyunOssHelper;
 
+    @Resource
+    private KnowledgeBaseEmbeddingService knowledgeBaseEmbeddingService;
+
     /**
      * 应用初始化
      */
@@ -37,6 +40,7 @@ public class Initializer {
     public void init() {
         sysConfigService.loadAndCache();
         aiModelService.init();
+        knowledgeBaseEmbeddingService.createFullTextIndex();
     }
 
     /**
@@ -3,20 +3,35 @@ package com.moyz.adi.common.service;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.moyz.adi.common.dto.KbEmbeddingKeywordHit;
 import com.moyz.adi.common.dto.KbItemEmbeddingDto;
 import com.moyz.adi.common.entity.KnowledgeBaseEmbedding;
 import com.moyz.adi.common.mapper.KnowledgeBaseEmbeddingMapper;
+import com.moyz.adi.common.util.FullTextQueryUtil;
+import com.moyz.adi.common.util.JsonUtil;
 import com.moyz.adi.common.util.MPPageUtil;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 @Slf4j
 @Service
 public class KnowledgeBaseEmbeddingService extends ServiceImpl<KnowledgeBaseEmbeddingMapper, KnowledgeBaseEmbedding> {
 
+    /**
+     * 全文检索的文本段至少命中问题中多少比例的关键词
+     */
+    @Value("${adi.rag.keyword-min-term-ratio:0.5}")
+    private double keywordMinTermRatio;
+
     public List<KnowledgeBaseEmbedding> listByEmbeddingIds(List<String> embeddingIds) {
         LambdaQueryWrapper<KnowledgeBaseEmbedding> lambdaQueryWrapper = new LambdaQueryWrapper<>();
         lambdaQueryWrapper.in(KnowledgeBaseEmbedding::getEmbeddingId, embeddingIds.stream().map(UUID::fromString).toList());
@@ -46,4 +61,40 @@ public class KnowledgeBaseEmbeddingService extends ServiceImpl<KnowledgeBaseEmbe
     public Integer countByKbUuid(String kbUuid) {
         return baseMapper.countByKbUuid(kbUuid);
     }
+
+    /**
+     * 对文本段进行全文检索，用于与向量检索组合成混合检索
+     *
+     * @param keyword      检索内容
+     * @param metadataCond 元数据过滤条件
+     * @param maxResults   最大返回数量
+     * @return 命中的关键词达到一定比例的文本段，按相关度倒序
+     */
+    public List<EmbeddingMatch<TextSegment>> searchByKeyword(String keyword, Map<String, String> metadataCond, int maxResults) {
+        List<String> terms = FullTextQueryUtil.toTerms(keyword);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int minMatchedTerms = Math.max(1, (int) Math.ceil(terms.size() * keywordMinTermRatio));
+        List<KbEmbeddingKeywordHit> hits = baseMapper.searchByKeyword(FullTextQueryUtil.toOrTsQuery(terms), terms, minMatchedTerms, metadataCond, maxResults);
+        return hits.stream()
+                .map(hit -> new EmbeddingMatch<>(hit.getScore(), hit.getEmbeddingId(), null,
+                        TextSegment.from(hit.getText(), Metadata.from(JsonUtil.toMap(hit.getMetadata())))))
+                .toList();
+    }
+
+    /**
+     * 创建文本段的全文检索索引（向量表由PgVectorEmbeddingStore自动创建，索引在启动时补充）
+     * <br/>索引包含simple分词器的分词结果及相邻两个汉字组成的词，替换只按simple分词的旧索引
+     */
+    public void createFullTextIndex() {
+        try {
+            baseMapper.createCjkBigramsFunction();
+            baseMapper.createFtsVectorFunction();
+            baseMapper.dropLegacyFullTextIndex();
+            baseMapper.createFullTextIndex();
+        } catch (Exception e) {
+            log.error("create full text index error", e);
+        }
+    }
 }
@@ -0,0 +1,448 @@
+package com.moyz.adi.common.service;
+
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.baomidou.mybatisplus.extension.toolkit.ChainWrappers;
+import com.moyz.adi.common.annotation.DistributeLock;
+import com.moyz.adi.common.base.ThreadContext;
+import com.moyz.adi.common.dto.KbImportJobDto;
+import com.moyz.adi.common.dto.KbImportJobItemDto;
+import com.moyz.adi.common.entity.*;
+import com.moyz.adi.common.enums.EmbeddingStatusEnum;
+import com.moyz.adi.common.enums.GraphicalStatusEnum;
+import com.moyz.adi.common.enums.KbImportStatusEnum;
+import com.moyz.adi.common.exception.BaseException;
+import com.moyz.adi.common.mapper.KnowledgeBaseImportJobItemMapper;
+import com.moyz.adi.common.mapper.KnowledgeBaseImportJobMapper;
+import com.moyz.adi.common.util.FairTaskDispatcher;
+import com.moyz.adi.common.util.UuidUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.moyz.adi.common.cosntant.AdiConstant.DOC_INDEX_TYPE_EMBEDDING;
+import static com.moyz.adi.common.cosntant.AdiConstant.DOC_INDEX_TYPE_GRAPHICAL;
+import static com.moyz.adi.common.cosntant.RedisKeyConstant.KB_IMPORT_JOB_RESUME_LOCK;
+import static com.moyz.adi.common.enums.ErrorEnum.A_DATA_NOT_FOUND;
+import static com.moyz.adi.common.enums.ErrorEnum.A_FILE_NOT_EXIST;
+
+/**
+ * 知识库批量导入任务
+ * <br/>1. 上传的文件在请求中保存（文件保存后才能释放上传的临时文件），解析及索引在kbImportExecutor中并行处理，请求立即返回任务
+ * <br/>2. 同时处理的文档数由adi.kb-import.concurrency控制，多个用户、同一用户的多个任务之间轮流处理（FairTaskDispatcher）
+ * <br/>3. 每个文档的状态及耗时记录在任务明细中，任务汇总成功、失败、跳过的数量及总耗时，用于计算吞吐量
+ * <br/>4. 处理中的任务定时刷新更新时间，服务重启等原因中断的任务（超过adi.kb-import.stale-minutes未更新）重新提交未完成的文档
+ */
+@Slf4j
+@Service
+public class KnowledgeBaseImportService extends ServiceImpl<KnowledgeBaseImportJobMapper, KnowledgeBaseImportJob> {
+
+    private static final int ERROR_MSG_MAX_LENGTH = 500;
+
+    @Value("${adi.kb-import.concurrency:4}")
+    private int concurrency;
+
+    @Value("${adi.kb-import.stale-minutes:10}")
+    private int staleMinutes;
+
+    @Resource(name = "kbImportExecutor")
+    private AsyncTaskExecutor kbImportExecutor;
+
+    @Resource
+    private KnowledgeBaseImportJobItemMapper jobItemMapper;
+
+    @Resource
+    private FileService fileService;
+
+    @Resource
+    private KnowledgeBaseItemService knowledgeBaseItemService;
+
+    @Lazy
+    @Resource
+    private KnowledgeBaseService knowledgeBaseService;
+
+    @Resource
+    private UserService userService;
+
+    private FairTaskDispatcher dispatcher;
+
+    @PostConstruct
+    public void init() {
+        dispatcher = new FairTaskDispatcher(kbImportExecutor, concurrency);
+    }
+
+    /**
+     * 创建导入任务：保存上传的文件并提交解析、索引
+     *
+     * @param knowledgeBase 知识库
+     * @param user          用户
+     * @param docs          文件
+     * @param indexTypes    索引类型，如embedding,graphical，为空时只解析不索引
+     * @return 导入任务
+     */
+    public KbImportJobDto createJob(KnowledgeBase knowledgeBase, User user, MultipartFile[] docs, List<String> indexTypes) {
+        KnowledgeBaseImportJob job = new KnowledgeBaseImportJob();
+        job.setUuid(UuidUtil.createShort());
+        job.setKbId(knowledgeBase.getId());
+        job.setKbUuid(knowledgeBase.getUuid());
+        job.setUserId(user.getId());
+        job.setIndexTypes(joinIndexTypes(indexTypes));
+        job.setStatus(KbImportStatusEnum.DOING);
+        job.setTotalCount(docs.length);
+        baseMapper.insert(job);
+
+        List<Long> pendingItemIds = new ArrayList<>();
+        int failCount = 0;
+        for (MultipartFile doc : docs) {
+            KnowledgeBaseImportJobItem item = new KnowledgeBaseImportJobItem();
+            item.setJobId(job.getId());
+            item.setFileName(StringUtils.defaultString(doc.getOriginalFilename()));
+            try {
+                AdiFile adiFile = fileService.saveFile(doc, false);
+                item.setFileId(adiFile.getId());
+                item.setStatus(KbImportStatusEnum.PENDING);
+            } catch (Exception e) {
+                log.warn("Save import file fail,jobUuid:{},fileName:{}", job.getUuid(), doc.getOriginalFilename(), e);
+                item.setStatus(KbImportStatusEnum.FAIL);
+                item.setErrorMsg(toErrorMsg(e));
+                failCount++;
+            }
+            jobItemMapper.insert(item);
+            if (item.getStatus() == KbImportStatusEnum.PENDING) {
+                pendingItemIds.add(item.getId());
+            }
+        }
+        if (failCount > 0) {
+            baseMapper.updateCountsById(job.getId());
+        }
+        if (pendingItemIds.isEmpty()) {
+            finishIfCompleted(job.getId());
+        } else {
+            submit(job, knowledgeBase, user, pendingItemIds);
+        }
+        log.info("Import job created,jobUuid:{},kbUuid:{},total:{},saveFail:{}", job.getUuid(), knowledgeBase.getUuid(), docs.length, failCount);
+        return toDto(baseMapper.selectById(job.getId()));
+    }
+
+    /**
+     * 查询导入任务的进度及吞吐量
+     *
+     * @param jobUuid 任务uuid
+     * @return 导入任务
+     */
+    public KbImportJobDto getJob(String jobUuid) {
+        return toDto(getMineOrThrow(jobUuid));
+    }
+
+    /**
+     * 查询导入任务中各文档的处理结果
+     *
+     * @param jobUuid     任务uuid
+     * @param currentPage 当前页数
+     * @param pageSize    每页数量
+     * @return 文档列表
+     */
+    public Page<KbImportJobItemDto> listItems(String jobUuid, Integer currentPage, Integer pageSize) {
+        KnowledgeBaseImportJob job = getMineOrThrow(jobUuid);
+        Page<KnowledgeBaseImportJobItem> page = ChainWrappers.lambdaQueryChain(jobItemMapper)
+                .eq(KnowledgeBaseImportJobItem::getJobId, job.getId())
+                .eq(KnowledgeBaseImportJobItem::getIsDeleted, false)
+                .orderByAsc(KnowledgeBaseImportJobItem::getId)
+                .page(new Page<>(currentPage, pageSize));
+        Page<KbImportJobItemDto> result = new Page<>(page.getCurrent(), page.getSize(), page.getTotal());
+        List<KbImportJobItemDto> records = new ArrayList<>();
+        for (KnowledgeBaseImportJobItem item : page.getRecords()) {
+            KbImportJobItemDto dto = new KbImportJobItemDto();
+            dto.setFileName(item.getFileName());
+            dto.setKbItemUuid(item.getKbItemUuid());
+            dto.setStatus(item.getStatus().getValue());
+            dto.setErrorMsg(item.getErrorMsg());
+            dto.setCostMillis(item.getCostMillis());
+            records.add(dto);
+        }
+        result.setRecords(records);
+        return result;
+    }
+
+    /**
+     * 查询当前用户的导入任务
+     *
+     * @param kbUuid      知识库uuid，为空时查询所有知识库
+     * @param currentPage 当前页数
+     * @param pageSize    每页数量
+     * @return 导入任务列表
+     */
+    public Page<KbImportJobDto> listMine(String kbUuid, Integer currentPage, Integer pageSize) {
+        Page<KnowledgeBaseImportJob> page = ChainWrappers.lambdaQueryChain(baseMapper)
+                .eq(KnowledgeBaseImportJob::getUserId, ThreadContext.getCurrentUserId())
+                .eq(StringUtils.isNotBlank(kbUuid), KnowledgeBaseImportJob::getKbUuid, kbUuid)
+                .eq(KnowledgeBaseImportJob::getIsDeleted, false)
+                .orderByDesc(KnowledgeBaseImportJob::getId)
+                .page(new Page<>(currentPage, pageSize));
+        Page<KbImportJobDto> result = new Page<>(page.getCurrent(), page.getSize(), page.getTotal());
+        result.setRecords(page.getRecords().stream().map(this::toDto).toList());
+        return result;
+    }
+
+    /**
+     * 刷新本节点处理中的任务的更新时间，用于判断任务是否已中断
+     */
+    @Scheduled(fixedDelay = 60 * 1000)
+    public void heartbeat() {
+        Set<String> activeJobs = dispatcher.activeJobs();
+        if (activeJobs.isEmpty()) {
+            return;
+        }
+        ChainWrappers.lambdaUpdateChain(baseMapper)
+                .in(KnowledgeBaseImportJob::getUuid, activeJobs)
+                .eq(KnowledgeBaseImportJob::getStatus, KbImportStatusEnum.DOING)
+                .set(KnowledgeBaseImportJob::getUpdateTime, LocalDateTime.now())
+                .update();
+        log.info("Import jobs heartbeat,jobs:{},running:{},queued:{}", activeJobs.size(), dispatcher.getRunning(), dispatcher.getQueued());
+    }
+
+    /**
+     * 恢复中断的导入任务（如服务重启导致），重新处理未完成的文档
+     */
+    @DistributeLock(redisKey = KB_IMPORT_JOB_RESUME_LOCK, expireInSeconds = 60, continueIfAcquireFail = false)
+    @Scheduled(initialDelay = 2 * 60 * 1000, fixedDelay = 5 * 60 * 1000)
+    public void resumeStaleJobs() {
+        List<KnowledgeBaseImportJob> jobs = ChainWrappers.lambdaQueryChain(baseMapper)
+                .eq(KnowledgeBaseImportJob::getStatus, KbImportStatusEnum.DOING)
+                .eq(KnowledgeBaseImportJob::getIsDeleted, false)
+                .lt(KnowledgeBaseImportJob::getUpdateTime, LocalDateTime.now().minusMinutes(staleMinutes))
+                .list();
+        Set<String> activeJobs = dispatcher.activeJobs();
+        for (KnowledgeBaseImportJob job : jobs) {
+            if (activeJobs.contains(job.getUuid())) {
+                continue;
+            }
+            KnowledgeBase knowledgeBase = knowledgeBaseService.getById(job.getKbId());
+            User user = userService.getByUserId(job.getUserId());
+            if (null == knowledgeBase || knowledgeBase.getIsDeleted() || null == user) {
+                log.warn("Import job can not be resumed,jobUuid:{}", job.getUuid());
+                continue;
+            }
+            ChainWrappers.lambdaUpdateChain(jobItemMapper)
+                    .eq(KnowledgeBaseImportJobItem::getJobId, job.getId())
+                    .eq(KnowledgeBaseImportJobItem::getStatus, KbImportStatusEnum.DOING)
+                    .set(KnowledgeBaseImportJobItem::getStatus, KbImportStatusEnum.PENDING)
+                    .update();
+            List<Long> pendingItemIds = ChainWrappers.lambdaQueryChain(jobItemMapper)
+                    .select(KnowledgeBaseImportJobItem::getId)
+                    .eq(KnowledgeBaseImportJobItem::getJobId, job.getId())
+                    .eq(KnowledgeBaseImportJobItem::getStatus, KbImportStatusEnum.PENDING)
+                    .eq(KnowledgeBaseImportJobItem::getIsDeleted, false)
+                    .orderByAsc(KnowledgeBaseImportJobItem::getId)
+                    .list()
+                    .stream()
+                    .map(KnowledgeBaseImportJobItem::getId)
+                    .toList();
+            log.info("Resume stale import job,jobUuid:{},pending:{}", job.getUuid(), pendingItemIds.size());
+            //中断时明细可能已更新而计数未更新，按明细重新统计
+            baseMapper.updateCountsById(job.getId());
+            ChainWrappers.lambdaUpdateChain(baseMapper)
+                    .eq(KnowledgeBaseImportJob::getId, job.getId())
+                    .set(KnowledgeBaseImportJob::getUpdateTime, LocalDateTime.now())
+                    .update();
+            if (pendingItemIds.isEmpty()) {
+                finishIfCompleted(job.getId());
+            } else {
+                submit(job, knowledgeBase, user, pendingItemIds);
+            }
+        }
+    }
+
+    private void submit(KnowledgeBaseImportJob job, KnowledgeBase knowledgeBase, User user, List<Long> itemIds) {
+        List<String> indexTypes = splitIndexTypes(job.getIndexTypes());
+        List<Runnable> tasks = new ArrayList<>(itemIds.size());
+        for (Long itemId : itemIds) {
+            tasks.add(() -> processItem(job, knowledgeBase, user, indexTypes, itemId));
+        }
+        dispatcher.submit(String.valueOf(job.getUserId()), job.getUuid(), tasks);
+    }
+
+    /**
+     * 解析并索引一个文档，处理完成后按明细重新统计任务的计数及耗时
+     * <br/>1. 文档的状态由等待处理改为处理中时需要抢占（只更新仍为等待处理的记录），多个节点同时恢复同一任务时只有一个节点处理该文档
+     * <br/>2. 知识点的uuid在创建知识点前记录到明细中，中断后恢复时据此找到已创建的知识点，不会重复创建
+     * <br/>3. 恢复已创建的知识点时从记录的进度继续索引，只有请求的每种索引都已完成时文档才算成功
+     */
+    private void processItem(KnowledgeBaseImportJob job, KnowledgeBase knowledgeBase, User user, List<String> indexTypes, Long itemId) {
+        boolean claimed = ChainWrappers.lambdaUpdateChain(jobItemMapper)
+                .eq(KnowledgeBaseImportJobItem::getId, itemId)
+                .eq(KnowledgeBaseImportJobItem::getStatus, KbImportStatusEnum.PENDING)
+                .set(KnowledgeBaseImportJobItem::getStatus, KbImportStatusEnum.DOING)
+                .update();
+        if (!claimed) {
+            return;
+        }
+        KnowledgeBaseImportJobItem item = jobItemMapper.selectById(itemId);
+        long begin = System.currentTimeMillis();
+        KbImportStatusEnum status;
+        String errorMsg = "";
+        String kbItemUuid = item.getKbItemUuid();
+        KnowledgeBaseItem kbItem = null;
+        try {
+            boolean resume = StringUtils.isNotBlank(kbItemUuid);
+            if (resume) {
+                kbItem = knowledgeBaseItemService.getEnable(kbItemUuid);
+            } else {
+                kbItemUuid = UuidUtil.createShort();
+                ChainWrappers.lambdaUpdateChain(jobItemMapper)
+                        .eq(KnowledgeBaseImportJobItem::getId, itemId)
+                        .set(KnowledgeBaseImportJobItem::getKbItemUuid, kbItemUuid)
+                        .update();
+            }
+            if (null == kbItem) {
+                AdiFile adiFile = fileService.getById(item.getFileId());
+                if (null == adiFile) {
+                    throw new BaseException(A_FILE_NOT_EXIST);
+                }
+                kbItem = knowledgeBaseItemService.createFromFile(knowledgeBase, adiFile, item.getFileName(), kbItemUuid);
+            }
+            if (null == kbItem) {
+                status = KbImportStatusEnum.SKIPPED;
+            } else {
+                if (!indexTypes.isEmpty()) {
+                    List<String> pendingIndexTypes = resume ? claimUnfinishedIndexTypes(kbItem, indexTypes) : indexTypes;
+                    if (!pendingIndexTypes.isEmpty()) {
+                        knowledgeBaseItemService.indexInCurrentThread(user, knowledgeBase, kbItem, pendingIndexTypes, resume);
+                    }
+                    errorMsg = checkIndexResult(kbItem.getId(), indexTypes);
+                }
+                status = errorMsg.isEmpty() ? KbImportStatusEnum.DONE : KbImportStatusEnum.FAIL;
+            }
+        } catch (Exception e) {
+            log.error("Import doc error,jobUuid:{},fileName:{}", job.getUuid(), item.getFileName(), e);
+            status = KbImportStatusEnum.FAIL;
+            errorMsg = toErrorMsg(e);
+        }
+        long costMillis = System.currentTimeMillis() - begin;
+        ChainWrappers.lambdaUpdateChain(jobItemMapper)
+                .eq(KnowledgeBaseImportJobItem::getId, itemId)
+                .set(KnowledgeBaseImportJobItem::getStatus, status)
+                .set(KnowledgeBaseImportJobItem::getKbItemUuid, null == kbItem ? "" : kbItemUuid)
+                .set(KnowledgeBaseImportJobItem::getErrorMsg, errorMsg)
+                .set(KnowledgeBaseImportJobItem::getCostMillis, costMillis)
+                .update();
+        baseMapper.updateCountsById(job.getId());
+        log.info("Import doc finished,jobUuid:{},fileName:{},status:{},costMillis:{}", job.getUuid(), item.getFileName(), status, costMillis);
+        finishIfCompleted(job.getId());
+    }
+
+    /**
+     * 恢复时需要继续的索引类型：跳过已完成的；索引中的只有认领成功（进度已超过adi.kb-import.stale-minutes未更新）时才继续，否则由正在进行的一方完成
+     */
+    private List<String> claimUnfinishedIndexTypes(KnowledgeBaseItem kbItem, List<String> indexTypes) {
+        LocalDateTime staleBefore = LocalDateTime.now().minusMinutes(staleMinutes);
+        List<String> result = new ArrayList<>();
+        if (indexTypes.contains(DOC_INDEX_TYPE_EMBEDDING) && kbItem.getEmbeddingStatus() != EmbeddingStatusEnum.DONE
+                && (kbItem.getEmbeddingStatus() != EmbeddingStatusEnum.DOING || knowledgeBaseItemService.claimStaleIndexing(kbItem, DOC_INDEX_TYPE_EMBEDDING, staleBefore))) {
+            result.add(DOC_INDEX_TYPE_EMBEDDING);
+        }
+        if (indexTypes.contains(DOC_INDEX_TYPE_GRAPHICAL) && kbItem.getGraphicalStatus() != GraphicalStatusEnum.DONE
+                && (kbItem.getGraphicalStatus() != GraphicalStatusEnum.DOING || knowledgeBaseItemService.claimStaleIndexing(kbItem, DOC_INDEX_TYPE_GRAPHICAL, staleBefore))) {
+            result.add(DOC_INDEX_TYPE_GRAPHICAL);
+        }
+        return result;
+    }
+
+    /**
+     * 检查索引结果，请求的每种索引都已完成时返回空字符串，否则返回未完成的索引的状态
+     */
+    private String checkIndexResult(Long kbItemId, List<String> indexTypes) {
+        KnowledgeBaseItem kbItem = knowledgeBaseItemService.getById(kbItemId);
+        List<String> errors = new ArrayList<>();
+        if (indexTypes.contains(DOC_INDEX_TYPE_EMBEDDING) && kbItem.getEmbeddingStatus() != EmbeddingStatusEnum.DONE) {
+            errors.add(kbItem.getEmbeddingStatus().getDesc());
+        }
+        if (indexTypes.contains(DOC_INDEX_TYPE_GRAPHICAL) && kbItem.getGraphicalStatus() != GraphicalStatusEnum.DONE) {
+            errors.add(kbItem.getGraphicalStatus().getDesc());
+        }
+        return String.join(",", errors);
+    }
+
+    /**
+     * 所有文档都处理完时把任务设置为已完成，由数据库判断，多个线程同时处理完最后几个文档时只有一个会成功
+     */
+    private void finishIfCompleted(Long jobId) {
+        boolean finished = ChainWrappers.lambdaUpdateChain(baseMapper)
+                .eq(KnowledgeBaseImportJob::getId, jobId)
+                .eq(KnowledgeBaseImportJob::getStatus, KbImportStatusEnum.DOING)
+                .apply("success_count + fail_count + skip_count >= total_count")
+                .set(KnowledgeBaseImportJob::getStatus, KbImportStatusEnum.DONE)
+                .set(KnowledgeBaseImportJob::getEndTime, LocalDateTime.now())
+                .update();
+        if (finished) {
+            KbImportJobDto dto = toDto(baseMapper.selectById(jobId));
+            log.info("Import job finished,jobUuid:{},total:{},success:{},fail:{},skip:{},elapsedSeconds:{},docsPerMinute:{},avgCostMillis:{}",
+                    dto.getUuid(), dto.getTotalCount(), dto.getSuccessCount(), dto.getFailCount(), dto.getSkipCount(),
+                    dto.getElapsedSeconds(), dto.getDocsPerMinute(), dto.getAvgCostMillis());
+        }
+    }
+
+    private KnowledgeBaseImportJob getMineOrThrow(String jobUuid) {
+        User user = ThreadContext.getCurrentUser();
+        return ChainWrappers.lambdaQueryChain(baseMapper)
+                .eq(KnowledgeBaseImportJob::getUuid, jobUuid)
+                .eq(!user.getIsAdmin(), KnowledgeBaseImportJob::getUserId, user.getId())
+                .eq(KnowledgeBaseImportJob::getIsDeleted, false)
+                .oneOpt()
+                .orElseThrow(() -> new BaseException(A_DATA_NOT_FOUND));
+    }
+
+    private KbImportJobDto toDto(KnowledgeBaseImportJob job) {
+        KbImportJobDto dto = new KbImportJobDto();
+        dto.setUuid(job.getUuid());
+        dto.setKbUuid(job.getKbUuid());
+        dto.setIndexTypes(job.getIndexTypes());
+        dto.setStatus(job.getStatus().getValue());
+        dto.setTotalCount(job.getTotalCount());
+        dto.setSuccessCount(job.getSuccessCount());
+        dto.setFailCount(job.getFailCount());
+        dto.setSkipCount(job.getSkipCount());
+        int processed = job.getSuccessCount() + job.getFailCount() + job.getSkipCount();
+        dto.setPendingCount(Math.max(0, job.getTotalCount() - processed));
+        dto.setCreateTime(job.getCreateTime());
+        dto.setEndTime(job.getEndTime());
+
+        //吞吐量按任务的实际经过时间计算（并行处理时小于各文档耗时之和）
+        LocalDateTime end = null == job.getEndTime() ? LocalDateTime.now() : job.getEndTime();
+        long elapsedMillis = Math.max(0, Duration.between(job.getCreateTime(), end).toMillis());
+        dto.setElapsedSeconds(elapsedMillis / 1000);
+        dto.setDocsPerMinute(elapsedMillis == 0 ? 0D : Math.round(processed * 60_000D / elapsedMillis * 100) / 100D);
+        dto.setAvgCostMillis(processed == 0 ? 0L : job.getTotalCostMillis() / processed);
+        return dto;
+    }
+
+    private static String joinIndexTypes(List<String> indexTypes) {
+        if (null == indexTypes) {
+            return "";
+        }
+        return String.join(",", indexTypes.stream().filter(StringUtils::isNotBlank).map(String::trim).distinct().toList());
+    }
+
+    private static List<String> splitIndexTypes(String indexTypes) {
+        if (StringUtils.isBlank(indexTypes)) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(indexTypes.split(",")).filter(StringUtils::isNotBlank).toList();
+    }
+
+    private static String toErrorMsg(Exception e) {
+        String msg = e instanceof BaseException baseException ? baseException.getInfo() : e.getMessage();
+        return StringUtils.abbreviate(StringUtils.defaultString(msg, e.getClass().getSimpleName()), ERROR_MSG_MAX_LENGTH);
+    }
+}
@@ -7,16 +7,19 @@ import com.moyz.adi.common.base.ThreadContext;
 import com.moyz.adi.common.cosntant.AdiConstant;
 import com.moyz.adi.common.dto.KbItemDto;
 import com.moyz.adi.common.dto.KbItemEditReq;
+import com.moyz.adi.common.entity.AdiFile;
 import com.moyz.adi.common.entity.KnowledgeBase;
 import com.moyz.adi.common.entity.KnowledgeBaseItem;
 import com.moyz.adi.common.entity.User;
 import com.moyz.adi.common.enums.EmbeddingStatusEnum;
 import com.moyz.adi.common.enums.GraphicalStatusEnum;
 import com.moyz.adi.common.exception.BaseException;
+import com.moyz.adi.common.helper.AdiFileHelper;
 import com.moyz.adi.common.helper.LLMContext;
 import com.moyz.adi.common.interfaces.AbstractLLMService;
 import com.moyz.adi.common.mapper.KnowledgeBaseItemMapper;
 import com.moyz.adi.common.rag.CompositeRAG;
+import com.moyz.adi.common.util.StreamingDocumentParser;
 import com.moyz.adi.common.util.UuidUtil;
 import com.moyz.adi.common.vo.GraphIngestParams;
 import com.moyz.adi.common.vo.LLMBuilderProperties;
@@ -26,6 +29,7 @@ import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -33,6 +37,12 @@ import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.MessageFormat;
 import java.time.LocalDateTime;
 import java.util.List;
@@ -92,6 +102,71 @@ public class KnowledgeBaseItemService extends ServiceImpl<KnowledgeBaseItemMappe
                 .one();
     }
 
+    /**
+     * 解析文件并创建知识点
+     * <br/>按页/段解析文档，文本先依次写入临时文件，解析完成后读取一次并以一条insert写入数据库
+     *
+     * @param knowledgeBase 知识库
+     * @param adiFile       已保存的文件
+     * @param title         知识点标题
+     * @return 知识点，文件类型无法解析时返回null
+     */
+    public KnowledgeBaseItem createFromFile(KnowledgeBase knowledgeBase, AdiFile adiFile, String title) {
+        return createFromFile(knowledgeBase, adiFile, title, UuidUtil.createShort());
+    }
+
+    /**
+     * 解析文件并使用指定的uuid创建知识点，调用方可在创建前记录uuid，中断后据此判断知识点是否已创建
+     *
+     * @param knowledgeBase 知识库
+     * @param adiFile       已保存的文件
+     * @param title         知识点标题
+     * @param uuid          知识点uuid
+     * @return 知识点，文件类型无法解析时返回null
+     */
+    public KnowledgeBaseItem createFromFile(KnowledgeBase knowledgeBase, AdiFile adiFile, String title, String uuid) {
+        if (!StreamingDocumentParser.isSupported(adiFile.getExt())) {
+            log.warn("该文件类型:{}无法解析，忽略", adiFile.getExt());
+            return null;
+        }
+        StringBuilder brief = new StringBuilder();
+        String content;
+        File spoolFile = null;
+        try {
+            spoolFile = Files.createTempFile("adi-kb-item-", ".txt").toFile();
+            try (Writer writer = Files.newBufferedWriter(spoolFile.toPath(), StandardCharsets.UTF_8)) {
+                AdiFileHelper.parseDocument(adiFile, chunk -> {
+                    //postgresql不支持\u0000
+                    String text = StringUtils.remove(chunk, '\u0000');
+                    if (brief.length() < 200) {
+                        brief.append(StringUtils.substring(text, 0, 200 - brief.length()));
+                    }
+                    try {
+                        writer.write(text);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            content = Files.readString(spoolFile.toPath());
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Spool document content error,uuid:{}", adiFile.getUuid(), e);
+            throw new BaseException(B_PARSE_DOCUMENT_ERROR);
+        } finally {
+            FileUtils.deleteQuietly(spoolFile);
+        }
+        KnowledgeBaseItem knowledgeBaseItem = new KnowledgeBaseItem();
+        knowledgeBaseItem.setUuid(uuid);
+        knowledgeBaseItem.setKbId(knowledgeBase.getId());
+        knowledgeBaseItem.setKbUuid(knowledgeBase.getUuid());
+        knowledgeBaseItem.setSourceFileId(adiFile.getId());
+        knowledgeBaseItem.setTitle(title);
+        knowledgeBaseItem.setBrief(brief.toString());
+        knowledgeBaseItem.setRemark(content);
+        baseMapper.insert(knowledgeBaseItem);
+        return knowledgeBaseItem;
+    }
+
     public KnowledgeBaseItem getEnable(String uuid) {
         return ChainWrappers.lambdaQueryChain(baseMapper)
                 .eq(KnowledgeBaseItem::getUuid, uuid)
@@ -133,38 +208,145 @@ public class KnowledgeBaseItemService extends ServiceImpl<KnowledgeBaseItemMappe
      */
     @Async
     public void asyncIndex(User user, KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, List<String> indexTypes) {
+        index(user, knowledgeBase, kbItem, indexTypes, false);
+    }
+
+    /**
+     * 在当前线程中索引文档，不设置用户的索引中标记（USER_INDEXING），供批量导入任务使用
+     *
+     * @param user          用户
+     * @param knowledgeBase 知识库
+     * @param kbItem        知识点
+     * @param indexTypes    索引类型，如embedding,graphical
+     * @param resume        true:从上次记录的进度继续索引（正在索引中的状态不再跳过）；false:重新索引
+     */
+    public void indexInCurrentThread(User user, KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, List<String> indexTypes, boolean resume) {
+        try {
+            doIndex(user, knowledgeBase, kbItem, indexTypes, resume);
+        } finally {
+            stringRedisTemplate.opsForSet().add(KB_STATISTIC_RECALCULATE_SIGNAL, kbItem.getKbUuid());
+        }
+    }
+
+    /**
+     * 从上次中断的位置继续索引文档
+     *
+     * @param user          用户
+     * @param knowledgeBase 知识库
+     * @param kbItem        知识点
+     * @param indexTypes    索引类型，如embedding,graphical
+     */
+    @Async
+    public void asyncResumeIndex(User user, KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, List<String> indexTypes) {
+        index(user, knowledgeBase, kbItem, indexTypes, true);
+    }
+
+    /**
+     * 查找索引中断（状态为索引中，但超过指定时间没有进度更新）的知识点
+     *
+     * @param staleBefore 最近一次进度更新时间早于该时间点的视为中断
+     * @return 知识点列表
+     */
+    public List<KnowledgeBaseItem> listStaleIndexing(LocalDateTime staleBefore) {
+        //内容在索引时再加载
+        return ChainWrappers.lambdaQueryChain(baseMapper)
+                .select(KnowledgeBaseItem.class, field -> !"remark".equals(field.getColumn()))
+                .eq(KnowledgeBaseItem::getIsDeleted, false)
+                .and(wrapper -> wrapper
+                        .nested(w -> w.eq(KnowledgeBaseItem::getEmbeddingStatus, EmbeddingStatusEnum.DOING).lt(KnowledgeBaseItem::getEmbeddingStatusChangeTime, staleBefore))
+                        .or()
+                        .nested(w -> w.eq(KnowledgeBaseItem::getGraphicalStatus, GraphicalStatusEnum.DOING).lt(KnowledgeBaseItem::getGraphicalStatusChangeTime, staleBefore))
+                )
+                .list();
+    }
+
+    /**
+     * 认领中断的索引任务：该索引类型仍为索引中且其进度更新时间仍早于{staleBefore}时刷新进度更新时间
+     * <br/>只有认领成功的索引类型才会被恢复，其他节点上仍在进行（进度更新时间较新）的索引类型不受影响
+     *
+     * @param kbItem      知识点
+     * @param indexType   索引类型，embedding或graphical
+     * @param staleBefore 最近一次进度更新时间早于该时间点的视为中断
+     * @return 是否认领成功
+     */
+    public boolean claimStaleIndexing(KnowledgeBaseItem kbItem, String indexType, LocalDateTime staleBefore) {
+        if (DOC_INDEX_TYPE_EMBEDDING.equals(indexType)) {
+            return ChainWrappers.lambdaUpdateChain(baseMapper)
+                    .eq(KnowledgeBaseItem::getId, kbItem.getId())
+                    .eq(KnowledgeBaseItem::getEmbeddingStatus, EmbeddingStatusEnum.DOING)
+                    .lt(KnowledgeBaseItem::getEmbeddingStatusChangeTime, staleBefore)
+                    .set(KnowledgeBaseItem::getEmbeddingStatusChangeTime, LocalDateTime.now())
+                    .update();
+        }
+        return ChainWrappers.lambdaUpdateChain(baseMapper)
+                .eq(KnowledgeBaseItem::getId, kbItem.getId())
+                .eq(KnowledgeBaseItem::getGraphicalStatus, GraphicalStatusEnum.DOING)
+                .lt(KnowledgeBaseItem::getGraphicalStatusChangeTime, staleBefore)
+                .set(KnowledgeBaseItem::getGraphicalStatusChangeTime, LocalDateTime.now())
+                .update();
+    }
+
+    /**
+     * 索引文档
+     *
+     * @param resume true:从上次记录的进度继续索引（正在索引中的状态不再跳过）；false:重新索引
+     */
+    private void index(User user, KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, List<String> indexTypes, boolean resume) {
         stringRedisTemplate.opsForValue().set(MessageFormat.format(USER_INDEXING, knowledgeBase.getOwnerId()), "", 10, TimeUnit.MINUTES);
         try {
-            if (indexTypes.contains(DOC_INDEX_TYPE_EMBEDDING) && kbItem.getEmbeddingStatus() != EmbeddingStatusEnum.DOING) {
-                Metadata metadata = new Metadata();
-                metadata.put(AdiConstant.MetadataKey.KB_UUID, kbItem.getKbUuid());
-                metadata.put(AdiConstant.MetadataKey.KB_ITEM_UUID, kbItem.getUuid());
-                Document document = new DefaultDocument(kbItem.getRemark(), metadata);
-                knowledgeBaseEmbeddingService.deleteByItemUuid(kbItem.getUuid());
-                indexingEmbedding(knowledgeBase, kbItem, document);
-            }
-            if (indexTypes.contains(DOC_INDEX_TYPE_GRAPHICAL) && kbItem.getGraphicalStatus() != GraphicalStatusEnum.DOING) {
-                Metadata metadata = new Metadata();
-                metadata.put(AdiConstant.MetadataKey.KB_UUID, kbItem.getKbUuid());
-                metadata.put(AdiConstant.MetadataKey.KB_ITEM_UUID, kbItem.getUuid());
-                Document document = new DefaultDocument(kbItem.getRemark(), metadata);
-                indexingGraph(user, knowledgeBase, kbItem, document);
-            }
+            doIndex(user, knowledgeBase, kbItem, indexTypes, resume);
         } finally {
             stringRedisTemplate.opsForSet().add(KB_STATISTIC_RECALCULATE_SIGNAL, kbItem.getKbUuid());
             stringRedisTemplate.delete(MessageFormat.format(USER_INDEXING, knowledgeBase.getOwnerId()));
         }
+    }
 
+    private void doIndex(User user, KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, List<String> indexTypes, boolean resume) {
+        boolean embedding = indexTypes.contains(DOC_INDEX_TYPE_EMBEDDING) && (resume || kbItem.getEmbeddingStatus() != EmbeddingStatusEnum.DOING);
+        boolean graphical = indexTypes.contains(DOC_INDEX_TYPE_GRAPHICAL) && (resume || kbItem.getGraphicalStatus() != GraphicalStatusEnum.DOING);
+        if (!embedding && !graphical) {
+            return;
+        }
+        //向量化及图谱化共用同一个文档对象，知识点的内容只加载一次
+        Metadata metadata = new Metadata();
+        metadata.put(AdiConstant.MetadataKey.KB_UUID, kbItem.getKbUuid());
+        metadata.put(AdiConstant.MetadataKey.KB_ITEM_UUID, kbItem.getUuid());
+        Document document = new DefaultDocument(loadRemark(kbItem), metadata);
+        if (embedding) {
+            int fromSegmentIndex = 0;
+            if (resume) {
+                fromSegmentIndex = null == kbItem.getEmbeddingCheckpoint() ? 0 : kbItem.getEmbeddingCheckpoint();
+            }
+            if (fromSegmentIndex == 0) {
+                knowledgeBaseEmbeddingService.deleteByItemUuid(kbItem.getUuid());
+            }
+            indexingEmbedding(knowledgeBase, kbItem, document, fromSegmentIndex);
+        }
+        if (graphical) {
+            int fromSegmentIndex = 0;
+            if (resume) {
+                fromSegmentIndex = null == kbItem.getGraphicalCheckpoint() ? 0 : kbItem.getGraphicalCheckpoint();
+            }
+            indexingGraph(user, knowledgeBase, kbItem, document, fromSegmentIndex);
+        }
     }
 
-    private void indexingEmbedding(KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, Document document) {
+    private void indexingEmbedding(KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, Document document, int fromSegmentIndex) {
         try {
             ChainWrappers.lambdaUpdateChain(baseMapper)
                     .eq(KnowledgeBaseItem::getId, kbItem.getId())
                     .set(KnowledgeBaseItem::getEmbeddingStatusChangeTime, LocalDateTime.now())
                     .set(KnowledgeBaseItem::getEmbeddingStatus, EmbeddingStatusEnum.DOING)
+                    .set(KnowledgeBaseItem::getEmbeddingCheckpoint, fromSegmentIndex)
                     .update();
-            compositeRAG.getEmbeddingRAGService().ingest(document, knowledgeBase.getIngestMaxOverlap(), null);
+            //每批文本段存储完成后记录进度，同时刷新状态变更时间，用于判断任务是否已中断
+            compositeRAG.getEmbeddingRAGService().ingest(document, knowledgeBase.getIngestMaxOverlap(), fromSegmentIndex,
+                    checkpoint -> ChainWrappers.lambdaUpdateChain(baseMapper)
+                            .eq(KnowledgeBaseItem::getId, kbItem.getId())
+                            .set(KnowledgeBaseItem::getEmbeddingStatusChangeTime, LocalDateTime.now())
+                            .set(KnowledgeBaseItem::getEmbeddingCheckpoint, checkpoint)
+                            .update()
+            );
             ChainWrappers.lambdaUpdateChain(baseMapper)
                     .eq(KnowledgeBaseItem::getId, kbItem.getId())
                     .set(KnowledgeBaseItem::getEmbeddingStatus, EmbeddingStatusEnum.DONE)
@@ -179,12 +361,27 @@ public class KnowledgeBaseItemService extends ServiceImpl<KnowledgeBaseItemMappe
         }
     }
 
-    private void indexingGraph(User user, KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, Document document) {
+    /**
+     * 知识点的内容，查询知识点时未加载内容（如查找中断的索引任务）时从数据库读取
+     */
+    private String loadRemark(KnowledgeBaseItem kbItem) {
+        if (null != kbItem.getRemark()) {
+            return kbItem.getRemark();
+        }
+        KnowledgeBaseItem item = ChainWrappers.lambdaQueryChain(baseMapper)
+                .select(KnowledgeBaseItem::getRemark)
+                .eq(KnowledgeBaseItem::getId, kbItem.getId())
+                .one();
+        return null == item ? "" : StringUtils.defaultString(item.getRemark());
+    }
+
+    private void indexingGraph(User user, KnowledgeBase knowledgeBase, KnowledgeBaseItem kbItem, Document document, int fromSegmentIndex) {
         try {
             ChainWrappers.lambdaUpdateChain(baseMapper)
                     .eq(KnowledgeBaseItem::getId, kbItem.getId())
                     .set(KnowledgeBaseItem::getGraphicalStatusChangeTime, LocalDateTime.now())
                     .set(KnowledgeBaseItem::getGraphicalStatus, GraphicalStatusEnum.DOING)
+                    .set(KnowledgeBaseItem::getGraphicalCheckpoint, fromSegmentIndex)
                     .update();
             AbstractLLMService<?> llmService = LLMContext.getLLMServiceById(knowledgeBase.getIngestModelId());
             ChatLanguageModel chatLanguageModel = llmService.buildChatLLM(
@@ -201,9 +398,16 @@ public class KnowledgeBaseItemService extends ServiceImpl<KnowledgeBaseItemMappe
                             .document(document)
                             .overlap(knowledgeBase.getIngestMaxOverlap())
                             .chatLanguageModel(chatLanguageModel)
+                            .modelName(llmService.getAiModel().getName())
                             .identifyColumns(List.of(AdiConstant.MetadataKey.KB_UUID))
                             .appendColumns(List.of(AdiConstant.MetadataKey.KB_ITEM_UUID))
                             .isFreeToken(llmService.getAiModel().getIsFree())
+                            .fromSegmentIndex(fromSegmentIndex)
+                            .checkpointConsumer(checkpoint -> ChainWrappers.lambdaUpdateChain(baseMapper)
+                                    .eq(KnowledgeBaseItem::getId, kbItem.getId())
+                                    .set(KnowledgeBaseItem::getGraphicalStatusChangeTime, LocalDateTime.now())
+                                    .set(KnowledgeBaseItem::getGraphicalCheckpoint, checkpoint)
+                                    .update())
                             .build()
             );
             ChainWrappers.lambdaUpdateChain(baseMapper)
@@ -4,13 +4,17 @@ import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.baomidou.mybatisplus.extension.toolkit.ChainWrappers;
+import com.moyz.adi.common.annotation.DistributeLock;
 import com.moyz.adi.common.base.ThreadContext;
 import com.moyz.adi.common.cosntant.AdiConstant;
 import com.moyz.adi.common.cosntant.RedisKeyConstant;
 import com.moyz.adi.common.dto.KbEditReq;
+import com.moyz.adi.common.dto.KbImportJobDto;
 import com.moyz.adi.common.dto.KbInfoResp;
 import com.moyz.adi.common.dto.KbSearchReq;
 import com.moyz.adi.common.entity.*;
+import com.moyz.adi.common.enums.EmbeddingStatusEnum;
+import com.moyz.adi.common.enums.GraphicalStatusEnum;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.helper.AdiFileHelper;
 import com.moyz.adi.common.helper.LLMContext;
@@ -25,7 +29,6 @@ import com.moyz.adi.common.vo.AssistantChatParams;
 import com.moyz.adi.common.vo.LLMBuilderProperties;
 import com.moyz.adi.common.vo.SseAskParams;
 import com.moyz.adi.common.vo.UpdateQaParams;
-import dev.langchain4j.data.document.Document;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import jakarta.annotation.Resource;
@@ -49,6 +52,8 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 
+import static com.moyz.adi.common.cosntant.AdiConstant.DOC_INDEX_TYPE_EMBEDDING;
+import static com.moyz.adi.common.cosntant.AdiConstant.DOC_INDEX_TYPE_GRAPHICAL;
 import static com.moyz.adi.common.cosntant.AdiConstant.SysConfigKey.QUOTA_BY_QA_ASK_DAILY;
 import static com.moyz.adi.common.cosntant.RedisKeyConstant.*;
 import static com.moyz.adi.common.enums.ErrorEnum.*;
@@ -57,6 +62,11 @@ import static com.moyz.adi.common.enums.ErrorEnum.*;
 @Service
 public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, KnowledgeBase> {
 
+    /**
+     * 索引任务超过该时间（分钟）没有进度更新则视为已中断
+     */
+    private static final int INDEXING_STALE_MINUTES = 30;
+
     @Lazy
     @Resource
     private KnowledgeBaseService self;
@@ -88,9 +98,15 @@ public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, Knowl
     @Resource
     private AiModelService aiModelService;
 
+    @Resource
+    private UserService userService;
+
     @Resource
     private AdiFileHelper adiFileHelper;
 
+    @Resource
+    private KnowledgeBaseImportService knowledgeBaseImportService;
+
     public KnowledgeBase saveOrUpdate(KbEditReq kbEditReq) {
         KnowledgeBase knowledgeBase = new KnowledgeBase();
         BeanUtils.copyProperties(kbEditReq, knowledgeBase, "id", "uuid");
@@ -141,6 +157,27 @@ public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, Knowl
         return result;
     }
 
+    /**
+     * 批量导入文档，文件保存后立即返回导入任务，解析及索引在后台并行处理
+     *
+     * @param kbUuid     知识库uuid
+     * @param docs       文件
+     * @param indexTypes 索引类型，如embedding,graphical，为空时只解析不索引
+     * @return 导入任务
+     */
+    public KbImportJobDto importDocs(String kbUuid, MultipartFile[] docs, List<String> indexTypes) {
+        if (ArrayUtils.isEmpty(docs)) {
+            throw new BaseException(A_PARAMS_ERROR);
+        }
+        checkPrivilege(null, kbUuid);
+        KnowledgeBase knowledgeBase = ChainWrappers.lambdaQueryChain(baseMapper)
+                .eq(KnowledgeBase::getUuid, kbUuid)
+                .eq(KnowledgeBase::getIsDeleted, false)
+                .oneOpt()
+                .orElseThrow(() -> new BaseException(A_DATA_NOT_FOUND));
+        return knowledgeBaseImportService.createJob(knowledgeBase, ThreadContext.getCurrentUser(), docs, indexTypes);
+    }
+
     public AdiFile uploadDoc(String kbUuid, Boolean indexAfterUpload, MultipartFile doc, List<String> indexTypes) {
         KnowledgeBase knowledgeBase = ChainWrappers.lambdaQueryChain(baseMapper)
                 .eq(KnowledgeBase::getUuid, kbUuid)
@@ -155,27 +192,9 @@ public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, Knowl
             String fileName = doc.getOriginalFilename();
             AdiFile adiFile = fileService.saveFile(doc, false);
 
-            //解析文档
-            Document document = AdiFileHelper.loadDocument(adiFile);
-            if (null == document) {
-                log.warn("该文件类型:{}无法解析，忽略", adiFile.getExt());
-                return adiFile;
-            }
-            //创建知识库条目
-            String uuid = UuidUtil.createShort();
-            //postgresql不支持\u0000
-            String content = document.text().replace("\u0000", "");
-            KnowledgeBaseItem knowledgeBaseItem = new KnowledgeBaseItem();
-            knowledgeBaseItem.setUuid(uuid);
-            knowledgeBaseItem.setKbId(knowledgeBase.getId());
-            knowledgeBaseItem.setKbUuid(knowledgeBase.getUuid());
-            knowledgeBaseItem.setSourceFileId(adiFile.getId());
-            knowledgeBaseItem.setTitle(fileName);
-            knowledgeBaseItem.setBrief(StringUtils.substring(content, 0, 200));
-            knowledgeBaseItem.setRemark(content);
-            boolean success = knowledgeBaseItemService.save(knowledgeBaseItem);
-            if (success && Boolean.TRUE.equals(indexAfterUpload)) {
-                indexItems(List.of(uuid), indexTypes);
+            KnowledgeBaseItem knowledgeBaseItem = knowledgeBaseItemService.createFromFile(knowledgeBase, adiFile, fileName);
+            if (null != knowledgeBaseItem && Boolean.TRUE.equals(indexAfterUpload)) {
+                indexItems(List.of(knowledgeBaseItem.getUuid()), indexTypes);
             }
 
             //Replace file path with url
@@ -406,6 +425,7 @@ public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, Knowl
                                 .sseAskParams(sseAskParams)
                                 .response(response)
                                 .isTokenFree(aiModel.getIsFree())
+                                .cancelled(answerMeta.isCancelled())
                                 .build())
                 );
             }
@@ -425,6 +445,7 @@ public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, Knowl
                             .sseAskParams(sseAskParams)
                             .response(response)
                             .isTokenFree(aiModel.getIsFree())
+                            .cancelled(answerMeta.isCancelled())
                             .build())
             );
         }
@@ -443,6 +464,7 @@ public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, Knowl
         updateRecord.setPromptTokens(inputOutputTokenCost.getLeft());
         updateRecord.setAnswer(updateQaParams.getResponse());
         updateRecord.setAnswerTokens(inputOutputTokenCost.getRight());
+        updateRecord.setIsCancelled(updateQaParams.isCancelled());
         knowledgeBaseQaRecordService.updateById(updateRecord);
 
         createRef(updateQaParams.getRetrievers(), user, qaRecord.getId());
@@ -516,6 +538,48 @@ public class KnowledgeBaseService extends ServiceImpl<KnowledgeBaseMapper, Knowl
         }
     }
 
+    /**
+     * 恢复中断的索引任务（如服务重启导致），从记录的进度继续索引
+     */
+    @DistributeLock(redisKey = KB_ITEM_INDEX_RESUME_LOCK, expireInSeconds = 60, continueIfAcquireFail = false)
+    @Scheduled(initialDelay = 60 * 1000, fixedDelay = 5 * 60 * 1000)
+    public void resumeStaleIndexing() {
+        LocalDateTime staleBefore = LocalDateTime.now().minusMinutes(INDEXING_STALE_MINUTES);
+        List<KnowledgeBaseItem> items = knowledgeBaseItemService.listStaleIndexing(staleBefore);
+        for (KnowledgeBaseItem item : items) {
+            KnowledgeBase knowledgeBase = ChainWrappers.lambdaQueryChain(baseMapper)
+                    .eq(KnowledgeBase::getId, item.getKbId())
+                    .eq(KnowledgeBase::getIsDeleted, false)
+                    .one();
+            if (null == knowledgeBase) {
+                continue;
+            }
+            User owner = userService.getByUserId(knowledgeBase.getOwnerId());
+            if (null == owner) {
+                continue;
+            }
+            //只恢复自身进度已中断的索引类型，同一知识点的另一种索引可能仍在其他节点上进行
+            List<String> indexTypes = new ArrayList<>();
+            if (item.getEmbeddingStatus() == EmbeddingStatusEnum.DOING && isBefore(item.getEmbeddingStatusChangeTime(), staleBefore)
+                    && knowledgeBaseItemService.claimStaleIndexing(item, DOC_INDEX_TYPE_EMBEDDING, staleBefore)) {
+                indexTypes.add(DOC_INDEX_TYPE_EMBEDDING);
+            }
+            if (item.getGraphicalStatus() == GraphicalStatusEnum.DOING && isBefore(item.getGraphicalStatusChangeTime(), staleBefore)
+                    && knowledgeBaseItemService.claimStaleIndexing(item, DOC_INDEX_TYPE_GRAPHICAL, staleBefore)) {
+                indexTypes.add(DOC_INDEX_TYPE_GRAPHICAL);
+            }
+            if (indexTypes.isEmpty()) {
+                continue;
+            }
+            log.info("Resume stale indexing,itemUuid:{},indexTypes:{},embeddingCheckpoint:{},graphicalCheckpoint:{}", item.getUuid(), indexTypes, item.getEmbeddingCheckpoint(), item.getGraphicalCheckpoint());
+            knowledgeBaseItemService.asyncResumeIndex(owner, knowledgeBase, item, indexTypes);
+        }
+    }
+
+    private static boolean isBefore(LocalDateTime time, LocalDateTime staleBefore) {
+        return null != time && time.isBefore(staleBefore);
+    }
+
     private void checkPrivilege(Long kbId, String kbUuid) {
         if (null == kbId && StringUtils.isBlank(kbUuid)) {
             throw new BaseException(A_PARAMS_ERROR);
@@ -38,7 +38,7 @@ public class OllamaLLMService extends AbstractLLMService<OllamaSetting> {
     }
 
     @Override
-    public StreamingChatLanguageModel buildStreamingChatLLM(LLMBuilderProperties properties) {
+    protected StreamingChatLanguageModel doBuildStreamingChatLLM(LLMBuilderProperties properties) {
         double temperature = 0.7;
         if (null != properties && properties.getTemperature() > 0 && properties.getTemperature() <= 1) {
             temperature = properties.getTemperature();
@@ -5,6 +5,7 @@ import com.moyz.adi.common.entity.AiModel;
 import com.moyz.adi.common.enums.ErrorEnum;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.interfaces.AbstractLLMService;
+import com.moyz.adi.common.rag.AdiOpenAiStreamingChatModel;
 import com.moyz.adi.common.util.JsonUtil;
 import com.moyz.adi.common.util.OpenAiUtil;
 import com.moyz.adi.common.vo.LLMBuilderProperties;
@@ -75,7 +76,7 @@ public class OpenAiLLMService extends AbstractLLMService<OpenAiSetting> {
     }
 
     @Override
-    public StreamingChatLanguageModel buildStreamingChatLLM(LLMBuilderProperties properties) {
+    protected StreamingChatLanguageModel doBuildStreamingChatLLM(LLMBuilderProperties properties) {
         if (StringUtils.isBlank(modelPlatformSetting.getSecretKey())) {
             throw new BaseException(ErrorEnum.B_LLM_SECRET_KEY_NOT_SET);
         }
@@ -93,7 +94,8 @@ public class OpenAiLLMService extends AbstractLLMService<OpenAiSetting> {
         if (null != proxy) {
             builder.proxy(proxy);
         }
-        return builder.build();
+        //使用可中止的流式模型，用户停止或断开时关闭与模型服务之间的连接
+        return new AdiOpenAiStreamingChatModel(builder.build());
     }
 
     @Override
@@ -64,7 +64,7 @@ public class QianFanLLMService extends AbstractLLMService<QianFanAiPlatformSetti
     }
 
     @Override
-    public StreamingChatLanguageModel buildStreamingChatLLM(LLMBuilderProperties properties) {
+    protected StreamingChatLanguageModel doBuildStreamingChatLLM(LLMBuilderProperties properties) {
         double temperature = 0.7;
         if (null != properties && null != properties.getTemperature() && properties.getTemperature() > 0 && properties.getTemperature() <= 1) {
             temperature = properties.getTemperature();
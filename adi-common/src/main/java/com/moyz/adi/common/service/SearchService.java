@@ -34,9 +34,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
 
 import static com.moyz.adi.common.enums.ErrorEnum.B_NO_ANSWER;
 
@@ -152,6 +153,7 @@ public class SearchService {
             newRecord.setPromptTokens(promptMeta.getTokens());
             newRecord.setAnswer(response);
             newRecord.setAnswerTokens(answerMeta.getTokens());
+            newRecord.setIsCancelled(answerMeta.isCancelled());
             newRecord.setUserUuid(user.getUuid());
             newRecord.setUserId(user.getId());
             newRecord.setAiModelId(null != aiModel ? aiModel.getId() : 0L);
@@ -191,10 +193,11 @@ public class SearchService {
         newRecord.setAiModelId(aiModel.getId());
         aiSearchRecordService.save(newRecord);
 
-        CountDownLatch countDownLatch = new CountDownLatch(resultItems.size());
+        //本次请求的子任务，全部结束后才继续
+        List<CompletableFuture<Void>> futures = new ArrayList<>(resultItems.size());
         for (int i = 0; i < resultItems.size(); i++) {
             int finalI = i;
-            mainExecutor.execute(() -> {
+            futures.add(CompletableFuture.runAsync(() -> {
                 try {
                     SearchReturnWebPage item = resultItems.get(finalI);
                     String content;
@@ -217,17 +220,10 @@ public class SearchService {
                     }
                 } catch (Exception e) {
                     log.error("Detail search error,uuid:{}", searchUuid, e);
-                } finally {
-                    countDownLatch.countDown();
                 }
-            });
-        }
-        try {
-            countDownLatch.await();
-        } catch (InterruptedException e) {
-            log.error("CountDownLatch await error,uuid:{}", searchUuid, e);
-            Thread.currentThread().interrupt();
+            }, mainExecutor));
         }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
 
         log.info("Create prompt");
         int maxInputTokens = aiModel.getMaxInputTokens();
@@ -259,6 +255,7 @@ public class SearchService {
             updateRecord.setPromptTokens(promptMeta.getTokens());
             updateRecord.setAnswer(response);
             updateRecord.setAnswerTokens(answerMeta.getTokens());
+            updateRecord.setIsCancelled(answerMeta.isCancelled());
             aiSearchRecordService.updateById(updateRecord);
 
             userDayCostService.appendCostToUser(user, promptMeta.getTokens() + answerMeta.getTokens(), aiModel.getIsFree());
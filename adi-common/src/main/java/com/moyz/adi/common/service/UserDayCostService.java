@@ -1,29 +1,98 @@
 package com.moyz.adi.common.service;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.moyz.adi.common.cosntant.RedisKeyConstant;
 import com.moyz.adi.common.entity.User;
 import com.moyz.adi.common.entity.UserDayCost;
 import com.moyz.adi.common.mapper.UserDayCostMapper;
 import com.moyz.adi.common.util.LocalDateTimeUtil;
 import com.moyz.adi.common.vo.CostStat;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.context.annotation.Lazy;
+import org.apache.commons.collections4.ListUtils;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.text.MessageFormat;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
 @Slf4j
 @Service
 public class UserDayCostService extends ServiceImpl<UserDayCostMapper, UserDayCost> {
 
-    @Lazy
+    /**
+     * 消耗统计缓存的有效时间，过期后从数据库重新加载，以修正缓存与数据库之间可能的偏差
+     */
+    private static final long COST_STAT_TTL_SECONDS = 3600;
+
+    /**
+     * KEYS[1]: 统计缓存key；ARGV[1]: 有效时间（秒）；ARGV[2...]: 字段及值
+     * <br/>缓存已存在时不覆盖
+     */
+    private static final RedisScript<Long> COST_STAT_INIT_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('EXISTS', KEYS[1]) == 1 then
+                return 0
+            end
+            redis.call('HSET', KEYS[1], unpack(ARGV, 2))
+            redis.call('EXPIRE', KEYS[1], ARGV[1])
+            return 1
+            """, Long.class);
+
+    /**
+     * KEYS[1]: 统计缓存key；ARGV[1]: 日期yyyyMMdd；ARGV[2]: token数；ARGV[3]: 请求次数；ARGV[4]: 绘图次数
+     * <br/>缓存不存在时不处理：该次消耗已在{@link #pendingCosts}中，下次加载缓存时与数据库中的值一起计入
+     */
+    private static final RedisScript<Long> COST_STAT_INCR_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('EXISTS', KEYS[1]) == 0 then
+                return 0
+            end
+            local fields = {'tokens', 'requests', 'draws'}
+            for i = 1, 3 do
+                local value = tonumber(ARGV[i + 1])
+                if value ~= 0 then
+                    redis.call('HINCRBY', KEYS[1], fields[i], value)
+                    redis.call('HINCRBY', KEYS[1], ARGV[1] .. ':' .. fields[i], value)
+                end
+            end
+            return 1
+            """, Long.class);
+
+    private static final int FLUSH_BATCH_SIZE = 500;
+
+    private static final int COST_STAT_LOCK_STRIPES = 64;
+
+    /**
+     * 待写入数据库的消耗
+     */
+    private final Map<CostKey, UserDayCost> pendingCosts = new ConcurrentHashMap<>();
+
+    /**
+     * 写入数据库（从{@link #pendingCosts}取出到写入完成）时持有写锁，加载统计缓存时持有读锁，
+     * 保证加载时读到的数据库及内存中的消耗不重复也不遗漏
+     */
+    private final ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+
+    /**
+     * 按用户分段的锁，累加消耗（内存+缓存）与加载统计缓存互斥，避免加载期间的消耗被重复计入或丢失
+     */
+    private final Object[] costStatLocks = Stream.generate(Object::new).limit(COST_STAT_LOCK_STRIPES).toArray();
+
     @Resource
-    private UserDayCostService self;
+    private StringRedisTemplate stringRedisTemplate;
 
     /**
      * Append token cost
+     * <br/>先在内存中按 用户+日期+是否免费 累加，由{@link #flushPendingCosts()}定时批量写入数据库
      *
      * @param user   用户
      * @param tokens The number of tokens
@@ -34,20 +103,189 @@ public class UserDayCostService extends ServiceImpl<UserDayCostMapper, UserDayCo
         if (tokens <= 0) {
             return;
         }
-        UserDayCost userDayCost = getTodayCost(user, isFree);
-        UserDayCost saveOrUpdateInst = new UserDayCost();
-        if (null == userDayCost) {
-            saveOrUpdateInst.setUserId(user.getId());
-            saveOrUpdateInst.setDay(LocalDateTimeUtil.getToday());
-            saveOrUpdateInst.setTokens(tokens);
-            saveOrUpdateInst.setRequestTimes(1);
-        } else {
-            saveOrUpdateInst.setId(userDayCost.getId());
-            saveOrUpdateInst.setTokens(userDayCost.getTokens() + tokens);
-            saveOrUpdateInst.setRequestTimes(userDayCost.getRequestTimes() + 1);
+        synchronized (costStatLock(user.getId())) {
+            appendPendingCost(user.getId(), isFree, tokens, 1, 0);
+            increaseCostStat(user.getId(), isFree, tokens, 1, 0);
+        }
+    }
+
+    /**
+     * 增加一次绘图
+     *
+     * @param user   用户
+     * @param isFree 消耗的是否免费额度
+     */
+    public void appendDrawToUser(User user, boolean isFree) {
+        synchronized (costStatLock(user.getId())) {
+            appendPendingCost(user.getId(), isFree, 0, 0, 1);
+            increaseCostStat(user.getId(), isFree, 0, 0, 1);
+        }
+    }
+
+    private void appendPendingCost(long userId, boolean isFree, int tokens, int requestTimes, int drawTimes) {
+        UserDayCost delta = new UserDayCost();
+        delta.setUserId(userId);
+        delta.setDay(LocalDateTimeUtil.getToday());
+        delta.setIsFree(isFree);
+        delta.setTokens(tokens);
+        delta.setRequestTimes(requestTimes);
+        delta.setDrawTimes(drawTimes);
+        pendingCosts.merge(new CostKey(userId, delta.getDay(), isFree), delta, UserDayCostService::sumCost);
+    }
+
+    /**
+     * 把内存中累加的消耗批量写入数据库（insert ... on conflict do update，在原值上累加）
+     * <br/>服务异常退出时最多丢失一个周期内的数据
+     */
+    @Scheduled(fixedDelayString = "${adi.usage.flush-interval-millis:5000}")
+    public void flushPendingCosts() {
+        if (pendingCosts.isEmpty()) {
+            return;
+        }
+        List<UserDayCost> costs = new ArrayList<>();
+        flushLock.writeLock().lock();
+        try {
+            for (CostKey key : pendingCosts.keySet()) {
+                UserDayCost cost = pendingCosts.remove(key);
+                if (null != cost) {
+                    costs.add(cost);
+                }
+            }
+            for (List<UserDayCost> batch : ListUtils.partition(costs, FLUSH_BATCH_SIZE)) {
+                try {
+                    baseMapper.batchAppendCost(batch);
+                } catch (Exception e) {
+                    log.error("Flush user day cost error,size:{}", batch.size(), e);
+                    //放回内存，下个周期重试
+                    batch.forEach(cost -> pendingCosts.merge(new CostKey(cost.getUserId(), cost.getDay(), cost.getIsFree()), cost, UserDayCostService::sumCost));
+                }
+            }
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+        log.info("Flush user day cost,size:{}", costs.size());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flushPendingCosts();
+    }
+
+    private static UserDayCost sumCost(UserDayCost a, UserDayCost b) {
+        UserDayCost result = new UserDayCost();
+        result.setUserId(a.getUserId());
+        result.setDay(a.getDay());
+        result.setIsFree(a.getIsFree());
+        result.setTokens(a.getTokens() + b.getTokens());
+        result.setRequestTimes(a.getRequestTimes() + b.getRequestTimes());
+        result.setDrawTimes(a.getDrawTimes() + b.getDrawTimes());
+        return result;
+    }
+
+    private record CostKey(long userId, int day, boolean isFree) {
+    }
+
+    /**
+     * 从缓存中获取用户当天及当月的消耗统计（额度检查使用），缓存不存在时从数据库加载，并加上本节点内存中尚未写入数据库的消耗
+     * <br/>其他节点尚未写入数据库的消耗（最多一个写入周期）在缓存过期重新加载后计入
+     *
+     * @param userId 用户id
+     * @param isFree 是否免费额度
+     * @return 消耗统计
+     */
+    public CostStat getCachedCostStat(long userId, boolean isFree) {
+        int today = LocalDateTimeUtil.getToday();
+        String key = costStatKey(userId, today, isFree);
+        Map<Object, Object> fields = stringRedisTemplate.opsForHash().entries(key);
+        if (!fields.isEmpty()) {
+            return toCostStat(fields, today, isFree);
+        }
+        synchronized (costStatLock(userId)) {
+            //等待锁期间其他线程可能已加载
+            fields = stringRedisTemplate.opsForHash().entries(key);
+            if (!fields.isEmpty()) {
+                return toCostStat(fields, today, isFree);
+            }
+            CostStat costStat;
+            flushLock.readLock().lock();
+            try {
+                costStat = costStatByUser(userId, isFree);
+                addPendingCosts(costStat, userId, isFree);
+            } finally {
+                flushLock.readLock().unlock();
+            }
+            stringRedisTemplate.execute(COST_STAT_INIT_SCRIPT, List.of(key), String.valueOf(COST_STAT_TTL_SECONDS),
+                    "tokens", String.valueOf(costStat.getTextTokenCostByMonth()),
+                    "requests", String.valueOf(costStat.getTextRequestTimesByMonth()),
+                    "draws", String.valueOf(costStat.getDrawTimesByMonth()),
+                    today + ":tokens", String.valueOf(costStat.getTextTokenCostByDay()),
+                    today + ":requests", String.valueOf(costStat.getTextRequestTimesByDay()),
+                    today + ":draws", String.valueOf(costStat.getDrawTimesByDay()));
+            return costStat;
+        }
+    }
+
+    private static CostStat toCostStat(Map<Object, Object> fields, int today, boolean isFree) {
+        CostStat result = new CostStat();
+        result.setDay(today);
+        result.setFree(isFree);
+        result.setTextTokenCostByMonth(getIntField(fields, "tokens"));
+        result.setTextRequestTimesByMonth(getIntField(fields, "requests"));
+        result.setDrawTimesByMonth(getIntField(fields, "draws"));
+        result.setTextTokenCostByDay(getIntField(fields, today + ":tokens"));
+        result.setTextRequestTimesByDay(getIntField(fields, today + ":requests"));
+        result.setDrawTimesByDay(getIntField(fields, today + ":draws"));
+        return result;
+    }
+
+    /**
+     * 把内存中尚未写入数据库的本月消耗加到统计中
+     */
+    private void addPendingCosts(CostStat costStat, long userId, boolean isFree) {
+        int today = LocalDateTimeUtil.getToday();
+        for (Map.Entry<CostKey, UserDayCost> entry : pendingCosts.entrySet()) {
+            CostKey key = entry.getKey();
+            if (key.userId() != userId || key.isFree() != isFree || key.day() / 100 != today / 100) {
+                continue;
+            }
+            UserDayCost cost = entry.getValue();
+            costStat.setTextTokenCostByMonth(costStat.getTextTokenCostByMonth() + cost.getTokens());
+            costStat.setTextRequestTimesByMonth(costStat.getTextRequestTimesByMonth() + cost.getRequestTimes());
+            costStat.setDrawTimesByMonth(costStat.getDrawTimesByMonth() + cost.getDrawTimes());
+            if (key.day() == today) {
+                costStat.setTextTokenCostByDay(costStat.getTextTokenCostByDay() + cost.getTokens());
+                costStat.setTextRequestTimesByDay(costStat.getTextRequestTimesByDay() + cost.getRequestTimes());
+                costStat.setDrawTimesByDay(costStat.getDrawTimesByDay() + cost.getDrawTimes());
+            }
+        }
+    }
+
+    private Object costStatLock(long userId) {
+        return costStatLocks[Math.floorMod(userId, COST_STAT_LOCK_STRIPES)];
+    }
+
+    /**
+     * 累加缓存中的消耗统计
+     */
+    private void increaseCostStat(long userId, boolean isFree, int tokens, int requests, int draws) {
+        int today = LocalDateTimeUtil.getToday();
+        try {
+            stringRedisTemplate.execute(COST_STAT_INCR_SCRIPT, List.of(costStatKey(userId, today, isFree)),
+                    String.valueOf(today), String.valueOf(tokens), String.valueOf(requests), String.valueOf(draws));
+        } catch (Exception e) {
+            //统计缓存只用于额度检查，失败时删除缓存，下次从数据库重新加载
+            log.error("Increase cost stat error,userId:{}", userId, e);
+            stringRedisTemplate.delete(costStatKey(userId, today, isFree));
         }
-        saveOrUpdateInst.setIsFree(isFree);
-        self.saveOrUpdate(saveOrUpdateInst);
+    }
+
+    private static String costStatKey(long userId, int day, boolean isFree) {
+        return MessageFormat.format(RedisKeyConstant.USER_COST_STAT, String.valueOf(userId), String.valueOf(day / 100), String.valueOf(isFree));
+    }
+
+    private static int getIntField(Map<Object, Object> fields, String name) {
+        Object value = fields.get(name);
+        return null == value ? 0 : Integer.parseInt(value.toString());
     }
 
     public CostStat costStatByUser(long userId, boolean isFree) {
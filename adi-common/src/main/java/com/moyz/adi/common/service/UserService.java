@@ -13,6 +13,7 @@ import com.moyz.adi.common.enums.ErrorEnum;
 import com.moyz.adi.common.enums.UserStatusEnum;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.helper.AdiMailSender;
+import com.moyz.adi.common.helper.LoginUserCacheHelper;
 import com.moyz.adi.common.mapper.UserMapper;
 import com.moyz.adi.common.util.*;
 import com.moyz.adi.common.vo.CostStat;
@@ -59,6 +60,9 @@ public class UserService extends ServiceImpl<UserMapper, User> {
     @Resource
     private ConversationService conversationService;
 
+    @Resource
+    private LoginUserCacheHelper loginUserCacheHelper;
+
     @Value("${adi.backend-url}")
     private String backendUrl;
 
@@ -226,6 +230,7 @@ public class UserService extends ServiceImpl<UserMapper, User> {
         updateUser.setId(user.getId());
         updateUser.setUserStatus(UserStatusEnum.FREEZE);
         baseMapper.updateById(updateUser);
+        loginUserCacheHelper.removeUser(user.getId());
     }
 
     /**
@@ -245,6 +250,12 @@ public class UserService extends ServiceImpl<UserMapper, User> {
             editUser.setPassword(null);
         }
         baseMapper.updateById(editUser);
+        //修改密码后需重新登录
+        if (StringUtils.isNotBlank(userEditReq.getPassword())) {
+            loginUserCacheHelper.removeUser(user.getId());
+        } else {
+            refreshLoginUser(user.getId());
+        }
     }
 
     /**
@@ -388,6 +399,21 @@ public class UserService extends ServiceImpl<UserMapper, User> {
         user.setId(ThreadContext.getCurrentUserId());
         BeanUtils.copyProperties(userUpdateReq, user);
         baseMapper.updateById(user);
+        refreshLoginUser(user.getId());
+    }
+
+    /**
+     * 用户修改后更新其登录token中的用户信息，用户已冻结或删除时删除其登录token
+     *
+     * @param userId 用户id
+     */
+    private void refreshLoginUser(long userId) {
+        User user = baseMapper.selectById(userId);
+        if (null == user || Boolean.TRUE.equals(user.getIsDeleted()) || user.getUserStatus() == UserStatusEnum.FREEZE) {
+            loginUserCacheHelper.removeUser(userId);
+            return;
+        }
+        loginUserCacheHelper.refreshUser(userId, JsonUtil.toJson(fillDefaultQuota(user)));
     }
 
     /**
@@ -401,6 +427,7 @@ public class UserService extends ServiceImpl<UserMapper, User> {
         }
         String tokenKey = MessageFormat.format(USER_TOKEN, token);
         stringRedisTemplate.delete(tokenKey);
+        loginUserCacheHelper.invalidateToken(token);
     }
 
     /**
@@ -410,6 +437,23 @@ public class UserService extends ServiceImpl<UserMapper, User> {
      * @return 生成的登录令牌|the generated login token
      */
     private String setLoginToken(User user) {
+        fillDefaultQuota(user);
+        String token = UuidUtil.createShort();
+        String tokenKey = MessageFormat.format(USER_TOKEN, token);
+        String jsonUser = JsonUtil.toJson(user);
+        log.info("jsonUser:{}", jsonUser);
+        stringRedisTemplate.opsForValue().set(tokenKey, jsonUser, AdiConstant.USER_TOKEN_EXPIRE, TimeUnit.HOURS);
+        loginUserCacheHelper.addToken(user.getId(), token);
+        return token;
+    }
+
+    /**
+     * 用户未设置的额度使用系统默认值
+     *
+     * @param user 用户
+     * @return 传入的用户
+     */
+    private User fillDefaultQuota(User user) {
         if (user.getQuotaByTokenDaily() == 0) {
             user.setQuotaByTokenDaily(Integer.parseInt(LocalCache.CONFIGS.get(AdiConstant.SysConfigKey.QUOTA_BY_TOKEN_DAILY)));
         }
@@ -428,12 +472,7 @@ public class UserService extends ServiceImpl<UserMapper, User> {
         if (user.getQuotaByImageMonthly() == 0) {
             user.setQuotaByImageMonthly(Integer.parseInt(LocalCache.CONFIGS.get(AdiConstant.SysConfigKey.QUOTA_BY_IMAGE_MONTHLY)));
         }
-        String token = UuidUtil.createShort();
-        String tokenKey = MessageFormat.format(USER_TOKEN, token);
-        String jsonUser = JsonUtil.toJson(user);
-        log.info("jsonUser:{}", jsonUser);
-        stringRedisTemplate.opsForValue().set(tokenKey, jsonUser, AdiConstant.USER_TOKEN_EXPIRE, TimeUnit.HOURS);
-        return token;
+        return user;
     }
 
     /**
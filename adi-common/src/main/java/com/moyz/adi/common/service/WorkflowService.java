@@ -32,6 +32,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.CollectionUtils;
 
 import java.text.MessageFormat;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -183,6 +184,11 @@ public class WorkflowService extends ServiceImpl<WorkflowMapper, Workflow> {
         workflowEdgeService.createOrUpdateEdges(workflowId, req.getEdges());
         workflowNodeService.deleteNodes(workflowId, req.getDeleteNodes());
         workflowEdgeService.deleteEdges(workflowId, req.getDeleteEdges());
+        //更新时间即工作流定义的版本，节点或边变化后需要同步更新，以使运行时缓存的定义失效
+        ChainWrappers.lambdaUpdateChain(baseMapper)
+                .eq(Workflow::getId, workflowId)
+                .set(Workflow::getUpdateTime, LocalDateTime.now())
+                .update();
 
         Workflow workflow2 = getOrThrow(req.getUuid());
         return changeWorkflowToDTO(workflow2);
@@ -0,0 +1,23 @@
+package com.moyz.adi.common.util;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 会话记忆的持久化存储，由{@link ShardedChatMemoryStore}批量写入
+ */
+public interface ChatMemoryBackend extends ChatMemoryStore {
+
+    /**
+     * 批量更新
+     *
+     * @param memoryIdToMessages memoryId => 消息列表
+     */
+    void updateAll(Map<String, List<ChatMessage>> memoryIdToMessages);
+
+    default void close() {
+    }
+}
@@ -0,0 +1,161 @@
+package com.moyz.adi.common.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 按用户及任务公平调度的任务分发器
+ * <br/>1. 同时执行的任务数不超过{concurrency}，其余任务在内存中排队，不占用线程池的队列
+ * <br/>2. 每次取任务时在用户之间轮转，同一用户的多个任务（如多个导入任务）之间再轮转，文档多的任务不会让其他任务一直等待
+ * <br/>3. 每个任务执行完后立即分发下一个
+ */
+@Slf4j
+public class FairTaskDispatcher {
+
+    private final Executor executor;
+
+    private final int concurrency;
+
+    /**
+     * 用户 => 该用户的任务（按轮转顺序），LinkedHashMap的顺序即用户的轮转顺序
+     */
+    private final LinkedHashMap<String, ArrayDeque<Job>> userToJobs = new LinkedHashMap<>();
+
+    /**
+     * 任务 => 排队中及执行中的子任务数
+     */
+    private final Map<String, Integer> jobToOutstanding = new HashMap<>();
+
+    private int running;
+
+    public FairTaskDispatcher(Executor executor, int concurrency) {
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * 提交一个任务的所有子任务，子任务按提交的顺序执行
+     *
+     * @param userKey 用户标识
+     * @param jobKey  任务标识
+     * @param tasks   子任务
+     */
+    public void submit(String userKey, String jobKey, Collection<Runnable> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            userToJobs.computeIfAbsent(userKey, key -> new ArrayDeque<>()).addLast(new Job(jobKey, new ArrayDeque<>(tasks)));
+            jobToOutstanding.merge(jobKey, tasks.size(), Integer::sum);
+        }
+        dispatch();
+    }
+
+    /**
+     * 还有子任务在排队或执行中的任务
+     */
+    public synchronized Set<String> activeJobs() {
+        return new HashSet<>(jobToOutstanding.keySet());
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getQueued() {
+        int queued = 0;
+        for (ArrayDeque<Job> jobs : userToJobs.values()) {
+            for (Job job : jobs) {
+                queued += job.tasks.size();
+            }
+        }
+        return queued;
+    }
+
+    private void dispatch() {
+        List<Dispatched> toRun = new ArrayList<>();
+        synchronized (this) {
+            while (running < concurrency) {
+                Dispatched next = pollNext();
+                if (null == next) {
+                    break;
+                }
+                running++;
+                toRun.add(next);
+            }
+        }
+        for (Dispatched dispatched : toRun) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        dispatched.task.run();
+                    } catch (Exception e) {
+                        log.error("Dispatched task error,job:{}", dispatched.jobKey, e);
+                    } finally {
+                        onFinished(dispatched.jobKey);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //线程数与并发数一致时不会出现，出现时由中断任务的恢复机制重新处理
+                log.error("Dispatched task rejected,job:{}", dispatched.jobKey, e);
+                onFinished(dispatched.jobKey);
+            }
+        }
+    }
+
+    private void onFinished(String jobKey) {
+        synchronized (this) {
+            running--;
+            jobToOutstanding.computeIfPresent(jobKey, (key, outstanding) -> outstanding > 1 ? outstanding - 1 : null);
+        }
+        dispatch();
+    }
+
+    /**
+     * 取轮转到的用户的下一个任务的下一个子任务，之后该任务及该用户都移到队尾
+     */
+    private Dispatched pollNext() {
+        Iterator<Map.Entry<String, ArrayDeque<Job>>> iterator = userToJobs.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Map.Entry<String, ArrayDeque<Job>> entry = iterator.next();
+        iterator.remove();
+        ArrayDeque<Job> jobs = entry.getValue();
+        Job job = jobs.pollFirst();
+        if (null == job) {
+            return pollNext();
+        }
+        Runnable task = job.tasks.pollFirst();
+        if (!job.tasks.isEmpty()) {
+            jobs.addLast(job);
+        }
+        if (!jobs.isEmpty()) {
+            userToJobs.put(entry.getKey(), jobs);
+        }
+        return null == task ? pollNext() : new Dispatched(job.key, task);
+    }
+
+    private static class Job {
+        private final String key;
+        private final ArrayDeque<Runnable> tasks;
+
+        Job(String key, ArrayDeque<Runnable> tasks) {
+            this.key = key;
+            this.tasks = tasks;
+        }
+    }
+
+    private static class Dispatched {
+        private final String jobKey;
+        private final Runnable task;
+
+        Dispatched(String jobKey, Runnable task) {
+            this.jobKey = jobKey;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.moyz.adi.common.util;
+
+import com.moyz.adi.common.exception.BaseException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import static com.moyz.adi.common.enums.ErrorEnum.A_FILE_NOT_EXIST;
+
+/**
+ * 把本地文件原样输出给浏览器（不解码、不重新编码）
+ * <br/>1. 支持ETag及If-None-Match/If-Modified-Since，未变化时返回304
+ * <br/>2. 支持单个区间的Range请求（206）
+ * <br/>3. 容器支持sendfile（tomcat NIO）时由容器直接从文件发送到socket，否则用FileChannel.transferTo输出
+ */
+@Slf4j
+public class FileResponseUtil {
+
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private FileResponseUtil() {
+    }
+
+    /**
+     * 根据扩展名获取Content-Type
+     *
+     * @param ext 文件扩展名
+     * @return Content-Type
+     */
+    public static String contentType(String ext) {
+        return MediaTypeFactory.getMediaType("file." + StringUtils.defaultString(ext))
+                .orElse(MediaType.APPLICATION_OCTET_STREAM)
+                .toString();
+    }
+
+    /**
+     * 输出本地文件
+     *
+     * @param file           本地文件
+     * @param contentType    Content-Type
+     * @param cacheControl   Cache-Control，为空时不设置
+     * @param attachmentName 下载时的文件名，为空时直接在浏览器中显示
+     * @param request        请求
+     * @param response       响应
+     */
+    public static void write(File file, String contentType, String cacheControl, String attachmentName, HttpServletRequest request, HttpServletResponse response) {
+        if (null == file || !file.isFile()) {
+            throw new BaseException(A_FILE_NOT_EXIST);
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (StringUtils.isNotBlank(cacheControl)) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (StringUtils.isNotBlank(range) && isRangeApplicable(request, etag)) {
+            long[] parsed = parseRange(range, length);
+            if (null == parsed) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return;
+            }
+            if (parsed.length == 2) {
+                start = parsed[0];
+                end = parsed[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        long count = end - start + 1;
+        response.setContentType(contentType);
+        if (StringUtils.isNotBlank(attachmentName)) {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(attachmentName, StandardCharsets.UTF_8).build().toString());
+        }
+        response.setContentLengthLong(count);
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || count <= 0) {
+            return;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            //由容器在请求处理结束后直接发送文件内容
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end + 1);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long transferred = fileChannel.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        } catch (IOException e) {
+            //客户端中断下载时也会出现，不再抛出
+            log.warn("write file error,file:{},error:{}", file.getName(), e.getMessage());
+        }
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (StringUtils.isNotBlank(ifNoneMatch)) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = StringUtils.removeStart(candidate.trim(), "W/");
+                if ("*".equals(tag) || etag.equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        //http日期精确到秒
+        return ifModifiedSince > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * If-Range与当前文件不一致时忽略Range，返回整个文件
+     */
+    private static boolean isRangeApplicable(HttpServletRequest request, String etag) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        return StringUtils.isBlank(ifRange) || etag.equals(ifRange.trim());
+    }
+
+    /**
+     * 解析Range，只支持单个区间，多个区间时返回整个文件
+     *
+     * @return [start, end]；空数组表示返回整个文件；null表示区间无效
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith(BYTES_UNIT) || range.contains(",")) {
+            return new long[0];
+        }
+        String spec = range.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                //bytes=-N，最后N个字节
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.moyz.adi.common.util;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 全文检索的查询条件
+ * <br/>postgresql的simple分词器不能切分中文（连续的中文作为一个词），文本段入库时额外生成相邻两个汉字组成的词（见adi_cjk_bigrams），
+ * 查询时以同样的方式从问题中提取关键词，各关键词之间为“或”的关系，命中的关键词越多相关度越高；
+ * 常见的词（如“数据”）几乎在所有文本段中出现，检索时还要求命中一定比例的关键词
+ */
+public class FullTextQueryUtil {
+
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("[\\u4E00-\\u9FA5]+|[a-zA-Z0-9]+");
+
+    private static final int MAX_TERMS = 32;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "什么", "怎么", "如何", "为什", "哪些", "哪个", "是否", "可以", "请问", "一下", "这个", "那个", "我们", "你们", "他们",
+            "the", "and", "for", "are", "was", "what", "how", "why", "which", "who", "with", "from", "this", "that", "is", "of", "to", "in", "on", "an", "a");
+
+    private FullTextQueryUtil() {
+    }
+
+    /**
+     * 生成to_tsquery('simple', ...)的查询条件
+     *
+     * @param terms 关键词，见{@link #toTerms(String)}
+     * @return 如：java | 向量 | 量数 | 数据
+     */
+    public static String toOrTsQuery(List<String> terms) {
+        return String.join(" | ", terms);
+    }
+
+    /**
+     * 提取关键词：中文按相邻两个汉字切分，英文及数字按单词，去掉停用词
+     *
+     * @param text 用户的问题
+     * @return 关键词，最多{@value #MAX_TERMS}个
+     */
+    public static List<String> toTerms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        Matcher matcher = TOKEN_PATTERN.matcher(null == text ? "" : text);
+        while (matcher.find() && terms.size() < MAX_TERMS) {
+            String token = matcher.group();
+            if (isCjk(token.charAt(0))) {
+                for (int i = 0; i + 2 <= token.length(); i++) {
+                    addTerm(terms, token.substring(i, i + 2));
+                }
+            } else if (token.length() > 1) {
+                addTerm(terms, token.toLowerCase());
+            }
+        }
+        return terms.stream().limit(MAX_TERMS).toList();
+    }
+
+    private static void addTerm(Set<String> terms, String term) {
+        if (!STOP_WORDS.contains(term)) {
+            terms.add(term);
+        }
+    }
+
+    private static boolean isCjk(char c) {
+        return c >= '\u4E00' && c <= '\u9FA5';
+    }
+}
@@ -6,7 +6,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -16,15 +19,15 @@ public class HashUtil {
     private HashUtil() {
     }
 
+    /**
+     * 计算上传文件的sha256，按块读取，不把整个文件加载到内存中
+     */
     public static String sha256(MultipartFile file) {
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            byte[] hash = sha256.digest(file.getBytes());
+        MessageDigest sha256 = newSha256();
+        try (InputStream is = new DigestInputStream(file.getInputStream(), sha256)) {
+            is.transferTo(OutputStream.nullOutputStream());
             // 将哈希值转换为十六进制字符串
-            return getHashStr(hash);
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Calculate file sha256 NoSuchAlgorithmException", e);
-            throw new BaseException(ErrorEnum.B_SERVER_EXCEPTION);
+            return getHashStr(sha256.digest());
         } catch (Exception e) {
             log.error("Calculate file sha256 error", e);
             throw new BaseException(ErrorEnum.B_SERVER_EXCEPTION);
@@ -46,8 +49,20 @@ public class HashUtil {
         }
     }
 
+    /**
+     * 创建sha256的MessageDigest，可配合{@link DigestInputStream}在读取数据的同时计算sha256
+     */
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Calculate sha256 NoSuchAlgorithmException", e);
+            throw new BaseException(ErrorEnum.B_SERVER_EXCEPTION);
+        }
+    }
+
     @NotNull
-    private static String getHashStr(byte[] hash) {
+    public static String getHashStr(byte[] hash) {
         StringBuilder hexString = new StringBuilder();
         for (byte b : hash) {
             String hex = Integer.toHexString(0xff & b);
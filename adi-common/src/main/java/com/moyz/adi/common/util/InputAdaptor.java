@@ -1,13 +1,20 @@
 package com.moyz.adi.common.util;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.moyz.adi.common.cosntant.AdiConstant;
 import com.moyz.adi.common.vo.InputAdaptorMsg;
 import dev.langchain4j.data.message.*;
+import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.openai.OpenAiTokenizer;
 import dev.langchain4j.rag.AugmentationRequest;
 import dev.langchain4j.rag.content.Content;
 import dev.langchain4j.rag.query.Metadata;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -23,11 +30,62 @@ public class InputAdaptor {
 
     private static OpenAiTokenizer tokenizer = new OpenAiTokenizer(GPT_3_5_TURBO);
 
+    /**
+     * 文本哈希 => token数，历史记录、召回文档等在多轮对话中会被重复计算
+     */
+    private static final Cache<String, Integer> TOKEN_COUNT_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(50000)
+            .build();
+
+    /**
+     * 计算文本的token数，结果会被缓存
+     *
+     * @param text 文本
+     * @return token数
+     */
+    public static int countTokens(String text) {
+        if (StringUtils.isEmpty(text)) {
+            return 0;
+        }
+        String key = Hashing.murmur3_128().hashString(text, StandardCharsets.UTF_8).toString();
+        Integer count = TOKEN_COUNT_CACHE.getIfPresent(key);
+        if (null == count) {
+            count = tokenizer.estimateTokenCountInText(text);
+            TOKEN_COUNT_CACHE.put(key, count);
+        }
+        return count;
+    }
+
+    /**
+     * 计算文本段的token数，优先使用索引时写入元数据中的token数
+     *
+     * @param segment 文本段
+     * @return token数
+     */
+    public static int countTokens(TextSegment segment) {
+        Integer count = segment.metadata().getInteger(AdiConstant.MetadataKey.TOKEN_COUNT);
+        if (null != count) {
+            return count;
+        }
+        return countTokens(segment.text());
+    }
+
+    /**
+     * 把token数写入文本段的元数据中（索引时调用），召回后无需重新计算
+     *
+     * @param segment 文本段
+     * @return 原文本段
+     */
+    public static TextSegment withTokenCount(TextSegment segment) {
+        segment.metadata().put(AdiConstant.MetadataKey.TOKEN_COUNT, countTokens(segment.text()));
+        return segment;
+    }
+
     public static InputAdaptorMsg isQuestionValid(String userQuestion, int maxInputTokens) {
         InputAdaptorMsg result = new InputAdaptorMsg();
         result.setTokenTooMuch(InputAdaptorMsg.TOKEN_TOO_MUCH_NOT);
 
-        int questionLength = tokenizer.estimateTokenCountInText(userQuestion);
+        int questionLength = countTokens(userQuestion);
         result.setUserQuestionTokenCount(questionLength);
         if (questionLength > maxInputTokens) {
             log.warn("用户问题过长,已超过{}个token", maxInputTokens);
@@ -61,7 +119,7 @@ public class InputAdaptor {
         int tokenTooMuch = InputAdaptorMsg.TOKEN_TOO_MUCH_NOT;
         for (int i = metadata.chatMemory().size() - 1; i >= 0; i--) {
             String memory = metadata.chatMemory().get(i).text();
-            int currentMemoryTokenCount = tokenizer.estimateTokenCountInText(memory);
+            int currentMemoryTokenCount = countTokens(memory);
             if (inputAdaptorMsg.getUserQuestionTokenCount() + allMemoryTokenCount + currentMemoryTokenCount < maxInputTokens) {
                 allMemoryTokenCount += currentMemoryTokenCount;
                 validMemories.add(metadata.chatMemory().get(i));
@@ -98,7 +156,7 @@ public class InputAdaptor {
         int allRetrievedDocsTokenCount = 0;
         List<Content> validContents = new ArrayList<>();
         for (Content content : contents) {
-            int currentDocTokenCount = tokenizer.estimateTokenCountInText(content.textSegment().text());
+            int currentDocTokenCount = countTokens(content.textSegment());
             if (questionLength + allRetrievedDocsTokenCount + currentDocTokenCount < maxInputTokens) {
                 allRetrievedDocsTokenCount += currentDocTokenCount;
                 validContents.add(content);
@@ -125,7 +183,7 @@ public class InputAdaptor {
         result.add(latestMessage);
         int allTokenCount = 0;
         if (latestMessage instanceof UserMessage userMessage && userMessage.contents().get(0) instanceof TextContent textContent) {
-            allTokenCount += tokenizer.estimateTokenCountInText(textContent.text());
+            allTokenCount += countTokens(textContent.text());
         }
         for (int i = messageSize - 1 - 1; i >= 0; i--) {
             log.info("messageSize i:{}", i);
@@ -136,7 +194,7 @@ public class InputAdaptor {
             } else {
 
                 log.info("messageSize allTokenCount:{}", allTokenCount);
-                int currentMessageTokenCount = tokenizer.estimateTokenCountInText(curMsg.text());
+                int currentMessageTokenCount = countTokens(curMsg.text());
                 if (allTokenCount + currentMessageTokenCount < maxInputTokens) {
                     allTokenCount += currentMessageTokenCount;
                     result.add(curMsg);
@@ -1,31 +1,37 @@
 package com.moyz.adi.common.util;
 
-import cn.hutool.core.img.ImgUtil;
-import com.moyz.adi.common.entity.AdiFile;
 import com.moyz.adi.common.exception.BaseException;
+import com.moyz.adi.common.vo.SaveLocalFileResult;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 
 import static com.moyz.adi.common.enums.ErrorEnum.*;
 
 @Slf4j
 public class LocalFileUtil {
 
-    public static Pair<String, String> saveToLocal(MultipartFile file, String path, String newName) {
+    /**
+     * 保存上传的文件，写入磁盘的同时计算sha256，上传的文件只读取一次且不会整个加载到内存中
+     *
+     * @param file    上传的文件
+     * @param path    保存的目录
+     * @param newName 新文件名（不含扩展名）
+     * @return 保存结果
+     */
+    public static SaveLocalFileResult saveToLocal(MultipartFile file, String path, String newName) {
         if (file.isEmpty()) {
             log.info("save to local,file is empty");
             throw new BaseException(A_FILE_NOT_EXIST);
@@ -34,43 +40,19 @@ public class LocalFileUtil {
         String fileExt = getFileExtension(fileName);
         log.info("save to local,original name:{},new name:{}", fileName, newName);
         String pathName = path + newName + "." + fileExt;
-        try {
+        MessageDigest sha256 = HashUtil.newSha256();
+        try (InputStream is = new DigestInputStream(file.getInputStream(), sha256)) {
             // 将文件保存到目标路径
-            file.transferTo(new File(pathName));
+            Files.copy(is, Paths.get(pathName), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             log.error("save to local error", e);
             throw new BaseException(B_SAVE_FILE_ERROR);
         }
-        return new ImmutablePair<>(pathName, fileExt);
-    }
-
-    /**
-     * 读取图片到BufferedImage
-     *
-     * @param adiFile        图片实体类
-     * @param thumbnail      读取的是缩略图
-     * @param thumbnailsPath 缩略图路径
-     * @return 图片内容
-     */
-    public static BufferedImage readLocalImage(AdiFile adiFile, boolean thumbnail, String thumbnailsPath) {
-        try {
-            String currentFilePath = adiFile.getPath();
-            if (thumbnail) {
-                currentFilePath = thumbnailsPath + adiFile.getUuid() + "." + adiFile.getExt();
-                //不存在则创建
-                if (new File(adiFile.getPath()).exists() && !new File(currentFilePath).exists()) {
-                    ImgUtil.scale(
-                            cn.hutool.core.io.FileUtil.file(adiFile.getPath()),
-                            cn.hutool.core.io.FileUtil.file(currentFilePath),
-                            0.2f
-                    );
-                }
-            }
-            return ImageIO.read(new FileInputStream(currentFilePath));
-        } catch (IOException e) {
-            log.error("read image error", e);
-            throw new BaseException(B_IO_EXCEPTION);
-        }
+        return SaveLocalFileResult.builder()
+                .path(pathName)
+                .ext(fileExt)
+                .sha256(HashUtil.getHashStr(sha256.digest()))
+                .build();
     }
 
     public static byte[] readBytes(String localPath) {
@@ -1,14 +1,15 @@
 package com.moyz.adi.common.util;
 
-import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
-import dev.langchain4j.data.message.SystemMessage;
-import dev.langchain4j.store.memory.chat.ChatMemoryStore;
 import lombok.extern.slf4j.Slf4j;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -16,22 +17,107 @@ import static dev.langchain4j.data.message.ChatMessageDeserializer.messagesFromJ
 import static dev.langchain4j.data.message.ChatMessageSerializer.messagesToJson;
 import static org.mapdb.Serializer.STRING;
 
+/**
+ * 基于本地文件（MapDB）的会话记忆存储，每个实例对应一个分片文件
+ */
 @Slf4j
-public class MapDBChatMemoryStore implements ChatMemoryStore {
+public class MapDBChatMemoryStore implements ChatMemoryBackend {
 
-    public static MapDBChatMemoryStore singleton;
+    /**
+     * 未分片前的文件名
+     */
+    private static final String LEGACY_FILE_NAME = "chat-memory.db";
+
+    /**
+     * 记录分片数量的文件名
+     */
+    private static final String SHARD_COUNT_FILE_NAME = "chat-memory.shards";
 
     private final DB db;
 
     private final Map<String, String> map;
 
-    private MapDBChatMemoryStore() {
-        String memoryDir = SpringUtil.getProperty("local.chat-memory");
-        log.info("chat memory path:{}", memoryDir);
-        db = DBMaker.fileDB(memoryDir + "chat-memory.db").transactionEnable().make();
+    public MapDBChatMemoryStore(String file) {
+        log.info("chat memory file:{}", file);
+        //由ShardedChatMemoryStore在bean销毁时先写入待写入的数据再关闭，不使用closeOnJvmShutdown（关闭顺序不确定）
+        db = DBMaker.fileDB(file).transactionEnable().make();
         map = db.hashMap("messages", STRING, STRING).createOrOpen();
     }
 
+    /**
+     * 创建分片，并把未分片前的数据迁移到各分片中
+     *
+     * @param memoryDir 会话记忆所在目录
+     * @param shards    分片数量
+     * @return 各分片
+     */
+    public static List<ChatMemoryBackend> createShards(String memoryDir, int shards) {
+        checkShardCount(memoryDir, shards);
+        List<ChatMemoryBackend> result = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            result.add(new MapDBChatMemoryStore(shardFileName(memoryDir, i)));
+        }
+        File legacyFile = new File(memoryDir + LEGACY_FILE_NAME);
+        if (legacyFile.exists()) {
+            migrate(legacyFile, result);
+        }
+        return result;
+    }
+
+    private static String shardFileName(String memoryDir, int shardIndex) {
+        return memoryDir + "chat-memory-" + shardIndex + ".db";
+    }
+
+    /**
+     * 检查并记录分片数量
+     * <br/>会话记忆按memoryId的哈希值分配到分片，分片数量变化后已有的会话记忆将无法读取，此时拒绝启动
+     * <br/>未记录分片数量时（升级前创建的分片）按已存在的分片文件推断
+     */
+    private static void checkShardCount(String memoryDir, int shards) {
+        File countFile = new File(memoryDir + SHARD_COUNT_FILE_NAME);
+        try {
+            int existShards = 0;
+            if (countFile.exists()) {
+                existShards = Integer.parseInt(Files.readString(countFile.toPath()).trim());
+            } else {
+                while (new File(shardFileName(memoryDir, existShards)).exists()) {
+                    existShards++;
+                }
+            }
+            if (existShards > 0 && existShards != shards) {
+                throw new IllegalStateException("Chat memory shards changed from " + existShards + " to " + shards
+                        + ",restore adi.chat-memory.shards or migrate the files in " + memoryDir);
+            }
+            if (!countFile.exists()) {
+                Files.writeString(countFile.toPath(), String.valueOf(shards));
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new IllegalStateException("Check chat memory shards error,file:" + countFile.getAbsolutePath(), e);
+        }
+    }
+
+    private static void migrate(File legacyFile, List<ChatMemoryBackend> shards) {
+        log.info("Migrate chat memory to shards,file:{},shards:{}", legacyFile.getAbsolutePath(), shards.size());
+        DB legacyDb = DBMaker.fileDB(legacyFile).transactionEnable().make();
+        List<Map<String, List<ChatMessage>>> shardToMessages = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            shardToMessages.add(new HashMap<>());
+        }
+        try {
+            Map<String, String> legacyMap = legacyDb.hashMap("messages", STRING, STRING).createOrOpen();
+            legacyMap.forEach((memoryId, json) -> shardToMessages.get(ShardedChatMemoryStore.shardIndex(memoryId, shards.size())).put(memoryId, messagesFromJson(json)));
+        } finally {
+            legacyDb.close();
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).updateAll(shardToMessages.get(i));
+        }
+        File migratedFile = new File(legacyFile.getAbsolutePath() + ".migrated");
+        if (!legacyFile.renameTo(migratedFile)) {
+            log.warn("Rename migrated chat memory file fail,file:{}", legacyFile.getAbsolutePath());
+        }
+    }
+
     @Override
     public List<ChatMessage> getMessages(Object memoryId) {
         String json = map.get((String) memoryId);
@@ -40,19 +126,17 @@ public class MapDBChatMemoryStore implements ChatMemoryStore {
 
     @Override
     public void updateMessages(Object memoryId, List<ChatMessage> messages) {
-        //AiMessage in first position is not allow
-        if (messages.size() > 0 && messages.get(0) instanceof AiMessage) {
-            messages.remove(0);
-        }
-        //Filter out the available messages.(UserMessage,AiMessage)
-        List<ChatMessage> availableMessage = new ArrayList<>();
-        for (ChatMessage chatMessage : messages) {
-            if (!(chatMessage instanceof SystemMessage)) {
-                availableMessage.add(chatMessage);
-            }
+        map.put((String) memoryId, messagesToJson(messages));
+        db.commit();
+    }
+
+    @Override
+    public void updateAll(Map<String, List<ChatMessage>> memoryIdToMessages) {
+        if (memoryIdToMessages.isEmpty()) {
+            return;
         }
-        String json = messagesToJson(availableMessage);
-        map.put((String) memoryId, json);
+        memoryIdToMessages.forEach((memoryId, messages) -> map.put(memoryId, messagesToJson(messages)));
+        //一批数据只提交一次
         db.commit();
     }
 
@@ -62,14 +146,10 @@ public class MapDBChatMemoryStore implements ChatMemoryStore {
         db.commit();
     }
 
-    public static MapDBChatMemoryStore getSingleton() {
-        if (null == singleton) {
-            synchronized (MapDBChatMemoryStore.class) {
-                if (null == singleton) {
-                    singleton = new MapDBChatMemoryStore();
-                }
-            }
+    @Override
+    public void close() {
+        if (!db.isClosed()) {
+            db.close();
         }
-        return singleton;
     }
 }
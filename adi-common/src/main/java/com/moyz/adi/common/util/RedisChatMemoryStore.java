@@ -0,0 +1,72 @@
+package com.moyz.adi.common.util;
+
+import dev.langchain4j.data.message.ChatMessage;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.moyz.adi.common.cosntant.RedisKeyConstant.CHAT_MEMORY;
+import static dev.langchain4j.data.message.ChatMessageDeserializer.messagesFromJson;
+import static dev.langchain4j.data.message.ChatMessageSerializer.messagesToJson;
+
+/**
+ * 基于Redis的会话记忆存储，多个应用节点可共用
+ */
+public class RedisChatMemoryStore implements ChatMemoryBackend {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final long ttlSeconds;
+
+    /**
+     * @param stringRedisTemplate redis
+     * @param ttlSeconds          会话记忆的过期时间，每次更新后重新计算
+     */
+    public RedisChatMemoryStore(StringRedisTemplate stringRedisTemplate, long ttlSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    @Override
+    public List<ChatMessage> getMessages(Object memoryId) {
+        String json = stringRedisTemplate.opsForValue().get(key(memoryId));
+        return messagesFromJson(json);
+    }
+
+    @Override
+    public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        stringRedisTemplate.opsForValue().set(key(memoryId), messagesToJson(messages), ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void updateAll(Map<String, List<ChatMessage>> memoryIdToMessages) {
+        if (memoryIdToMessages.isEmpty()) {
+            return;
+        }
+        //一批数据通过pipeline一次发送
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            memoryIdToMessages.forEach((memoryId, messages) -> connection.stringCommands().set(
+                    key(memoryId).getBytes(StandardCharsets.UTF_8),
+                    messagesToJson(messages).getBytes(StandardCharsets.UTF_8),
+                    Expiration.seconds(ttlSeconds),
+                    RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteMessages(Object memoryId) {
+        stringRedisTemplate.delete(key(memoryId));
+    }
+
+    private static String key(Object memoryId) {
+        return MessageFormat.format(CHAT_MEMORY, memoryId.toString());
+    }
+}
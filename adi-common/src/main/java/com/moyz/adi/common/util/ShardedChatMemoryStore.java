@@ -0,0 +1,237 @@
+package com.moyz.adi.common.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 会话记忆存储
+ * <br/>1. 按memoryId分片到多个持久化存储（{@link ChatMemoryBackend}），各分片互不影响
+ * <br/>2. 最近使用的会话记忆保存在内存中（有界，按LRU淘汰）
+ * <br/>3. 更新先写入内存，由后台线程定时批量写入持久化存储，同一会话在一个周期内的多次更新只写入最后一次
+ * <br/>4. 多节点共享的存储（如redis）不使用内存缓存及批量写入，直接读写，避免各节点读到其他节点更新前的会话记忆
+ * <br/>5. bean销毁时（{@link #close()}）先写入待写入的数据，再关闭各分片
+ * <br/>6. 同一会话的更新、删除、批量写入及缓存未命中时的加载按memoryId加锁（分段锁），
+ * 避免删除后又被批量写入或加载写回
+ */
+@Slf4j
+public class ShardedChatMemoryStore implements ChatMemoryStore {
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final List<ChatMemoryBackend> shards;
+
+    /**
+     * 每个分片中待写入的会话记忆：memoryId => 消息列表
+     */
+    private final List<Map<String, List<ChatMessage>>> pendingWrites;
+
+    /**
+     * 为null时直接读写持久化存储
+     */
+    private final Cache<String, List<ChatMessage>> hotCache;
+
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * 按memoryId的分段锁，只在使用内存缓存时使用
+     */
+    private final Striped<Lock> memoryLocks;
+
+    /**
+     * 直接读写持久化存储，不使用内存缓存及批量写入，用于多节点共享的存储
+     *
+     * @param shards 持久化存储分片
+     */
+    public ShardedChatMemoryStore(List<ChatMemoryBackend> shards) {
+        this.shards = shards;
+        this.pendingWrites = null;
+        this.hotCache = null;
+        this.flusher = null;
+        this.memoryLocks = null;
+        log.info("ShardedChatMemoryStore started without local cache,shards:{}", shards.size());
+    }
+
+    /**
+     * @param shards              持久化存储分片
+     * @param hotMaxEntries       内存中最多保存的会话记忆数量
+     * @param hotTtlSeconds       内存中的会话记忆未被访问时的过期时间
+     * @param flushIntervalMillis 批量写入持久化存储的间隔
+     */
+    public ShardedChatMemoryStore(List<ChatMemoryBackend> shards, long hotMaxEntries, long hotTtlSeconds, long flushIntervalMillis) {
+        this.shards = shards;
+        this.pendingWrites = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            pendingWrites.add(new ConcurrentHashMap<>());
+        }
+        this.hotCache = CacheBuilder.newBuilder()
+                .maximumSize(hotMaxEntries)
+                .expireAfterAccess(hotTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        this.memoryLocks = Striped.lock(LOCK_STRIPES);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-memory-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("ShardedChatMemoryStore started,shards:{},hotMaxEntries:{},flushIntervalMillis:{}", shards.size(), hotMaxEntries, flushIntervalMillis);
+    }
+
+    public static int shardIndex(String memoryId, int shardCount) {
+        return Math.floorMod(memoryId.hashCode(), shardCount);
+    }
+
+    @Override
+    public List<ChatMessage> getMessages(Object memoryId) {
+        String id = memoryId.toString();
+        int shardIndex = shardIndex(id, shards.size());
+        if (null == hotCache) {
+            return shards.get(shardIndex).getMessages(id);
+        }
+        List<ChatMessage> messages = pendingWrites.get(shardIndex).get(id);
+        if (null == messages) {
+            messages = hotCache.getIfPresent(id);
+        }
+        if (null == messages) {
+            messages = loadMessages(id, shardIndex);
+        }
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * 缓存未命中时从持久化存储加载，加锁期间该会话不会被更新或删除；已有更新的数据时不覆盖
+     */
+    private List<ChatMessage> loadMessages(String id, int shardIndex) {
+        Lock lock = memoryLocks.get(id);
+        lock.lock();
+        try {
+            List<ChatMessage> messages = pendingWrites.get(shardIndex).get(id);
+            if (null != messages) {
+                return messages;
+            }
+            messages = shards.get(shardIndex).getMessages(id);
+            List<ChatMessage> existing = hotCache.asMap().putIfAbsent(id, messages);
+            return null == existing ? messages : existing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        //AiMessage in first position is not allow
+        //Filter out the available messages.(UserMessage,AiMessage)
+        List<ChatMessage> availableMessage = new ArrayList<>();
+        for (ChatMessage chatMessage : messages) {
+            if (availableMessage.isEmpty() && chatMessage instanceof AiMessage) {
+                continue;
+            }
+            if (!(chatMessage instanceof SystemMessage)) {
+                availableMessage.add(chatMessage);
+            }
+        }
+        String id = memoryId.toString();
+        if (null == hotCache) {
+            shards.get(shardIndex(id, shards.size())).updateMessages(id, availableMessage);
+            return;
+        }
+        Lock lock = memoryLocks.get(id);
+        lock.lock();
+        try {
+            hotCache.put(id, availableMessage);
+            pendingWrites.get(shardIndex(id, shards.size())).put(id, availableMessage);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteMessages(Object memoryId) {
+        String id = memoryId.toString();
+        int shardIndex = shardIndex(id, shards.size());
+        if (null == hotCache) {
+            shards.get(shardIndex).deleteMessages(id);
+            return;
+        }
+        Lock lock = memoryLocks.get(id);
+        lock.lock();
+        try {
+            hotCache.invalidate(id);
+            pendingWrites.get(shardIndex).remove(id);
+            shards.get(shardIndex).deleteMessages(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把各分片待写入的会话记忆批量写入持久化存储
+     * <br/>写入期间持有这批会话的锁，加锁后重新读取待写入的数据，加锁前被删除的会话不会再写入
+     */
+    public void flush() {
+        if (null == pendingWrites) {
+            return;
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            Map<String, List<ChatMessage>> pending = pendingWrites.get(i);
+            if (pending.isEmpty()) {
+                continue;
+            }
+            List<String> ids = new ArrayList<>(pending.keySet());
+            //bulkGet按固定顺序返回锁，不会与其他批量写入死锁
+            List<Lock> locks = new ArrayList<>();
+            memoryLocks.bulkGet(ids).forEach(locks::add);
+            locks.forEach(Lock::lock);
+            Map<String, List<ChatMessage>> batch = new HashMap<>();
+            try {
+                //只写入已加锁的会话，加锁前被删除的会话已不在pending中，之后新增的留到下一个周期写入
+                for (String id : ids) {
+                    List<ChatMessage> messages = pending.get(id);
+                    if (null != messages) {
+                        batch.put(id, messages);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                shards.get(i).updateAll(batch);
+                batch.forEach(pending::remove);
+            } catch (Exception e) {
+                log.error("Flush chat memory error,shard:{},size:{}", i, batch.size(), e);
+            } finally {
+                locks.forEach(Lock::unlock);
+            }
+        }
+    }
+
+    public void close() {
+        if (null != flusher) {
+            flusher.shutdown();
+            try {
+                if (!flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                    log.warn("Chat memory flusher did not terminate in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+        }
+        shards.forEach(ChatMemoryBackend::close);
+    }
+}
@@ -0,0 +1,180 @@
+package com.moyz.adi.common.util;
+
+import com.moyz.adi.common.exception.BaseException;
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.parser.apache.poi.ApachePoiDocumentParser;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import static com.moyz.adi.common.cosntant.AdiConstant.POI_DOC_TYPES;
+import static com.moyz.adi.common.enums.ErrorEnum.B_PARSE_DOCUMENT_ERROR;
+
+/**
+ * 按页/段解析文档，解析出的文本分多次交给调用方，不在内存中生成整个文档的文本
+ * <br/>1. pdf：逐页提取文本，解析过程中的缓存使用临时文件
+ * <br/>2. xlsx：使用POI的事件模型（SAX）逐行读取，不加载整个工作簿
+ * <br/>3. txt：按块读取
+ * <br/>4. doc、docx、ppt、pptx、xls：POI没有对应的流式接口，整体解析后一次性交给调用方
+ */
+@Slf4j
+public class StreamingDocumentParser {
+
+    /**
+     * 文本块的最大字符数（txt、xlsx）
+     */
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    private StreamingDocumentParser() {
+    }
+
+    public static boolean isSupported(String ext) {
+        return "txt".equalsIgnoreCase(ext) || "pdf".equalsIgnoreCase(ext) || isPoiType(ext);
+    }
+
+    /**
+     * 解析本地文件
+     *
+     * @param file          本地文件
+     * @param ext           文件扩展名
+     * @param chunkConsumer 依次接收解析出来的文本块
+     */
+    public static void parse(File file, String ext, Consumer<String> chunkConsumer) {
+        try {
+            if ("txt".equalsIgnoreCase(ext)) {
+                parseText(file, chunkConsumer);
+            } else if ("pdf".equalsIgnoreCase(ext)) {
+                parsePdf(file, chunkConsumer);
+            } else if ("xlsx".equalsIgnoreCase(ext)) {
+                parseXlsx(file, chunkConsumer);
+            } else if (isPoiType(ext)) {
+                parseByPoi(file, chunkConsumer);
+            }
+        } catch (BaseException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Parse document error,file:{}", file.getName(), e);
+            throw new BaseException(B_PARSE_DOCUMENT_ERROR);
+        }
+    }
+
+    private static void parseText(File file, Consumer<String> chunkConsumer) throws IOException {
+        char[] buffer = new char[CHUNK_CHARS];
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                chunkConsumer.accept(new String(buffer, 0, read));
+            }
+        }
+    }
+
+    private static void parsePdf(File file, Consumer<String> chunkConsumer) throws IOException {
+        try (PDDocument pdDocument = PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly())) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            int pages = pdDocument.getNumberOfPages();
+            for (int page = 1; page <= pages; page++) {
+                stripper.setStartPage(page);
+                stripper.setEndPage(page);
+                chunkConsumer.accept(stripper.getText(pdDocument));
+            }
+        }
+    }
+
+    private static void parseXlsx(File file, Consumer<String> chunkConsumer) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)) {
+            XSSFReader xssfReader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            StylesTable styles = xssfReader.getStylesTable();
+            RowCollector rowCollector = new RowCollector(chunkConsumer);
+            Iterator<InputStream> sheets = xssfReader.getSheetsData();
+            while (sheets.hasNext()) {
+                try (InputStream sheet = sheets.next()) {
+                    XMLReader parser = XMLHelper.newXMLReader();
+                    parser.setContentHandler(new XSSFSheetXMLHandler(styles, null, strings, rowCollector, new DataFormatter(), false));
+                    parser.parse(new InputSource(sheet));
+                }
+                rowCollector.flush();
+            }
+        }
+    }
+
+    private static void parseByPoi(File file, Consumer<String> chunkConsumer) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            Document document = new ApachePoiDocumentParser().parse(is);
+            chunkConsumer.accept(document.text());
+        }
+    }
+
+    private static boolean isPoiType(String ext) {
+        for (String type : POI_DOC_TYPES) {
+            if (type.equalsIgnoreCase(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把单元格按行拼接（单元格之间用制表符分隔），攒够一个文本块后交给调用方
+     */
+    private static class RowCollector implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+        private final Consumer<String> chunkConsumer;
+
+        private final StringBuilder chunk = new StringBuilder();
+
+        private boolean firstCellOfRow;
+
+        RowCollector(Consumer<String> chunkConsumer) {
+            this.chunkConsumer = chunkConsumer;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            firstCellOfRow = true;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            chunk.append('\n');
+            if (chunk.length() >= CHUNK_CHARS) {
+                flush();
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            if (!firstCellOfRow) {
+                chunk.append('\t');
+            }
+            firstCellOfRow = false;
+            if (null != formattedValue) {
+                chunk.append(formattedValue);
+            }
+        }
+
+        void flush() {
+            if (!chunk.isEmpty()) {
+                chunkConsumer.accept(chunk.toString());
+                chunk.setLength(0);
+            }
+        }
+    }
+}
@@ -10,4 +10,12 @@ import lombok.Data;
 public class AnswerMeta {
     private Integer tokens;
     private String uuid;
+    /**
+     * 回答是否被中途取消（用户停止、断开或超时），取消时tokens为已生成部分的估算值
+     */
+    private boolean cancelled;
+
+    public AnswerMeta(Integer tokens, String uuid) {
+        this(tokens, uuid, false);
+    }
 }
@@ -7,6 +7,7 @@ import lombok.Builder;
 import lombok.Data;
 
 import java.util.List;
+import java.util.function.IntConsumer;
 
 @Data
 @Builder
@@ -15,7 +16,22 @@ public class GraphIngestParams {
     private Document document;
     private int overlap;
     private ChatLanguageModel chatLanguageModel;
+
+    /**
+     * 抽取所用模型的名称，用于限制同一模型的并发请求数
+     */
+    private String modelName;
     private List<String> identifyColumns;
     private List<String> appendColumns;
     private boolean isFreeToken;
+
+    /**
+     * 从第几个文本段开始处理，用于中断后继续索引
+     */
+    private int fromSegmentIndex;
+
+    /**
+     * 每批文本段写入完成后回调已完成的文本段数量
+     */
+    private IntConsumer checkpointConsumer;
 }
@@ -0,0 +1,16 @@
+package com.moyz.adi.common.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Data
+public class SaveLocalFileResult {
+    private String path;
+    private String ext;
+    private String sha256;
+}
@@ -1,6 +1,7 @@
 package com.moyz.adi.common.vo;
 
 import com.moyz.adi.common.entity.User;
+import com.moyz.adi.common.helper.StreamCancellation;
 import dev.langchain4j.memory.ChatMemory;
 import lombok.Data;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
@@ -31,4 +32,9 @@ public class SseAskParams {
      * 最终提交给llm的信息，必填
      */
     private AssistantChatParams assistantChatParams;
+
+    /**
+     * 请求的取消信号，客户端断开、超时或主动停止时中止LLM的流式响应
+     */
+    private StreamCancellation cancellation = new StreamCancellation();
 }
@@ -19,4 +19,8 @@ public class UpdateQaParams {
     private List<ContentRetriever> retrievers;
     private String response;
     private boolean isTokenFree;
+    /**
+     * 回答是否被中途取消
+     */
+    private boolean cancelled;
 }
@@ -0,0 +1,75 @@
+package com.moyz.adi.common.workflow;
+
+import com.moyz.adi.common.entity.Workflow;
+import com.moyz.adi.common.entity.WorkflowComponent;
+import com.moyz.adi.common.entity.WorkflowEdge;
+import com.moyz.adi.common.entity.WorkflowNode;
+import lombok.Getter;
+import lombok.Setter;
+import org.bsc.langgraph4j.CompiledGraph;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * 解析后的工作流定义 | parsed workflow definition
+ * <br/>同一版本（以工作流的更新时间及可用组件的版本区分）的各次运行共用，运行过程中不能修改
+ */
+@Setter
+@Getter
+public class WfDefinition {
+
+    private Workflow workflow;
+
+    /**
+     * 版本，即工作流的更新时间
+     */
+    private LocalDateTime version;
+
+    /**
+     * 构建时可用组件的版本，组件变化后需重新构建
+     */
+    private String componentVersion;
+
+    private List<WorkflowNode> nodes;
+
+    private List<WorkflowEdge> edges;
+
+    //Node uuid => component
+    private Map<String, WorkflowComponent> nodeToComponent = new HashMap<>();
+
+    private WorkflowNode startNode;
+
+    private Set<WorkflowNode> endNodes;
+
+    //Source node uuid => target node uuid list
+    private Map<String, List<String>> edgeMap = new HashMap<>();
+
+    /**
+     * 编译后的图，节点执行时通过运行实例uuid获取本次运行的状态
+     */
+    private CompiledGraph<WfNodeState> compiledGraph;
+
+    /**
+     * 新增一条边
+     * 并行执行分支的情况下会出现一个 source node 对应多个 target node
+     *
+     * @param sourceNodeUuid 开始节点
+     * @param targetNodeUuid 目标节点
+     */
+    public void addEdge(String sourceNodeUuid, String targetNodeUuid) {
+        edgeMap.put(sourceNodeUuid, List.of(targetNodeUuid));
+    }
+
+    /**
+     * 新增一条边
+     * 按条件执行的分支会出现一个 source node 对应多个 target node 的情况
+     *
+     * @param sourceNodeUuid 开始节点
+     * @param targetNodeUuid 目标节点
+     */
+    public void addConditionalEdge(String sourceNodeUuid, String targetNodeUuid) {
+        List<String> targetNodeUuids = edgeMap.computeIfAbsent(sourceNodeUuid, k -> new ArrayList<>());
+        targetNodeUuids.add(targetNodeUuid);
+    }
+}
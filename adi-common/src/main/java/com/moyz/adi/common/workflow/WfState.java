@@ -4,6 +4,7 @@ import com.moyz.adi.common.dto.workflow.WfRuntimeNodeDto;
 import com.moyz.adi.common.entity.User;
 import com.moyz.adi.common.entity.WorkflowNode;
 import com.moyz.adi.common.entity.WorkflowRuntimeNode;
+import com.moyz.adi.common.helper.StreamCancellation;
 import com.moyz.adi.common.workflow.data.NodeIOData;
 import com.moyz.adi.common.workflow.node.AbstractWfNode;
 import lombok.Getter;
@@ -26,9 +27,6 @@ public class WfState {
     private User user;
     private String processingNodeUuid;
 
-    //Source node uuid => target node uuid list
-    private Map<String, List<String>> edges = new HashMap<>();
-
     //Source node uuid => streaming chat generator
     private Map<String, StreamingChatGenerator<AgentState>> nodeToStreamingGenerator = new HashMap<>();
 
@@ -50,6 +48,11 @@ public class WfState {
     private List<NodeIOData> output = new ArrayList<>();
     private Integer processStatus = WORKFLOW_PROCESS_STATUS_READY;
 
+    /**
+     * 运行的取消信号，客户端断开、超时或主动停止时不再执行后续节点
+     */
+    private StreamCancellation cancellation = new StreamCancellation();
+
     public WfState(User user, List<NodeIOData> input, String uuid) {
         this.input = input;
         this.user = user;
@@ -70,29 +73,6 @@ public class WfState {
         return this.completedNodes.stream().filter(item -> item.getNode().getUuid().equals(nodeUuid)).map(AbstractWfNode::getState).findFirst();
     }
 
-    /**
-     * 新增一条边
-     * 并行执行分支的情况下会出现一个 source node 对应多个 target node
-     *
-     * @param sourceNodeUuid 开始节点
-     * @param targetNodeUuid 目标节点
-     */
-    public void addEdge(String sourceNodeUuid, String targetNodeUuid) {
-        edges.put(sourceNodeUuid, List.of(targetNodeUuid));
-    }
-
-    /**
-     * 新增一条边
-     * 按条件执行的分支会出现一个 source node 对应多个 target node 的情况
-     *
-     * @param sourceNodeUuid 开始节点
-     * @param targetNodeUuid 目标节点
-     */
-    public void addConditionalEdge(String sourceNodeUuid, String targetNodeUuid) {
-        List<String> targetNodeUuids = edges.computeIfAbsent(sourceNodeUuid, k -> new ArrayList<>());
-        targetNodeUuids.add(targetNodeUuid);
-    }
-
     public List<NodeIOData> getIOByNodeUuid(String nodeUuid) {
         List<NodeIOData> result = new ArrayList<>();
         Optional<AbstractWfNode> optional = completedNodes.stream().filter(node -> nodeUuid.equals(node.getNode().getUuid())).findFirst();
@@ -1,12 +1,16 @@
 package com.moyz.adi.common.workflow;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.moyz.adi.common.dto.workflow.WfRuntimeNodeDto;
 import com.moyz.adi.common.dto.workflow.WfRuntimeResp;
 import com.moyz.adi.common.entity.*;
 import com.moyz.adi.common.enums.ErrorEnum;
 import com.moyz.adi.common.exception.BaseException;
 import com.moyz.adi.common.helper.SSEEmitterHelper;
+import com.moyz.adi.common.helper.SseStreamWriter;
+import com.moyz.adi.common.helper.StreamCancellation;
 import com.moyz.adi.common.service.*;
 import com.moyz.adi.common.util.JsonUtil;
 import com.moyz.adi.common.workflow.data.NodeIOData;
@@ -19,6 +23,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.bsc.async.AsyncGenerator;
 import org.bsc.langgraph4j.CompiledGraph;
+import org.bsc.langgraph4j.GraphStateException;
 import org.bsc.langgraph4j.NodeOutput;
 import org.bsc.langgraph4j.StateGraph;
 import org.bsc.langgraph4j.langchain4j.generators.StreamingChatGenerator;
@@ -30,7 +35,12 @@ import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.moyz.adi.common.cosntant.AdiConstant.WorkflowConstant.DEFAULT_OUTPUT_PARAM_NAME;
 import static com.moyz.adi.common.cosntant.AdiConstant.WorkflowConstant.WORKFLOW_NODE_PROCESS_TYPE_CONDITIONAL;
@@ -71,6 +81,24 @@ public class WorkflowEngine {
 
     private final ObjectStreamStateSerializer<WfNodeState> stateSerializer = new ObjectStreamStateSerializer<>(WfNodeState::new);
 
+    /**
+     * 节点从 langgraph4j state 中获取运行实例uuid所用的key
+     */
+    private static final String RUNTIME_UUID_KEY = "_wf_runtime_uuid";
+
+    /**
+     * 工作流uuid => 解析后的工作流定义
+     */
+    private final Cache<String, WfDefinition> definitions = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    /**
+     * 运行实例uuid => 运行中的工作流实例状态
+     */
+    private final Map<String, WfRunContext> runContexts = new ConcurrentHashMap<>();
+
     public SseEmitter streaming(User user, String workflowUuid, List<ObjectNode> userInputs) {
         SseEmitter sseEmitter = new SseEmitter();
         if (!sseEmitterHelper.checkOrComplete(user, sseEmitter)) {
@@ -94,9 +122,61 @@ public class WorkflowEngine {
 
         Long workflowId = workflow.getId();
         WfRuntimeResp wfRuntime = workflowRuntimeService.create(user, workflowId);
+        StreamCancellation cancellation = new StreamCancellation();
+        sseEmitterHelper.registerEventStreamListener(user, sseEmitter, cancellation);
         sseEmitterHelper.startSse(user, sseEmitter, JsonUtil.toJson(wfRuntime));
 
+        //TODO... Check for circular references
+        try {
+            WfDefinition definition = getOrBuildDefinition(workflow);
+            List<NodeIOData> wfInputs = getAndCheckUserInput(userInputs, definition.getStartNode());
+            //工作流运行实例状态
+            WfState wfRuntimeState = new WfState(user, wfInputs, wfRuntime.getUuid());
+            wfRuntimeState.setCancellation(cancellation);
+            workflowRuntimeService.updateInput(wfRuntime.getId(), wfRuntimeState);
+            runContexts.put(wfRuntime.getUuid(), new WfRunContext(user, wfRuntime, wfRuntimeState, sseEmitter));
+            try {
+                //不使用langgraph4j state的update相关方法，只传入运行实例uuid用于节点获取本次运行的状态
+                AsyncGenerator<NodeOutput<WfNodeState>> outputs = definition.getCompiledGraph().stream(Map.of(RUNTIME_UUID_KEY, wfRuntime.getUuid()));
+                streamingResult(wfRuntimeState, outputs, sseEmitter);
+            } finally {
+                runContexts.remove(wfRuntime.getUuid());
+            }
+            if (cancellation.isCancelled()) {
+                SSEEmitterHelper.cancelAndShutdown(cancellation, sseEmitter);
+                return;
+            }
+            //fillResult(outputs) //非流式返回
+            WorkflowRuntime updatedRuntime = workflowRuntimeService.updateOutput(wfRuntime.getId(), wfRuntimeState);
+            sseEmitterHelper.sendComplete(user.getId(), sseEmitter, JsonUtil.toJson(updatedRuntime.getOutput()));
+        } catch (Exception e) {
+            if (cancellation.isCancelled()) {
+                SSEEmitterHelper.cancelAndShutdown(cancellation, sseEmitter);
+                return;
+            }
+            log.error("error", e);
+            sseEmitterHelper.sendErrorAndComplete(user.getId(), sseEmitter, e.getMessage());
+        }
+    }
+
+    /**
+     * 获取解析后的工作流定义，缓存中没有或版本（工作流的更新时间及可用组件的版本）已变化时重新加载并编译
+     *
+     * @param workflow 工作流
+     * @return 工作流定义
+     */
+    private WfDefinition getOrBuildDefinition(Workflow workflow) throws GraphStateException {
         List<WorkflowComponent> components = workflowComponentService.getAllEnable();
+        String componentVersion = componentVersion(components);
+        WfDefinition cached = definitions.getIfPresent(workflow.getUuid());
+        if (null != cached && Objects.equals(cached.getVersion(), workflow.getUpdateTime())
+                && Objects.equals(cached.getComponentVersion(), componentVersion)) {
+            return cached;
+        }
+        log.info("Build workflow definition,workflowUuid:{},version:{},componentVersion:{}", workflow.getUuid(), workflow.getUpdateTime(), componentVersion);
+        Long workflowId = workflow.getId();
+        Map<Long, WorkflowComponent> idToComponent = components.stream()
+                .collect(Collectors.toMap(WorkflowComponent::getId, Function.identity(), (s, a) -> s));
         List<WorkflowNode> nodes = workflowNodeService.lambdaQuery()
                 .eq(WorkflowNode::getWorkflowId, workflowId)
                 .eq(WorkflowNode::getIsDeleted, false)
@@ -106,98 +186,143 @@ public class WorkflowEngine {
                 .eq(WorkflowEdge::getIsDeleted, false)
                 .list();
 
-        //TODO... Check for circular references
-        try {
-            Pair<WorkflowNode, Set<WorkflowNode>> startAndEnds = findStartAndEndNode(nodes, edges, components);
-            WorkflowNode startNode = startAndEnds.getLeft();
-            Set<WorkflowNode> endNodes = startAndEnds.getRight();
-            List<NodeIOData> wfInputs = getAndCheckUserInput(userInputs, startNode);
-            //工作流运行实例状态
-            WfState wfRuntimeState = new WfState(user, wfInputs, wfRuntime.getUuid());
-            workflowRuntimeService.updateInput(wfRuntime.getId(), wfRuntimeState);
-            StateGraph<WfNodeState> stateGraph = new StateGraph<>(stateSerializer);
-            //Init nodes
-            for (WorkflowNode wfNode : nodes) {
-                WorkflowComponent wfComponent = components.stream()
-                        .filter(component -> component.getId().equals(wfNode.getWorkflowComponentId()))
-                        .findFirst()
-                        .orElseThrow(() -> new BaseException(ErrorEnum.B_WF_NODE_DEFINITION_NOT_FOUND));
-                stateGraph.addNode(wfNode.getUuid(), node_async(state -> {
-                    Map<String, Object> resultMap = new HashMap<>();
-                    try {
-                        AbstractWfNode abstractWfNode = WfNodeFactory.create(wfComponent, wfNode, wfRuntimeState, state);
-                        //节点实例
-                        WfRuntimeNodeDto runtimeNodeDto = workflowRuntimeNodeService.createByState(user, wfNode.getId(), wfRuntime.getId(), state);
-                        wfRuntimeState.getRuntimeNodes().add(runtimeNodeDto);
-
-                        SSEEmitterHelper.parseAndSendPartialMsg(sseEmitter, "[NODE_RUN_" + wfNode.getUuid() + "]", JsonUtil.toJson(runtimeNodeDto));
-
-                        NodeProcessResult processResult = abstractWfNode.process((is) -> {
-                            workflowRuntimeNodeService.updateInput(runtimeNodeDto.getId(), state);
-                            for (NodeIOData input : state.getInputs()) {
-                                SSEEmitterHelper.parseAndSendPartialMsg(sseEmitter, "[NODE_INPUT_" + wfNode.getUuid() + "]", JsonUtil.toJson(input));
-                            }
-                        }, (is) -> workflowRuntimeNodeService.updateOutput(runtimeNodeDto.getId(), state));
-                        if (StringUtils.isNotBlank(processResult.getNextNodeUuid())) {
-                            resultMap.put("next", processResult.getNextNodeUuid());
-                        }
-                    } catch (Exception e) {
-                        log.error("Node run error", e);
-                        throw new BaseException(ErrorEnum.B_WF_RUN_ERROR);
-                    }
-                    resultMap.put("name", wfNode.getTitle());
-                    //langgraph4j state中的data不做数据存储，只存储元数据
-                    StreamingChatGenerator<AgentState> generator = wfRuntimeState.getNodeToStreamingGenerator().get(wfNode.getUuid());
-                    if (null != generator) {
-                        resultMap.put("_streaming_messages", generator);
-                        return resultMap;
-                    }
-                    return resultMap;
-                }));
+        WfDefinition definition = new WfDefinition();
+        definition.setWorkflow(workflow);
+        definition.setVersion(workflow.getUpdateTime());
+        definition.setComponentVersion(componentVersion);
+        definition.setNodes(nodes);
+        definition.setEdges(edges);
+        for (WorkflowNode wfNode : nodes) {
+            WorkflowComponent wfComponent = idToComponent.get(wfNode.getWorkflowComponentId());
+            if (null == wfComponent) {
+                throw new BaseException(ErrorEnum.B_WF_NODE_DEFINITION_NOT_FOUND);
             }
+            definition.getNodeToComponent().put(wfNode.getUuid(), wfComponent);
+        }
+        Pair<WorkflowNode, Set<WorkflowNode>> startAndEnds = findStartAndEndNode(nodes, edges, idToComponent);
+        definition.setStartNode(startAndEnds.getLeft());
+        definition.setEndNodes(startAndEnds.getRight());
 
-            //处理按条件才能执行的流程
-            wfRuntimeState.addEdge(START, startNode.getUuid());
-            for (WorkflowEdge edgeDef : edges) {
-                if (StringUtils.isNotBlank(edgeDef.getSourceHandle())) {
-                    wfRuntimeState.addConditionalEdge(edgeDef.getSourceNodeUuid(), edgeDef.getTargetNodeUuid());
-                } else {
-                    wfRuntimeState.addEdge(edgeDef.getSourceNodeUuid(), edgeDef.getTargetNodeUuid());
-                }
+        //处理按条件才能执行的流程
+        definition.addEdge(START, definition.getStartNode().getUuid());
+        for (WorkflowEdge edgeDef : edges) {
+            if (StringUtils.isNotBlank(edgeDef.getSourceHandle())) {
+                definition.addConditionalEdge(edgeDef.getSourceNodeUuid(), edgeDef.getTargetNodeUuid());
+            } else {
+                definition.addEdge(edgeDef.getSourceNodeUuid(), edgeDef.getTargetNodeUuid());
             }
-            for (WorkflowNode endNode : endNodes) {
-                wfRuntimeState.addEdge(endNode.getUuid(), END);
+        }
+        for (WorkflowNode endNode : definition.getEndNodes()) {
+            definition.addEdge(endNode.getUuid(), END);
+        }
+        definition.setCompiledGraph(compile(definition));
+        definitions.put(workflow.getUuid(), definition);
+        return definition;
+    }
+
+    /**
+     * 可用组件的版本：组件数量及最大的更新时间，组件被修改、启用或停用后随之变化
+     *
+     * @param components 可用的组件
+     * @return 组件版本
+     */
+    private static String componentVersion(List<WorkflowComponent> components) {
+        LocalDateTime maxUpdateTime = components.stream()
+                .map(WorkflowComponent::getUpdateTime)
+                .filter(Objects::nonNull)
+                .max(Comparator.naturalOrder())
+                .orElse(null);
+        return components.size() + "@" + maxUpdateTime;
+    }
+
+    /**
+     * 编译工作流，编译结果在同一版本的各次运行中复用
+     *
+     * @param definition 工作流定义
+     * @return 编译后的图
+     */
+    private CompiledGraph<WfNodeState> compile(WfDefinition definition) throws GraphStateException {
+        StateGraph<WfNodeState> stateGraph = new StateGraph<>(stateSerializer);
+        //Init nodes
+        for (WorkflowNode wfNode : definition.getNodes()) {
+            WorkflowComponent wfComponent = definition.getNodeToComponent().get(wfNode.getUuid());
+            stateGraph.addNode(wfNode.getUuid(), node_async(state -> runNode(wfComponent, wfNode, state)));
+        }
+
+        //Render langgraph4j edge
+        for (Map.Entry<String, List<String>> entry : definition.getEdgeMap().entrySet()) {
+            if (entry.getValue().size() == 1) {
+                stateGraph.addEdge(entry.getKey(), entry.getValue().get(0));
+            } else if (entry.getValue().size() > 1) {
+                Map<String, String> mappings = new HashMap<>();
+                for (String target : entry.getValue()) {
+                    mappings.put(target, target);
+                }
+                stateGraph.addConditionalEdges(
+                        entry.getKey(),
+                        edge_async(state -> state.data().get("next").toString()),
+                        mappings
+                );
+            } else {
+                log.warn("Can not find target node,sourceNode:{}", entry.getKey());
             }
+        }
+        return stateGraph.compile();
+    }
 
-            //Render langgraph4j edge
-            for (Map.Entry<String, List<String>> entry : wfRuntimeState.getEdges().entrySet()) {
-                if (entry.getValue().size() == 1) {
-                    stateGraph.addEdge(entry.getKey(), entry.getValue().get(0));
-                } else if (entry.getValue().size() > 1) {
-                    Map<String, String> mappings = new HashMap<>();
-                    for (String target : entry.getValue()) {
-                        mappings.put(target, target);
-                    }
-                    stateGraph.addConditionalEdges(
-                            entry.getKey(),
-                            edge_async(state -> state.data().get("next").toString()),
-                            mappings
-                    );
-                } else {
-                    log.warn("Can not find target node,sourceNode:{}", entry.getKey());
+    /**
+     * 执行节点
+     *
+     * @param wfComponent 组件
+     * @param wfNode      节点定义
+     * @param state       节点状态，其中的运行实例uuid用于获取本次运行的状态
+     * @return langgraph4j state 中的元数据
+     */
+    private Map<String, Object> runNode(WorkflowComponent wfComponent, WorkflowNode wfNode, WfNodeState state) {
+        WfRunContext runContext = runContexts.get((String) state.data().get(RUNTIME_UUID_KEY));
+        if (null == runContext) {
+            log.error("Can not find workflow run context,node uuid:{}", wfNode.getUuid());
+            throw new BaseException(ErrorEnum.B_WF_RUN_ERROR);
+        }
+        WfState wfRuntimeState = runContext.wfState();
+        wfRuntimeState.getCancellation().throwIfCancelled();
+        SseEmitter sseEmitter = runContext.sseEmitter();
+        Map<String, Object> resultMap = new HashMap<>();
+        try {
+            AbstractWfNode abstractWfNode = WfNodeFactory.create(wfComponent, wfNode, wfRuntimeState, state);
+            //节点实例
+            WfRuntimeNodeDto runtimeNodeDto = workflowRuntimeNodeService.createByState(runContext.user(), wfNode.getId(), runContext.wfRuntime().getId(), state);
+            wfRuntimeState.getRuntimeNodes().add(runtimeNodeDto);
+
+            SSEEmitterHelper.parseAndSendPartialMsg(sseEmitter, "[NODE_RUN_" + wfNode.getUuid() + "]", JsonUtil.toJson(runtimeNodeDto));
+
+            NodeProcessResult processResult = abstractWfNode.process((is) -> {
+                workflowRuntimeNodeService.updateInput(runtimeNodeDto.getId(), state);
+                for (NodeIOData input : state.getInputs()) {
+                    SSEEmitterHelper.parseAndSendPartialMsg(sseEmitter, "[NODE_INPUT_" + wfNode.getUuid() + "]", JsonUtil.toJson(input));
                 }
+            }, (is) -> workflowRuntimeNodeService.updateOutput(runtimeNodeDto.getId(), state));
+            if (StringUtils.isNotBlank(processResult.getNextNodeUuid())) {
+                resultMap.put("next", processResult.getNextNodeUuid());
             }
-            CompiledGraph<WfNodeState> app = stateGraph.compile();
-            //不使用langgraph4j state的update相关方法，无需传入input
-            AsyncGenerator<NodeOutput<WfNodeState>> outputs = app.stream(Map.of());
-            streamingResult(wfRuntimeState, outputs, sseEmitter);
-            //fillResult(outputs) //非流式返回
-            WorkflowRuntime updatedRuntime = workflowRuntimeService.updateOutput(wfRuntime.getId(), wfRuntimeState);
-            sseEmitterHelper.sendComplete(user.getId(), sseEmitter, JsonUtil.toJson(updatedRuntime.getOutput()));
         } catch (Exception e) {
-            log.error("error", e);
-            sseEmitterHelper.sendErrorAndComplete(user.getId(), sseEmitter, e.getMessage());
+            log.error("Node run error", e);
+            throw new BaseException(ErrorEnum.B_WF_RUN_ERROR);
+        }
+        resultMap.put("name", wfNode.getTitle());
+        //langgraph4j state中的data不做数据存储，只存储元数据
+        StreamingChatGenerator<AgentState> generator = wfRuntimeState.getNodeToStreamingGenerator().get(wfNode.getUuid());
+        if (null != generator) {
+            resultMap.put("_streaming_messages", generator);
+            return resultMap;
         }
+        return resultMap;
+    }
+
+    /**
+     * 运行实例的状态
+     */
+    private record WfRunContext(User user, WfRuntimeResp wfRuntime, WfState wfState, SseEmitter sseEmitter) {
     }
 
     /**
@@ -207,13 +332,23 @@ public class WorkflowEngine {
      * @param sseEmitter sse emitter
      */
     private void streamingResult(WfState wfState, AsyncGenerator<NodeOutput<WfNodeState>> outputs, SseEmitter sseEmitter) throws Exception {
+        //Node uuid => 该节点的chunk合并发送
+        Map<String, SseStreamWriter> chunkWriters = new HashMap<>();
+        StreamCancellation cancellation = wfState.getCancellation();
         for (NodeOutput<WfNodeState> out : outputs) {
+            if (cancellation.isCancelled()) {
+                //不再消费输出，后续节点不会被执行
+                log.info("Workflow run cancelled,runtime uuid:{},reason:{}", wfState.getUuid(), cancellation.getReason());
+                break;
+            }
             if (out instanceof StreamingOutput<WfNodeState> streamingOutput) {
                 String node = streamingOutput.node();
                 String chunk = streamingOutput.chunk();
-                log.info("node:{},chunk:{}", node, streamingOutput.chunk());
-                SSEEmitterHelper.parseAndSendPartialMsg(sseEmitter, "[NODE_CHUNK_" + node + "]", chunk);
+                log.debug("node:{},chunk:{}", node, chunk);
+                chunkWriters.computeIfAbsent(node, key -> new SseStreamWriter(sseEmitter, "[NODE_CHUNK_" + key + "]").onDisconnect(() -> cancellation.cancel("disconnect"))).append(chunk);
             } else {
+                //节点的输出必须在该节点的所有chunk之后发送
+                chunkWriters.values().forEach(SseStreamWriter::flush);
                 AbstractWfNode abstractWfNode = wfState.getCompletedNodes().stream().filter(item -> item.getNode().getUuid().endsWith(out.node())).findFirst().orElse(null);
                 if (null != abstractWfNode) {
                     WfNodeState nodeState = abstractWfNode.getState();
@@ -234,6 +369,7 @@ public class WorkflowEngine {
                 }
             }
         }
+        chunkWriters.values().forEach(SseStreamWriter::flush);
     }
 
     /**
@@ -307,14 +443,14 @@ public class WorkflowEngine {
      *
      * @param nodes      节点定义
      * @param edges      边定义
-     * @param components 组件
+     * @param components 组件，以组件id为key
      * @return 开始节点及结束节点列表
      */
-    public Pair<WorkflowNode, Set<WorkflowNode>> findStartAndEndNode(List<WorkflowNode> nodes, List<WorkflowEdge> edges, List<WorkflowComponent> components) {
+    public Pair<WorkflowNode, Set<WorkflowNode>> findStartAndEndNode(List<WorkflowNode> nodes, List<WorkflowEdge> edges, Map<Long, WorkflowComponent> components) {
         WorkflowNode startNode = null;
         Set<WorkflowNode> endNodes = new HashSet<>();
         for (WorkflowNode node : nodes) {
-            Optional<WorkflowComponent> wfComponent = components.stream().filter(item -> item.getId().equals(node.getWorkflowComponentId())).findFirst();
+            Optional<WorkflowComponent> wfComponent = Optional.ofNullable(components.get(node.getWorkflowComponentId()));
             if (wfComponent.isPresent() && WfComponentNameEnum.START.getName().equals(wfComponent.get().getName())) {
                 if (null != startNode) {
                     throw new BaseException(ErrorEnum.A_WF_MULTIPLE_START_NODE);
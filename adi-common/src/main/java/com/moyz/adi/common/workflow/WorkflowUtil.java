@@ -2,9 +2,16 @@ package com.moyz.adi.common.workflow;
 
 import com.moyz.adi.common.entity.WorkflowNode;
 import com.moyz.adi.common.enums.WfIODataTypeEnum;
+import com.moyz.adi.common.exception.BaseException;
+import com.moyz.adi.common.helper.LLMConcurrencyLimiter;
 import com.moyz.adi.common.helper.LLMContext;
+import com.moyz.adi.common.helper.StreamCancellation;
 import com.moyz.adi.common.interfaces.AbstractLLMService;
+import com.moyz.adi.common.rag.AdiStreamingChatLanguageModelImpl;
+import com.moyz.adi.common.service.UserDayCostService;
+import com.moyz.adi.common.util.InputAdaptor;
 import com.moyz.adi.common.util.LLMTokenUtil;
+import com.moyz.adi.common.util.SpringUtil;
 import com.moyz.adi.common.vo.AssistantChatParams;
 import com.moyz.adi.common.vo.LLMBuilderProperties;
 import com.moyz.adi.common.vo.SseAskParams;
@@ -12,8 +19,10 @@ import com.moyz.adi.common.workflow.data.NodeIOData;
 import com.moyz.adi.common.workflow.data.NodeIODataContent;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.UserMessage;
-import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.output.TokenUsage;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.bsc.langgraph4j.langchain4j.generators.StreamingChatGenerator;
@@ -21,8 +30,10 @@ import org.bsc.langgraph4j.state.AgentState;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.moyz.adi.common.cosntant.AdiConstant.WorkflowConstant.DEFAULT_OUTPUT_PARAM_NAME;
+import static com.moyz.adi.common.enums.ErrorEnum.B_STREAM_CANCELLED;
 
 @Slf4j
 public class WorkflowUtil {
@@ -60,15 +71,18 @@ public class WorkflowUtil {
                 .startingNode(node.getUuid())
                 .startingState(state)
                 .build();
-        StreamingChatLanguageModel streamingLLM = llmService.buildStreamingChatLLM(
-                LLMBuilderProperties
-                        .builder()
-                        .build()
-        );
         ChatRequest request = ChatRequest.builder()
                 .messages(msgs)
                 .build();
-        streamingLLM.chat(request, streamingGenerator.handler());
+        StreamingChatResponseHandler generatorHandler = streamingGenerator.handler();
+        //按平台限制同时进行的LLM请求数，名额在响应结束、出错或发起失败时释放
+        LLMConcurrencyLimiter.Permit permit = SpringUtil.getBean(LLMConcurrencyLimiter.class).acquire(llmService.getAiModel().getPlatform());
+        try {
+            doStreamingInvokeLLM(wfState, llmService, request, generatorHandler, permit);
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
         wfState.getNodeToStreamingGenerator().put(node.getUuid(), streamingGenerator);
         //LLM返回的chunk存放在阻塞队列中，此处不做处理，交由WorkflowEngine统一处理
 //            for (StreamingOutput<AgentState> r : streamingGenerator) {
@@ -82,6 +96,98 @@ public class WorkflowUtil {
 //            }
     }
 
+    /**
+     * 发起流式请求，结果（完成、出错或取消）通过generatorHandler只回调一次
+     */
+    private static void doStreamingInvokeLLM(WfState wfState, AbstractLLMService<?> llmService, ChatRequest request,
+                                             StreamingChatResponseHandler generatorHandler, LLMConcurrencyLimiter.Permit permit) {
+        AdiStreamingChatLanguageModelImpl streamingLLM = llmService.buildStreamingChatLLM(
+                LLMBuilderProperties
+                        .builder()
+                        .build()
+        );
+        StreamCancellation cancellation = wfState.getCancellation();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        StringBuilder partial = new StringBuilder();
+        //模型客户端支持中止时，取消后直接关闭上游请求，按已发送的prompt及已输出的内容计费
+        StreamCancellation.Upstream upstream = cancellation.newUpstream(aborted -> {
+            permit.close();
+            if (finished.compareAndSet(false, true)) {
+                String answer;
+                synchronized (partial) {
+                    answer = partial.toString();
+                }
+                appendNodeCost(wfState, llmService, aborted.getPromptTokens(), InputAdaptor.countTokens(answer));
+                generatorHandler.onError(new BaseException(B_STREAM_CANCELLED));
+            }
+        });
+        if (cancellation.isCancelled()) {
+            permit.close();
+            finished.set(true);
+            generatorHandler.onError(new BaseException(B_STREAM_CANCELLED));
+        } else {
+            //上游请求显式绑定到本次使用的模型，模型客户端在发起时登记取消句柄及prompt的token数
+            streamingLLM.withUpstream(upstream).chat(request, new StreamingChatResponseHandler() {
+                @Override
+                public void onPartialResponse(String partialResponse) {
+                    //运行已取消后不再输出，无法中止的上游请求继续运行到结束
+                    if (cancellation.isCancelled()) {
+                        return;
+                    }
+                    synchronized (partial) {
+                        partial.append(partialResponse);
+                    }
+                    generatorHandler.onPartialResponse(partialResponse);
+                }
+
+                @Override
+                public void onCompleteResponse(ChatResponse completeResponse) {
+                    permit.close();
+                    if (!finished.compareAndSet(false, true)) {
+                        return;
+                    }
+                    TokenUsage tokenUsage = completeResponse.metadata().tokenUsage();
+                    if (null != tokenUsage && null != tokenUsage.totalTokenCount()) {
+                        appendNodeCost(wfState, llmService, tokenUsage.totalTokenCount(), 0);
+                    }
+                    if (cancellation.isCancelled()) {
+                        generatorHandler.onError(new BaseException(B_STREAM_CANCELLED));
+                        return;
+                    }
+                    generatorHandler.onCompleteResponse(completeResponse);
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    permit.close();
+                    if (finished.compareAndSet(false, true)) {
+                        generatorHandler.onError(error);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 把流式LLM节点消耗的token计入用户当天的消耗
+     *
+     * @param wfState      工作流运行状态
+     * @param llmService   节点使用的模型
+     * @param inputTokens  输入token数
+     * @param outputTokens 输出token数
+     */
+    private static void appendNodeCost(WfState wfState, AbstractLLMService<?> llmService, int inputTokens, int outputTokens) {
+        int tokens = inputTokens + outputTokens;
+        if (tokens < 1) {
+            return;
+        }
+        try {
+            SpringUtil.getBean(UserDayCostService.class).appendCostToUser(wfState.getUser(), tokens, llmService.getAiModel().getIsFree());
+        } catch (Exception e) {
+            log.error("Append workflow node cost error,runtimeUuid:{}", wfState.getUuid(), e);
+        }
+    }
+
     public static NodeIOData invokeLLM(WfState wfState, String modelName, String prompt) {
         log.info("common invoke");
         AbstractLLMService<?> llmService = LLMContext.getLLMServiceByName(modelName);
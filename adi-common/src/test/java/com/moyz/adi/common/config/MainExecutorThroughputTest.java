@@ -0,0 +1,169 @@
+package com.moyz.adi.common.config;
+
+import com.moyz.adi.common.helper.LLMConcurrencyLimiter;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * mainExecutor各模式下的吞吐量
+ * <br/>使用固定延迟的模拟LLM（流式输出期间占用调用线程），每个客户端依次提交若干请求并等待其结束，统计每秒完成的请求数
+ * <br/>jvm低于21时virtual模式按elastic处理
+ */
+@Slf4j
+class MainExecutorThroughputTest {
+
+    private static final int TOKENS = 5;
+
+    private static final long TOKEN_DELAY_MILLIS = 20;
+
+    private static final int ROUNDS = 5;
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final StreamingChatLanguageModel model = new DelayedStreamingChatModel();
+
+    /**
+     * 并发数不超过线程池核心线程数时，各模式的吞吐量都随并发数增加
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "elastic", "virtual"})
+    void throughputRisesWithConcurrency(String mode) throws Exception {
+        double single = measure(mode, 1);
+        double concurrent = measure(mode, POOL_SIZE);
+        log.info("mode:{},throughput with 1 client:{}/s,with {} clients:{}/s", mode, single, POOL_SIZE, concurrent);
+        assertTrue(concurrent > single * POOL_SIZE * 0.5, "throughput should rise with concurrency in " + mode + " mode");
+    }
+
+    /**
+     * 并发数超过线程池核心线程数时，pool模式的任务排队，elastic及virtual模式的吞吐量继续增加
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"elastic", "virtual"})
+    void throughputRisesBeyondPoolSize(String mode) throws Exception {
+        int clients = POOL_SIZE * 4;
+        double pool = measure("pool", clients);
+        double concurrent = measure(mode, clients);
+        log.info("{} clients,pool mode throughput:{}/s,{} mode throughput:{}/s", clients, pool, mode, concurrent);
+        assertTrue(concurrent > pool * 2, mode + " mode should not be bounded by the pool size");
+    }
+
+    /**
+     * @param mode    mainExecutor的模式
+     * @param clients 同时发送请求的客户端数
+     * @return 每秒完成的请求数
+     */
+    private double measure(String mode, int clients) throws Exception {
+        BeanConfig beanConfig = new BeanConfig();
+        ReflectionTestUtils.setField(beanConfig, "asyncMode", mode);
+        ReflectionTestUtils.setField(beanConfig, "asyncElasticMaxThreads", 1000);
+        ReflectionTestUtils.setField(beanConfig, "asyncShutdownAwaitSeconds", 5);
+        AsyncTaskExecutor executor = beanConfig.mainExecutor();
+        if (executor instanceof ThreadPoolTaskExecutor threadPoolTaskExecutor) {
+            threadPoolTaskExecutor.initialize();
+        }
+        LLMConcurrencyLimiter limiter = new LLMConcurrencyLimiter();
+        ReflectionTestUtils.setField(limiter, "concurrencyPerPlatform", 1000);
+        ReflectionTestUtils.setField(limiter, "acquireTimeoutMillis", 60000L);
+        ReflectionTestUtils.setField(limiter, "asyncMode", mode);
+        try {
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> clientFutures = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                clientFutures.add(CompletableFuture.runAsync(() -> {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        Future<?> future = executor.submit(() -> chat(limiter));
+                        try {
+                            future.get();
+                        } catch (InterruptedException | ExecutionException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }, runnable -> new Thread(runnable).start()));
+            }
+            CompletableFuture.allOf(clientFutures.toArray(new CompletableFuture[0])).get();
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            return clients * ROUNDS / seconds;
+        } finally {
+            if (executor instanceof ThreadPoolTaskExecutor threadPoolTaskExecutor) {
+                threadPoolTaskExecutor.shutdown();
+            } else if (executor instanceof DisposableBean disposableBean) {
+                disposableBean.destroy();
+            }
+        }
+    }
+
+    private void chat(LLMConcurrencyLimiter limiter) {
+        try (LLMConcurrencyLimiter.Permit ignored = limiter.acquire("openai")) {
+            AtomicReference<ChatResponse> response = new AtomicReference<>();
+            model.chat(ChatRequest.builder().messages(UserMessage.from("hello")).build(), new StreamingChatResponseHandler() {
+                @Override
+                public void onPartialResponse(String partialResponse) {
+                }
+
+                @Override
+                public void onCompleteResponse(ChatResponse completeResponse) {
+                    response.set(completeResponse);
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    throw new IllegalStateException(error);
+                }
+            });
+            if (null == response.get()) {
+                throw new IllegalStateException("No response");
+            }
+        }
+    }
+
+    /**
+     * 模拟LLM：在调用线程中逐个输出token，每个token延迟固定时间
+     */
+    private static class DelayedStreamingChatModel implements StreamingChatLanguageModel {
+
+        @Override
+        public void doChat(ChatRequest chatRequest, StreamingChatResponseHandler handler) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < TOKENS; i++) {
+                try {
+                    Thread.sleep(TOKEN_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    handler.onError(e);
+                    return;
+                }
+                String token = "token" + i + " ";
+                text.append(token);
+                handler.onPartialResponse(token);
+            }
+            handler.onCompleteResponse(ChatResponse.builder().aiMessage(AiMessage.from(text.toString())).build());
+        }
+
+        @Override
+        public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -238,6 +238,7 @@ CREATE TABLE adi_conversation_message
     ai_model_id                     bigint        default 0                 not null,
     understand_context_msg_pair_num integer       default 0                 not null,
     attachments                     varchar(1000) default ''                not null,
+    is_cancelled                    boolean       default false             not null,
     create_time                     timestamp     default CURRENT_TIMESTAMP not null,
     update_time                     timestamp     default CURRENT_TIMESTAMP not null,
     is_deleted                      boolean       default false             not null
@@ -255,6 +256,7 @@ COMMENT ON COLUMN adi_conversation_message.user_id IS '用户ID | User ID';
 COMMENT ON COLUMN adi_conversation_message.ai_model_id IS '模型表的ID | adi_ai_model id';
 COMMENT ON COLUMN adi_conversation_message.understand_context_msg_pair_num IS '上下文消息对数量 | Number of context message pairs';
 COMMENT ON COLUMN adi_conversation_message.attachments IS '附件,存储格式: uuid,uuid | Attachments, stored as: uuid,uuid';
+COMMENT ON COLUMN adi_conversation_message.is_cancelled IS 'AI回复是否被中途取消（用户停止、断开或超时），被取消时remark为已输出的部分内容 | Whether the AI response was cancelled midway, remark then holds the partial response';
 
 CREATE TRIGGER trigger_conv_message_update_time
     BEFORE UPDATE
@@ -422,6 +424,7 @@ COMMENT ON COLUMN adi_user_day_cost.is_free IS '是：免费额度(即该行统
 COMMENT ON COLUMN adi_user_day_cost.create_time IS '记录创建的时间戳 | Timestamp of record creation';
 COMMENT ON COLUMN adi_user_day_cost.update_time IS '记录最后更新的时间戳，自动更新 | Timestamp of record last update, automatically updated on each update';
 COMMENT ON COLUMN adi_user_day_cost.draw_times IS '图片数量 | Number of images';
+create unique index udx_user_day_cost on adi_user_day_cost (user_id, day, is_free);
 
 CREATE TRIGGER trigger_user_day_cost_update_time
     BEFORE UPDATE
@@ -493,8 +496,10 @@ create table adi_knowledge_base_item
     remark                       text         default ''                not null,
     embedding_status             int          default 1                 not null,
     embedding_status_change_time timestamp    default CURRENT_TIMESTAMP not null,
+    embedding_checkpoint         int          default 0                 not null,
     graphical_status             int          default 1                 not null,
     graphical_status_change_time timestamp    default CURRENT_TIMESTAMP not null,
+    graphical_checkpoint         int          default 0                 not null,
     create_time                  timestamp    default CURRENT_TIMESTAMP not null,
     update_time                  timestamp    default CURRENT_TIMESTAMP not null,
     is_deleted                   boolean      default false             not null
@@ -510,6 +515,8 @@ comment on column adi_knowledge_base_item.embedding_status is '向量化状态,
 comment on column adi_knowledge_base_item.embedding_status_change_time is '向量化状态变更时间 | Embedding Status Change Time';
 comment on column adi_knowledge_base_item.graphical_status is '图谱化状态, 1:未图谱化,2:正在图谱化;3:已图谱化,4:失败 | Graphical Status, 1: Not Graphical, 2: Graphing, 3: Graphed, 4: Failed';
 comment on column adi_knowledge_base_item.graphical_status_change_time is '图谱化状态变更时间 | Graphical Status Change Time';
+comment on column adi_knowledge_base_item.embedding_checkpoint is '向量化进度,已完成的文本段数量 | Embedding Checkpoint, number of finished text segments';
+comment on column adi_knowledge_base_item.graphical_checkpoint is '图谱化进度,已完成的文本段数量 | Graphical Checkpoint, number of finished text segments';
 comment on column adi_knowledge_base_item.create_time is '创建时间 | Creation Time';
 comment on column adi_knowledge_base_item.update_time is '更新时间 | Update Time';
 comment on column adi_knowledge_base_item.is_deleted is '0：未删除；1：已删除 | Deletion Status, 0: Not Deleted; 1: Deleted';
@@ -562,6 +569,7 @@ create table adi_knowledge_base_qa
     source_file_ids varchar(500)  default ''                not null,
     user_id         bigint        default 0                 not null,
     ai_model_id     bigint        default 0                 not null,
+    is_cancelled    boolean       default false             not null,
     create_time     timestamp     default CURRENT_TIMESTAMP not null,
     update_time     timestamp     default CURRENT_TIMESTAMP not null,
     is_deleted      boolean       default false             not null
@@ -577,6 +585,7 @@ comment on column adi_knowledge_base_qa.answer is '答案 | Answer';
 comment on column adi_knowledge_base_qa.answer_tokens is '答案消耗的token | Tokens consumed by the answer';
 comment on column adi_knowledge_base_qa.source_file_ids is '来源文档id,以逗号隔开 | Source file IDs, separated by commas';
 comment on column adi_knowledge_base_qa.user_id is '提问用户id | User ID of the questioner';
+comment on column adi_knowledge_base_qa.is_cancelled is '答案是否被中途取消，被取消时answer为已输出的部分内容 | Whether the answer was cancelled midway, answer then holds the partial answer';
 comment on column adi_knowledge_base_qa.create_time is '创建时间 | Creation Time';
 comment on column adi_knowledge_base_qa.update_time is '更新时间 | Update Time';
 comment on column adi_knowledge_base_qa.is_deleted is '0：未删除；1：已删除 | Deletion Status, 0: Not Deleted; 1: Deleted';
@@ -611,23 +620,27 @@ execute procedure update_modified_column();
 -- Graph RAG
 create table adi_knowledge_base_graph_segment
 (
-    id           bigserial primary key,
-    uuid         varchar(32) default ''                not null,
-    kb_uuid      varchar(32) default ''                not null,
-    kb_item_uuid varchar(32) default ''                not null,
-    remark       text        default ''                not null,
-    user_id      bigint      default 0                 not null,
-    create_time  timestamp   default CURRENT_TIMESTAMP not null,
-    update_time  timestamp   default CURRENT_TIMESTAMP not null,
-    is_deleted   boolean     default false             not null
+    id            bigserial primary key,
+    uuid          varchar(32) default ''                not null,
+    kb_uuid       varchar(32) default ''                not null,
+    kb_item_uuid  varchar(32) default ''                not null,
+    remark        text        default ''                not null,
+    user_id       bigint      default 0                 not null,
+    segment_index int         default -1                not null,
+    create_time   timestamp   default CURRENT_TIMESTAMP not null,
+    update_time   timestamp   default CURRENT_TIMESTAMP not null,
+    is_deleted    boolean     default false             not null
 );
 
+create index idx_kb_graph_segment_item on adi_knowledge_base_graph_segment (kb_item_uuid);
+
 comment on table adi_knowledge_base_graph_segment is '知识库-图谱-文本块 | Knowledge Base - Graph Segment';
 comment on column adi_knowledge_base_graph_segment.uuid is '唯一标识 | Unique identifier';
 comment on column adi_knowledge_base_graph_segment.kb_uuid is '所属知识库uuid |adi_knowledge_base UUID';
 comment on column adi_knowledge_base_graph_segment.kb_item_uuid is '所属知识点uuid | adi_knowledge_base_item UUID';
 comment on column adi_knowledge_base_graph_segment.remark is '内容 | Content';
 comment on column adi_knowledge_base_graph_segment.user_id is '所属用户 | adi_user ID';
+comment on column adi_knowledge_base_graph_segment.segment_index is '在知识点中的文本段序号，抽取结果写入图数据库后记录，继续索引时跳过；-1表示未记录 | Segment index in the knowledge base item, recorded after the extraction result is written to the graph store and skipped on resume; -1 means not recorded';
 comment on column adi_knowledge_base_graph_segment.create_time is '创建时间 | Creation Time';
 comment on column adi_knowledge_base_graph_segment.update_time is '更新时间 | Update Time';
 comment on column adi_knowledge_base_graph_segment.is_deleted is '是否删除，0：未删除；1：已删除 | Deletion Status, 0: Not Deleted; 1: Deleted';
@@ -653,6 +666,83 @@ comment on column adi_knowledge_base_qa_ref_graph.graph_from_llm is 'LLM解析
 comment on column adi_knowledge_base_qa_ref_graph.graph_from_store is '从图数据库中查找得到的图谱: {vertices:[{id:"111",name:"vertexName1"},{id:"222",name:"vertexName2"}],edges:[{id:"333",name:"edgeName1",start:"111",end:"222"}] | Graph retrieved from graph database: {vertices:[{id:"111",name:"vertexName1"},{id:"222",name:"vertexName2"}],edges:[{id:"333",name:"edgeName1",start:"111",end:"222"}]';
 comment on column adi_knowledge_base_qa_ref_graph.user_id is '所属用户 | adi_user ID';
 
+create table adi_knowledge_base_import_job
+(
+    id                bigserial primary key,
+    uuid              varchar(32)  default ''                not null,
+    kb_id             bigint       default 0                 not null,
+    kb_uuid           varchar(32)  default ''                not null,
+    user_id           bigint       default 0                 not null,
+    index_types       varchar(100) default ''                not null,
+    status            int          default 2                 not null,
+    total_count       int          default 0                 not null,
+    success_count     int          default 0                 not null,
+    fail_count        int          default 0                 not null,
+    skip_count        int          default 0                 not null,
+    total_cost_millis bigint       default 0                 not null,
+    end_time          timestamp,
+    create_time       timestamp    default CURRENT_TIMESTAMP not null,
+    update_time       timestamp    default CURRENT_TIMESTAMP not null,
+    is_deleted        boolean      default false             not null
+);
+
+comment on table adi_knowledge_base_import_job is '知识库-批量导入任务 | Knowledge Base - Bulk Import Job';
+comment on column adi_knowledge_base_import_job.kb_id is '知识库ID | adi_knowledge_base id';
+comment on column adi_knowledge_base_import_job.kb_uuid is '知识库UUID | adi_knowledge_base uuid';
+comment on column adi_knowledge_base_import_job.user_id is '创建任务的用户 | adi_user ID';
+comment on column adi_knowledge_base_import_job.index_types is '索引类型，如embedding,graphical，为空时只解析不索引 | Index types, e.g. embedding,graphical; empty means parse only';
+comment on column adi_knowledge_base_import_job.status is '状态, 2:处理中,3:已完成 | Status, 2: Processing, 3: Finished';
+comment on column adi_knowledge_base_import_job.total_count is '文档总数 | Total documents';
+comment on column adi_knowledge_base_import_job.success_count is '成功的文档数 | Succeeded documents';
+comment on column adi_knowledge_base_import_job.fail_count is '失败的文档数 | Failed documents';
+comment on column adi_knowledge_base_import_job.skip_count is '文件类型不支持而跳过的文档数 | Documents skipped because the file type is not supported';
+comment on column adi_knowledge_base_import_job.total_cost_millis is '已处理文档的耗时之和（毫秒） | Sum of processing time of finished documents (ms)';
+comment on column adi_knowledge_base_import_job.end_time is '完成时间 | Finish time';
+comment on column adi_knowledge_base_import_job.create_time is '创建时间 | Creation Time';
+comment on column adi_knowledge_base_import_job.update_time is '更新时间，处理中的任务定时刷新，用于判断任务是否已中断 | Update Time, refreshed periodically while processing to detect interrupted jobs';
+comment on column adi_knowledge_base_import_job.is_deleted is '是否删除，0: 正常；1: 删除 | Deletion status, 0: Normal; 1: Deleted';
+
+create trigger trigger_kb_import_job_update_time
+    before update
+    on adi_knowledge_base_import_job
+    for each row
+execute procedure update_modified_column();
+
+create table adi_knowledge_base_import_job_item
+(
+    id           bigserial primary key,
+    job_id       bigint       default 0                 not null,
+    file_id      bigint       default 0                 not null,
+    file_name    varchar(500) default ''                not null,
+    kb_item_uuid varchar(32)  default ''                not null,
+    status       int          default 1                 not null,
+    error_msg    varchar(500) default ''                not null,
+    cost_millis  bigint       default 0                 not null,
+    create_time  timestamp    default CURRENT_TIMESTAMP not null,
+    update_time  timestamp    default CURRENT_TIMESTAMP not null,
+    is_deleted   boolean      default false             not null
+);
+
+create index idx_kb_import_job_item_job on adi_knowledge_base_import_job_item (job_id, status);
+
+comment on table adi_knowledge_base_import_job_item is '知识库-批量导入任务中的文档 | Knowledge Base - Bulk Import Job Documents';
+comment on column adi_knowledge_base_import_job_item.job_id is '导入任务ID | adi_knowledge_base_import_job id';
+comment on column adi_knowledge_base_import_job_item.file_id is '文件ID | adi_file id';
+comment on column adi_knowledge_base_import_job_item.file_name is '原始文件名 | Original file name';
+comment on column adi_knowledge_base_import_job_item.kb_item_uuid is '解析后创建的知识点UUID | adi_knowledge_base_item uuid';
+comment on column adi_knowledge_base_import_job_item.status is '状态, 1:等待处理,2:处理中,3:成功,4:失败,5:跳过 | Status, 1: Pending, 2: Processing, 3: Succeeded, 4: Failed, 5: Skipped';
+comment on column adi_knowledge_base_import_job_item.error_msg is '失败原因 | Failure reason';
+comment on column adi_knowledge_base_import_job_item.cost_millis is '解析及索引耗时（毫秒） | Parsing and indexing time (ms)';
+comment on column adi_knowledge_base_import_job_item.create_time is '创建时间 | Creation Time';
+comment on column adi_knowledge_base_import_job_item.update_time is '更新时间 | Update Time';
+comment on column adi_knowledge_base_import_job_item.is_deleted is '是否删除，0: 正常；1: 删除 | Deletion status, 0: Normal; 1: Deleted';
+
+create trigger trigger_kb_import_job_item_update_time
+    before update
+    on adi_knowledge_base_import_job_item
+    for each row
+execute procedure update_modified_column();
+
 -- ai search
 create table adi_ai_search_record
 (
@@ -667,6 +757,7 @@ create table adi_ai_search_record
     user_id                bigint        default 0                 not null,
     user_uuid              varchar(32)   default ''                not null,
     ai_model_id            bigint        default 0                 not null,
+    is_cancelled           boolean       default false             not null,
     create_time            timestamp     default CURRENT_TIMESTAMP not null,
     update_time            timestamp     default CURRENT_TIMESTAMP not null,
     is_deleted             boolean       default false             not null
@@ -680,6 +771,7 @@ comment on column adi_ai_search_record.answer is 'LLM的响应 | LLM response';
 comment on column adi_ai_search_record.answer_tokens is 'LLM响应消耗的token数量 | Tokens consumed by the LLM response';
 comment on column adi_ai_search_record.user_id is '用户ID | adi_user ID';
 comment on column adi_ai_search_record.ai_model_id is 'AI模型ID | adi_ai_model ID';
+comment on column adi_ai_search_record.is_cancelled is 'LLM响应是否被中途取消，被取消时answer为已输出的部分内容 | Whether the LLM response was cancelled midway, answer then holds the partial response';
 comment on column adi_ai_search_record.create_time is '创建时间 | Creation time';
 comment on column adi_ai_search_record.update_time is '更新时间 | Update time';
 comment on column adi_ai_search_record.is_deleted is '是否删除，0: 正常；1: 删除 | Deletion status, 0: Normal; 1: Deleted';
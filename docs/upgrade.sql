@@ -0,0 +1,129 @@
+-- 已有数据库的升级脚本，按顺序执行尚未执行过的部分
+-- Upgrade script for existing databases, run the sections that have not been applied yet, in order
+
+-- 用户每日消耗改为批量 insert ... on conflict 累加，需要 (user_id, day, is_free) 上的唯一索引，须在部署新版本前执行
+-- 先把重复记录的消耗合并到id最小的一条并删除其余记录，再创建唯一索引
+-- Daily user cost is now upserted in batches (insert ... on conflict), which needs a unique index on (user_id, day, is_free); run before deploying
+-- Duplicate rows are first merged into the one with the smallest id and the rest deleted, then the unique index is created
+BEGIN;
+LOCK TABLE adi_user_day_cost IN SHARE ROW EXCLUSIVE MODE;
+UPDATE adi_user_day_cost c
+SET tokens        = d.tokens,
+    request_times = d.request_times,
+    draw_times    = d.draw_times
+FROM (SELECT min(id)            AS keep_id,
+             sum(tokens)        AS tokens,
+             sum(request_times) AS request_times,
+             sum(draw_times)    AS draw_times
+      FROM adi_user_day_cost
+      GROUP BY user_id, day, is_free
+      HAVING count(*) > 1) d
+WHERE c.id = d.keep_id;
+DELETE
+FROM adi_user_day_cost c
+    USING adi_user_day_cost k
+WHERE c.user_id = k.user_id
+  AND c.day = k.day
+  AND c.is_free = k.is_free
+  AND c.id > k.id;
+CREATE UNIQUE INDEX IF NOT EXISTS udx_user_day_cost ON adi_user_day_cost (user_id, day, is_free);
+COMMIT;
+
+-- 记录被中途取消的回答 | Record answers cancelled midway
+ALTER TABLE adi_conversation_message ADD COLUMN IF NOT EXISTS is_cancelled boolean default false not null;
+COMMENT ON COLUMN adi_conversation_message.is_cancelled IS 'AI回复是否被中途取消（用户停止、断开或超时），被取消时remark为已输出的部分内容 | Whether the AI response was cancelled midway, remark then holds the partial response';
+ALTER TABLE adi_knowledge_base_qa ADD COLUMN IF NOT EXISTS is_cancelled boolean default false not null;
+COMMENT ON COLUMN adi_knowledge_base_qa.is_cancelled IS '答案是否被中途取消，被取消时answer为已输出的部分内容 | Whether the answer was cancelled midway, answer then holds the partial answer';
+ALTER TABLE adi_ai_search_record ADD COLUMN IF NOT EXISTS is_cancelled boolean default false not null;
+COMMENT ON COLUMN adi_ai_search_record.is_cancelled IS 'LLM响应是否被中途取消，被取消时answer为已输出的部分内容 | Whether the LLM response was cancelled midway, answer then holds the partial response';
+
+-- 记录知识点索引进度，中断后从断点继续 | Record knowledge base item indexing progress to resume after interruption
+ALTER TABLE adi_knowledge_base_item ADD COLUMN IF NOT EXISTS embedding_checkpoint int default 0 not null;
+ALTER TABLE adi_knowledge_base_item ADD COLUMN IF NOT EXISTS graphical_checkpoint int default 0 not null;
+COMMENT ON COLUMN adi_knowledge_base_item.embedding_checkpoint IS '向量化进度,已完成的文本段数量 | Embedding Checkpoint, number of finished text segments';
+COMMENT ON COLUMN adi_knowledge_base_item.graphical_checkpoint IS '图谱化进度,已完成的文本段数量 | Graphical Checkpoint, number of finished text segments';
+
+-- 知识库批量导入任务 | Knowledge base bulk import jobs
+CREATE TABLE IF NOT EXISTS adi_knowledge_base_import_job
+(
+    id                bigserial primary key,
+    uuid              varchar(32)  default ''                not null,
+    kb_id             bigint       default 0                 not null,
+    kb_uuid           varchar(32)  default ''                not null,
+    user_id           bigint       default 0                 not null,
+    index_types       varchar(100) default ''                not null,
+    status            int          default 2                 not null,
+    total_count       int          default 0                 not null,
+    success_count     int          default 0                 not null,
+    fail_count        int          default 0                 not null,
+    skip_count        int          default 0                 not null,
+    total_cost_millis bigint       default 0                 not null,
+    end_time          timestamp,
+    create_time       timestamp    default CURRENT_TIMESTAMP not null,
+    update_time       timestamp    default CURRENT_TIMESTAMP not null,
+    is_deleted        boolean      default false             not null
+);
+
+COMMENT ON TABLE adi_knowledge_base_import_job IS '知识库-批量导入任务 | Knowledge Base - Bulk Import Job';
+COMMENT ON COLUMN adi_knowledge_base_import_job.kb_id IS '知识库ID | adi_knowledge_base id';
+COMMENT ON COLUMN adi_knowledge_base_import_job.kb_uuid IS '知识库UUID | adi_knowledge_base uuid';
+COMMENT ON COLUMN adi_knowledge_base_import_job.user_id IS '创建任务的用户 | adi_user ID';
+COMMENT ON COLUMN adi_knowledge_base_import_job.index_types IS '索引类型，如embedding,graphical，为空时只解析不索引 | Index types, e.g. embedding,graphical; empty means parse only';
+COMMENT ON COLUMN adi_knowledge_base_import_job.status IS '状态, 2:处理中,3:已完成 | Status, 2: Processing, 3: Finished';
+COMMENT ON COLUMN adi_knowledge_base_import_job.total_count IS '文档总数 | Total documents';
+COMMENT ON COLUMN adi_knowledge_base_import_job.success_count IS '成功的文档数 | Succeeded documents';
+COMMENT ON COLUMN adi_knowledge_base_import_job.fail_count IS '失败的文档数 | Failed documents';
+COMMENT ON COLUMN adi_knowledge_base_import_job.skip_count IS '文件类型不支持而跳过的文档数 | Documents skipped because the file type is not supported';
+COMMENT ON COLUMN adi_knowledge_base_import_job.total_cost_millis IS '已处理文档的耗时之和（毫秒） | Sum of processing time of finished documents (ms)';
+COMMENT ON COLUMN adi_knowledge_base_import_job.end_time IS '完成时间 | Finish time';
+COMMENT ON COLUMN adi_knowledge_base_import_job.create_time IS '创建时间 | Creation Time';
+COMMENT ON COLUMN adi_knowledge_base_import_job.update_time IS '更新时间，处理中的任务定时刷新，用于判断任务是否已中断 | Update Time, refreshed periodically while processing to detect interrupted jobs';
+COMMENT ON COLUMN adi_knowledge_base_import_job.is_deleted IS '是否删除，0: 正常；1: 删除 | Deletion status, 0: Normal; 1: Deleted';
+
+DROP TRIGGER IF EXISTS trigger_kb_import_job_update_time ON adi_knowledge_base_import_job;
+CREATE TRIGGER trigger_kb_import_job_update_time
+    BEFORE UPDATE
+    ON adi_knowledge_base_import_job
+    FOR EACH ROW
+EXECUTE PROCEDURE update_modified_column();
+
+CREATE TABLE IF NOT EXISTS adi_knowledge_base_import_job_item
+(
+    id           bigserial primary key,
+    job_id       bigint       default 0                 not null,
+    file_id      bigint       default 0                 not null,
+    file_name    varchar(500) default ''                not null,
+    kb_item_uuid varchar(32)  default ''                not null,
+    status       int          default 1                 not null,
+    error_msg    varchar(500) default ''                not null,
+    cost_millis  bigint       default 0                 not null,
+    create_time  timestamp    default CURRENT_TIMESTAMP not null,
+    update_time  timestamp    default CURRENT_TIMESTAMP not null,
+    is_deleted   boolean      default false             not null
+);
+
+CREATE INDEX IF NOT EXISTS idx_kb_import_job_item_job ON adi_knowledge_base_import_job_item (job_id, status);
+
+COMMENT ON TABLE adi_knowledge_base_import_job_item IS '知识库-批量导入任务中的文档 | Knowledge Base - Bulk Import Job Documents';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.job_id IS '导入任务ID | adi_knowledge_base_import_job id';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.file_id IS '文件ID | adi_file id';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.file_name IS '原始文件名 | Original file name';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.kb_item_uuid IS '解析后创建的知识点UUID | adi_knowledge_base_item uuid';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.status IS '状态, 1:等待处理,2:处理中,3:成功,4:失败,5:跳过 | Status, 1: Pending, 2: Processing, 3: Succeeded, 4: Failed, 5: Skipped';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.error_msg IS '失败原因 | Failure reason';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.cost_millis IS '解析及索引耗时（毫秒） | Parsing and indexing time (ms)';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.create_time IS '创建时间 | Creation Time';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.update_time IS '更新时间 | Update Time';
+COMMENT ON COLUMN adi_knowledge_base_import_job_item.is_deleted IS '是否删除，0: 正常；1: 删除 | Deletion status, 0: Normal; 1: Deleted';
+
+DROP TRIGGER IF EXISTS trigger_kb_import_job_item_update_time ON adi_knowledge_base_import_job_item;
+CREATE TRIGGER trigger_kb_import_job_item_update_time
+    BEFORE UPDATE
+    ON adi_knowledge_base_import_job_item
+    FOR EACH ROW
+EXECUTE PROCEDURE update_modified_column();
+
+-- 记录已写入图数据库的文本段序号，继续图谱化索引时跳过 | Record graph segments already written to the graph store so that resumed graph indexing skips them
+ALTER TABLE adi_knowledge_base_graph_segment ADD COLUMN IF NOT EXISTS segment_index int default -1 not null;
+COMMENT ON COLUMN adi_knowledge_base_graph_segment.segment_index IS '在知识点中的文本段序号，抽取结果写入图数据库后记录，继续索引时跳过；-1表示未记录 | Segment index in the knowledge base item, recorded after the extraction result is written to the graph store and skipped on resume; -1 means not recorded';
+CREATE INDEX IF NOT EXISTS idx_kb_graph_segment_item ON adi_knowledge_base_graph_segment (kb_item_uuid);